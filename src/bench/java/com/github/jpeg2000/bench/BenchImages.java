@@ -0,0 +1,92 @@
+package com.github.jpeg2000.bench;
+
+import java.io.*;
+import java.awt.image.*;
+import java.util.Random;
+
+import com.github.jpeg2000.*;
+import jj2000.j2k.io.*;
+
+/**
+ * Generates the images used by the benchmarks and encodes them. The
+ * images are synthetic but deterministic, a mix of smooth gradients,
+ * texture and noise so that every bit-plane has something to code,
+ * and the same parameters always give the same image and codestream.
+ */
+final class BenchImages {
+
+    private BenchImages() {
+    }
+
+    /**
+     * Create an RGB image
+     * @param width the width of the image
+     * @param height the height of the image
+     */
+    static BufferedImage create(int width, int height) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] row = new int[width];
+        Random random = new Random(width * 31 + height);
+        for (int y=0;y<height;y++) {
+            for (int x=0;x<width;x++) {
+                int r = 128 + (int)(60 * Math.sin(x / 17.0) * Math.cos(y / 23.0)) + random.nextInt(30);
+                int g = (x * 255 / width + random.nextInt(20)) & 0xFF;
+                int b = (x ^ y) & 0xFF;
+                row[x] = (Math.min(255, r) << 16) | (g << 8) | b;
+            }
+            img.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return img;
+    }
+
+    /**
+     * Create a J2KWriter to encode the image
+     * @param img the image
+     * @param tilesize the width and height of the tiles, or 0 for a single tile
+     * @param cblksize the width and height of the code-blocks
+     * @param ratio the compression ratio, or 1 for lossless
+     */
+    static J2KWriter createWriter(BufferedImage img, int tilesize, int cblksize, float ratio) {
+        if (tilesize == 0) {
+            tilesize = Math.max(img.getWidth(), img.getHeight());
+        }
+        int ntiles = ((img.getWidth() + tilesize - 1) / tilesize) * ((img.getHeight() + tilesize - 1) / tilesize);
+        SimpleJ2KWriteParam param = new SimpleJ2KWriteParam(3, ntiles);
+        param.setCodeBlockSize(cblksize, cblksize);
+        param.setCompression(ratio, ratio == 1);
+        param.setProgressionName("res");
+        J2KWriter writer = new J2KWriter();
+        writer.setParams(param);
+        writer.setSource(img, tilesize);
+        return writer;
+    }
+
+    /**
+     * Encode the image to a temporary file, which is deleted on exit
+     * @param img the image
+     * @param tilesize the width and height of the tiles, or 0 for a single tile
+     * @param cblksize the width and height of the code-blocks
+     * @param ratio the compression ratio, or 1 for lossless
+     */
+    static File encode(BufferedImage img, int tilesize, int cblksize, float ratio) throws IOException {
+        File file = File.createTempFile("bench", ".jp2");
+        file.deleteOnExit();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            createWriter(img, tilesize, cblksize, ratio).write(out);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Open the codestream of a file created by {@link #encode}
+     */
+    static RandomAccessIO open(File file) throws IOException {
+        J2KFile j2k = new J2KFile();
+        j2k.read(new BEBufferedRandomAccessFile(file, "r", 8192));
+        return j2k.getCodeStreamBox().getRandomAccessIO();
+    }
+
+}
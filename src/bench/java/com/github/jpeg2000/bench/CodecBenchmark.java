@@ -0,0 +1,97 @@
+package com.github.jpeg2000.bench;
+
+import java.io.*;
+import java.awt.image.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.github.jpeg2000.*;
+import jj2000.j2k.io.*;
+
+/**
+ * End to end benchmarks of {@link J2KReader} and {@link J2KWriter} over
+ * generated RGB images of several sizes, tilings and code-block sizes.
+ * The number of pixels processed is reported as the secondary "pixels"
+ * score, which is in millions of pixels per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    /** The width and height of the image */
+    @Param({"512", "2048"})
+    public int size;
+
+    /** The width and height of the tiles, or 0 for a single tile */
+    @Param({"0", "256"})
+    public int tilesize;
+
+    /** The width and height of the code-blocks */
+    @Param({"32", "64"})
+    public int cblksize;
+
+    /** The compression ratio, 1 for lossless */
+    @Param({"1", "8"})
+    public float ratio;
+
+    private BufferedImage img;
+    private File file;
+
+    /**
+     * Counts the pixels processed by each thread
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Pixels {
+        public long pixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            pixels = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        img = BenchImages.create(size, size);
+        file = BenchImages.encode(img, tilesize, cblksize, ratio);
+    }
+
+    @Benchmark
+    public long read(Pixels counter) throws IOException {
+        J2KFile j2k = new J2KFile();
+        RandomAccessIO io = new BEBufferedRandomAccessFile(file, "r", 8192);
+        long total = 0;
+        try {
+            j2k.read(io);
+            J2KReader reader = new J2KReader(j2k);
+            byte[] buf = new byte[reader.getRowSpan()];
+            int len;
+            while ((len=reader.read(buf)) >= 0) {
+                total += len;
+            }
+            reader.close();
+        } finally {
+            io.close();
+        }
+        counter.pixels += size * size;
+        return total;
+    }
+
+    @Benchmark
+    public void write(Pixels counter) throws IOException {
+        BenchImages.createWriter(img, tilesize, cblksize, ratio).write(new OutputStream() {
+            @Override public void write(int b) {
+            }
+            @Override public void write(byte[] b, int off, int len) {
+            }
+        });
+        counter.pixels += size * size;
+    }
+
+}
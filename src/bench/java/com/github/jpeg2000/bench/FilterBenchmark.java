@@ -0,0 +1,69 @@
+package com.github.jpeg2000.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import jj2000.j2k.wavelet.synthesis.*;
+
+/**
+ * Benchmarks of the one-dimensional synthesis filters, as used by the
+ * inverse wavelet transform for both rows (a step of 1) and columns (a
+ * step of the line width). Scores are in millions of output samples per
+ * second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+    private static final int LENGTH = 4096;
+
+    /** The step between samples, 1 for a row and larger for a column */
+    @Param({"1", "64"})
+    public int step;
+
+    private SynWTFilterFloatLift9x7 filter9x7;
+    private SynWTFilterIntLift5x3 filter5x3;
+    private float[] lowf, highf, outf;
+    private int[] lowi, highi, outi;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        int half = LENGTH / 2;
+        lowf = new float[half * step];
+        highf = new float[half * step];
+        lowi = new int[half * step];
+        highi = new int[half * step];
+        for (int i=0;i<half*step;i+=step) {
+            lowf[i] = lowi[i] = random.nextInt(256) - 128;
+            highf[i] = highi[i] = random.nextInt(32) - 16;
+        }
+        outf = new float[LENGTH * step];
+        outi = new int[LENGTH * step];
+        filter9x7 = new SynWTFilterFloatLift9x7();
+        filter5x3 = new SynWTFilterIntLift5x3();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LENGTH)
+    public float[] floatLift9x7() {
+        int half = LENGTH / 2;
+        filter9x7.synthetize_lpf(lowf, 0, half, step, highf, 0, half, step, outf, 0, step);
+        return outf;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LENGTH)
+    public int[] intLift5x3() {
+        int half = LENGTH / 2;
+        filter5x3.synthetize_lpf(lowi, 0, half, step, highi, 0, half, step, outi, 0, step);
+        return outi;
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.github.jpeg2000.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import jj2000.j2k.entropy.decoder.*;
+import jj2000.j2k.entropy.encoder.*;
+
+/**
+ * Benchmarks of the MQ arithmetic coder and decoder. The symbols are
+ * drawn with a skewed probability for each of the 19 contexts used by
+ * the entropy coder, which is close to what the significance and
+ * cleanup passes see. Scores are in millions of symbols per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MQBenchmark {
+
+    private static final int NUM_CTXTS = 19;
+    private static final int[] MQ_INIT = {46, 3, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    private static final int RLC_CTXT = 1;
+    private static final int SYMBOLS = 1 << 16;
+    private static final int RUN = 4;
+
+    private int[] bits, cX, out;
+    private byte[] coded, runs;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        double[] p = new double[NUM_CTXTS];
+        for (int i=0;i<p.length;i++) {
+            p[i] = 0.02 + 0.4 * random.nextDouble();
+        }
+        bits = new int[SYMBOLS];
+        cX = new int[SYMBOLS];
+        out = new int[SYMBOLS];
+        for (int i=0;i<SYMBOLS;i++) {
+            cX[i] = random.nextInt(NUM_CTXTS);
+            bits[i] = random.nextDouble() < p[cX[i]] ? 1 : 0;
+        }
+        coded = encode();
+
+        // Runs of zeros in the run-length context, as coded by the cleanup
+        // pass over empty columns, with the odd non-empty column
+        ByteOutputBuffer buf = new ByteOutputBuffer();
+        MQCoder mq = new MQCoder(buf, NUM_CTXTS, MQ_INIT);
+        for (int i=0;i<SYMBOLS;i+=RUN) {
+            int one = random.nextInt(64) == 0 ? random.nextInt(RUN) : -1;
+            for (int j=0;j<RUN;j++) {
+                mq.codeSymbol(j == one ? 1 : 0, RLC_CTXT);
+            }
+        }
+        mq.terminate();
+        runs = new byte[buf.size()];
+        buf.toByteArray(0, runs.length, runs, 0);
+    }
+
+    private byte[] encode() {
+        ByteOutputBuffer buf = new ByteOutputBuffer();
+        MQCoder mq = new MQCoder(buf, NUM_CTXTS, MQ_INIT);
+        mq.codeSymbols(bits, cX, SYMBOLS);
+        mq.terminate();
+        byte[] b = new byte[buf.size()];
+        buf.toByteArray(0, b.length, b, 0);
+        return b;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SYMBOLS)
+    public byte[] codeSymbols() {
+        return encode();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SYMBOLS)
+    public int[] decodeSymbols() {
+        MQDecoder mq = new MQDecoder(new ByteInputBuffer(coded), NUM_CTXTS, MQ_INIT);
+        mq.decodeSymbols(out, cX, SYMBOLS);
+        return out;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SYMBOLS)
+    public void fastDecodeSymbols(Blackhole bh) {
+        MQDecoder mq = new MQDecoder(new ByteInputBuffer(runs), NUM_CTXTS, MQ_INIT);
+        for (int i=0;i<SYMBOLS;i+=RUN) {
+            if (mq.fastDecodeSymbols(out, RLC_CTXT, RUN)) {
+                bh.consume(out[0]);
+            } else {
+                bh.consume(out[0] | out[1] | out[2] | out[3]);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.github.jpeg2000.bench;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.github.jpeg2000.*;
+import jj2000.j2k.codestream.HeaderInfo;
+import jj2000.j2k.codestream.reader.*;
+import jj2000.j2k.io.RandomAccessIO;
+
+/**
+ * Benchmark of packet header parsing. Moving the bitstream reader to a
+ * tile reads the headers of all the packets in the tile with
+ * <code>PktDecoder.readPktHead</code>, which locates the code-block
+ * contributions but leaves their data to be read when they are decoded.
+ * Scores are in millions of pixels per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketHeaderBenchmark {
+
+    private static final int SIZE = 1024;
+
+    /** The width and height of the tiles, or 0 for a single tile */
+    @Param({"0", "256"})
+    public int tilesize;
+
+    /** The width and height of the code-blocks */
+    @Param({"32", "64"})
+    public int cblksize;
+
+    /** The compression ratio, 1 for lossless */
+    @Param({"1", "8"})
+    public float ratio;
+
+    private RandomAccessIO in;
+    private BitstreamReaderAgent breader;
+    private int numtx, numty;
+
+    @Setup
+    public void setup() throws IOException {
+        File file = BenchImages.encode(BenchImages.create(SIZE, SIZE), tilesize, cblksize, ratio);
+        in = BenchImages.open(file);
+        HeaderInfo hi = new HeaderInfo();
+        J2KReadParam param = new SimpleJ2KReadParam();
+        HeaderDecoder hd = new HeaderDecoder(in, param, hi);
+        breader = BitstreamReaderAgent.createInstance(in, hd, param, hd.getDecoderSpecs(), false, hi);
+        numtx = breader.getNumTiles(null).x;
+        numty = breader.getNumTiles(null).y;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        in.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE * SIZE)
+    public BitstreamReaderAgent readTiles() {
+        for (int y=0;y<numty;y++) {
+            for (int x=0;x<numtx;x++) {
+                breader.setTile(x, y);
+            }
+        }
+        return breader;
+    }
+
+}
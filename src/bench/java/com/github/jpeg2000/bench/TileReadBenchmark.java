@@ -0,0 +1,80 @@
+package com.github.jpeg2000.bench;
+
+import java.io.*;
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.github.jpeg2000.*;
+import jj2000.j2k.io.*;
+import jj2000.j2k.util.BufferPool;
+
+/**
+ * Reads single tiles of a tiled image, each with a new {@link J2KReader}
+ * on a {@link SharedCodeStream}, as a tile server does. The tiles are read
+ * in turn into the same int array, with and without a {@link BufferPool}
+ * shared by the readers. Run with "-prof gc" to report the bytes allocated
+ * for each tile, as "gc.alloc.rate.norm".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TileReadBenchmark {
+
+    /** The width and height of the tiles */
+    @Param({"256", "512"})
+    public int tilesize;
+
+    /** The compression ratio, 1 for lossless */
+    @Param({"1", "8"})
+    public float ratio;
+
+    /** Whether the readers share a buffer pool */
+    @Param({"false", "true"})
+    public boolean pool;
+
+    private RandomAccessIO io;
+    private SharedCodeStream codestream;
+    private BufferPool bufferPool;
+    private int[] out;
+    private int numtx, numty, tile;
+
+    @Setup
+    public void setup() throws IOException {
+        int size = tilesize * 4;
+        File file = BenchImages.encode(BenchImages.create(size, size), tilesize, 64, ratio);
+        J2KFile j2k = new J2KFile();
+        io = new BEBufferedRandomAccessFile(file, "r", 8192);
+        j2k.read(io);
+        codestream = new SharedCodeStream(j2k);
+        bufferPool = pool ? new BufferPool(64 << 20) : null;
+        out = new int[tilesize * tilesize * 3];
+        numtx = numty = size / tilesize;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        io.close();
+    }
+
+    @Benchmark
+    public int readTile() throws IOException {
+        int tx = tile % numtx;
+        int ty = (tile / numtx) % numty;
+        tile++;
+        J2KReader reader = new J2KReader(codestream);
+        try {
+            reader.setBufferPool(bufferPool);
+            reader.setSourceRegion(new Rectangle(tx * tilesize, ty * tilesize, tilesize, tilesize));
+            reader.readRaster(out, 0, tilesize * 3, null);
+        } finally {
+            reader.close();
+        }
+        return out[0];
+    }
+
+}
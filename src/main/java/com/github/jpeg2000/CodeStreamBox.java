@@ -15,7 +15,7 @@ import jj2000.j2k.codestream.reader.*;
 public class CodeStreamBox extends Box {
 
     private byte[] data;
-    private int length;
+    private long length;
     private RandomAccessIO io;
 
     public CodeStreamBox() {
@@ -29,12 +29,22 @@ public class CodeStreamBox extends Box {
     }
 
     @Override public int getLength() {
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Codestream of "+length+" bytes is too long, use getLongLength()");
+        }
+        return (int)length;
+    }
+
+    /**
+     * Return the length of the codestream, which may be more than 2GB
+     */
+    public long getLongLength() {
         return length;
     }
 
     @Override public void read(RandomAccessIO io) throws IOException {
         this.io = io;
-        this.length = io.length();
+        this.length = io.longLength();
     }
 
     @Override public void write(DataOutputStream out) throws IOException {
@@ -43,9 +53,9 @@ public class CodeStreamBox extends Box {
         } else if (io != null) {
             byte[] b = new byte[8192];
             io.seek(0);
-            int remaining = io.length();
+            long remaining = io.longLength();
             while (remaining > 0) {
-                int c = Math.min(b.length, remaining);
+                int c = (int)Math.min(b.length, remaining);
                 io.readFully(b, 0, c);
                 out.write(b, 0, c);
                 remaining -= c;
@@ -66,7 +76,7 @@ public class CodeStreamBox extends Box {
 
     @Override public void write(XMLStreamWriter out) throws XMLStreamException {
         out.writeStartElement(toString(getType()).trim());
-        out.writeAttribute("length", Integer.toString(getLength()));
+        out.writeAttribute("length", Long.toString(getLongLength()));
 
         J2KReadParam param = new SimpleJ2KReadParam();
         HeaderInfo hi = new HeaderInfo();
@@ -2,6 +2,7 @@ package com.github.jpeg2000;
 
 import java.io.*;
 import java.util.*;
+import jj2000.j2k.io.MappedRandomAccessIO;
 import jj2000.j2k.io.RandomAccessIO;
 import jj2000.j2k.io.SubRandomAccessIO;
 import javax.xml.stream.*;
@@ -38,35 +39,51 @@ public class ContainerBox extends Box {
      * is at the start of the "box contents" (DBox field)
      */
     @Override public void read(RandomAccessIO in) throws IOException {
-        while (in.length() - in.getPos() > 0) {
+        while (in.longLength() - in.getLongPos() > 0) {
             add(readBox(in));
         }
     }
 
     public static Box readBox(RandomAccessIO in) throws IOException {
-        int start = in.getPos();
-        int len = in.readInt();
+        long start = in.getLongPos();
+        long len = in.readUnsignedInt();
         int type = in.readInt();
+        int headlen = 8;
+        if (len == 1) {
+            // XLBox: the length follows as a 64-bit value
+            len = in.readLong();
+            headlen = 16;
+        }
         Box box = Box.createBox(type);
         RandomAccessIO sub;
         if (len == 0) {
-            sub = new SubRandomAccessIO(in, in.length() - in.getPos());
-        } else if (len == 1) {
-            throw new IOException("Long boxes not supported");
-        } else if (len < 8) {
+            sub = subRandomAccessIO(in, in.longLength() - in.getLongPos());
+        } else if (len < headlen) {
             throw new IOException("Invalid box length "+len);
         } else {
-            sub = new SubRandomAccessIO(in, len - 8);
+            sub = subRandomAccessIO(in, len - headlen);
         }
 //        System.out.println("Reading box at "+start+" "+toString(type)+" len="+len+" stream="+sub.getPos()+"/"+sub.length());
         box.read(sub);
 //        System.out.println("Skip to "+start +"+"+ len+" = "+(start+len)+" from "+in.getPos()+"/"+in.length());
-        if (len != 0 || start + len < in.length()) {
-            in.seek(len == 0 ? in.length() : start + len);
+        if (len != 0 || start + len < in.longLength()) {
+            in.seek(len == 0 ? in.longLength() : start + len);
         }
         return box;
     }
 
+    /**
+     * Return a view of "length" bytes of the specified RandomAccessIO,
+     * starting from the current point. A memory mapped input is sliced
+     * without copying, and the slice has its own position.
+     */
+    private static RandomAccessIO subRandomAccessIO(RandomAccessIO in, long length) throws IOException {
+        if (in instanceof MappedRandomAccessIO) {
+            return ((MappedRandomAccessIO)in).slice(length);
+        }
+        return new SubRandomAccessIO(in, length);
+    }
+
     public static void writeBox(Box box, DataOutputStream out) throws IOException {
         int len = box.getLength();
         out.writeInt(len == 0 ? 0 : len + 8);
@@ -5,18 +5,29 @@ import java.awt.*;
 import java.awt.geom.Point2D;
 import java.awt.color.*;
 import java.awt.image.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 
 import jj2000.j2k.decoder.DecoderSpecs;
 import jj2000.j2k.quantization.dequantizer.Dequantizer;
 import jj2000.j2k.image.invcomptransf.InvCompTransf;
 import jj2000.j2k.codestream.reader.BitstreamReaderAgent;
+import jj2000.j2k.codestream.reader.FileBitstreamReaderAgent;
 import jj2000.j2k.codestream.reader.HeaderDecoder;
+import jj2000.j2k.codestream.reader.TileBitstreamReaderAgent;
 import jj2000.j2k.wavelet.synthesis.InverseWT;
+import jj2000.j2k.wavelet.synthesis.InvWTLine;
+import jj2000.j2k.entropy.decoder.CodeBlockCache;
 import jj2000.j2k.entropy.decoder.EntropyDecoder;
+import jj2000.j2k.entropy.decoder.StdEntropyDecoder;
 import jj2000.j2k.codestream.HeaderInfo;
 import jj2000.j2k.image.BlkImgDataSrc;
+import jj2000.j2k.image.DataBlk;
 import jj2000.j2k.image.DataBlkInt;
 import jj2000.j2k.image.ImgDataConverter;
+import jj2000.j2k.util.BufferPool;
+import jj2000.j2k.util.BufferPoolUser;
 import jj2000.j2k.util.ISRandomAccessIO;
 import jj2000.j2k.util.FacilityManager;
 import jj2000.j2k.util.MsgLogger;
@@ -29,27 +40,52 @@ import jj2000.j2k.io.EndianType;
  * An InputStream giving access to the decoded image data. Tiles are decoded on demand, meaning
  * the entire image doesn't have to be decoded in memory. The image is converted to 8-bit, YCbCr
  * images are converted to RGB and component subsampling is removed, but otherwise the image data
- * is unchanged.
+ * is unchanged. Images of more than 8 bits per component can be read at their original bit depth
+ * by calling {@link #setRawSamples}.
  * </p>
  * 
  * @author http://bfo.com
  */
 public class J2KReader extends InputStream implements MsgLogger {
 
+    private static final int STRIP_HEIGHT = 64;     // rows decoded at once by the line-based transform
+
     private RandomAccessIO in;
     private Thread registerThread;
     private BlkImgDataSrc src;          // image data source
     private DecoderSpecs decSpec;
+    private EntropyDecoder entdec;
+    private Dequantizer deq;
     private InverseWT invWT;
+    private ImgDataConverter converter;
     private BitstreamReaderAgent breader;
-    private int fulliw, fullih, numtx, numty, iw, ih, scanline, numc, fullscale, scale, ntw, nth;
+    private HeaderDecoder hd;
+    private SimpleJ2KReadParam param;
+    private Executor executor;
+    private int parallelism;
+    private Object codestream;
+    private TileCache tileCache;
+    private CodeBlockCache cblkCache;
+    private BufferPool bufferPool;
+    private int maxLayers;
+    private BlockingQueue<TileDecoder> idleDecoders;
+    private int fulliw, fullih, numtx, numty, iw, ih, scanline, numc, fullscale, scale;
+    private int targetwidth, targetheight;
+    private int tilew, tileh, tilegridx, tilegridy;
+    private Rectangle region;
+    private int rx, ry, tx0, tx1, ty0, ty1, bandx, bscanline;
     private int[] depth;
+    private boolean[] signed;
     private int[] channels;
+    private boolean raw, wide;
 
     // variable
     private DataBlkInt db;
-    private int pos, ty, length;
+    private int pos, ty, stripy, length;
+    private boolean striptile;
     private byte[] buf;
+    private short[] sbuf;
+    private Target target;
     private boolean baseline = true;
     private boolean seenapprox;
     private int[][] palette;
@@ -65,6 +101,7 @@ public class J2KReader extends InputStream implements MsgLogger {
         for (Box box : file.getHeaderBox().getBoxes()) {
             addBox(box);
         }
+        codestream = file.getCodeStreamBox();
         init(file.getCodeStreamBox().getRandomAccessIO());
     }
 
@@ -73,27 +110,56 @@ public class J2KReader extends InputStream implements MsgLogger {
      * @param file the CodeStream to read from
      */
     public J2KReader(CodeStreamBox box) throws IOException {
+        codestream = box;
         init(box.getRandomAccessIO());
     }
 
-    private void init(RandomAccessIO in) throws IOException {
+    /**
+     * Create a new J2KReader from a codestream which has already been opened. This
+     * is much cheaper than parsing the codestream again, and any number of readers
+     * created from the same codestream may be used at once on different threads.
+     * @param codestream the opened codestream to read from
+     */
+    public J2KReader(SharedCodeStream codestream) throws IOException {
+        for (Box box : codestream.getHeaderBoxes()) {
+            addBox(box);
+        }
+        this.codestream = codestream;
+        RandomAccessIO in = codestream.createRandomAccessIO();
+        register(in);
+        param = new SimpleJ2KReadParam();
+        hd = codestream.getHeaderDecoder();
+        breader = codestream.createBitstreamReader(in);
+        initDecoder();
+    }
+
+    private void register(RandomAccessIO in) {
         this.in = in;
         registerThread = Thread.currentThread();
         FacilityManager.registerMsgLogger(registerThread, this);
+    }
 
+    private void init(RandomAccessIO in) throws IOException {
+        register(in);
         HeaderInfo hi = new HeaderInfo();
-        J2KReadParam param = new SimpleJ2KReadParam();
-        HeaderDecoder hd = new HeaderDecoder(in, param, hi);
+        param = new SimpleJ2KReadParam();
+        hd = new HeaderDecoder(in, param, hi);
+        breader = BitstreamReaderAgent.createInstance(in, hd, param, hd.getDecoderSpecs(), false, hi);
+        initDecoder();
+    }
+
+    private void initDecoder() throws IOException {
         depth = new int[hd.getNumComps()];
+        signed = new boolean[depth.length];
         for (int i=0;i<depth.length;i++) {
             depth[i] = hd.getOriginalBitDepth(i);
+            signed[i] = hd.isOriginalSigned(i);
         }
         decSpec = hd.getDecoderSpecs();
-        breader = BitstreamReaderAgent.createInstance(in, hd, param, decSpec, false, hi);
         if (isInterrupted()) {
             throw new InterruptedIOException();
         }
-        EntropyDecoder entdec = hd.createEntropyDecoder(breader, param);
+        entdec = hd.createEntropyDecoder(breader, param);
         if (isInterrupted()) {
             throw new InterruptedIOException();
         }
@@ -101,15 +167,25 @@ public class J2KReader extends InputStream implements MsgLogger {
         if (isInterrupted()) {
             throw new InterruptedIOException();
         }
-        Dequantizer deq = hd.createDequantizer(roids, depth, decSpec);
+        deq = hd.createDequantizer(roids, depth, decSpec);
         if (isInterrupted()) {
             throw new InterruptedIOException();
         }
-        invWT = InverseWT.createInstance(deq, decSpec);
+        if (breader.getNumTiles(null).x == 1) {
+            // Images one tile wide are decoded in strips of rows rather
+            // than a tile at a time, see nextRow
+            invWT = new InvWTLine(deq, decSpec);
+        } else {
+            invWT = InverseWT.createInstance(deq, decSpec);
+        }
         if (isInterrupted()) {
             throw new InterruptedIOException();
         }
 
+        tilew = hd.getNomTileWidth();
+        tileh = hd.getNomTileHeight();
+        tilegridx = hd.getTilingOrigin(null).x - hd.getImgULX();
+        tilegridy = hd.getTilingOrigin(null).y - hd.getImgULY();
         fullscale = breader.getImgRes();
         fulliw = breader.getImgWidth(fullscale);
         fullih = breader.getImgHeight(fullscale);
@@ -126,11 +202,14 @@ public class J2KReader extends InputStream implements MsgLogger {
      * @param targetheight the desired target height of the image
      */
     public void setTargetSize(int targetwidth, int targetheight) {
+        this.targetwidth = targetwidth;
+        this.targetheight = targetheight;
         // Find the best scale so that final width/height are >= 1 and < 2
         // times the desired width.
         int newscale = fullscale;
         for (int i=fullscale;i>=1;i--) {
-            if (targetwidth > breader.getImgWidth(i) || targetheight > breader.getImgHeight(i)) {
+            Rectangle r = getRegion(i);
+            if (targetwidth > r.width || targetheight > r.height) {
                 break;
             }
             newscale = i;
@@ -138,17 +217,401 @@ public class J2KReader extends InputStream implements MsgLogger {
         if (newscale != scale) {
             scale = newscale;
             invWT.setImgResLevel(scale);
-            ImgDataConverter converter = new ImgDataConverter(invWT, 0);
+            breader.setDecodingResolution(scale);
+            releaseBuffers(converter, src);
+            converter = new ImgDataConverter(invWT, 0);
             src = new InvCompTransf(converter, decSpec, depth);
-            iw = src.getImgWidth();
-            ih = src.getImgHeight();
+            setBufferPool(converter, src);
             numtx = src.getNumTiles(null).x;
             numty = src.getNumTiles(null).y;
             numc = src.getNumComps();
-            scanline = iw * numc;
+            discardDecoders();
+        }
+        layout();
+    }
+
+    /**
+     * Return the factor the image is reduced by at the resolution level chosen
+     * by {@link #setTargetSize}, which is a power of two, or 1 if the image is
+     * decoded at full resolution.
+     */
+    public int getScaleFactor() {
+        return 1 << (fullscale - scale);
+    }
+
+    /**
+     * Set the region of the image to decode. The region is specified in pixels
+     * of the full resolution image; if a lower resolution is chosen with
+     * {@link #setTargetSize} it is scaled to match, rounding outwards, and the
+     * target size is compared to the size of the region rather than the whole image.
+     * Only the tiles and code-blocks needed to reconstruct the region are read
+     * and decoded. This method must be called before the first read.
+     * @param region the region to decode, which will be clipped to the image, or null to decode the whole image
+     * @throws IllegalArgumentException if the region is entirely outside the image
+     */
+    public void setSourceRegion(Rectangle region) {
+        Rectangle window = null;
+        if (region != null) {
+            region = region.intersection(new Rectangle(0, 0, fulliw, fullih));
+            if (region.isEmpty()) {
+                throw new IllegalArgumentException("Region does not intersect image");
+            }
+            window = new Rectangle(region.x + hd.getImgULX(), region.y + hd.getImgULY(), region.width, region.height);
+        }
+        this.region = region;
+        breader.setDecodingWindow(window);
+        setTargetSize(targetwidth, targetheight);
+    }
+
+    /**
+     * Return the region of the image being decoded, in pixels of the full resolution
+     * image, as set by {@link #setSourceRegion}, or null if the whole image is decoded.
+     */
+    public Rectangle getSourceRegion() {
+        return region == null ? null : new Rectangle(region);
+    }
+
+    /**
+     * Return the region to decode at the specified resolution level, in pixels
+     * relative to the image origin at that level.
+     */
+    private Rectangle getRegion(int res) {
+        int w = breader.getImgWidth(res);
+        int h = breader.getImgHeight(res);
+        if (region == null) {
+            return new Rectangle(0, 0, w, h);
+        }
+        int div = 1 << (fullscale - res);
+        int x0 = region.x / div;
+        int y0 = region.y / div;
+        int x1 = Math.min(w, (region.x + region.width + div - 1) / div);
+        int y1 = Math.min(h, (region.y + region.height + div - 1) / div);
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /**
+     * Return the left edge of the specified tile column at the current scale, in pixels
+     * relative to the image origin. If tx is the number of tile columns, the right edge
+     * of the image is returned.
+     */
+    private int getTileX(int tx) {
+        int div = 1 << (fullscale - scale);
+        int ax = hd.getImgULX();
+        int x = Math.min(Math.max(hd.getTilingOrigin(null).x + tx * hd.getNomTileWidth(), ax), ax + hd.getImgWidth());
+        return (x + div - 1) / div - (ax + div - 1) / div;
+    }
+
+    /**
+     * Return the top edge of the specified tile row at the current scale, in pixels
+     * relative to the image origin. If ty is the number of tile rows, the bottom edge
+     * of the image is returned.
+     */
+    private int getTileY(int ty) {
+        int div = 1 << (fullscale - scale);
+        int ay = hd.getImgULY();
+        int y = Math.min(Math.max(hd.getTilingOrigin(null).y + ty * hd.getNomTileHeight(), ay), ay + hd.getImgHeight());
+        return (y + div - 1) / div - (ay + div - 1) / div;
+    }
+
+    /**
+     * Set the output dimensions and the range of tiles to decode from the current
+     * scale and region, and reset to the first row.
+     */
+    private void layout() {
+        Rectangle r = getRegion(scale);
+        rx = r.x;
+        ry = r.y;
+        iw = r.width;
+        ih = r.height;
+        scanline = iw * numc;
+        tx0 = 0;
+        while (tx0 < numtx - 1 && getTileX(tx0 + 1) <= rx) {
+            tx0++;
+        }
+        tx1 = tx0 + 1;
+        while (tx1 < numtx && getTileX(tx1) < rx + iw) {
+            tx1++;
+        }
+        ty0 = 0;
+        while (ty0 < numty - 1 && getTileY(ty0 + 1) <= ry) {
+            ty0++;
+        }
+        ty1 = ty0 + 1;
+        while (ty1 < numty && getTileY(ty1) < ry + ih) {
+            ty1++;
+        }
+        bandx = getTileX(tx0);
+        bscanline = (getTileX(tx1) - bandx) * numc;
+        ty = ty0;
+        stripy = 0;
+        striptile = false;
+        buf = null;
+        sbuf = null;
+        db = null;
+        pos = length = 0;
+    }
+
+    /**
+     * Set the maximum number of quality layers to decode. Decoding only the first
+     * layers gives a lower quality image, for a preview for example, with much less
+     * work for the entropy decoder. The packets of the remaining layers are not
+     * read if they come last in each tile, or if the codestream records their length
+     * in PLT or PLM marker segments. This method must be called before the first read.
+     * @param layers the number of layers to decode, or 0 to decode every layer (the default)
+     * @throws IllegalArgumentException if layers is negative
+     */
+    public void setMaxLayers(int layers) {
+        if (layers < 0) {
+            throw new IllegalArgumentException("Negative number of layers");
+        }
+        this.maxLayers = layers;
+        ((FileBitstreamReaderAgent)breader).setMaxLayers(layers);
+        setCodeBlockCache(entdec);
+        discardDecoders();
+    }
+
+    /**
+     * Return the maximum number of quality layers to decode set by {@link #setMaxLayers},
+     * or 0 if every layer is decoded
+     */
+    public int getMaxLayers() {
+        return maxLayers;
+    }
+
+    /**
+     * Set the decoding rate, which limits the number of bytes of compressed data
+     * that are decoded. The number of bytes the rate allows for the full size image
+     * is shared between the tiles in proportion to their length, and each tile is
+     * decoded from the data of its first layers and resolution levels that fit in
+     * its share, so the image is of lower quality but quicker to decode. Tiles decoded
+     * with a rate are not added to or taken from the tile or code-block caches.
+     * This method must be called before the first read.
+     * @param rate the decoding rate in bits per pixel, or <code>Double.MAX_VALUE</code> to decode every byte (the default)
+     * @throws IllegalArgumentException if rate is not positive
+     * @throws IOException if the rate is too small to read the tile headers, or the headers can't be read
+     */
+    public void setDecodingRate(double rate) throws IOException {
+        param.setDecodingRate(rate);
+        ((FileBitstreamReaderAgent)breader).setDecodingRate(rate);
+        setCodeBlockCache(entdec);
+        discardDecoders();
+    }
+
+    /**
+     * Return the decoding rate set by {@link #setDecodingRate}, in bits per pixel,
+     * or <code>Double.MAX_VALUE</code> if every byte is decoded
+     */
+    public double getDecodingRate() {
+        return param.getDecodingRate();
+    }
+
+    /**
+     * Set whether to return the samples at their original bit depth. By default
+     * every sample is scaled to 8 bits. When raw samples are requested they are
+     * not scaled: if every component has 8 bits or less, each sample is still
+     * returned as a byte, otherwise each sample is returned as 16 bits, most
+     * significant byte first when read as an InputStream, or may be read
+     * directly with {@link #read(short[],int,int)}. Components of more than 16
+     * bits are scaled to 16, and signed components are returned as signed values.
+     * This method must be called before the first read.
+     * @param raw true to return samples at their original bit depth
+     */
+    public void setRawSamples(boolean raw) {
+        this.raw = raw;
+        int max = 0;
+        for (int i=0;i<depth.length;i++) {
+            max = Math.max(max, depth[i]);
+        }
+        wide = raw && max > 8;
+        layout();
+    }
+
+    /**
+     * Set an Executor to decode the tiles in each row of tiles in parallel.
+     * The compressed data for each tile is read on the calling thread, then
+     * up to <code>parallelism</code> tiles are decoded at once on the
+     * executor, each by its own decoding chain. The decoded data is identical
+     * to that decoded without an executor. Images with only one tile per row,
+     * or with subsampled components, are always decoded on the calling thread.
+     * @param executor the Executor to decode tiles with, or null to decode on the calling thread (the default)
+     * @param parallelism the maximum number of tiles to decode at once, which must be at least 1
+     */
+    public void setExecutor(Executor executor, int parallelism) {
+        if (executor != null && parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.executor = executor;
+        this.parallelism = parallelism;
+        discardDecoders();
+    }
+
+    /**
+     * Set a cache of decoded tiles to use. Tiles found in the cache at the current
+     * resolution level are not decoded again, and tiles that are decoded are added
+     * to it. Only readers created from the same {@link SharedCodeStream}, CodeStreamBox
+     * or J2KFile share the entries. When a source region is set, only tiles entirely
+     * within the region are cached.
+     * @param cache the cache to use, or null to use no cache (the default)
+     */
+    public void setTileCache(TileCache cache) {
+        this.tileCache = cache;
+    }
+
+    /**
+     * Return the cache of decoded tiles set by {@link #setTileCache}, or null
+     */
+    public TileCache getTileCache() {
+        return tileCache;
+    }
+
+    /**
+     * Set a cache of entropy decoded code-blocks to use. Code-blocks found in the
+     * cache are not decoded again, and code-blocks that are decoded are added to it,
+     * so when the same codestream is read again at a higher resolution level the
+     * code-blocks of the lower resolution levels are taken from the cache. As with
+     * {@link #setTileCache}, only readers created from the same {@link SharedCodeStream},
+     * CodeStreamBox or J2KFile share the entries.
+     * This method must be called before the first read.
+     * @param cache the cache to use, or null to use no cache (the default)
+     */
+    public void setCodeBlockCache(CodeBlockCache cache) {
+        this.cblkCache = cache;
+        setCodeBlockCache(entdec);
+        discardDecoders();
+    }
+
+    /**
+     * Return the cache of entropy decoded code-blocks set by {@link #setCodeBlockCache}, or null
+     */
+    public CodeBlockCache getCodeBlockCache() {
+        return cblkCache;
+    }
+
+    /**
+     * Set a pool of buffers to decode with. The arrays that hold each decoded
+     * tile-component, as it is reconstructed, transformed and converted, and the
+     * arrays each stage of decoding uses for a single code-block, are taken from the
+     * pool, kept while tiles are decoded, and returned to the pool when this reader is
+     * closed. Sharing a pool between readers that are created and closed one after
+     * another, for example a new reader for each tile requested by a tile server,
+     * avoids allocating these arrays for every reader. The small objects describing
+     * the tiles, precincts and code-blocks are still created by each reader, as is
+     * the buffer of each {@link SharedCodeStream} view. Images one tile wide are
+     * decoded a strip at a time by a transform that doesn't use the pool. Any number
+     * of readers may share a pool, on the same or different codestreams. This method
+     * must be called before the first read.
+     * @param pool the pool to use, or null to use no pool (the default)
+     */
+    public void setBufferPool(BufferPool pool) {
+        this.bufferPool = pool;
+        setBufferPool(entdec, deq, invWT, converter, src);
+        discardDecoders();
+    }
+
+    /**
+     * Return the pool of buffers set by {@link #setBufferPool}, or null
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Set the pool of buffers on the stages of a decoding chain that use one
+     */
+    private void setBufferPool(Object... stages) {
+        for (Object stage : stages) {
+            if (stage instanceof BufferPoolUser) {
+                ((BufferPoolUser)stage).setBufferPool(bufferPool);
+            }
+        }
+    }
+
+    /**
+     * Return the buffers of the stages of a decoding chain to the pool, if one is set
+     */
+    private static void releaseBuffers(Object... stages) {
+        for (Object stage : stages) {
+            if (stage instanceof BufferPoolUser) {
+                ((BufferPoolUser)stage).releaseBuffers();
+            }
+        }
+    }
+
+    private void setCodeBlockCache(EntropyDecoder entdec) {
+        if (entdec instanceof StdEntropyDecoder) {
+            boolean complete = param.getDecodingRate() == Double.MAX_VALUE && maxLayers == 0;
+            ((StdEntropyDecoder)entdec).setCodeBlockCache(complete ? cblkCache : null, codestream);
         }
     }
 
+    /**
+     * Return true if the specified tile can be taken from or added to the cache,
+     * which requires the tile to be decoded completely from all its layers.
+     */
+    private boolean isCacheable(int tx, int ty) {
+        if (tileCache == null || param.getDecodingRate() != Double.MAX_VALUE) {
+            return false;
+        }
+        if (region != null) {
+            Point o = hd.getTilingOrigin(null);
+            int ax = hd.getImgULX();
+            int ay = hd.getImgULY();
+            int x0 = Math.max(o.x + tx * hd.getNomTileWidth(), ax);
+            int y0 = Math.max(o.y + ty * hd.getNomTileHeight(), ay);
+            int x1 = Math.min(o.x + (tx + 1) * hd.getNomTileWidth(), ax + hd.getImgWidth());
+            int y1 = Math.min(o.y + (ty + 1) * hd.getNomTileHeight(), ay + hd.getImgHeight());
+            return region.contains(x0 - ax, y0 - ay, x1 - x0, y1 - y0);
+        }
+        return true;
+    }
+
+    /**
+     * Return true if the specified row of tiles is decoded in strips of rows
+     * rather than a tile at a time. This requires the line-based transform,
+     * a single tile in the row, and components that are not subsampled, as the
+     * interpolation of subsampled components needs the following row. Tiles
+     * taken from or added to the cache are always decoded whole.
+     */
+    private boolean isStriped(int ty) {
+        if (!(invWT instanceof InvWTLine) || tx1 - tx0 != 1 || isCacheable(tx0, ty)) {
+            return false;
+        }
+        for (int iz=0;iz<numc;iz++) {
+            if (src.getCompSubsX(iz) != 1 || src.getCompSubsY(iz) != 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the number of quality layers the specified tile is decoded from,
+     * for use as part of the cache key
+     */
+    private int getNumLayers(int tileix) {
+        int nl = ((Integer)decSpec.nls.getTileDef(tileix)).intValue();
+        return maxLayers == 0 ? nl : Math.min(nl, maxLayers);
+    }
+
+    /**
+     * Return every component of the specified tile from the cache, or null if
+     * any of them are not cached
+     */
+    private DataBlkInt[] getCachedTile(int tx, int ty) {
+        if (!isCacheable(tx, ty)) {
+            return null;
+        }
+        int tileix = ty * numtx + tx;
+        DataBlkInt[] blks = new DataBlkInt[numc];
+        for (int iz=0;iz<numc;iz++) {
+            blks[iz] = (DataBlkInt)tileCache.get(codestream, tileix, iz, scale, getNumLayers(tileix));
+            if (blks[iz] == null) {
+                return null;
+            }
+        }
+        return blks;
+    }
+
     protected void addBox(Box box) {
         if (box instanceof ImageHeaderBox) {
             ImageHeaderBox b = (ImageHeaderBox) box;
@@ -209,109 +672,138 @@ public class J2KReader extends InputStream implements MsgLogger {
         try {
             rowCallback();
     //        System.out.println("IN: ty="+ty+"/"+numty+" numtx="+numtx+" numc="+numc+" skip="+skip+" pos="+pos+" length="+length);
-            if (ty == numty) {
+            if (ty == ty1) {
                 return false;
             }
-            if (!skip) {
-                for (int tx=0;tx<numtx;tx++) {
-                    src.setTile(tx, ty);
-                    final int tileix = src.getTileIdx();
-                    // Determine tile width/height - this is not as simple as
-                    // calling src.getTileWidth when using less than full res.
-                    int tw = 0;
-                    int th = 0;
-                    for (int iz=0;iz<numc;iz++) {
-                        tw = Math.max(tw, src.getTileCompWidth(tileix, iz));
-                        th = Math.max(th, src.getTileCompHeight(tileix, iz));
-                    }
-                    if (db == null) {
-                        // First pass
-                        buf = new byte[scanline * th];
-                        db = new DataBlkInt(0, 0, tw, th);
-                        ntw = tw;
-                        nth = th;
-                    }
-                    db.w = tw;
-                    db.h = th;
-                    length = scanline * th;
-                    final int itx = tx * ntw;
-                    final int ity = 0;
-                    for (int iz=0;iz<numc;iz++) {
-                        int riz = channels == null ? iz : channels[iz];     // output channel, could differ from input channel
-                        if (riz < 0) {
-                            // This is the OPACITY channel. Well technically
-                            // it's something that applies to all channels, but
-                            // given the limitations of what we can do with that
-                            // we'll assume opacity, as that's the only example
-                            // seen to date.
-                            riz = numc - 1;
+            // Rows of this tile row that are within the region
+            final int bandy = getTileY(ty);
+            final int firstrow = Math.max(ry, bandy) - bandy;
+            final int lastrow = Math.min(ry + ih, getTileY(ty + 1)) - bandy;
+            final boolean strips = isStriped(ty);
+            // Rows returned by this call
+            final int row0 = strips ? Math.max(firstrow, stripy) : firstrow;
+            final int row1 = strips ? Math.min(lastrow, row0 + STRIP_HEIGHT) : lastrow;
+            // Samples are written straight to the target if there is one,
+            // otherwise to the row buffer and then cropped to the region
+            final Target direct = target;
+            if (!skip && strips) {
+                if (!striptile) {
+                    src.setTile(tx0, ty);
+                    striptile = true;
+                }
+                final int tileix = src.getTileIdx();
+                int tw = 0;
+                for (int iz=0;iz<numc;iz++) {
+                    tw = Math.max(tw, src.getTileCompWidth(tileix, iz));
+                }
+                if (db == null) {
+                    db = new DataBlkInt();
+                }
+                final int itx = getTileX(tx0) - bandx;
+                if (direct != null) {
+                    db = decodeTile(src, db, direct, bandx + itx - rx, bandy + row0 - ry, row0, tw, row1 - row0, null, false);
+                    tileDecoded(tx0, bandy, row0, row1);
+                } else {
+                    allocate(bscanline * (row1 - row0));
+                    db = decodeTile(src, db, new Target(rows(), numc, bscanline), itx, 0, row0, tw, row1 - row0, null, false);
+                    // Crop the columns outside the region
+                    int off = (rx - bandx) * numc;
+                    if (off != 0 || bscanline != scanline) {
+                        for (int iy=row0;iy<row1;iy++) {
+                            System.arraycopy(rows(), off, rows(), (iy - row0) * scanline, scanline);
+                            off += bscanline;
                         }
-                        final int depth = src.getNomRangeBits(iz);
-                        final int mid = 1 << (depth - 1);
-                        final int csx = src.getCompSubsX(iz);
-                        final int csy = src.getCompSubsY(iz);
-                        final int fb = src.getFixedPoint(iz);
-                        // System.out.println("iwh="+iw+"x"+ih+" txy="+tx+"x"+ty+" of "+numtx+","+numty+" itxy="+src.getTilePartULX()+"x"+src.getTilePartULY()+" tcwh="+tw+"x"+th+" twh="+src.getTileWidth()+"x"+src.getTileHeight()+" ntwh="+src.getNomTileWidth()+"x"+src.getNomTileHeight()+" iz="+iz+"="+riz+" ss="+csx+"x"+csy+" d="+depth+" mid="+mid+" fb="+fb+" sl="+scanline+" buf="+buf.length+" channels="+java.util.Arrays.toString(channels));
-                        int[] shift = null;
-                        if (depth < 8) {
-                            shift = new int[1<<depth];
-                            for (int i=0;i<shift.length;i++) {
-                                shift[i] = (int)Math.round(i * 255f / ((1<<depth)-1));
+                    }
+                }
+            } else if (!skip) {
+                boolean parallel = executor != null && tx1 - tx0 > 1;
+                for (int iz=0;iz<numc && parallel;iz++) {
+                    // Interpolation of subsampled components writes across tile boundaries
+                    parallel = src.getCompSubsX(iz) == 1 && src.getCompSubsY(iz) == 1;
+                }
+                RowJob job = parallel ? new RowJob() : null;
+                Target rowtarget = null;
+                int done = tx0;
+                try {
+                    for (int tx=tx0;tx<tx1;tx++) {
+                        DataBlkInt[] cached = getCachedTile(tx, ty);
+                        int tw = 0;
+                        int th = 0;
+                        if (cached != null) {
+                            for (int iz=0;iz<numc;iz++) {
+                                tw = Math.max(tw, cached[iz].w);
+                                th = Math.max(th, cached[iz].h);
                             }
-                        }
-                        do {
-                            db = (DataBlkInt)src.getInternCompData(db, iz);
-                        } while (db.progressive);
-                        // Main loop: retrieve value, scaled to 8 bits and adjust midpoint
-                        for (int iy=0;iy<th;iy++) {
-                            if (isInterrupted()) {
-                                throw new InterruptedIOException();
+                        } else {
+                            src.setTile(tx, ty);
+                            final int tileix = src.getTileIdx();
+                            // Determine tile width/height - this is not as simple as
+                            // calling src.getTileWidth when using less than full res.
+                            for (int iz=0;iz<numc;iz++) {
+                                tw = Math.max(tw, src.getTileCompWidth(tileix, iz));
+                                th = Math.max(th, src.getTileCompHeight(tileix, iz));
                             }
-                            for (int ix=0;ix<tw;ix++) {
-                                int val = (db.data[db.offset + iy*tw + ix] >> fb) + mid;
-                                if (depth == 8) {
-                                    val = Math.max(0, Math.min(255, val));
-                                } else if (depth > 8) {
-                                    val = Math.max(0, Math.min(255, val >> (depth-8)));
-                                } else {
-                                    val = shift[val < 0 ? 0 : val >= shift.length ? shift.length-1 : val];
-                                }
-                                buf[((ity + (iy * csy)) * scanline) + ((itx + (ix * csx)) * numc) + riz] = (byte)val;
+                        }
+                        if (db == null) {
+                            db = new DataBlkInt();
+                        }
+                        final int itx = getTileX(tx) - bandx;
+                        final Target t;
+                        final int ox, oy;
+                        if (direct != null) {
+                            t = direct;
+                            ox = bandx + itx - rx;
+                            oy = bandy - ry;
+                        } else {
+                            allocate(bscanline * th);
+                            if (rowtarget == null || rowtarget.data[0] != rows()) {
+                                rowtarget = new Target(rows(), numc, bscanline);
                             }
+                            t = rowtarget;
+                            ox = itx;
+                            oy = 0;
                         }
-                        if (csx != 1 || csy != 1) {
-                            // Component is subsampled; use bilinear interpolation to fill the gaps. Quick and dirty,
-                            // tested with limited test data
-                            for (int iy=0;iy<th;iy++) {
-                                if (isInterrupted()) {
-                                    throw new InterruptedIOException();
-                                }
-                                for (int ix=0;ix<tw;ix++) {
-                                    // Values on each of the four corners of our space
-                                    int v00 = buf[((ity + (iy * csy)) * scanline) + ((itx + (ix * csx)) * numc) + riz] & 0xFF;
-                                    int v01 = ix + 1 == tw ? v00 : buf[((ity + (iy * csy)) * scanline) + ((itx + ((ix+1) * csx)) * numc) + riz] & 0xFF;
-                                    int v10 = iy + 1 == th ? v00 : buf[((ity + ((iy+1) * csy)) * scanline) + ((itx + (ix * csx)) * numc) + riz] & 0xFF;
-                                    int v11 = iy + 1 == th ? (ix + 1 == tw ? v00 : v10) : (ix + 1 == tw ? v10 : buf[((ity + ((iy+1) * csy)) * scanline) + ((itx + ((ix+1) * csx)) * numc) + riz] & 0xFF);
-                                    for (int jy=0;jy<csy;jy++) {
-                                        for (int jx=0;jx<csx;jx++) {
-                                            if (jx+jy != 0 && ix + jx < tw && iy + jy < th) {
-                                                // q = interpolated(v00, v01, v10, v11)
-                                                int q0 = v00 + ((v10 - v00) * jx / (csx-1));
-                                                int q1 = v01 + ((v11 - v01) * jx / (csx-1));
-                                                int q = q0 + ((q1-q0) * jy / (csy-1));
-                                                buf[((ity + (iy * csy) + jy) * scanline) + ((itx + (ix * csx) + jx) * numc) + riz] = (byte)q;
-                                            }
-                                        }
-                                    }
-                                }
+                        if (job == null || cached != null) {
+                            db = decodeTile(src, db, t, ox, oy, 0, tw, th, cached, isCacheable(tx, ty));
+                            if (job == null && direct != null) {
+                                tileDecoded(tx, bandy, firstrow, lastrow);
+                                done = tx + 1;
                             }
+                        } else if (!job.submit(tx, t, ox, oy, tw, th, isCacheable(tx, ty))) {
+                            break;
+                        }
+                    }
+                } finally {
+                    if (job != null) {
+                        job.await();
+                    }
+                }
+                if (direct != null) {
+                    // Tiles decoded on the executor are reported once they are all complete
+                    for (int tx=done;tx<tx1;tx++) {
+                        tileDecoded(tx, bandy, firstrow, lastrow);
+                    }
+                } else {
+                    // Crop the rows and columns outside the region
+                    int off = firstrow * bscanline + (rx - bandx) * numc;
+                    if (off != 0 || bscanline != scanline) {
+                        for (int iy=firstrow;iy<lastrow;iy++) {
+                            System.arraycopy(rows(), off, rows(), (iy - firstrow) * scanline, scanline);
+                            off += bscanline;
                         }
                     }
                 }
             }
-            ty++;
-            if (ty == numty) {
-                free();
+            length = direct != null ? 0 : (row1 - row0) * scanline * (wide ? 2 : 1);
+            if (row1 < lastrow) {
+                stripy = row1;
+            } else {
+                ty++;
+                stripy = 0;
+                striptile = false;
+                if (ty == ty1) {
+                    free();
+                }
             }
             pos = 0;
             return true;
@@ -320,12 +812,547 @@ public class J2KReader extends InputStream implements MsgLogger {
         }
     }
 
+    /**
+     * Notify the listener of the target that the specified rows of a tile have been written
+     * @param tx the tile column
+     * @param bandy the top edge of the row of tiles
+     * @param row0 the first row written, relative to bandy
+     * @param row1 the row after the last row written, relative to bandy
+     */
+    private void tileDecoded(int tx, int bandy, int row0, int row1) throws IOException {
+        if (target.listener != null) {
+            int x0 = Math.max(getTileX(tx), rx) - rx;
+            int x1 = Math.min(getTileX(tx + 1), rx + iw) - rx;
+            target.listener.tileDecoded(new Rectangle(x0, bandy + row0 - ry, x1 - x0, row1 - row0));
+        }
+    }
+
+    /**
+     * Ensure the row buffer can hold the specified number of samples
+     */
+    private void allocate(int len) {
+        if (wide) {
+            if (sbuf == null || sbuf.length < len) {
+                sbuf = new short[len];
+            }
+        } else if (buf == null || buf.length < len) {
+            buf = new byte[len];
+        }
+    }
+
+    /**
+     * Return the row buffer, which is a short[] if samples are 16 bits or a byte[] otherwise
+     */
+    private Object rows() {
+        return wide ? sbuf : buf;
+    }
+
+    /**
+     * Return the sample at the specified index in the row buffer
+     */
+    private int getSample(int i, boolean signed) {
+        if (wide) {
+            return signed ? sbuf[i] : sbuf[i] & 0xFFFF;
+        } else {
+            return signed ? buf[i] : buf[i] & 0xFF;
+        }
+    }
+
+    /**
+     * Set the sample at the specified index in the row buffer
+     */
+    private void setSample(int i, int v) {
+        if (wide) {
+            sbuf[i] = (short)v;
+        } else {
+            buf[i] = (byte)v;
+        }
+    }
+
+    /**
+     * Decode the current tile of the specified source into the target.
+     * @param src the source, which must be set to the tile to decode unless the tile is cached
+     * @param db the block to use for retrieving data from src
+     * @param target the target to write the samples to
+     * @param ox the left edge of the tile in the target, in pixels
+     * @param oy the row of the target to write the first decoded row to
+     * @param y the first row of the tile to decode
+     * @param tw the width of the tile
+     * @param th the number of rows of the tile to decode
+     * @param cached the components of the tile from the cache, or null to decode the tile from src
+     * @param cache whether to add the decoded components to the cache
+     * @return the block used for retrieving data, which should be passed in to the next call
+     */
+    private DataBlkInt decodeTile(BlkImgDataSrc src, DataBlkInt db, Target target, int ox, int oy, int y, int tw, int th, DataBlkInt[] cached, boolean cache) throws IOException {
+        db.ulx = 0;
+        db.uly = y;
+        db.w = tw;
+        db.h = th;
+        // Only the part of the tile within the clip is written. Targets other
+        // than the row buffer are clipped, and never have subsampled components
+        int ix0 = 0, ix1 = tw, iy0 = 0, iy1 = th;
+        if (target.clip) {
+            ix0 = Math.max(0, -ox);
+            ix1 = Math.min(tw, target.width - ox);
+            iy0 = Math.max(0, -oy);
+            iy1 = Math.min(th, target.height - oy);
+        }
+        // The first three components may be transformed as they are written,
+        // rather than transformed as a whole and then written
+        int iz0 = 0;
+        if (cached == null && !cache && numc >= 3 && src instanceof InvCompTransf && ((InvCompTransf)src).getTransfType() != InvCompTransf.NONE) {
+            SampleFormat[] formats = new SampleFormat[3];
+            for (int iz=0;iz<3;iz++) {
+                formats[iz] = new SampleFormat(src, iz);
+            }
+            if (formats[0].csx == 1 && formats[0].csy == 1 && formats[1].csx == 1 && formats[1].csy == 1 && formats[2].csx == 1 && formats[2].csy == 1) {
+                decodeTransformed((InvCompTransf)src, db, target, formats, ox, oy, ix0, ix1, iy0, iy1);
+                iz0 = 3;
+            }
+        }
+        for (int iz=iz0;iz<numc;iz++) {
+            final SampleFormat format = new SampleFormat(src, iz);
+            final int riz = format.riz;
+            final boolean sgn = format.sgn;
+            final int csx = format.csx;
+            final int csy = format.csy;
+            DataBlkInt blk;
+            if (cached != null) {
+                blk = cached[iz];
+            } else {
+                do {
+                    db = (DataBlkInt)src.getInternCompData(db, iz);
+                } while (db.progressive);
+                blk = db;
+                if (cache) {
+                    int tileix = src.getTileIdx();
+                    tileCache.put(codestream, tileix, iz, scale, getNumLayers(tileix), copyBlock(db, tw, th));
+                }
+            }
+            // Main loop: retrieve value, adjust midpoint and scale
+            final Object data = target.data[riz];
+            final int step = csx * target.pixelstride;
+            final int[] in = blk.data;
+            for (int iy=iy0;iy<iy1;iy++) {
+                if (isInterrupted()) {
+                    throw new InterruptedIOException();
+                }
+                int i = blk.offset + iy*tw + ix0;
+                int o = target.offset[riz] + (oy + iy * csy) * target.scanstride + (ox + ix0 * csx) * target.pixelstride;
+                format.write(in, i, data, o, step, ix1 - ix0);
+            }
+            if (csx != 1 || csy != 1) {
+                // Component is subsampled; use bilinear interpolation to fill the gaps. Quick and dirty,
+                // tested with limited test data
+                for (int iy=0;iy<th;iy++) {
+                    if (isInterrupted()) {
+                        throw new InterruptedIOException();
+                    }
+                    for (int ix=0;ix<tw;ix++) {
+                        // Values on each of the four corners of our space
+                        int v00 = getSample(((oy + (iy * csy)) * bscanline) + ((ox + (ix * csx)) * numc) + riz, sgn);
+                        int v01 = ix + 1 == tw ? v00 : getSample(((oy + (iy * csy)) * bscanline) + ((ox + ((ix+1) * csx)) * numc) + riz, sgn);
+                        int v10 = iy + 1 == th ? v00 : getSample(((oy + ((iy+1) * csy)) * bscanline) + ((ox + (ix * csx)) * numc) + riz, sgn);
+                        int v11 = iy + 1 == th ? (ix + 1 == tw ? v00 : v10) : (ix + 1 == tw ? v10 : getSample(((oy + ((iy+1) * csy)) * bscanline) + ((ox + ((ix+1) * csx)) * numc) + riz, sgn));
+                        for (int jy=0;jy<csy;jy++) {
+                            for (int jx=0;jx<csx;jx++) {
+                                if (jx+jy != 0 && ix + jx < tw && iy + jy < th) {
+                                    // q = interpolated(v00, v01, v10, v11)
+                                    int q0 = v00 + ((v10 - v00) * jx / (csx-1));
+                                    int q1 = v01 + ((v11 - v01) * jx / (csx-1));
+                                    int q = q0 + ((q1-q0) * jy / (csy-1));
+                                    setSample(((oy + (iy * csy) + jy) * bscanline) + ((ox + (ix * csx) + jx) * numc) + riz, q);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return db;
+    }
+
+    /**
+     * Decode the first three components of a tile with a component transformation,
+     * applying the transformation, midpoint adjustment, scaling and clamping to
+     * each row as it is written to the target, so the transformed components of
+     * the whole tile are never stored. The components must not be subsampled.
+     * @param src the source, which must be set to the tile to decode
+     * @param db the block giving the area of the tile to decode
+     * @param target the target to write the samples to
+     * @param formats how to write each of the three components
+     * @param ox the left edge of the tile in the target, in pixels
+     * @param oy the row of the target to write the first decoded row to
+     * @param ix0 the first column of the tile to write
+     * @param ix1 one past the last column of the tile to write
+     * @param iy0 the first row of the area to write
+     * @param iy1 one past the last row of the area to write
+     */
+    private void decodeTransformed(InvCompTransf src, DataBlkInt db, Target target, SampleFormat[] formats, int ox, int oy, int ix0, int ix1, int iy0, int iy1) throws IOException {
+        DataBlk[] blks;
+        do {
+            blks = src.getUntransformedData(db);
+        } while (db.progressive);
+        final boolean ict = src.getTransfType() == InvCompTransf.INV_ICT;
+        final int n = ix1 - ix0;
+        final BufferPool pool = bufferPool;
+        final int[] r = pool != null ? pool.getInt(n) : new int[n];
+        final int[] g = pool != null ? pool.getInt(n) : new int[n];
+        final int[] b = pool != null ? pool.getInt(n) : new int[n];
+        final int[][] rows = { r, g, b };
+        for (int iy=iy0;iy<iy1;iy++) {
+            if (isInterrupted()) {
+                throw new InterruptedIOException();
+            }
+            int k0 = blks[0].offset + iy * blks[0].scanw + ix0;
+            int k1 = blks[1].offset + iy * blks[1].scanw + ix0;
+            int k2 = blks[2].offset + iy * blks[2].scanw + ix0;
+            if (ict) {
+                InvCompTransf.invICT((float[])blks[0].getData(), k0, (float[])blks[1].getData(), k1, (float[])blks[2].getData(), k2, r, g, b, 0, n);
+            } else {
+                InvCompTransf.invRCT((int[])blks[0].getData(), k0, (int[])blks[1].getData(), k1, (int[])blks[2].getData(), k2, r, g, b, 0, n);
+            }
+            for (int iz=0;iz<3;iz++) {
+                SampleFormat format = formats[iz];
+                int o = target.offset[format.riz] + (oy + iy) * target.scanstride + (ox + ix0) * target.pixelstride;
+                format.write(rows[iz], 0, target.data[format.riz], o, target.pixelstride, n);
+            }
+        }
+        if (pool != null) {
+            pool.release(r);
+            pool.release(g);
+            pool.release(b);
+        }
+    }
+
+    /**
+     * How {@link #decodeTile} writes the samples of one component: the output
+     * channel, and how decoded values are adjusted to the midpoint, scaled and
+     * clamped.
+     */
+    private final class SampleFormat {
+        final int riz, csx, csy, fb, mid, down, min, max;
+        final boolean sgn;
+        final int[] shift;
+
+        SampleFormat(BlkImgDataSrc src, int iz) {
+            int riz = channels == null ? iz : channels[iz];     // output channel, could differ from input channel
+            if (riz < 0) {
+                // This is the OPACITY channel. Well technically
+                // it's something that applies to all channels, but
+                // given the limitations of what we can do with that
+                // we'll assume opacity, as that's the only example
+                // seen to date.
+                riz = numc - 1;
+            }
+            this.riz = riz;
+            final int depth = src.getNomRangeBits(iz);
+            sgn = raw && signed[iz];
+            mid = sgn ? 0 : 1 << (depth - 1);
+            csx = src.getCompSubsX(iz);
+            csy = src.getCompSubsY(iz);
+            fb = src.getFixedPoint(iz);
+            // Raw samples are scaled only if they have more than 16 bits,
+            // otherwise samples are scaled to 8 bits
+            final int bits = raw ? Math.min(depth, wide ? 16 : 8) : Math.min(depth, 8);
+            down = depth - bits;
+            min = sgn ? -(1 << (bits - 1)) : 0;
+            max = sgn ? (1 << (bits - 1)) - 1 : (1 << bits) - 1;
+            if (depth < 8 && !raw) {
+                shift = new int[1<<depth];
+                for (int i=0;i<shift.length;i++) {
+                    shift[i] = (int)Math.round(i * 255f / ((1<<depth)-1));
+                }
+            } else {
+                shift = null;
+            }
+        }
+
+        /**
+         * Write n decoded values to a byte[], short[] or int[]
+         * @param in the decoded values
+         * @param i the index of the first value in in
+         * @param data the array to write to
+         * @param o the index in data to write the first value to
+         * @param step the distance between values written to data
+         * @param n the number of values
+         */
+        void write(int[] in, int i, Object data, int o, int step, int n) {
+            final int[] shift = this.shift;
+            final int fb = this.fb, mid = this.mid, down = this.down, min = this.min, max = this.max;
+            if (data instanceof byte[]) {
+                byte[] out = (byte[])data;
+                for (int end=i+n;i<end;i++,o+=step) {
+                    int val = ((in[i] >> fb) + mid) >> down;
+                    val = val < min ? min : val > max ? max : val;
+                    out[o] = (byte)(shift == null ? val : shift[val]);
+                }
+            } else if (data instanceof short[]) {
+                short[] out = (short[])data;
+                for (int end=i+n;i<end;i++,o+=step) {
+                    int val = ((in[i] >> fb) + mid) >> down;
+                    val = val < min ? min : val > max ? max : val;
+                    out[o] = (short)(shift == null ? val : shift[val]);
+                }
+            } else {
+                int[] out = (int[])data;
+                for (int end=i+n;i<end;i++,o+=step) {
+                    int val = ((in[i] >> fb) + mid) >> down;
+                    val = val < min ? min : val > max ? max : val;
+                    out[o] = shift == null ? val : shift[val];
+                }
+            }
+        }
+    }
+
+    /**
+     * Return a copy of the first th rows of tw samples of the specified block, laid
+     * out as they are read by {@link #decodeTile}, for adding to the cache
+     */
+    private static DataBlkInt copyBlock(DataBlkInt db, int tw, int th) {
+        DataBlkInt copy = new DataBlkInt(db.ulx, db.uly, tw, th);
+        System.arraycopy(db.data, db.offset, copy.data, 0, tw * th);
+        return copy;
+    }
+
+    /**
+     * Where {@link #decodeTile} writes the samples: an array for each output
+     * channel, which is a byte[], short[] or int[] and may be shared between
+     * channels, the index of the channel's sample for the first pixel, and the
+     * distance between pixels and between rows.
+     */
+    private static final class Target {
+        final Object[] data;
+        final int[] offset;
+        final int pixelstride, scanstride;
+        final boolean clip;         // if true, pixels outside width x height are not written
+        final int width, height;
+        final TileListener listener;
+
+        /**
+         * Create a Target for the row buffer or another pixel interleaved array, which is not clipped
+         */
+        Target(Object data, int numc, int scanstride) {
+            this(data, 0, numc, scanstride, false, 0, 0, null);
+        }
+
+        /**
+         * Create a clipped Target for a pixel interleaved array
+         */
+        Target(Object data, int off, int numc, int scanstride, int width, int height, TileListener listener) {
+            this(data, off, numc, scanstride, true, width, height, listener);
+        }
+
+        private Target(Object data, int off, int numc, int scanstride, boolean clip, int width, int height, TileListener listener) {
+            this.data = new Object[numc];
+            this.offset = new int[numc];
+            for (int i=0;i<numc;i++) {
+                this.data[i] = data;
+                this.offset[i] = off + i;
+            }
+            this.pixelstride = numc;
+            this.scanstride = scanstride;
+            this.clip = clip;
+            this.width = width;
+            this.height = height;
+            this.listener = listener;
+        }
+
+        /**
+         * Create a clipped Target for the DataBuffer of a raster
+         */
+        Target(Object[] data, int[] offset, int pixelstride, int scanstride, int width, int height, TileListener listener) {
+            this.data = data;
+            this.offset = offset;
+            this.pixelstride = pixelstride;
+            this.scanstride = scanstride;
+            this.clip = true;
+            this.width = width;
+            this.height = height;
+            this.listener = listener;
+        }
+
+        /**
+         * Set the sample at the specified index in the array for the specified channel
+         */
+        void set(int c, int i, int v) {
+            Object d = data[c];
+            if (d instanceof byte[]) {
+                ((byte[])d)[i] = (byte)v;
+            } else if (d instanceof short[]) {
+                ((short[])d)[i] = (short)v;
+            } else {
+                ((int[])d)[i] = v;
+            }
+        }
+    }
+
+    /**
+     * A decoding chain with its own copy of a tile's compressed data,
+     * so the tile can be decoded independently of the main chain.
+     */
+    private final class TileDecoder {
+        final TileBitstreamReaderAgent agent;
+        final EntropyDecoder entdec;
+        final Dequantizer deq;
+        final InverseWT invWT;
+        final ImgDataConverter converter;
+        final BlkImgDataSrc src;
+        DataBlkInt db;
+
+        TileDecoder() {
+            agent = new TileBitstreamReaderAgent(breader);
+            entdec = hd.createEntropyDecoder(agent, param);
+            setCodeBlockCache(entdec);
+            ROIDeScaler roids = hd.createROIDeScaler(entdec, param, decSpec);
+            deq = hd.createDequantizer(roids, depth, decSpec);
+            invWT = InverseWT.createInstance(deq, decSpec);
+            invWT.setImgResLevel(scale);
+            converter = new ImgDataConverter(invWT, 0);
+            src = new InvCompTransf(converter, decSpec, depth);
+            setBufferPool(entdec, deq, invWT, converter, src);
+            db = new DataBlkInt();
+        }
+
+        void releaseBuffers() {
+            J2KReader.releaseBuffers(entdec, deq, invWT, converter, src);
+        }
+    }
+
+    /**
+     * The tiles of one row being decoded on the executor. Tiles are
+     * loaded from the main chain on the calling thread, in order, and
+     * each is then decoded into its own columns of the target.
+     */
+    private final class RowJob {
+        private int pending;
+        private Throwable failure;
+        private volatile boolean aborted;
+
+        /**
+         * Load the current tile from the main chain and submit it for decoding.
+         * @return false if the row has been aborted
+         */
+        boolean submit(final int tx, final Target target, final int ox, final int oy, final int tw, final int th, final boolean cache) throws IOException {
+            final TileDecoder decoder;
+            try {
+                decoder = idleDecoders().take();
+            } catch (InterruptedException e) {
+                aborted = true;
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (aborted) {
+                idleDecoders.add(decoder);
+                return false;
+            }
+            final BlockingQueue<TileDecoder> idle = idleDecoders;
+            try {
+                decoder.agent.load(breader, scale);
+                decoder.src.setTile(tx, ty);
+                synchronized(this) {
+                    pending++;
+                }
+                executor.execute(new Runnable() {
+                    public void run() {
+                        Thread thread = Thread.currentThread();
+                        if (thread != registerThread) {
+                            FacilityManager.registerMsgLogger(thread, J2KReader.this);
+                        }
+                        Throwable e = null;
+                        try {
+                            if (!aborted) {
+                                decoder.db = decodeTile(decoder.src, decoder.db, target, ox, oy, 0, tw, th, null, cache);
+                            }
+                        } catch (Throwable t) {
+                            e = t;
+                        } finally {
+                            if (thread != registerThread) {
+                                FacilityManager.unregisterMsgLogger(thread);
+                            }
+                            idle.add(decoder);
+                            finished(e);
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                idle.add(decoder);
+                throw e;
+            }
+            return true;
+        }
+
+        private synchronized void finished(Throwable e) {
+            if (e != null && failure == null) {
+                failure = e;
+                aborted = true;
+            }
+            pending--;
+            notifyAll();
+        }
+
+        /**
+         * Wait for all submitted tiles to complete, and rethrow the first failure
+         */
+        synchronized void await() throws IOException {
+            boolean interrupted = false;
+            while (pending > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = aborted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (failure instanceof IOException) {
+                throw (IOException)failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException)failure;
+            } else if (failure instanceof Error) {
+                throw (Error)failure;
+            }
+        }
+    }
+
+    /**
+     * Discard the decoders that are not in use, returning their buffers to the pool
+     */
+    private void discardDecoders() {
+        if (idleDecoders != null) {
+            for (TileDecoder decoder : idleDecoders) {
+                decoder.releaseBuffers();
+            }
+            idleDecoders = null;
+        }
+    }
+
+    /**
+     * Return the queue of decoders that are not in use, creating them if necessary
+     */
+    private BlockingQueue<TileDecoder> idleDecoders() {
+        if (idleDecoders == null) {
+            int n = Math.min(parallelism, tx1 - tx0);
+            idleDecoders = new ArrayBlockingQueue<TileDecoder>(n);
+            for (int i=0;i<n;i++) {
+                idleDecoders.add(new TileDecoder());
+            }
+        }
+        return idleDecoders;
+    }
+
     public int read() throws IOException {
         if (pos == length) {
             if (!nextRow(false)) {
                 return -1;
             }
         }
+        if (wide) {
+            int v = sbuf[pos >> 1];
+            return ((pos++ & 1) == 0 ? v >> 8 : v) & 0xFF;
+        }
         return buf[pos++] & 0xFF;
     }
 
@@ -345,7 +1372,14 @@ public class J2KReader extends InputStream implements MsgLogger {
                 }
             }
             int avail = Math.min(len, length - pos);
-            System.arraycopy(buf, pos, out, off, avail);
+            if (wide) {
+                for (int i=0;i<avail;i++) {
+                    int v = sbuf[(pos + i) >> 1];
+                    out[off + i] = (byte)(((pos + i) & 1) == 0 ? v >> 8 : v);
+                }
+            } else {
+                System.arraycopy(buf, pos, out, off, avail);
+            }
             len -= avail;
             off += avail;
             pos += avail;
@@ -353,9 +1387,201 @@ public class J2KReader extends InputStream implements MsgLogger {
         return len == origlen ? -1 : origlen - len;
     }
 
+    /**
+     * Read decoded samples into a short array. This is the most efficient way
+     * to read images of more than 8 bits per component, as the samples are copied
+     * as they are with no conversion; 8-bit samples are returned unsigned, one per
+     * element. The stream must not be positioned in the middle of a 16-bit sample.
+     * @param out the array to read into
+     * @param off the index of the first sample to read into
+     * @param len the maximum number of samples to read
+     * @return the number of samples read, or -1 if the end of the image has been reached
+     * @see #setRawSamples
+     */
+    public int read(short[] out, int off, int len) throws IOException {
+        if (wide && (pos & 1) != 0) {
+            throw new IllegalStateException("Not at a sample boundary");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int origlen = len;
+        while (len > 0) {
+            if (pos == length) {
+                if (!nextRow(false)) {
+                    break;
+                }
+            }
+            if (wide) {
+                int avail = Math.min(len, (length - pos) >> 1);
+                System.arraycopy(sbuf, pos >> 1, out, off, avail);
+                len -= avail;
+                off += avail;
+                pos += avail << 1;
+            } else {
+                int avail = Math.min(len, length - pos);
+                for (int i=0;i<avail;i++) {
+                    out[off++] = (short)(buf[pos++] & 0xFF);
+                }
+                len -= avail;
+            }
+        }
+        return len == origlen ? -1 : origlen - len;
+    }
+
+    /**
+     * Read the rest of the image into a raster. Each tile is written to the raster
+     * as it is decoded, with pixel (0, 0) of the image written to the top-left
+     * corner of the raster and each component to the matching band, so there is no
+     * intermediate copy of the image for rasters with a ComponentSampleModel, which
+     * includes those created for a {@link #getBufferedImage BufferedImage}. The samples
+     * are the same as those read from this InputStream, and the stream is at its end
+     * when this method returns. This method must be called before the first read.
+     * @param raster the raster, which must have one band for each component and be at least the size of the image
+     * @param listener if not null, the listener to notify as each tile is written
+     * @throws IllegalArgumentException if the raster is too small or has the wrong number of bands
+     * @throws IllegalStateException if the image has already been read
+     */
+    public void readRaster(WritableRaster raster, TileListener listener) throws IOException {
+        if (raster.getNumBands() != numc || raster.getWidth() < iw || raster.getHeight() < ih) {
+            throw new IllegalArgumentException("Raster must have " + numc + " bands and be at least " + iw + "x" + ih);
+        }
+        SampleModel sm = raster.getSampleModel();
+        DataBuffer buffer = raster.getDataBuffer();
+        Target t = null;
+        if (sm instanceof ComponentSampleModel) {
+            ComponentSampleModel csm = (ComponentSampleModel)sm;
+            int x = raster.getMinX() - raster.getSampleModelTranslateX();
+            int y = raster.getMinY() - raster.getSampleModelTranslateY();
+            Object[] data = new Object[numc];
+            int[] offset = new int[numc];
+            for (int b=0;b<numc;b++) {
+                int bank = csm.getBankIndices()[b];
+                switch (buffer.getDataType()) {
+                    case DataBuffer.TYPE_BYTE:
+                        data[b] = ((DataBufferByte)buffer).getData(bank);
+                        break;
+                    case DataBuffer.TYPE_USHORT:
+                        data[b] = ((DataBufferUShort)buffer).getData(bank);
+                        break;
+                    case DataBuffer.TYPE_SHORT:
+                        data[b] = ((DataBufferShort)buffer).getData(bank);
+                        break;
+                    case DataBuffer.TYPE_INT:
+                        data[b] = ((DataBufferInt)buffer).getData(bank);
+                        break;
+                    default:
+                        data = null;
+                }
+                if (data == null) {
+                    break;
+                }
+                offset[b] = buffer.getOffsets()[bank] + csm.getBandOffsets()[b] + y * csm.getScanlineStride() + x * csm.getPixelStride();
+            }
+            if (data != null) {
+                t = new Target(data, offset, csm.getPixelStride(), csm.getScanlineStride(), iw, ih, listener);
+            }
+        }
+        readRaster(t, raster, listener);
+    }
+
+    /**
+     * Read the rest of the image into an int array. Each tile is written to the array
+     * as it is decoded, with the samples of each pixel stored consecutively in the
+     * same order as they are read from this InputStream. Signed samples are stored
+     * as negative values. The stream is at its end when this method returns. This
+     * method must be called before the first read.
+     * @param out the array to write the image to
+     * @param off the index of the first sample of the image
+     * @param scanline the number of samples from the start of one row to the start of the next
+     * @param listener if not null, the listener to notify as each tile is written
+     * @throws IllegalArgumentException if the array is too small to hold the image
+     * @throws IllegalStateException if the image has already been read
+     */
+    public void readRaster(int[] out, int off, int scanline, TileListener listener) throws IOException {
+        checkBounds(out.length, off, scanline);
+        readRaster(new Target(out, off, numc, scanline, iw, ih, listener), null, listener);
+    }
+
+    /**
+     * Read the rest of the image into a short array. This method is the same as
+     * {@link #readRaster(int[],int,int,TileListener)}, except that unsigned samples
+     * of 16 bits are stored as negative values and must be masked with 0xFFFF.
+     * @param out the array to write the image to
+     * @param off the index of the first sample of the image
+     * @param scanline the number of samples from the start of one row to the start of the next
+     * @param listener if not null, the listener to notify as each tile is written
+     * @throws IllegalArgumentException if the array is too small to hold the image
+     * @throws IllegalStateException if the image has already been read
+     */
+    public void readRaster(short[] out, int off, int scanline, TileListener listener) throws IOException {
+        checkBounds(out.length, off, scanline);
+        readRaster(new Target(out, off, numc, scanline, iw, ih, listener), null, listener);
+    }
+
+    private void checkBounds(int length, int off, int scanline) {
+        if (off < 0 || scanline < iw * numc || off + (long)(ih - 1) * scanline + iw * numc > length) {
+            throw new IllegalArgumentException("Array too small for " + iw + "x" + ih + " image");
+        }
+    }
+
+    /**
+     * Read the rest of the image into the target, or the raster if there is no target
+     */
+    private void readRaster(Target t, WritableRaster raster, TileListener listener) throws IOException {
+        if (ty != ty0 || stripy != 0) {
+            throw new IllegalStateException("Image has already been read");
+        }
+        boolean subsampled = false;
+        for (int iz=0;iz<numc;iz++) {
+            subsampled |= src.getCompSubsX(iz) != 1 || src.getCompSubsY(iz) != 1;
+        }
+        if (t != null && !subsampled) {
+            target = t;
+            try {
+                while (nextRow(false));
+            } finally {
+                target = null;
+            }
+        } else {
+            // Subsampled components are interpolated in the row buffer, and
+            // other rasters are set from it one row of tiles at a time
+            boolean[] sgn = new boolean[numc];
+            for (int iz=0;iz<numc;iz++) {
+                sgn[channels == null ? iz : channels[iz] < 0 ? numc - 1 : channels[iz]] = raw && signed[iz];
+            }
+            int[] pixels = null;
+            int y = 0;
+            while (nextRow(false)) {
+                int n = wide ? length / 2 : length;
+                int h = n / scanline;
+                if (pixels == null || pixels.length < n) {
+                    pixels = new int[n];
+                }
+                for (int i=0;i<n;i++) {
+                    pixels[i] = getSample(i, sgn[i % numc]);
+                }
+                if (t != null) {
+                    for (int i=0;i<n;i++) {
+                        int c = i % numc;
+                        int x = (i % scanline) / numc;
+                        t.set(c, t.offset[c] + (y + i / scanline) * t.scanstride + x * t.pixelstride, pixels[i]);
+                    }
+                } else {
+                    raster.setPixels(raster.getMinX(), raster.getMinY() + y, iw, h, pixels);
+                }
+                pos = length;
+                if (listener != null) {
+                    listener.tileDecoded(new Rectangle(0, y, iw, h));
+                }
+                y += h;
+            }
+        }
+    }
+
     public long skip(long len) throws IOException {
         long origlen = len;
-        if (buf == null && len > 0) {
+        if (rows() == null && len > 0) {
             // Ensure read buffer is initialized before we try and skip
             int v = read();
             if (v < 0) {
@@ -368,7 +1594,7 @@ public class J2KReader extends InputStream implements MsgLogger {
             len -= avail;
             pos += avail;
             if (pos == length) {
-                if (!nextRow(len > buf.length)) {
+                if (!nextRow(len > (wide ? sbuf.length * 2 : buf.length))) {
                     break;
                 }
             }
@@ -377,7 +1603,7 @@ public class J2KReader extends InputStream implements MsgLogger {
     }
 
     public int available() {
-        return buf.length - pos;
+        return length - pos;
     }
 
     private void free() throws IOException {
@@ -386,11 +1612,19 @@ public class J2KReader extends InputStream implements MsgLogger {
             registerThread = null;
             in.close();
             in = null;
+            releaseBuffers(entdec, deq, invWT, converter, src);
             src = null;
             decSpec = null;
+            entdec = null;
+            deq = null;
             invWT = null;
+            converter = null;
             breader = null;
+            hd = null;
+            param = null;
+            discardDecoders();
             db = null;
+            codestream = null;
         }
     }
 
@@ -429,14 +1663,24 @@ public class J2KReader extends InputStream implements MsgLogger {
      * Return the number of bytes in each scanline of the image
      */
     public int getRowSpan() {
-        return getNumComponents() * getWidth();
+        return getNumComponents() * getWidth() * getBitsPerComponent() / 8;
     }
 
     /**
-     * Return the number of bits for each component - currently this is always 8.
+     * Return the number of bits for each component, which is 16 if
+     * raw samples have been requested and any component has more than 8 bits,
+     * or 8 otherwise.
+     * @see #setRawSamples
      */
     public int getBitsPerComponent() {
-        return 8;
+        return wide ? 16 : 8;
+    }
+
+    /**
+     * Return true if the specified component from the source image is signed.
+     */
+    public boolean isOriginalSigned(int comp) {
+        return signed[comp];
     }
 
     /**
@@ -446,6 +1690,64 @@ public class J2KReader extends InputStream implements MsgLogger {
         return depth[comp];
     }
 
+    /**
+     * Return the offset in the codestream before which no more data will be read
+     * to decode the rest of the image, so the data before it may be discarded by an
+     * input that is read forwards only. This is the lowest offset of the packet data
+     * of the tiles still to be decoded; if the tile-parts of a tile have not been read
+     * yet, which is always the case unless the reader was created from a
+     * {@link SharedCodeStream}, it is 0. Once the image has been read it is Long.MAX_VALUE.
+     */
+    public long getDiscardableOffset() {
+        if (ty == ty1) {
+            return Long.MAX_VALUE;
+        } else if (!(breader instanceof FileBitstreamReaderAgent)) {
+            return 0;
+        }
+        FileBitstreamReaderAgent agent = (FileBitstreamReaderAgent)breader;
+        long off = Long.MAX_VALUE;
+        for (int y=ty;y<ty1;y++) {
+            for (int x=tx0;x<tx1;x++) {
+                long toff = agent.getTileDataOffset(y * numtx + x);
+                if (toff < 0) {
+                    return 0;
+                }
+                off = Math.min(off, toff);
+            }
+        }
+        return off;
+    }
+
+    /**
+     * Return the width of each tile in the codestream, in pixels of the full resolution image
+     */
+    public int getTileWidth() {
+        return tilew;
+    }
+
+    /**
+     * Return the height of each tile in the codestream, in pixels of the full resolution image
+     */
+    public int getTileHeight() {
+        return tileh;
+    }
+
+    /**
+     * Return the left edge of the first column of tiles relative to the left edge
+     * of the image, in pixels of the full resolution image. This is zero or negative.
+     */
+    public int getTileGridXOffset() {
+        return tilegridx;
+    }
+
+    /**
+     * Return the top edge of the first row of tiles relative to the top edge
+     * of the image, in pixels of the full resolution image. This is zero or negative.
+     */
+    public int getTileGridYOffset() {
+        return tilegridy;
+    }
+
     /**
      * Return the ColorSpace for the image, which may be null if this
      * implementation has no support for the encoded space (eg. Lab or CMYK)
@@ -538,16 +1840,11 @@ public class J2KReader extends InputStream implements MsgLogger {
     }
 
     /**
-     * Read the content of this J2KReader and return it as a BufferedImage object
-     * The ColorSpace must be supported by Java, which means - without extensions
-     * to this API - only RGB, GrayScale and indexed-RGB are supported.
-     * The InputStream this obejct represents will be read fully and closed.
-     * @throws IOException if an IOException is encountered during read
+     * Return the ColorModel of the image returned by {@link #getBufferedImage}.
+     * The ColorSpace must be supported by Java, as for that method.
      * @throws IllegalStateExeption if the ColorSpace specified by this file is unsupported.
      */
-    public BufferedImage getBufferedImage() throws IOException {
-        int width = getWidth();
-        int height = getHeight();
+    public ColorModel getColorModel() {
         ColorSpace colorSpace = getColorSpace();
         if (colorSpace == null) {
             throw new IllegalStateException("Can't create image: unsupported ColorSpace type " + cstype);
@@ -568,21 +1865,42 @@ public class J2KReader extends InputStream implements MsgLogger {
             colorModel = new IndexColorModel(bpc, indexSize, palette, 0, false);
         } else {
             boolean opaque = getNumComponents() == colorSpace.getNumComponents();
-            if (opaque) {
+            if (raw) {
+                // Raw samples keep their original depth; signed images are
+                // only created if every component is signed
+                int[] bits = new int[numc];
+                boolean allsigned = true;
+                for (int iz=0;iz<numc;iz++) {
+                    int riz = channels == null ? iz : channels[iz] < 0 ? numc - 1 : channels[iz];
+                    bits[riz] = Math.min(bpc, depth[iz]);
+                    allsigned &= signed[iz];
+                }
+                int type = bpc == 8 ? DataBuffer.TYPE_BYTE : allsigned ? DataBuffer.TYPE_SHORT : DataBuffer.TYPE_USHORT;
+                colorModel = new ComponentColorModel(colorSpace, bits, !opaque, false, opaque ? Transparency.OPAQUE : Transparency.TRANSLUCENT, type);
+            } else if (opaque) {
                 colorModel = new ComponentColorModel(colorSpace, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
             } else {
                 colorModel = new ComponentColorModel(colorSpace, true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
             }
         }
-        SampleModel sampleModel = colorModel.createCompatibleSampleModel(width, height);
-        DataBufferByte buffer = (DataBufferByte)sampleModel.createDataBuffer();
-        byte[] buf = buffer.getData();
-        int off = 0, l;
-        while (off < buf.length && (l=read(buf, off, buf.length - off)) >= 0) {
-            off += l;
-        }
+        return colorModel;
+    }
+
+    /**
+     * Read the content of this J2KReader and return it as a BufferedImage object
+     * The ColorSpace must be supported by Java, which means - without extensions
+     * to this API - only RGB, GrayScale and indexed-RGB are supported.
+     * The InputStream this obejct represents will be read fully and closed.
+     * @throws IOException if an IOException is encountered during read
+     * @throws IllegalStateExeption if the ColorSpace specified by this file is unsupported.
+     */
+    public BufferedImage getBufferedImage() throws IOException {
+        ColorModel colorModel = getColorModel();
+        int width = getWidth();
+        int height = getHeight();
+        WritableRaster raster = Raster.createWritableRaster(colorModel.createCompatibleSampleModel(width, height), null);
+        readRaster(raster, null);
         close();
-        WritableRaster raster = Raster.createWritableRaster(sampleModel, buffer, null);
         return new BufferedImage(colorModel, raster, false, null);
     }
 
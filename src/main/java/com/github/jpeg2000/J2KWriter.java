@@ -5,6 +5,7 @@ import java.awt.*;
 import java.awt.color.*;
 import java.awt.image.*;
 import java.awt.Point;
+import java.util.concurrent.Executor;
 
 import jj2000.j2k.codestream.writer.*;
 import jj2000.j2k.entropy.encoder.*;
@@ -35,6 +36,10 @@ public class J2KWriter implements MsgLogger {
     private float ratio;
     private boolean reversible;
     private BlkImgDataSrc src;
+    private Executor executor;
+    private int parallelism;
+    private boolean streaming;
+    private boolean pointerMarkers;
 
     /**
      * Create a new J2KWriter
@@ -131,6 +136,53 @@ public class J2KWriter implements MsgLogger {
         }
     }
 
+    /**
+     * Set an Executor to encode tiles in parallel. Up to <code>parallelism</code>
+     * tiles are transformed, quantized and entropy coded at once on the executor,
+     * each by its own encoding chain, while rate allocation and writing of the
+     * codestream stay on the calling thread. The source is read by one tile at
+     * a time, and the compressed data is identical to that created without an
+     * executor. Images with only one tile are always encoded on the calling thread.
+     * @param executor the Executor to encode tiles with, or null to encode on the calling thread (the default)
+     * @param parallelism the maximum number of tiles to encode at once, which must be at least 1
+     */
+    public void setExecutor(Executor executor, int parallelism) {
+        if (executor != null && parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+        this.executor = executor;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Set whether to allocate the compressed data to quality layers one tile
+     * at a time. By default the rate allocation is run on the whole image,
+     * which means the compressed data of every tile is kept until the last
+     * tile has been encoded. When streaming each tile is given a share of
+     * the target size in proportion to its area and is written, and released,
+     * as soon as it has been encoded. This bounds the memory used to a few
+     * tiles of compressed data for very large images, at the cost of
+     * a less even quality across tiles.
+     * @param streaming true to allocate and write one tile at a time
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Set whether to write the length of every tile and packet in the
+     * codestream, in TLM and PLT marker segments. These let a reader seek
+     * straight to any tile, or any packet of a tile, at the cost of a few
+     * bytes per packet. Those bytes are taken from the length allowed by the
+     * compression ratio, so a lossy image has a little less image data. When
+     * streaming only the packet lengths are written, as the main header is
+     * written before the length of any tile is known.
+     * @param pointerMarkers true to write TLM and PLT marker segments
+     */
+    public void setPointerMarkers(boolean pointerMarkers) {
+        this.pointerMarkers = pointerMarkers;
+    }
+
     private J2KFile doCreate(OutputStream out) throws IOException {
         if (src == null) {
             throw new IllegalStateException("No source");
@@ -150,11 +202,18 @@ public class J2KWriter implements MsgLogger {
 
         J2KFile file = new J2KFile();
         HeaderBox jp2h = new HeaderBox();
-        int bpc = src.getNomRangeBits(0);
-        int totbpc = bpc;
-        for (int i=1;i<src.getNumComps();i++) {
+        // Bit depths are written less one, with the top bit set if signed
+        boolean[] signed = new boolean[src.getNumComps()];
+        byte[] depths = new byte[src.getNumComps()];
+        int totbpc = 0;
+        for (int i=0;i<depths.length;i++) {
+            signed[i] = src instanceof AbstractDataSource && ((AbstractDataSource)src).isOrigSigned(i);
+            depths[i] = (byte)((src.getNomRangeBits(i) - 1) | (signed[i] ? 0x80 : 0));
             totbpc += src.getNomRangeBits(i);
-            if (src.getNomRangeBits(i) != bpc) {
+        }
+        int bpc = depths[0] & 0xFF;
+        for (int i=1;i<depths.length;i++) {
+            if (depths[i] != depths[0]) {
                 bpc = 255;
             }
         }
@@ -176,11 +235,7 @@ public class J2KWriter implements MsgLogger {
             jp2h.add(res);
         }
         if (bpc == 255) {
-            byte[] b = new byte[src.getNumComps()];
-            for (int i=0;i<b.length;i++) {
-                b[i] = (byte)src.getNomRangeBits(i);
-            }
-            jp2h.add(new BitsPerComponentBox(b));
+            jp2h.add(new BitsPerComponentBox(depths));
         }
         file.add(new FileTypeBox());
         file.add(jp2h);
@@ -196,19 +251,29 @@ public class J2KWriter implements MsgLogger {
 
         try {
             FacilityManager.registerMsgLogger(registerThread, this);
-            ForwCompTransf fctransf = new ForwCompTransf(src, param);
-            ImgDataConverter converter = new ImgDataConverter(fctransf);
-            ForwardWT dwt = ForwardWT.createInstance(converter, param);
-            Quantizer quant = Quantizer.createInstance(dwt, param);
-            ROIScaler rois = ROIScaler.createInstance(quant, param);
-            EntropyCoder ecoder = EntropyCoder.createInstance(rois, param, param.getCodeBlockSize(), param.getPrecinctPartition(), param.getBypass(), param.getResetMQ(), param.getTerminateOnByte(), param.getCausalCXInfo(), param.getCodeSegSymbol(), param.getMethodForMQLengthCalc(), param.getMethodForMQTermination());
+            boolean parallel = executor != null && src.getNumTiles() > 1;
+            EncodingChain chain = new EncodingChain(parallel ? new SharedBlkImgDataSrc(src) : src, param);
+            CodedCBlkDataSrcEnc coded = chain.ecoder;
+            if (parallel) {
+                // The main chain only supplies the image properties; tiles
+                // are encoded by the other chains, each with its own view
+                CodedCBlkDataSrcEnc[] chains = new CodedCBlkDataSrcEnc[Math.min(parallelism, src.getNumTiles())];
+                for (int i=0;i<chains.length;i++) {
+                    chains[i] = new EncodingChain(new SharedBlkImgDataSrc(src), param).ecoder;
+                }
+                coded = new ParallelTileEncoder(chain.ecoder, chains, executor);
+            }
 
             FileCodestreamWriter bwriter = new FileCodestreamWriter(bout, Integer.MAX_VALUE);
             ratio = param.getCompressionRatio();
             float rate = ratio == 1 ? Float.POSITIVE_INFINITY : totbpc / ratio;
-            PostCompRateAllocator ralloc = PostCompRateAllocator.createInstance(ecoder, rate, bwriter, param);
-            HeaderEncoder headenc = new HeaderEncoder(src, new boolean[src.getNumComps()], dwt, src, param, rois, ralloc);
+            PostCompRateAllocator ralloc = PostCompRateAllocator.createInstance(coded, rate, bwriter, param);
+            HeaderEncoder headenc = new HeaderEncoder(src, signed, chain.dwt, src, param, chain.rois, ralloc);
             ralloc.setHeaderEncoder(headenc);
+            if (ralloc instanceof EBCOTRateAllocator) {
+                ((EBCOTRateAllocator)ralloc).setStreaming(streaming);
+                ((EBCOTRateAllocator)ralloc).setPointerMarkers(pointerMarkers);
+            }
             headenc.encodeMainHeader();
             ralloc.initialize();
             headenc.reset();
@@ -226,6 +291,25 @@ public class J2KWriter implements MsgLogger {
         }
     }
 
+    /**
+     * The stages of encoding before rate allocation, from the component
+     * transform to the entropy coder
+     */
+    private static final class EncodingChain {
+        final ForwardWT dwt;
+        final ROIScaler rois;
+        final EntropyCoder ecoder;
+
+        EncodingChain(BlkImgDataSrc src, J2KWriteParam param) {
+            ForwCompTransf fctransf = new ForwCompTransf(src, param);
+            ImgDataConverter converter = new ImgDataConverter(fctransf);
+            dwt = ForwardWT.createInstance(converter, param);
+            Quantizer quant = Quantizer.createInstance(dwt, param);
+            rois = ROIScaler.createInstance(quant, param);
+            ecoder = EntropyCoder.createInstance(rois, param, param.getCodeBlockSize(), param.getPrecinctPartition(), param.getBypass(), param.getResetMQ(), param.getTerminateOnByte(), param.getCausalCXInfo(), param.getCodeSegSymbol(), param.getMethodForMQLengthCalc(), param.getMethodForMQTermination());
+        }
+    }
+
     /**
      * Create and return a {@link J2KFile} which has the compressed image data
      */
@@ -0,0 +1,101 @@
+package com.github.jpeg2000;
+
+import java.io.*;
+import java.util.*;
+
+import jj2000.j2k.codestream.HeaderInfo;
+import jj2000.j2k.codestream.reader.BitstreamReaderAgent;
+import jj2000.j2k.codestream.reader.FileBitstreamReaderAgent;
+import jj2000.j2k.codestream.reader.HeaderDecoder;
+import jj2000.j2k.io.MappedRandomAccessIO;
+import jj2000.j2k.io.RandomAccessIO;
+import jj2000.j2k.io.SharedRandomAccessIO;
+
+/**
+ * <p>
+ * A codestream which is opened once and shared by any number of {@link J2KReader}
+ * objects, which may be used at the same time on different threads. The main header
+ * and every tile-part header are parsed when this object is created, and the
+ * information read from the packet headers of each tile is kept once the tile has
+ * been decoded by any reader, so creating a reader is cheap.
+ * </p><p>
+ * Each reader has its own position in the codestream. When the codestream is read
+ * from a {@link MappedRandomAccessIO} each reader gets its own view on the mapping,
+ * otherwise the readers share the underlying RandomAccessIO through a
+ * {@link SharedRandomAccessIO}, which must not be used for anything else while this
+ * object is in use.
+ * </p>
+ *
+ * @author http://bfo.com
+ */
+public class SharedCodeStream {
+
+    private final List<Box> boxes;
+    private RandomAccessIO io;
+    private HeaderDecoder hd;
+    private FileBitstreamReaderAgent index;
+
+    /**
+     * Open the codestream of a "jp2" file
+     * @param file the J2KFile to read from
+     */
+    public SharedCodeStream(J2KFile file) throws IOException {
+        boxes = Collections.unmodifiableList(new ArrayList<Box>(file.getHeaderBox().getBoxes()));
+        init(file.getCodeStreamBox().getRandomAccessIO());
+    }
+
+    /**
+     * Open a raw codestream
+     * @param box the CodeStream to read from
+     */
+    public SharedCodeStream(CodeStreamBox box) throws IOException {
+        boxes = Collections.<Box>emptyList();
+        init(box.getRandomAccessIO());
+    }
+
+    private void init(RandomAccessIO in) throws IOException {
+        io = in instanceof MappedRandomAccessIO ? in : new SharedRandomAccessIO(in);
+        RandomAccessIO view = createRandomAccessIO();
+        J2KReadParam param = new SimpleJ2KReadParam();
+        HeaderInfo hi = new HeaderInfo();
+        hd = new HeaderDecoder(view, param, hi);
+        index = (FileBitstreamReaderAgent)BitstreamReaderAgent.createInstance(view, hd, param, hd.getDecoderSpecs(), false, hi);
+        index.readAllTileParts();
+    }
+
+    /**
+     * Return the boxes from the header of the "jp2" file, or an empty list
+     * for a raw codestream
+     */
+    List<Box> getHeaderBoxes() {
+        return boxes;
+    }
+
+    /**
+     * Return the decoder of the main and tile-part headers, which must
+     * not be modified
+     */
+    HeaderDecoder getHeaderDecoder() {
+        return hd;
+    }
+
+    /**
+     * Return a new RandomAccessIO on the codestream with its own position
+     */
+    RandomAccessIO createRandomAccessIO() throws IOException {
+        if (io instanceof MappedRandomAccessIO) {
+            return ((MappedRandomAccessIO)io).duplicate();
+        } else {
+            return ((SharedRandomAccessIO)io).duplicate();
+        }
+    }
+
+    /**
+     * Return a new BitstreamReaderAgent sharing the index of this codestream
+     * @param in a RandomAccessIO returned from {@link #createRandomAccessIO}
+     */
+    BitstreamReaderAgent createBitstreamReader(RandomAccessIO in) {
+        return new FileBitstreamReaderAgent(index, in);
+    }
+
+}
@@ -2,18 +2,32 @@ package com.github.jpeg2000;
 
 /**
  * Interface which defines the parameters required to read a JP2 image.
- * The default values for each property are used.
+ * The default values for each property are used, except for the decoding
+ * rate which may be set.
  *
  * @author http://bfo.com
  */
 public class SimpleJ2KReadParam implements J2KReadParam {
-    
+
+    private double rate = Double.MAX_VALUE;
+
     public boolean getNoROIDescaling() {
         return true;
     }
 
+    /**
+     * Set the decoding rate in bits per pixel of the full size image
+     * @param rate the decoding rate, or <code>Double.MAX_VALUE</code> to decode with the encoding rate (the default)
+     */
+    public void setDecodingRate(double rate) {
+        if (rate <= 0) {
+            throw new IllegalArgumentException("Decoding rate must be positive");
+        }
+        this.rate = rate;
+    }
+
     public double getDecodingRate() {
-        return Double.MAX_VALUE;
+        return rate;
     }
 
     public int getResolution() {
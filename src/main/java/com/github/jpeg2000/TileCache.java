@@ -0,0 +1,176 @@
+package com.github.jpeg2000;
+
+import java.util.*;
+
+import jj2000.j2k.image.DataBlk;
+
+/**
+ * <p>
+ * A cache of reconstructed tile-components, which can be shared between any number of
+ * {@link J2KReader} objects with {@link J2KReader#setTileCache}. When the same tiles
+ * are read again at the same resolution level, for example when panning or zooming
+ * around a large image, the reader takes them from the cache rather than decoding them.
+ * </p><p>
+ * Each entry is keyed on the codestream, tile, component, resolution level and number
+ * of quality layers. When the total size of the cached data exceeds the byte budget,
+ * the least recently used entries are discarded. This class is thread-safe.
+ * </p>
+ *
+ * @author http://bfo.com
+ */
+public class TileCache {
+
+    private final long maxSize;
+    private final LinkedHashMap<Key,DataBlk> map;
+    private long size, hits, misses, evictions;
+
+    /**
+     * Create a new TileCache
+     * @param maxSize the maximum number of bytes of decoded data to hold
+     */
+    public TileCache(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Negative size");
+        }
+        this.maxSize = maxSize;
+        this.map = new LinkedHashMap<Key,DataBlk>(16, 0.75f, true);
+    }
+
+    /**
+     * Return the cached tile-component, or null if it is not in the cache.
+     * The returned block must not be modified.
+     * @param codestream the codestream the tile belongs to, compared by identity
+     * @param tile the index of the tile
+     * @param comp the index of the component
+     * @param resLevel the resolution level the tile was reconstructed at
+     * @param layers the number of quality layers the tile was decoded from
+     */
+    public synchronized DataBlk get(Object codestream, int tile, int comp, int resLevel, int layers) {
+        DataBlk blk = map.get(new Key(codestream, tile, comp, resLevel, layers));
+        if (blk == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return blk;
+    }
+
+    /**
+     * Return true if the tile-component is in the cache. This does not change
+     * the counters or the order of eviction.
+     * @param codestream the codestream the tile belongs to, compared by identity
+     * @param tile the index of the tile
+     * @param comp the index of the component
+     * @param resLevel the resolution level the tile was reconstructed at
+     * @param layers the number of quality layers the tile was decoded from
+     */
+    public synchronized boolean contains(Object codestream, int tile, int comp, int resLevel, int layers) {
+        return map.containsKey(new Key(codestream, tile, comp, resLevel, layers));
+    }
+
+    /**
+     * Add a reconstructed tile-component to the cache, discarding the least recently
+     * used entries if the cache is then over budget. The block must hold only the
+     * data of the tile-component, and must not be modified once added. Blocks larger
+     * than the budget are not added.
+     * @param codestream the codestream the tile belongs to, compared by identity
+     * @param tile the index of the tile
+     * @param comp the index of the component
+     * @param resLevel the resolution level the tile was reconstructed at
+     * @param layers the number of quality layers the tile was decoded from
+     * @param blk the reconstructed data
+     */
+    public synchronized void put(Object codestream, int tile, int comp, int resLevel, int layers, DataBlk blk) {
+        long blksize = sizeOf(blk);
+        if (blksize > maxSize) {
+            return;
+        }
+        DataBlk old = map.put(new Key(codestream, tile, comp, resLevel, layers), blk);
+        if (old != null) {
+            size -= sizeOf(old);
+        }
+        size += blksize;
+        for (Iterator<DataBlk> i = map.values().iterator();size > maxSize && i.hasNext();) {
+            size -= sizeOf(i.next());
+            i.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Remove every entry from the cache. The counters are not reset.
+     */
+    public synchronized void clear() {
+        map.clear();
+        size = 0;
+    }
+
+    /**
+     * Return the maximum number of bytes of decoded data held by the cache
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Return the number of bytes of decoded data currently held by the cache
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Return the number of calls to {@link #get} that found an entry
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Return the number of calls to {@link #get} that found no entry
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Return the number of entries discarded to keep the cache within budget
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    private static long sizeOf(DataBlk blk) {
+        return (long)blk.w * blk.h * (DataBlk.getSize(blk.getDataType()) >> 3);
+    }
+
+    public String toString() {
+        return "{TileCache: size="+getSize()+"/"+maxSize+" hits="+getHitCount()+" misses="+getMissCount()+" evictions="+getEvictionCount()+"}";
+    }
+
+    private static final class Key {
+        final Object codestream;
+        final int tile, comp, resLevel, layers;
+
+        Key(Object codestream, int tile, int comp, int resLevel, int layers) {
+            this.codestream = codestream;
+            this.tile = tile;
+            this.comp = comp;
+            this.resLevel = resLevel;
+            this.layers = layers;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(codestream) ^ (tile * 31 + comp) * 31 + resLevel * 65521 + layers;
+        }
+
+        public boolean equals(Object o) {
+            if (o instanceof Key) {
+                Key k = (Key)o;
+                return k.codestream == codestream && k.tile == tile && k.comp == comp && k.resLevel == resLevel && k.layers == layers;
+            }
+            return false;
+        }
+    }
+
+}
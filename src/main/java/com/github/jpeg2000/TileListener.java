@@ -0,0 +1,25 @@
+package com.github.jpeg2000;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+
+/**
+ * A listener notified by the <code>readRaster</code> methods of {@link J2KReader}
+ * as each part of the image is written to the destination, so the image can be
+ * processed or displayed as it is decoded rather than when it is complete.
+ *
+ * @author http://bfo.com
+ */
+public interface TileListener {
+
+    /**
+     * Called when the samples of a tile, or of a strip of rows from a tile, have
+     * been written to the destination. Parts are written from top to bottom and
+     * left to right, and the method is always called on the thread reading the
+     * image.
+     * @param rect the area written, in pixels of the decoded image
+     * @throws IOException to stop reading the image, which is rethrown by <code>readRaster</code>
+     */
+    public void tileDecoded(Rectangle rect) throws IOException;
+
+}
@@ -0,0 +1,58 @@
+package com.github.jpeg2000.imageio;
+
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Checks the image can be encoded as JPEG2000 and creates the nessesary Writer.
+ * Images with an alpha channel can't be encoded, as the encoder only writes the
+ * color components.
+ */
+public class ImageWriterImpl extends ImageWriterSpi {
+
+    @Override public boolean canEncodeImage(ImageTypeSpecifier type) {
+        ColorModel cm = type.getColorModel();
+        int datatype = type.getSampleModel().getDataType();
+        if (datatype == DataBuffer.TYPE_FLOAT || datatype == DataBuffer.TYPE_DOUBLE || cm.hasAlpha()) {
+            return false;
+        }
+        for (int i=0;i<cm.getNumColorComponents();i++) {
+            if (cm.getComponentSize(i) > 16) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override public Class<?>[] getOutputTypes() {
+        return new Class<?>[] {ImageOutputStream.class};
+    }
+
+    @Override public ImageWriter createWriterInstance(Object extension) throws IOException {
+        return new JPEG2000Writer(this);
+    }
+
+    @Override public String[] getFormatNames() {
+        return new String[] {"jpeg2000", "JPEG2000"};
+    }
+
+    @Override public String[] getFileSuffixes() {
+        return new String[] {"jp2", "j2k"};
+    }
+
+    @Override public String[] getMIMETypes() {
+        return new String[] {"image/jp2"};
+    }
+
+    @Override public String getDescription(Locale locale) {
+        return "JPEG2000 ImageIO Support";
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.github.jpeg2000.imageio;
+
+import javax.imageio.ImageReadParam;
+
+/**
+ * The ImageReadParam for the {@link JPEG2000Reader}. As well as the standard
+ * region, subsampling and band settings, this limits the compressed data that
+ * is decoded, by number of quality layers or by decoding rate. Either gives a
+ * lower quality image which is quicker to decode, for a preview for example.
+ *
+ * @author http://bfo.com
+ */
+public class JPEG2000ReadParam extends ImageReadParam {
+
+    private int maxLayers;
+    private double decodingRate = Double.MAX_VALUE;
+
+    /**
+     * Set the maximum number of quality layers to decode
+     * @param layers the number of layers, or 0 to decode every layer (the default)
+     * @see com.github.jpeg2000.J2KReader#setMaxLayers
+     */
+    public void setMaxLayers(int layers) {
+        if (layers < 0) {
+            throw new IllegalArgumentException("Negative number of layers");
+        }
+        this.maxLayers = layers;
+    }
+
+    /**
+     * Return the value set by {@link #setMaxLayers}
+     */
+    public int getMaxLayers() {
+        return maxLayers;
+    }
+
+    /**
+     * Set the decoding rate, in bits per pixel of the full size image
+     * @param rate the decoding rate, or <code>Double.MAX_VALUE</code> to decode every byte (the default)
+     * @see com.github.jpeg2000.J2KReader#setDecodingRate
+     */
+    public void setDecodingRate(double rate) {
+        if (!(rate > 0)) {
+            throw new IllegalArgumentException("Decoding rate must be positive");
+        }
+        this.decodingRate = rate;
+    }
+
+    /**
+     * Return the value set by {@link #setDecodingRate}
+     */
+    public double getDecodingRate() {
+        return decodingRate;
+    }
+
+}
@@ -1,11 +1,15 @@
 package com.github.jpeg2000.imageio;
 
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.EOFException;
 import java.io.IOException;
 import java.util.*;
 
+import javax.imageio.IIOException;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
@@ -15,36 +19,90 @@ import javax.imageio.stream.ImageInputStream;
 
 import com.github.jpeg2000.J2KFile;
 import com.github.jpeg2000.J2KReader;
+import com.github.jpeg2000.SharedCodeStream;
+import com.github.jpeg2000.TileListener;
 
 import jj2000.j2k.io.AbstractRandomAccessIO;
-import jj2000.j2k.io.RandomAccessIO;
+import jj2000.j2k.util.BufferPool;
 
 /**
- * ImageIO compatible reader for JPEG2000 images.
+ * ImageIO compatible reader for JPEG2000 images. Only the headers are read to
+ * report the size, tiling and type of the image. When an image is read, the
+ * source region of the ImageReadParam is decoded from just the tiles and
+ * code-blocks it covers, and the source subsampling is met as far as possible
+ * by decoding at a lower resolution level, so small thumbnails of large images
+ * are cheap to create. A {@link JPEG2000ReadParam} may also limit the number of
+ * quality layers or the decoding rate, for quicker lower quality previews.
+ * <p>
+ * The input is read as it is needed and is not copied, so any caching is done
+ * by the ImageInputStream. If the input is set as seek forward only, the data
+ * before the tiles still to be decoded is discarded from the stream as each tile
+ * is decoded, which keeps only about one row of tiles of a codestream with its
+ * tiles in order, and the image can only be read once.
+ * </p>
  */
 public class JPEG2000Reader extends ImageReader {
 
-    private BufferedImage image;
+    private StreamJ2KRandomAccessIO io;
+    private long codestreamStart;
+    private SharedCodeStream codestream;
+    private J2KReader header;           // used only for the image information, never read
+    private boolean discarded;          // whether image data has been discarded from a forward only input
+    private final BufferPool pool = new BufferPool(32 << 20);   // buffers shared by the reader created for each read
 
     public JPEG2000Reader(ImageReaderSpi imageReaderImpl) {
         super(imageReaderImpl);
     }
 
+    @Override public ImageReadParam getDefaultReadParam() {
+        return new JPEG2000ReadParam();
+    }
+
     @Override public int getNumImages(boolean allowSearch) throws IOException {
         return 1;
     }
 
     @Override public int getWidth(int imageIndex) throws IOException {
-        return getImage().getWidth();
+        return getHeader(imageIndex).getWidth();
     }
 
     @Override public int getHeight(int imageIndex) throws IOException {
-        return getImage().getHeight();
+        return getHeader(imageIndex).getHeight();
     }
 
     @Override public Iterator<ImageTypeSpecifier> getImageTypes(int imageIndex) throws IOException {
-        BufferedImage image = getImage();
-        return Collections.<ImageTypeSpecifier>singleton(new ImageTypeSpecifier(image.getColorModel(), image.getSampleModel())).iterator();
+        ColorModel cm = getColorModel(getHeader(imageIndex));
+        return Collections.<ImageTypeSpecifier>singleton(new ImageTypeSpecifier(cm, cm.createCompatibleSampleModel(1, 1))).iterator();
+    }
+
+    @Override public boolean isRandomAccessEasy(int imageIndex) throws IOException {
+        getHeader(imageIndex);
+        return true;
+    }
+
+    @Override public boolean isImageTiled(int imageIndex) throws IOException {
+        J2KReader header = getHeader(imageIndex);
+        return header.getTileWidth() < header.getWidth() || header.getTileHeight() < header.getHeight();
+    }
+
+    @Override public int getTileWidth(int imageIndex) throws IOException {
+        return getHeader(imageIndex).getTileWidth();
+    }
+
+    @Override public int getTileHeight(int imageIndex) throws IOException {
+        return getHeader(imageIndex).getTileHeight();
+    }
+
+    @Override public int getTileGridXOffset(int imageIndex) throws IOException {
+        return getHeader(imageIndex).getTileGridXOffset();
+    }
+
+    @Override public int getTileGridYOffset(int imageIndex) throws IOException {
+        return getHeader(imageIndex).getTileGridYOffset();
+    }
+
+    @Override public boolean canReadRaster() {
+        return true;
     }
 
     @Override public IIOMetadata getStreamMetadata() throws IOException {
@@ -57,127 +115,245 @@ public class JPEG2000Reader extends ImageReader {
     }
 
     @Override public BufferedImage read(int imageIndex, ImageReadParam param) throws IOException {
-        return getImage();
+        J2KReader header = getHeader(imageIndex);
+        int width = header.getWidth();
+        int height = header.getHeight();
+        BufferedImage image = getDestination(param, getImageTypes(imageIndex), width, height);
+        int[] srcBands = param == null ? null : param.getSourceBands();
+        int[] dstBands = param == null ? null : param.getDestinationBands();
+        checkReadParamBandSettings(param, header.getNumComponents(), image.getSampleModel().getNumBands());
+        Rectangle srcRegion = new Rectangle();
+        Rectangle dstRegion = new Rectangle();
+        computeRegions(param, width, height, image, srcRegion, dstRegion);
+        clearAbortRequest();
+        processImageStarted(imageIndex);
+        if (decode(param, srcRegion, image.getRaster(), dstRegion, srcBands, dstBands)) {
+            processImageComplete();
+        } else {
+            processReadAborted();
+        }
+        return image;
+    }
+
+    /**
+     * Read the source region of the image, subsampled as specified by the param,
+     * into a new Raster. The destination and band settings of the param are ignored,
+     * except that if source bands are specified only those bands are returned.
+     */
+    @Override public Raster readRaster(int imageIndex, ImageReadParam param) throws IOException {
+        J2KReader header = getHeader(imageIndex);
+        Rectangle srcRegion = new Rectangle();
+        Rectangle dstRegion = new Rectangle();
+        computeRegions(param, header.getWidth(), header.getHeight(), null, srcRegion, dstRegion);
+        dstRegion.setLocation(0, 0);
+        WritableRaster raster = getColorModel(header).createCompatibleWritableRaster(dstRegion.width, dstRegion.height);
+        clearAbortRequest();
+        processImageStarted(imageIndex);
+        if (decode(param, srcRegion, raster, dstRegion, null, null)) {
+            processImageComplete();
+        } else {
+            processReadAborted();
+        }
+        int[] srcBands = param == null ? null : param.getSourceBands();
+        return srcBands == null ? raster : raster.createWritableChild(0, 0, raster.getWidth(), raster.getHeight(), 0, 0, srcBands);
+    }
+
+    /**
+     * Read a single tile of the image, which is decoded on its own
+     */
+    @Override public BufferedImage readTile(int imageIndex, int tileX, int tileY) throws IOException {
+        ImageReadParam param = getDefaultReadParam();
+        param.setSourceRegion(getTileRegion(imageIndex, tileX, tileY));
+        return read(imageIndex, param);
+    }
+
+    @Override public Raster readTileRaster(int imageIndex, int tileX, int tileY) throws IOException {
+        ImageReadParam param = getDefaultReadParam();
+        param.setSourceRegion(getTileRegion(imageIndex, tileX, tileY));
+        return readRaster(imageIndex, param);
     }
 
     @Override public void setInput(Object input, boolean seekForwardOnly, boolean ignoreMetadata) {
         super.setInput(input, seekForwardOnly, ignoreMetadata);
-        image = null;
+        codestream = null;
+        header = null;
+        io = null;
+        discarded = false;
     }
 
-    private BufferedImage getImage() throws IOException {
-        if (image == null) {
-            ImageInputStream in = (ImageInputStream) getInput();
-            J2KFile jfile = new J2KFile();
-            RandomAccessIO io;
-            if (in.length() > 0) {
-                io = new FixedJ2KRandomAccessIO(in);
-            } else {
-                io = new VariableJ2KRandomAccessIO(in);
-            }
-            jfile.read(io);
-            J2KReader reader = new J2KReader(jfile);
-            image = reader.getBufferedImage();
-            reader.close();
-        }
-        return image;
+    @Override public void reset() {
+        super.reset();
+        codestream = null;
+        header = null;
+        io = null;
+        discarded = false;
+    }
+
+    @Override public void dispose() {
+        pool.clear();
+        codestream = null;
+        header = null;
+        io = null;
+        discarded = false;
     }
 
     /**
-     * AbstractRandomAccessIO that proxies to an unknown-length ImageInputStream,
-     * which reads the source stream into memory
+     * Return the area of the image covered by the specified tile
      */
-    private static class VariableJ2KRandomAccessIO extends AbstractRandomAccessIO {
-        private byte[] buffer;
-        private int pos;
-        
-        VariableJ2KRandomAccessIO(ImageInputStream in) throws IOException {
-            ByteArrayOutputStream bout = new ByteArrayOutputStream(32768);
-            byte[] buffer = new byte[32768];
-            int len = 0;
-            while (len >= 0) {
-                len = in.read(buffer);
-                if (len > 0) {
-                    bout.write(buffer, 0, len);
-                }
-            }
-            this.buffer = bout.toByteArray();
+    private Rectangle getTileRegion(int imageIndex, int tileX, int tileY) throws IOException {
+        J2KReader header = getHeader(imageIndex);
+        Rectangle tile = new Rectangle(header.getTileGridXOffset() + tileX * header.getTileWidth(), header.getTileGridYOffset() + tileY * header.getTileHeight(), header.getTileWidth(), header.getTileHeight());
+        tile = tile.intersection(new Rectangle(0, 0, header.getWidth(), header.getHeight()));
+        if (tileX < 0 || tileY < 0 || tile.isEmpty()) {
+            throw new IllegalArgumentException("No tile " + tileX + "," + tileY);
         }
+        return tile;
+    }
 
-        @Override public void close() throws IOException {
-            buffer = null;
+    /**
+     * Open the codestream if it's not already open, and return the reader
+     * used for the image information.
+     */
+    private J2KReader getHeader(int imageIndex) throws IOException {
+        if (imageIndex != 0) {
+            throw new IndexOutOfBoundsException("Image " + imageIndex);
         }
-
-        @Override public int getPos() throws IOException {
-            if (buffer == null) {
-                throw new IOException("Closed");
+        if (header == null) {
+            ImageInputStream in = (ImageInputStream) getInput();
+            if (in == null) {
+                throw new IllegalStateException("No input");
             }
-            return pos;
+            J2KFile jfile = new J2KFile();
+            io = new StreamJ2KRandomAccessIO(in);
+            jfile.read(io);
+            // Find where the codestream starts in the stream
+            jfile.getCodeStreamBox().getRandomAccessIO();
+            codestreamStart = io.getLongPos();
+            codestream = new SharedCodeStream(jfile);
+            header = new J2KReader(codestream);
         }
+        return header;
+    }
 
-        @Override public int length() throws IOException {
-            if (buffer == null) {
-                throw new IOException("Closed");
-            }
-            return buffer.length;
+    private static ColorModel getColorModel(J2KReader reader) throws IOException {
+        try {
+            return reader.getColorModel();
+        } catch (IllegalStateException e) {
+            throw new IIOException(e.getMessage(), e);
         }
+    }
 
-        @Override public void seek(int off) throws IOException {
-            // RandomAccessIO requires EOF if we seek beyond stream bounds; ImageInputStream does not
-            if (buffer == null) {
-                throw new IOException("Closed");
-            }
-            if (pos > buffer.length || pos < 0) {
-                throw new EOFException();
-            }
-            pos = off;
+    /**
+     * Decode the source region of the image into the destination region of
+     * the raster. The image is decoded at the lowest resolution level that is
+     * no smaller than the subsampled region and not reduced by more than the
+     * subsampling, and if that doesn't meet the subsampling exactly the nearest
+     * decoded pixels are copied to the raster.
+     * @return false if the read was aborted
+     */
+    private boolean decode(ImageReadParam param, Rectangle srcRegion, WritableRaster raster, Rectangle dstRegion, int[] srcBands, int[] dstBands) throws IOException {
+        if (dstRegion.isEmpty()) {
+            return true;
         }
-
-        @Override public int read() throws IOException {
-            // RandomAccessIO requires an EOFException rather than a -1 return value
-            if (buffer == null) {
-                throw new IOException("Closed");
+        if (discarded) {
+            throw new IIOException("Image data has been discarded from the seek forward only input");
+        }
+        final boolean forward = isSeekForwardOnly();
+        int sx = param == null ? 1 : param.getSourceXSubsampling();
+        int sy = param == null ? 1 : param.getSourceYSubsampling();
+        int div = 1;
+        while (div * 2 <= sx && div * 2 <= sy) {
+            div *= 2;
+        }
+        final J2KReader reader = new J2KReader(codestream);
+        discarded = forward;
+        try {
+            reader.setBufferPool(pool);
+            if (param instanceof JPEG2000ReadParam) {
+                reader.setMaxLayers(((JPEG2000ReadParam)param).getMaxLayers());
+                reader.setDecodingRate(((JPEG2000ReadParam)param).getDecodingRate());
             }
-            if (pos >= buffer.length || pos < 0) {
-                throw new EOFException();
+            reader.setSourceRegion(srcRegion);
+            reader.setTargetSize((srcRegion.width + div - 1) / div, (srcRegion.height + div - 1) / div);
+            while (reader.getScaleFactor() > div) {
+                // The region is rounded outwards at each level, so a small or
+                // odd aligned region may still fit a level reduced too far
+                reader.setTargetSize(reader.getWidth() + 1, reader.getHeight() + 1);
             }
-            return buffer[pos++] & 0xFF;
-        }
-
-        @Override public void readFully(byte[] b, int off, int len) throws IOException {
-            if (buffer == null) {
-                throw new IOException("Closed");
-            } else if (len > buffer.length - pos) {
-                throw new EOFException("Requested " + len + " but " + (buffer.length - pos) + " remaining");
+            div = reader.getScaleFactor();
+            final int w = reader.getWidth();
+            final int h = reader.getHeight();
+            final float total = (float)w * h;
+            TileListener listener = new TileListener() {
+                float done;
+                public void tileDecoded(Rectangle rect) throws IOException {
+                    done += (float)rect.width * rect.height;
+                    processImageProgress(done * 100 / total);
+                    if (forward) {
+                        // Data before the tiles still to be decoded is no longer needed
+                        long off = reader.getDiscardableOffset();
+                        io.discardBefore(off == Long.MAX_VALUE ? off : codestreamStart + off);
+                    }
+                    if (abortRequested()) {
+                        throw new AbortException();
+                    }
+                }
+            };
+            if (sx == div && sy == div && w == dstRegion.width && h == dstRegion.height && srcBands == null && dstBands == null) {
+                // The decoded region is exactly the destination region
+                reader.readRaster(raster.createWritableChild(dstRegion.x, dstRegion.y, w, h, 0, 0, null), listener);
+            } else {
+                WritableRaster src = getColorModel(reader).createCompatibleWritableRaster(w, h);
+                reader.readRaster(src, listener);
+                int numb = srcBands == null ? src.getNumBands() : srcBands.length;
+                int[] pixel = new int[src.getNumBands()];
+                int x0 = srcRegion.x / div;
+                int y0 = srcRegion.y / div;
+                for (int dy=0;dy<dstRegion.height;dy++) {
+                    int y = Math.min(h - 1, (srcRegion.y + dy * sy) / div - y0);
+                    for (int dx=0;dx<dstRegion.width;dx++) {
+                        int x = Math.min(w - 1, (srcRegion.x + dx * sx) / div - x0);
+                        src.getPixel(x, y, pixel);
+                        for (int b=0;b<numb;b++) {
+                            raster.setSample(dstRegion.x + dx, dstRegion.y + dy, dstBands == null ? b : dstBands[b], pixel[srcBands == null ? b : srcBands[b]]);
+                        }
+                    }
+                }
+            }
+            return true;
+        } catch (AbortException e) {
+            return false;
+        } finally {
+            reader.close();
+            if (forward) {
+                io.discardBefore(Long.MAX_VALUE);
             }
-            System.arraycopy(buffer, pos, b, off, len);
-            pos += len;
-        }
-
-        @Override public void write(int b) throws IOException {
-            throw new UnsupportedOperationException();
         }
+    }
 
-        @Override public void flush() throws IOException {
-        }
-        
+    /**
+     * Thrown from the TileListener to stop decoding when the read is aborted
+     */
+    private static class AbortException extends IOException {
+        private static final long serialVersionUID = 1L;
     }
 
     /**
-     * AbstractRandomAccessIO that proxies to a fixed-length ImageInputStream,
-     * so doesn't have to read anything into memory
+     * AbstractRandomAccessIO that proxies to an ImageInputStream, so doesn't
+     * read anything into memory itself: bytes are read from the stream as they
+     * are needed and any caching is left to the stream. If the length of the
+     * stream is unknown it is found when first needed by reading to the end.
      */
-    private static class FixedJ2KRandomAccessIO extends AbstractRandomAccessIO {
+    private static class StreamJ2KRandomAccessIO extends AbstractRandomAccessIO {
         private final ImageInputStream in;
         private final long start;
+        private long length;
         private boolean closed;
-        
-        FixedJ2KRandomAccessIO(ImageInputStream in) throws IOException {
+
+        StreamJ2KRandomAccessIO(ImageInputStream in) throws IOException {
             this.in = in;
             this.start = in.getStreamPosition();
-            if (in.length() - this.start > Integer.MAX_VALUE) {
-                 throw new IllegalArgumentException("Can't support stream of " + in.length() + " bytes");
-            }
+            this.length = in.length() < 0 ? -1 : in.length() - start;
         }
 
         @Override public void close() throws IOException {
@@ -186,26 +362,48 @@ public class JPEG2000Reader extends ImageReader {
         }
 
         @Override public int getPos() throws IOException {
+            return toIntOffset(getLongPos());
+        }
+
+        @Override public long getLongPos() throws IOException {
             if (closed) {
                 throw new IOException("Closed");
             }
-            return (int)(in.getStreamPosition() - start);
+            return in.getStreamPosition() - start;
         }
 
         @Override public int length() throws IOException {
+            return toIntOffset(longLength());
+        }
+
+        @Override public long longLength() throws IOException {
             if (closed) {
                 throw new IOException("Closed");
             }
-            return (int)(in.length() - start);
+            if (length < 0) {
+                long pos = in.getStreamPosition();
+                byte[] buf = new byte[8192];
+                while (in.read(buf) >= 0);
+                length = in.getStreamPosition() - start;
+                in.seek(pos);
+            }
+            return length;
         }
 
         @Override public void seek(int off) throws IOException {
+            seek((long)off);
+        }
+
+        @Override public void seek(long off) throws IOException {
             // RandomAccessIO requires EOF if we seek beyond stream bounds; ImageInputStream does not
             if (closed) {
                 throw new IOException("Closed");
             }
-            if (off < 0 || off > length()) {
-                throw new EOFException("off="+off+" len="+length());
+            if (off < 0 || (length >= 0 && off > length)) {
+                throw new EOFException("off="+off+" len="+length);
+            }
+            if (start + off < in.getFlushedPosition()) {
+                throw new IOException("Data at " + off + " has been discarded");
             }
             in.seek(start + off);
         }
@@ -234,6 +432,20 @@ public class JPEG2000Reader extends ImageReader {
 
         @Override public void flush() throws IOException {
         }
+
+        /**
+         * Discard the data before the specified offset, or as much of it
+         * as has been read, so the stream need no longer cache it
+         */
+        void discardBefore(long off) throws IOException {
+            long pos = in.getStreamPosition();
+            if (off < pos - start) {
+                pos = start + off;
+            }
+            if (pos > in.getFlushedPosition()) {
+                in.flushBefore(pos);
+            }
+        }
     }
     
     /*
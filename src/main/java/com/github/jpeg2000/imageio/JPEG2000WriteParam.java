@@ -0,0 +1,183 @@
+package com.github.jpeg2000.imageio;
+
+import java.util.Locale;
+
+import javax.imageio.ImageWriteParam;
+
+/**
+ * The ImageWriteParam for the {@link JPEG2000Writer}. As well as the standard
+ * tiling and compression settings, this sets the progression order of the
+ * codestream and the number of threads used to encode it.
+ * <p>
+ * Tiles must start at the top left of the image, but need not be square. If
+ * tiling is disabled the image is written as a single tile, otherwise if it's
+ * not set explicitly tiles of 256x256 are used. Images are lossless unless
+ * the compression mode is <code>MODE_EXPLICIT</code>, when the compression
+ * quality is the inverse of the compression ratio: a quality of 1 is lossless,
+ * a quality of 0.1 compresses the image to one tenth of its original size.
+ * </p>
+ *
+ * @author http://bfo.com
+ */
+public class JPEG2000WriteParam extends ImageWriteParam {
+
+    private static final String[] ORDERS = { "LRCP", "RLCP", "RPCL", "PCRL", "CPRL" };
+    private static final String[] NAMES = { "layer", "res", "res-pos", "pos-comp", "comp-pos" };
+
+    private String progressionOrder;
+    private boolean reversible;
+    private int threads;
+    private boolean streaming;
+    private boolean pointerMarkers;
+
+    /**
+     * Create a new JPEG2000WriteParam
+     * @param locale the Locale for the compression type descriptions, or null
+     */
+    public JPEG2000WriteParam(Locale locale) {
+        super(locale);
+        canWriteTiles = true;
+        canWriteCompressed = true;
+        compressionTypes = new String[] { "JPEG2000" };
+        compressionType = compressionTypes[0];
+        progressionOrder = "RLCP";
+        threads = 1;
+    }
+
+    @Override public boolean isCompressionLossless() {
+        return getCompressionRatio() == 1;
+    }
+
+    @Override public void unsetCompression() {
+        super.unsetCompression();
+        compressionType = compressionTypes[0];
+    }
+
+    /**
+     * Set the compression ratio, which sets the compression mode
+     * to <code>MODE_EXPLICIT</code> and the compression quality to
+     * <code>1 / ratio</code>.
+     * @param ratio the compression ratio, 1 for lossless
+     */
+    public void setCompressionRatio(float ratio) {
+        if (!(ratio >= 1)) {
+            throw new IllegalArgumentException("Ratio must be at least 1");
+        }
+        setCompressionMode(MODE_EXPLICIT);
+        setCompressionQuality(1 / ratio);
+    }
+
+    /**
+     * Return the compression ratio, which is 1 (lossless) unless the
+     * compression mode is <code>MODE_EXPLICIT</code>.
+     */
+    public float getCompressionRatio() {
+        if (getCompressionMode() == MODE_EXPLICIT) {
+            float quality = getCompressionQuality();
+            return quality >= 1 ? 1 : 1 / Math.max(quality, 0.0001f);
+        }
+        return 1;
+    }
+
+    /**
+     * Set whether lossy images are encoded with the reversible wavelet filter.
+     * The irreversible one, the default, tends to give slightly better results.
+     * Lossless images always use the reversible filter.
+     * @param reversible whether to use the reversible filter
+     */
+    public void setReversible(boolean reversible) {
+        this.reversible = reversible;
+    }
+
+    /**
+     * Return the value set by {@link #setReversible}
+     */
+    public boolean isReversible() {
+        return reversible;
+    }
+
+    /**
+     * Set the progression order of the codestream, which is one of "LRCP",
+     * "RLCP", "RPCL", "PCRL" or "CPRL". The default is "RLCP", so the image
+     * can be decoded at a lower resolution from the start of the data.
+     * @param order the progression order
+     */
+    public void setProgressionOrder(String order) {
+        toProgressionName(order);
+        progressionOrder = order;
+    }
+
+    /**
+     * Return the progression order of the codestream
+     */
+    public String getProgressionOrder() {
+        return progressionOrder;
+    }
+
+    /**
+     * Set the number of threads used to encode the tiles of the image.
+     * @param threads the number of threads, 1 to encode on the calling thread (the default)
+     * @see com.github.jpeg2000.J2KWriter#setExecutor
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Return the number of threads used to encode the image
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Set whether to write each tile as soon as it has been encoded, which
+     * bounds the memory used for the compressed data of large images
+     * @param streaming true to allocate and write one tile at a time
+     * @see com.github.jpeg2000.J2KWriter#setStreaming
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Return the value set by {@link #setStreaming}
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Set whether to write the length of every tile and packet in the
+     * codestream, so a reader can seek straight to them
+     * @param pointerMarkers true to write TLM and PLT marker segments
+     * @see com.github.jpeg2000.J2KWriter#setPointerMarkers
+     */
+    public void setPointerMarkers(boolean pointerMarkers) {
+        this.pointerMarkers = pointerMarkers;
+    }
+
+    /**
+     * Return the value set by {@link #setPointerMarkers}
+     */
+    public boolean isPointerMarkers() {
+        return pointerMarkers;
+    }
+
+    /**
+     * Return the name of the progression order used by
+     * {@link com.github.jpeg2000.SimpleJ2KWriteParam#setProgressionName}
+     */
+    static String toProgressionName(String order) {
+        for (int i=0;i<ORDERS.length;i++) {
+            if (ORDERS[i].equalsIgnoreCase(order)) {
+                return NAMES[i];
+            }
+        }
+        throw new IllegalArgumentException("Unknown progression order " + order);
+    }
+
+}
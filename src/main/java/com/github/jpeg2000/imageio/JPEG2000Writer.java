@@ -0,0 +1,746 @@
+package com.github.jpeg2000.imageio;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.spi.ImageWriterSpi;
+import javax.imageio.stream.ImageOutputStream;
+
+import com.github.jpeg2000.J2KWriter;
+import com.github.jpeg2000.SimpleJ2KWriteParam;
+
+import jj2000.j2k.image.DataBlk;
+import jj2000.j2k.io.AbstractDataSource;
+
+/**
+ * ImageIO compatible writer for JPEG2000 images, which writes a JP2 file
+ * with the {@link J2KWriter}. The tiling, compression ratio, progression
+ * order and number of threads are set with a {@link JPEG2000WriteParam}.
+ * Metadata and thumbnails are ignored. Images with an alpha channel can't
+ * be written, unless the source bands of the param select only the color bands.
+ * <p>
+ * A BufferedImage is encoded straight from its DataBuffer. Other images and
+ * Rasters, and images written with source subsampling or source bands, are
+ * passed to the encoder one tile at a time. Large images can also be written
+ * in parts: call <code>prepareWriteEmpty</code>, then supply the pixels with
+ * <code>replacePixels</code>, placing each part with the destination offset
+ * of the param, and finish with <code>endWriteEmpty</code>. The image is
+ * encoded on another thread as the parts are supplied, and each tile is
+ * encoded as soon as all its pixels are known and then released, so if the
+ * parts are supplied from top to bottom only about one row of tiles is kept
+ * in memory. Pixels can't be replaced once their tile has been encoded, and
+ * any not supplied by the end are written as zero.
+ * </p>
+ *
+ * @author http://bfo.com
+ */
+public class JPEG2000Writer extends ImageWriter {
+
+    private static final int DEFAULT_TILESIZE = 256;
+
+    private EmptyWrite empty;           // the write started by prepareWriteEmpty, if any
+    private Rectangle replaceRegion;    // the region set by prepareReplacePixels, if any
+
+    public JPEG2000Writer(ImageWriterSpi imageWriterImpl) {
+        super(imageWriterImpl);
+    }
+
+    @Override public ImageWriteParam getDefaultWriteParam() {
+        return new JPEG2000WriteParam(getLocale());
+    }
+
+    @Override public IIOMetadata getDefaultStreamMetadata(ImageWriteParam param) {
+        return null;
+    }
+
+    @Override public IIOMetadata getDefaultImageMetadata(ImageTypeSpecifier imageType, ImageWriteParam param) {
+        return null;
+    }
+
+    @Override public IIOMetadata convertStreamMetadata(IIOMetadata inData, ImageWriteParam param) {
+        return null;
+    }
+
+    @Override public IIOMetadata convertImageMetadata(IIOMetadata inData, ImageTypeSpecifier imageType, ImageWriteParam param) {
+        return null;
+    }
+
+    @Override public boolean canWriteRasters() {
+        return true;
+    }
+
+    @Override public boolean canWriteEmpty() throws IOException {
+        getStream();
+        return true;
+    }
+
+    @Override public boolean canReplacePixels(int imageIndex) throws IOException {
+        getStream();
+        return empty != null && imageIndex == 0;
+    }
+
+    @Override public void write(IIOMetadata streamMetadata, IIOImage image, ImageWriteParam param) throws IOException {
+        getStream();
+        if (image == null) {
+            throw new IllegalArgumentException("No image");
+        }
+        if (empty != null) {
+            throw new IllegalStateException("Empty image being written");
+        }
+        int[] bands = param == null ? null : param.getSourceBands();
+        RenderedImage img = image.getRenderedImage();
+        if (img != null && img.getColorModel().hasAlpha() && bands == null) {
+            throw new IIOException("Can't write an image with an alpha channel");
+        }
+        clearAbortRequest();
+        processImageStarted(0);
+        boolean subsampled = param != null && (param.getSourceXSubsampling() != 1 || param.getSourceYSubsampling() != 1 || param.getSubsamplingXOffset() != 0 || param.getSubsamplingYOffset() != 0);
+        Raster raster = image.getRaster();
+        if (img != null && img.getColorModel() instanceof IndexColorModel) {
+            // Write palette images as RGB
+            img = ((IndexColorModel)img.getColorModel()).convertToIntDiscrete(getBufferedImage(img).getRaster(), false);
+        }
+        if (abortRequested()) {
+            processWriteAborted();
+            return;
+        }
+        if (img instanceof BufferedImage && bands == null && !subsampled) {
+            // Encode straight from the image
+            BufferedImage bimg = (BufferedImage)img;
+            Rectangle region = getSourceRegion(param, new Rectangle(0, 0, bimg.getWidth(), bimg.getHeight()));
+            if (region.width != bimg.getWidth() || region.height != bimg.getHeight()) {
+                bimg = bimg.getSubimage(region.x, region.y, region.width, region.height);
+            }
+            int[] tilesize = getTileSize(param, region.width, region.height);
+            encode(AbstractDataSource.newInstance(bimg, tilesize[0], tilesize[1]), bimg.getColorModel().getColorSpace(), param);
+        } else {
+            // Pass the image to the encoder one tile at a time
+            Rectangle bounds = raster != null ? raster.getBounds() : new Rectangle(img.getMinX(), img.getMinY(), img.getWidth(), img.getHeight());
+            Rectangle region = getSourceRegion(param, bounds);
+            int width = getSubsampledSize(region.width, param == null ? 1 : param.getSourceXSubsampling(), param == null ? 0 : param.getSubsamplingXOffset());
+            int height = getSubsampledSize(region.height, param == null ? 1 : param.getSourceYSubsampling(), param == null ? 0 : param.getSubsamplingYOffset());
+            if (width < 1 || height < 1) {
+                throw new IllegalArgumentException("Source region is empty");
+            }
+            SampleModel sm = raster != null ? raster.getSampleModel() : img.getSampleModel();
+            int numc = bands != null ? bands.length : raster != null ? (sm.getNumBands() >= 3 ? 3 : 1) : img.getColorModel().getNumColorComponents();
+            ColorSpace cs;
+            if (img != null && numc == img.getColorModel().getNumColorComponents()) {
+                cs = img.getColorModel().getColorSpace();
+            } else if (numc == 1 || numc == 3) {
+                cs = ColorSpace.getInstance(numc == 1 ? ColorSpace.CS_GRAY : ColorSpace.CS_sRGB);
+            } else {
+                throw new IIOException("Can't write " + numc + " bands without a ColorModel");
+            }
+            int bpc = 0;
+            for (int i=0;i<numc;i++) {
+                bpc = Math.max(bpc, sm.getSampleSize(bands == null ? i : bands[i]));
+            }
+            EmptyWrite write = new EmptyWrite(width, height, numc, bpc, sm.getDataType() == DataBuffer.TYPE_SHORT, cs, param);
+            Rectangle all = new Rectangle(0, 0, width, height);
+            try {
+                if (raster != null) {
+                    write.supply(raster, bounds, param, new Point(), all);
+                } else {
+                    for (int ty=img.getMinTileY();ty<img.getMinTileY()+img.getNumYTiles();ty++) {
+                        for (int tx=img.getMinTileX();tx<img.getMinTileX()+img.getNumXTiles();tx++) {
+                            Rectangle tile = new Rectangle(img.getTileGridXOffset() + tx * img.getTileWidth(), img.getTileGridYOffset() + ty * img.getTileHeight(), img.getTileWidth(), img.getTileHeight());
+                            if (tile.intersects(region)) {
+                                write.supply(img.getTile(tx, ty), bounds, param, new Point(), all);
+                            }
+                        }
+                        if (abortRequested()) {
+                            write.cancel();
+                            processWriteAborted();
+                            return;
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                write.cancel();
+                throw e;
+            }
+            write.finish();
+        }
+        processImageComplete();
+    }
+
+    @Override public void prepareWriteEmpty(IIOMetadata streamMetadata, ImageTypeSpecifier imageType, int width, int height, IIOMetadata imageMetadata, List<? extends BufferedImage> thumbnails, ImageWriteParam param) throws IOException {
+        getStream();
+        if (empty != null) {
+            throw new IllegalStateException("Empty image already being written");
+        }
+        if (imageType == null) {
+            throw new IllegalArgumentException("No image type");
+        }
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Invalid size " + width + "x" + height);
+        }
+        ColorModel cm = imageType.getColorModel();
+        if (cm instanceof IndexColorModel) {
+            throw new IIOException("Palette images can't be written in parts");
+        }
+        if (cm.hasAlpha()) {
+            throw new IIOException("Can't write an image with an alpha channel");
+        }
+        int numc = cm.getNumColorComponents();
+        int bpc = 0;
+        for (int i=0;i<numc;i++) {
+            bpc = Math.max(bpc, cm.getComponentSize(i));
+        }
+        clearAbortRequest();
+        processImageStarted(0);
+        empty = new EmptyWrite(width, height, numc, bpc, imageType.getSampleModel().getDataType() == DataBuffer.TYPE_SHORT, cm.getColorSpace(), param);
+    }
+
+    @Override public void endWriteEmpty() throws IOException {
+        if (empty == null) {
+            throw new IllegalStateException("No empty image being written");
+        }
+        if (replaceRegion != null) {
+            throw new IllegalStateException("No call to endReplacePixels");
+        }
+        EmptyWrite write = empty;
+        empty = null;
+        if (abortRequested()) {
+            write.cancel();
+            processWriteAborted();
+        } else {
+            write.finish();
+            processImageComplete();
+        }
+    }
+
+    @Override public void prepareReplacePixels(int imageIndex, Rectangle region) throws IOException {
+        if (!canReplacePixels(imageIndex)) {
+            throw new UnsupportedOperationException("Pixels can only be replaced in an empty image being written");
+        }
+        if (replaceRegion != null) {
+            throw new IllegalStateException("No call to endReplacePixels");
+        }
+        if (region == null || region.isEmpty()) {
+            throw new IllegalArgumentException("Invalid region " + region);
+        }
+        replaceRegion = region.intersection(new Rectangle(0, 0, empty.source.getImgWidth(), empty.source.getImgHeight()));
+    }
+
+    /**
+     * Supply the pixels of an image for the region of the empty image being
+     * written. The source region, subsampling and bands of the param select the
+     * pixels from the image, and the destination offset of the param is where
+     * they are placed in the empty image.
+     */
+    @Override public void replacePixels(RenderedImage image, ImageWriteParam param) throws IOException {
+        if (replaceRegion == null) {
+            throw new IllegalStateException("No call to prepareReplacePixels");
+        }
+        Rectangle bounds = new Rectangle(image.getMinX(), image.getMinY(), image.getWidth(), image.getHeight());
+        Rectangle region = getSourceRegion(param, bounds);
+        for (int ty=image.getMinTileY();ty<image.getMinTileY()+image.getNumYTiles();ty++) {
+            for (int tx=image.getMinTileX();tx<image.getMinTileX()+image.getNumXTiles();tx++) {
+                Rectangle tile = new Rectangle(image.getTileGridXOffset() + tx * image.getTileWidth(), image.getTileGridYOffset() + ty * image.getTileHeight(), image.getTileWidth(), image.getTileHeight());
+                if (tile.intersects(region)) {
+                    empty.supply(image.getTile(tx, ty), bounds, param, param == null ? new Point() : param.getDestinationOffset(), replaceRegion);
+                }
+            }
+        }
+    }
+
+    /**
+     * Supply the pixels of a Raster for the region of the empty image being
+     * written, as for {@link #replacePixels(RenderedImage, ImageWriteParam)}
+     */
+    @Override public void replacePixels(Raster raster, ImageWriteParam param) throws IOException {
+        if (replaceRegion == null) {
+            throw new IllegalStateException("No call to prepareReplacePixels");
+        }
+        empty.supply(raster, raster.getBounds(), param, param == null ? new Point() : param.getDestinationOffset(), replaceRegion);
+    }
+
+    @Override public void endReplacePixels() throws IOException {
+        if (replaceRegion == null) {
+            throw new IllegalStateException("No call to prepareReplacePixels");
+        }
+        replaceRegion = null;
+    }
+
+    @Override public void setOutput(Object output) {
+        cancel();
+        super.setOutput(output);
+    }
+
+    @Override public void dispose() {
+        cancel();
+    }
+
+    /**
+     * Stop any empty image being written
+     */
+    private void cancel() {
+        if (empty != null) {
+            empty.cancel();
+            empty = null;
+        }
+        replaceRegion = null;
+    }
+
+    private ImageOutputStream getStream() {
+        ImageOutputStream out = (ImageOutputStream)getOutput();
+        if (out == null) {
+            throw new IllegalStateException("No output");
+        }
+        return out;
+    }
+
+    /**
+     * Encode the image from the specified source to the output
+     */
+    private void encode(AbstractDataSource source, ColorSpace cs, ImageWriteParam param) throws IOException {
+        JPEG2000WriteParam jparam = param instanceof JPEG2000WriteParam ? (JPEG2000WriteParam)param : null;
+        float ratio = 1;
+        if (jparam != null) {
+            ratio = jparam.getCompressionRatio();
+        } else if (param != null && param.canWriteCompressed() && param.getCompressionMode() == ImageWriteParam.MODE_EXPLICIT) {
+            ratio = 1 / Math.max(param.getCompressionQuality(), 0.0001f);
+        }
+        SimpleJ2KWriteParam wparam = new SimpleJ2KWriteParam(source.getNumComps(), source.getNumTiles());
+        wparam.setProgressionName(JPEG2000WriteParam.toProgressionName(jparam == null ? "RLCP" : jparam.getProgressionOrder()));
+        wparam.setCompression(Math.max(1, ratio), jparam != null && jparam.isReversible());
+        J2KWriter writer = new J2KWriter();
+        writer.setParams(wparam);
+        writer.setSource(source);
+        writer.setColorSpace(cs);
+        writer.setStreaming(jparam != null && jparam.isStreaming());
+        writer.setPointerMarkers(jparam != null && jparam.isPointerMarkers());
+        int threads = getThreads(param, source.getNumTiles());
+        ExecutorService executor = null;
+        if (threads > 1) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "JPEG2000Writer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            writer.setExecutor(executor, threads);
+        }
+        final ImageOutputStream out = getStream();
+        try {
+            writer.write(new OutputStream() {
+                @Override public void write(int b) throws IOException {
+                    out.write(b);
+                }
+                @Override public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+            });
+            out.flush();
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Return the width and height of the tiles to write an image of the
+     * specified size with
+     */
+    private static int[] getTileSize(ImageWriteParam param, int width, int height) {
+        if (param != null && param.canWriteTiles()) {
+            if (param.getTilingMode() == ImageWriteParam.MODE_EXPLICIT) {
+                return new int[] { param.getTileWidth(), param.getTileHeight() };
+            } else if (param.getTilingMode() == ImageWriteParam.MODE_DISABLED) {
+                return new int[] { width, height };
+            }
+        }
+        return new int[] { DEFAULT_TILESIZE, DEFAULT_TILESIZE };
+    }
+
+    /**
+     * Return the number of threads to encode an image with the specified
+     * number of tiles with
+     */
+    private static int getThreads(ImageWriteParam param, int numtiles) {
+        return param instanceof JPEG2000WriteParam ? Math.min(((JPEG2000WriteParam)param).getThreads(), numtiles) : 1;
+    }
+
+    /**
+     * Return the source region of the param within the specified bounds
+     */
+    private static Rectangle getSourceRegion(ImageWriteParam param, Rectangle bounds) {
+        Rectangle region = param == null ? null : param.getSourceRegion();
+        return region == null ? bounds : region.intersection(bounds);
+    }
+
+    /**
+     * Return the number of pixels left from a length of source pixels by subsampling
+     */
+    private static int getSubsampledSize(int length, int subsampling, int offset) {
+        return Math.max(0, (length - offset + subsampling - 1) / subsampling);
+    }
+
+    /**
+     * Return the RenderedImage as a BufferedImage, copying it if necessary
+     */
+    private static BufferedImage getBufferedImage(RenderedImage img) {
+        if (img instanceof BufferedImage) {
+            return (BufferedImage)img;
+        }
+        ColorModel cm = img.getColorModel();
+        WritableRaster raster = cm.createCompatibleWritableRaster(img.getWidth(), img.getHeight());
+        img.copyData(raster.createWritableTranslatedChild(img.getMinX(), img.getMinY()));
+        return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * An image being encoded on another thread from pixels supplied in parts
+     */
+    private class EmptyWrite implements Runnable {
+        final TileSource source;
+        final ColorSpace cs;
+        final ImageWriteParam param;
+        final Thread thread;
+        volatile Throwable failure;
+        private int[] row;
+
+        EmptyWrite(int width, int height, int numc, int bpc, boolean signed, ColorSpace cs, ImageWriteParam param) {
+            int[] tilesize = getTileSize(param, width, height);
+            int numtiles = ((width + tilesize[0] - 1) / tilesize[0]) * ((height + tilesize[1] - 1) / tilesize[1]);
+            this.source = new TileSource(width, height, numc, bpc, signed, tilesize[0], tilesize[1], getThreads(param, numtiles));
+            this.cs = cs;
+            this.param = param;
+            thread = new Thread(this, "JPEG2000Writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void run() {
+            try {
+                encode(source, cs, param);
+            } catch (Throwable e) {
+                failure = e;
+                source.cancel();
+            }
+        }
+
+        /**
+         * Copy the pixels of the Raster to the image
+         * @param raster the Raster, which may be only part of the source image
+         * @param bounds the bounds of the source image
+         * @param param the param with the source region, subsampling and bands, or null
+         * @param offset the position in this image of the first source pixel
+         * @param clip the region of this image to copy the pixels to
+         */
+        void supply(Raster raster, Rectangle bounds, ImageWriteParam param, Point offset, Rectangle clip) throws IOException {
+            checkFailure();
+            int numc = source.getNumComps();
+            int[] bands = param == null ? null : param.getSourceBands();
+            if (bands == null) {
+                if (raster.getNumBands() < numc) {
+                    throw new IllegalArgumentException("Raster has " + raster.getNumBands() + " bands, need " + numc);
+                }
+                bands = new int[numc];
+                for (int i=0;i<numc;i++) {
+                    bands[i] = i;
+                }
+            } else if (bands.length != numc) {
+                throw new IllegalArgumentException("Source bands select " + bands.length + " bands, need " + numc);
+            }
+            Rectangle region = getSourceRegion(param, bounds);
+            int sx = param == null ? 1 : param.getSourceXSubsampling();
+            int sy = param == null ? 1 : param.getSourceYSubsampling();
+            int x0 = region.x + (param == null ? 0 : param.getSubsamplingXOffset());
+            int y0 = region.y + (param == null ? 0 : param.getSubsamplingYOffset());
+            Rectangle dst = new Rectangle(offset.x, offset.y, getSubsampledSize(region.width, sx, x0 - region.x), getSubsampledSize(region.height, sy, y0 - region.y));
+            dst = dst.intersection(clip);
+            // Restrict to the pixels in this Raster
+            Rectangle available = raster.getBounds().intersection(region);
+            if (dst.isEmpty() || available.isEmpty()) {
+                return;
+            }
+            int i0 = Math.max(dst.x - offset.x, ceilDiv(available.x - x0, sx));
+            int i1 = Math.min(dst.x + dst.width - offset.x, Math.floorDiv(available.x + available.width - 1 - x0, sx) + 1);
+            int j0 = Math.max(dst.y - offset.y, ceilDiv(available.y - y0, sy));
+            int j1 = Math.min(dst.y + dst.height - offset.y, Math.floorDiv(available.y + available.height - 1 - y0, sy) + 1);
+            if (i0 >= i1 || j0 >= j1) {
+                return;
+            }
+            Raster src = raster.createChild(raster.getMinX(), raster.getMinY(), raster.getWidth(), raster.getHeight(), raster.getMinX(), raster.getMinY(), bands);
+            int span = (i1 - i0 - 1) * sx + 1;
+            for (int j=j0;j<j1;j++) {
+                row = src.getPixels(x0 + i0 * sx, y0 + j * sy, span, 1, row);
+                try {
+                    source.put(offset.x + i0, offset.y + j, i1 - i0, row, sx * numc);
+                } catch (IllegalStateException e) {
+                    checkFailure();
+                    throw new IIOException(e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Wait for the image to be encoded, with any pixels not supplied as zero
+         */
+        void finish() throws IOException {
+            source.finish();
+            join();
+            checkFailure();
+        }
+
+        /**
+         * Stop encoding the image
+         */
+        void cancel() {
+            source.cancel();
+            join();
+        }
+
+        private void join() {
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void checkFailure() throws IOException {
+            Throwable e = failure;
+            if (e instanceof IOException) {
+                throw (IOException)e;
+            } else if (e != null) {
+                throw new IIOException("Encoding failed", e);
+            }
+        }
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return -Math.floorDiv(-a, b);
+    }
+
+    /**
+     * Thrown to the encoder when the image being written is abandoned
+     */
+    private static class CancelledException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * An AbstractDataSource for an image supplied in parts. Each tile is kept
+     * in its own buffer, and the encoder waits for all the pixels of a tile to
+     * be supplied before reading it. Tiles are read in order, by up to
+     * <code>window</code> encoding chains at once, so when a tile is read the
+     * tiles <code>window</code> or more before it are no longer needed and
+     * their buffers are released. If more than a row of complete tiles is
+     * waiting to be read, pixels are not accepted until the encoder catches up.
+     */
+    private static class TileSource extends AbstractDataSource {
+
+        private final Tile[] tiles;
+        private final int window;
+        private int released;           // the tiles before this have been released
+        private int next;               // the tiles before this have been read
+        private int waiting;            // the number of encoding chains waiting for pixels
+        private boolean finished, cancelled;
+
+        private static class Tile {
+            Object data;
+            BitSet filled;      // the pixels supplied, until complete
+            boolean complete, released;
+        }
+
+        TileSource(int width, int height, int numc, int bpc, boolean signed, int tilewidth, int tileheight, int window) {
+            initialize(width, height, numc, bpc, tilewidth, tileheight);
+            this.signed = signed;
+            this.tiles = new Tile[numx * numy];
+            this.window = window;
+        }
+
+        protected void loadTile(int x, int y, int w, int h) {
+        }
+
+        private Tile getTile(int t) {
+            Tile tile = tiles[t];
+            if (tile == null) {
+                int tilew = Math.min(nomtw, w - (t % numx) * nomtw);
+                int tileh = Math.min(nomth, h - (t / numx) * nomth);
+                int len = tilew * tileh * numc;
+                tile = tiles[t] = new Tile();
+                tile.data = bpc <= 8 ? new byte[len] : bpc <= 16 ? (Object)new short[len] : new int[len];
+                tile.filled = new BitSet(tilew * tileh);
+            }
+            return tile;
+        }
+
+        /**
+         * Store a row of pixels
+         * @param x the x position of the first pixel
+         * @param y the y position of the row
+         * @param n the number of pixels
+         * @param row the samples, with component c of pixel i at <code>row[i * step + c]</code>
+         * @param step the number of samples from one pixel to the next in row
+         */
+        synchronized void put(int x, int y, int n, int[] row, int step) throws InterruptedIOException {
+            // Wait while the encoder is busy with the tiles already complete
+            while (true) {
+                if (cancelled) {
+                    throw new IllegalStateException("Image is no longer being written");
+                }
+                int ready = 0;
+                for (int t=next;t<tiles.length && tiles[t] != null && tiles[t].complete;t++) {
+                    ready++;
+                }
+                if (waiting > 0 || ready <= numx + window) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            int ty = y / nomth;
+            int tileh = Math.min(nomth, h - ty * nomth);
+            for (int tx=x/nomtw;tx<=(x+n-1)/nomtw;tx++) {
+                int t = ty * numx + tx;
+                Tile tile = getTile(t);
+                if (tile.released) {
+                    throw new IllegalStateException("Tile " + tx + "," + ty + " has already been written");
+                }
+                int tilew = Math.min(nomtw, w - tx * nomtw);
+                int start = Math.max(x, tx * nomtw);
+                int end = Math.min(x + n, tx * nomtw + tilew);
+                int p = (y - ty * nomth) * tilew + start - tx * nomtw;
+                int o = p * numc;
+                int len = (end - start) * numc;
+                int i = (start - x) * step;
+                int skip = step - numc;
+                if (tile.data instanceof byte[]) {
+                    byte[] out = (byte[])tile.data;
+                    for (int end2=o+len;o<end2;i+=skip) {
+                        for (int c=0;c<numc;c++) {
+                            out[o++] = (byte)row[i++];
+                        }
+                    }
+                } else if (tile.data instanceof short[]) {
+                    short[] out = (short[])tile.data;
+                    for (int end2=o+len;o<end2;i+=skip) {
+                        for (int c=0;c<numc;c++) {
+                            out[o++] = (short)row[i++];
+                        }
+                    }
+                } else {
+                    int[] out = (int[])tile.data;
+                    for (int end2=o+len;o<end2;i+=skip) {
+                        for (int c=0;c<numc;c++) {
+                            out[o++] = row[i++];
+                        }
+                    }
+                }
+                if (!tile.complete) {
+                    tile.filled.set(p, p + end - start);
+                    if (tile.filled.cardinality() == tilew * tileh) {
+                        tile.complete = true;
+                        tile.filled = null;
+                        notifyAll();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Let the encoder read tiles that are incomplete
+         */
+        synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+
+        /**
+         * Stop the encoder when it next reads a tile
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        @Override public synchronized DataBlk getInternCompData(DataBlk blk, int c) {
+            int t = getTileIdx();
+            Tile tile;
+            while (true) {
+                if (cancelled) {
+                    throw new CancelledException();
+                }
+                tile = tiles[t];
+                if (finished || (tile != null && tile.complete)) {
+                    tile = getTile(t);
+                    break;
+                }
+                waiting++;
+                notifyAll();
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new CancelledException();
+                } finally {
+                    waiting--;
+                }
+            }
+            // Other encoding chains may have moved to another tile while waiting
+            setTile(t % numx, t / numx);
+            if (t >= next) {
+                next = t + 1;
+                notifyAll();
+            }
+            if (tile.released) {
+                throw new IllegalStateException("Tile " + t + " already released");
+            }
+            for (;released<=t-window;released++) {
+                Tile done = tiles[released];
+                if (done == null) {
+                    done = tiles[released] = new Tile();
+                }
+                done.data = null;
+                done.filled = null;
+                done.released = true;
+            }
+            buf = tile.data instanceof byte[] ? (byte[])tile.data : null;
+            sbuf = tile.data instanceof short[] ? (short[])tile.data : null;
+            ibuf = tile.data instanceof int[] ? (int[])tile.data : null;
+            offset = 0;
+            scanline = getTileWidth() * numc;
+            DataBlk out = super.getInternCompData(blk, c);
+            return out;
+        }
+    }
+
+}
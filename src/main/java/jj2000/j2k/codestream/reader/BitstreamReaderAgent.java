@@ -44,6 +44,7 @@
  *  */
 package jj2000.j2k.codestream.reader;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.io.IOException;
 
 import jj2000.j2k.ModuleSpec;
@@ -213,6 +214,19 @@ public abstract class BitstreamReaderAgent implements CodedCBlkDataSrcDec {
     /** Actual decoding rate in bpp */
     protected float arate;
 
+    /** The margin, in subband samples, around the part of each subband that
+     * is needed to reconstruct the decoding window. It covers the support of
+     * the synthesis filters, accumulated over all decomposition levels. */
+    private static final int WINDOW_MARGIN = 8;
+
+    /** The decoding window in the reference grid, or null if the whole
+     * image is decoded */
+    protected Rectangle decWindow;
+
+    /** The resolution level that is to be decoded, or -1 if all resolution
+     * levels may be needed */
+    protected int decRes = -1;
+
     /**
      * Initializes members of this class. This constructor takes a
      * HeaderDecoder object. This object must be initialized by the
@@ -1084,4 +1098,118 @@ public abstract class BitstreamReaderAgent implements CodedCBlkDataSrcDec {
     public int getNomTileHeight() {
         return hd.getNomTileHeight();
     }
+
+    /**
+     * Sets the region of the image that is to be decoded. Code-blocks which
+     * do not contribute to the reconstruction of this region are returned
+     * with no data by 'getCodeBlock()', so their data is neither read nor
+     * decoded. Tiles outside the region are unaffected and should simply not
+     * be requested.
+     *
+     * @param window The region to decode, in the reference grid, or null
+     * to decode the whole image.
+     * */
+    public void setDecodingWindow(Rectangle window) {
+        decWindow = window == null ? null : new Rectangle(window);
+    }
+
+    /**
+     * Returns the region of the image that is to be decoded.
+     *
+     * @return The region to decode, in the reference grid, or null if the
+     * whole image is decoded.
+     * */
+    public Rectangle getDecodingWindow() {
+        return decWindow == null ? null : new Rectangle(decWindow);
+    }
+
+    /**
+     * Sets the resolution level that is to be decoded, as passed to
+     * <tt>InverseWT.setImgResLevel</tt>. Packets of higher resolution levels
+     * may then be skipped without being read, when their length is known
+     * from PLT or PLM marker segments.
+     *
+     * @param reslvl The image resolution level, or -1 if all resolution
+     * levels may be needed.
+     * */
+    public void setDecodingResolution(int reslvl) {
+        decRes = reslvl;
+    }
+
+    /**
+     * Returns the resolution level that is to be decoded.
+     *
+     * @return The image resolution level, or -1 if all resolution levels
+     * may be needed.
+     * */
+    public int getDecodingResolution() {
+        return decRes;
+    }
+
+    /**
+     * Returns true if the specified code-block contributes to the
+     * reconstruction of the decoding window, or if there is no decoding
+     * window.
+     *
+     * @param c The component index.
+     *
+     * @param sb The subband of the code-block.
+     *
+     * @param ulx The horizontal coordinate of the code-block's upper-left
+     * corner, with respect to the tile, as in 'Subband.ulx'.
+     *
+     * @param uly The vertical coordinate of the code-block's upper-left
+     * corner, with respect to the tile, as in 'Subband.uly'.
+     *
+     * @param w The width of the code-block.
+     *
+     * @param h The height of the code-block.
+     * */
+    protected boolean isInDecodingWindow(int c, SubbandSyn sb, int ulx,
+                                         int uly, int w, int h) {
+        if (decWindow == null) {
+            return true;
+        }
+        // Code-block position in the subband's own grid
+        int x0 = sb.ulcx+ulx-sb.ulx;
+        int y0 = sb.ulcy+uly-sb.uly;
+        int xo = (sb.orientation == Subband.WT_ORIENT_HL ||
+                  sb.orientation == Subband.WT_ORIENT_HH) ? 1 : 0;
+        int yo = (sb.orientation == Subband.WT_ORIENT_LH ||
+                  sb.orientation == Subband.WT_ORIENT_HH) ? 1 : 0;
+        return overlapsWindow(x0,x0+w,decWindow.x,decWindow.x+decWindow.width,
+                              hd.getCompSubsX(c),sb.level,xo) &&
+            overlapsWindow(y0,y0+h,decWindow.y,decWindow.y+decWindow.height,
+                           hd.getCompSubsY(c),sb.level,yo);
+    }
+
+    /**
+     * Returns true if the samples [s0,s1) of a subband, in one dimension,
+     * are needed to reconstruct the reference grid samples [w0,w1).
+     *
+     * @param s0 The first subband sample.
+     *
+     * @param s1 One past the last subband sample.
+     *
+     * @param w0 The first reference grid sample of the window.
+     *
+     * @param w1 One past the last reference grid sample of the window.
+     *
+     * @param subs The component subsampling factor.
+     *
+     * @param lev The decomposition level of the subband.
+     *
+     * @param hi 1 if the subband is high-pass in this dimension, 0
+     * otherwise.
+     * */
+    private static boolean overlapsWindow(int s0, int s1, int w0, int w1,
+                                          int subs, int lev, int hi) {
+        // Window in the component grid, then in the subband grid
+        int c0 = (w0+subs-1)/subs;
+        int c1 = (w1+subs-1)/subs;
+        int off = hi<<lev>>1;
+        int b0 = (int)Math.floor((c0-off)/(double)(1<<lev))-WINDOW_MARGIN;
+        int b1 = (int)Math.ceil((c1-off)/(double)(1<<lev))+WINDOW_MARGIN;
+        return s0 < b1 && b0 < s1;
+    }
 }
@@ -47,7 +47,9 @@ import java.io.ByteArrayInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.MemoryCacheImageInputStream;
@@ -109,7 +111,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
     private int nt;
 
     /** Offset of the first packet in each tile-part in each tile */
-    private int[][] firstPackOff;
+    private long[][] firstPackOff;
 
     /**
      * Returns the number of tile-part found for a given tile
@@ -124,6 +126,29 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
         return firstPackOff[t].length;
     }
 
+    /**
+     * Returns the offset in the codestream of the first packet of the given
+     * tile, which is the lowest offset read when the tile is decoded once its
+     * tile-part headers have been read.
+     *
+     * @param t Tile index
+     *
+     * @return The offset, or -1 if the tile-parts of the tile have not been
+     * read.
+     * */
+    public long getTileDataOffset(int t) {
+        if(firstPackOff==null || firstPackOff[t]==null ||
+           tilePartsRead[t]==0) {
+            return -1;
+        }
+        // Only the tile-parts read, as the arrays may have a spare entry
+        long off = Long.MAX_VALUE;
+        for(int tp=0; tp<tilePartsRead[t]; tp++) {
+            off = Math.min(off,firstPackOff[t][tp]);
+        }
+        return off;
+    }
+
     /** Number of bytes allocated to each tile. In parsing mode, this number
      * is related to the tile length in the codestream whereas in truncation
      * mode all the rate is affected to the first tiles. */
@@ -165,7 +190,21 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
     private int[][] tilePartHeadLen;
 
     /** Length of each packet head found in the tile */
-    private Vector pktHL;
+    private Vector<Integer> pktHL;
+
+    /** The length of each packet of the tile being read, from the PLT or PLM
+     * marker segments, or null if packets may not be skipped */
+    private int[] pktLens;
+
+    /** The index of the next packet of the tile being read */
+    private int nextPkt;
+
+    /** Whether the packets of each precinct of the tile being read are
+     * skipped, by component, resolution level and precinct */
+    private boolean[][][] skipPrec;
+
+    /** Whether any packet of the tile being read has been skipped */
+    private boolean pktSkipped;
 
     /** True if truncation mode is used. False if parsing mode */
     private boolean isTruncMode;
@@ -217,6 +256,13 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
     /** Whether or not to use only first progression order */
     private boolean usePOCQuit = false;
 
+    /**
+     * The code-block information read from the packet headers of each tile,
+     * shared by all agents created from the same indexed agent. Null unless
+     * the codestream was indexed with {@link #readAllTileParts}.
+     */
+    private AtomicReferenceArray<CBlkInfo[][][][][]> pktIndex;
+
     /**
      * Reads all tiles headers and keep offset of their first
      * packet. Finally it calls the rate allocation method.
@@ -283,7 +329,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
         totTileLen = new int[nt];
 	tilePartLen = new int[nt][];
         tilePartNum = new int[nt][];
-        firstPackOff = new int[nt][];
+        firstPackOff = new long[nt][];
         tilePartsRead = new int[nt];
         totTileHeadLen = new int[nt];
 	tilePartHeadLen = new int[nt][];
@@ -296,7 +342,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
 
         // Keeps main header's length, takes file format overhead into account
         cdstreamStart = hd.mainHeadOff; // Codestream offset in the file
-        mainHeadLen = in.getPos() - cdstreamStart;
+        mainHeadLen = (int)(in.getLongPos() - cdstreamStart);
         headLen = mainHeadLen;
 
         // If ncb and lbody quit conditions are used, headers are not counted
@@ -318,7 +364,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
         // Initialize variables used when reading tile-part headers.
         totAllTileLen = 0;
         remainingTileParts = nt; // at least as many tile-parts as tiles
-        maxPos = lastPos = in.getPos();
+        maxPos = lastPos = in.getLongPos();
 
         // Update 'res' value according to the parameter and the main header.
         if(j2krparam.getResolution()== -1) {
@@ -347,6 +393,164 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
 
         // Initialize tile part positions from TLM marker segment.
         initTLM();
+
+        // Without TLM, index the tile-parts from their SOT marker segments
+        // so that any tile can be reached without reading the ones before
+        // it. A decoding rate limit spends its byte budget in codestream
+        // order, and packed packet headers in a PPM marker segment are
+        // assigned to the tile-parts in codestream order, so in those cases
+        // tile-parts are still read in sequence.
+        if(tilePartPositions == null && tnbytes == Integer.MAX_VALUE &&
+           !((Boolean)decSpec.pphs.getDefault()).booleanValue()) {
+            initSOTIndex();
+        }
+    }
+
+    /**
+     * Creates a new agent on the same codestream as the specified one,
+     * sharing its headers, its tile-part index and the information read
+     * from the packet headers of each tile. The specified agent must have
+     * been indexed with {@link #readAllTileParts}, after which neither
+     * agent modifies the shared information, so agents created in this way
+     * may be used concurrently from different threads, provided each one
+     * reads from its own input stream.
+     *
+     * @param src The indexed agent.
+     *
+     * @param ehs The input stream where to read bit-stream, which must
+     * hold the same data as the stream used by src, with its own position.
+     * */
+    public FileBitstreamReaderAgent(FileBitstreamReaderAgent src,
+                                    RandomAccessIO ehs) {
+        super(src.hd,src.decSpec);
+        if(src.pktIndex == null) {
+            throw new IllegalArgumentException("Agent is not indexed");
+        }
+
+        j2krparam = src.j2krparam;
+        hi = src.hi;
+        in = ehs;
+        nt = src.nt;
+        isTruncMode = src.isTruncMode;
+        lQuit = src.lQuit;
+        pktDec = new PktDecoder(decSpec,hd,ehs,this,isTruncMode,-1);
+
+        // Read-only once every tile-part has been read
+        tileParts = src.tileParts;
+        totTileParts = src.totTileParts;
+        tilePartsRead = src.tilePartsRead;
+        tilePartLen = src.tilePartLen;
+        tilePartNum = src.tilePartNum;
+        tilePartHeadLen = src.tilePartHeadLen;
+        firstPackOff = src.firstPackOff;
+        totTileLen = src.totTileLen;
+        totTileHeadLen = src.totTileHeadLen;
+        tilePartPositions = src.tilePartPositions;
+        pktIndex = src.pktIndex;
+
+        nBytes = src.nBytes.clone();
+        baknBytes = src.baknBytes.clone();
+        // No more tile-parts are read, even if some were missing
+        remainingTileParts = 0;
+        totAllTileLen = src.totAllTileLen;
+        cdstreamStart = src.cdstreamStart;
+        mainHeadLen = src.mainHeadLen;
+        headLen = src.headLen;
+        firstTilePartHeadLen = src.firstTilePartHeadLen;
+        lastPos = src.lastPos;
+        maxPos = src.maxPos;
+        isEOCFound = src.isEOCFound;
+        targetRes = src.targetRes;
+        tnbytes = src.tnbytes;
+        anbytes = src.anbytes;
+        trate = src.trate;
+        arate = src.arate;
+    }
+
+    /**
+     * Reads the tile-part headers of every tile, so that all tile-specific
+     * coding parameters are known and no further headers are read. Once
+     * this has been called the information read from the packet headers of
+     * each tile is kept, and the agent can be shared using {@link
+     * #FileBitstreamReaderAgent(FileBitstreamReaderAgent,RandomAccessIO)}.
+     *
+     * @exception IOException If an I/O error ocurred.
+     *
+     * @exception IllegalStateException If a decoding rate is set, as the
+     * packets read then depend on the order in which tiles are decoded.
+     * */
+    public void readAllTileParts() throws IOException {
+        if(isTruncMode || tnbytes != Integer.MAX_VALUE) {
+            throw new IllegalStateException("Can not index with a decoding "+
+                                            "rate");
+        }
+        for(int t=0; t<nt; t++) {
+            initTile(t);
+        }
+        pktIndex = new AtomicReferenceArray<CBlkInfo[][][][][]>(nt);
+    }
+
+    /**
+     * Sets the maximum number of quality layers to decode for any
+     * code-block. Packets of the following layers are skipped without being
+     * read when they come last in the tile, or when their length is known
+     * from PLT or PLM marker segments, and are otherwise parsed but their
+     * data is neither read nor decoded.
+     *
+     * @param nl The number of layers, or a value less than 1 to decode
+     * every layer.
+     * */
+    public void setMaxLayers(int nl) {
+        lQuit = nl<1 ? -1 : nl;
+    }
+
+    /**
+     * Returns the maximum number of quality layers to decode for any
+     * code-block.
+     *
+     * @return The number of layers, or -1 if every layer is decoded.
+     * */
+    public int getMaxLayers() {
+        return lQuit;
+    }
+
+    /**
+     * Sets the decoding rate. Every tile-part header is read first, and the
+     * number of bytes the rate allows is then shared between the tiles in
+     * proportion to their length. In each tile the code-blocks are then read
+     * layer by layer, resolution level by resolution level, until its share
+     * is spent, as if a layer-resolution progressive codestream had been
+     * truncated. As the packets read then depend on the rate, tiles are
+     * neither taken from nor added to the index shared with other agents.
+     *
+     * @param rate The decoding rate in bits per pixel of the full image, or
+     * Double.MAX_VALUE to read every byte.
+     *
+     * @exception IOException If an I/O error ocurred, or if the rate is too
+     * small to read the tile-part headers.
+     * */
+    public void setDecodingRate(double rate) throws IOException {
+        if(isTruncMode) {
+            throw new IllegalStateException("Truncation mode is used");
+        }
+        if(rate<=0) {
+            throw new IllegalArgumentException("Decoding rate must be "+
+                                               "positive");
+        }
+        double nb = rate*hd.getMaxCompImgWidth()*hd.getMaxCompImgHeight()/8;
+        if(rate==Double.MAX_VALUE || nb>=Integer.MAX_VALUE) {
+            tnbytes = Integer.MAX_VALUE;
+            trate = 0;
+        } else {
+            for(int t=0; t<nt; t++) {
+                initTile(t);
+            }
+            tnbytes = (int)nb;
+            trate = (float)rate;
+        }
+        anbytes = headLen;
+        allocateRate();
+        System.arraycopy(nBytes,0,baknBytes,0,nt);
     }
 
     // An array of the positions of tile parts:
@@ -364,7 +568,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
     //
     private void initTLM() throws IOException {
         // Save the position to return to at the end of this method.
-        int savePos = in.getPos();
+        long savePos = in.getLongPos();
 
         // Array to store contents of TLM segments. The first index is
         // Ztlm. The contents of tlmSegments[i] is the bytes in the TLM
@@ -491,13 +695,117 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
         in.seek(savePos);
     }
 
-    int cdstreamStart = 0;
-    int t=0, pos=-1, tp=0, tptot=0;
-    int tilePartStart = 0;
+    //
+    // Initialize the tilePartPositions array by hopping from one SOT marker
+    // segment to the next, using the Psot tile-part lengths. Only the first
+    // bytes of each tile-part are read, the tile-part headers and packet
+    // data are left for initTile. If the codestream can not be indexed in
+    // this way (a tile-part length of zero that is not followed by EOC, a
+    // missing tile, a truncated codestream) or if a tile-part header holds
+    // packed packet headers (PPT), which are only gathered once every
+    // tile-part header has been read, the array remains null and the
+    // tile-parts are read sequentially. Before return the stream is returned
+    // to its position when the method was invoked.
+    //
+    private void initSOTIndex() throws IOException {
+        // Save the position to return to at the end of this method.
+        long savePos = in.getLongPos();
+
+        List<List<Long>> sotOffsets = new ArrayList<List<Long>>(nt);
+        for(int i = 0; i < nt; i++) {
+            sotOffsets.add(null);
+        }
+        boolean complete = false;
+        try {
+            // Tiles start after the main header.
+            long tilePos = cdstreamStart + mainHeadLen;
+            long len = in.longLength();
+            while(tilePos <= len-2) {
+                in.seek(tilePos);
+                short marker = in.readShort();
+                if(marker == EOC) {
+                    complete = true;
+                    break;
+                } else if(marker != SOT || in.readUnsignedShort() != 10) {
+                    break;
+                }
+                int tileIndex = in.readUnsignedShort();
+                int psot = in.readInt();
+                if(tileIndex >= nt) {
+                    break;
+                }
+                if(sotOffsets.get(tileIndex) == null) {
+                    sotOffsets.set(tileIndex, new ArrayList<Long>());
+                }
+                sotOffsets.get(tileIndex).add(Long.valueOf(tilePos));
+
+                if(hasPPT(tilePos+12, psot == 0 ? len :
+                          tilePos+(psot & 0xFFFFFFFFL))) {
+                    break;
+                }
+
+                if(psot == 0) {
+                    // Last tile-part, running to the EOC marker
+                    complete = true;
+                    break;
+                } else if((psot & 0xFFFFFFFFL) < 12 ||
+                          (psot & 0xFFFFFFFFL) > len - tilePos) {
+                    break;
+                }
+                tilePos += psot & 0xFFFFFFFFL;
+            }
+        } catch(EOFException e) {
+            complete = false;
+        }
+
+        if(complete) {
+            long[][] positions = new long[nt][];
+            for(int i = 0; i < nt; i++) {
+                List<Long> list = sotOffsets.get(i);
+                if(list == null) {
+                    positions = null;
+                    break;
+                }
+                int count = list.size();
+                positions[i] = new long[count];
+                for(int j = 0; j < count; j++) {
+                    positions[i][j] = list.get(j).longValue();
+                }
+            }
+            tilePartPositions = positions;
+        }
+
+        in.seek(savePos);
+    }
+
+    //
+    // Returns true if the tile-part header starting after its SOT marker
+    // segment at the specified position holds a PPT marker segment. Only the
+    // marker and length of each marker segment are read, up to the SOD
+    // marker or the specified end of the tile-part.
+    //
+    private boolean hasPPT(long pos, long end) throws IOException {
+        while(pos <= end-4) {
+            in.seek(pos);
+            short marker = in.readShort();
+            if(marker == PPT) {
+                return true;
+            } else if(marker == SOD) {
+                return false;
+            }
+            pos += 2+in.readUnsignedShort();
+        }
+        return false;
+    }
+
+    long cdstreamStart = 0;
+    int t=0, tp=0, tptot=0;
+    long pos=-1;
+    long tilePartStart = 0;
     boolean rateReached = false;
     int numtp = 0;
     int maxTP = nt; // If maximum 1 tile part per tile specified
-    int lastPos = 0, maxPos = 0;
+    long lastPos = 0, maxPos = 0;
 
     /**
      * Read all tile-part headers of the requested tile. All tile-part
@@ -521,9 +829,9 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                 isTilePartRead = true;
 
                 if(tilePartPositions != null) {
-                    in.seek((int)tilePartPositions[tileNum][tpNum++]);
+                    in.seek(tilePartPositions[tileNum][tpNum++]);
                 }
-                tilePartStart = in.getPos();
+                tilePartStart = in.getLongPos();
 
                 // Read tile-part header
                 try {
@@ -536,21 +844,28 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                     if(isPsotEqualsZero) { // Psot may equals zero for the
                         // last tile-part: it is assumed that this tile-part
                         // contain all data until EOC
-                        tilePartLen[t][tp] = in.length()-2-tilePartStart;
+                        long len = in.longLength()-2-tilePartStart;
+                        if(len > Integer.MAX_VALUE) {
+                            throw new NotImplementedError("Tile length "+
+                                                          "larger than "+
+                                                          "maximum "+
+                                                          "supported");
+                        }
+                        tilePartLen[t][tp] = (int)len;
                     }
                 } catch(EOFException e) {
-                    firstPackOff[t][tp] = in.length();
+                    firstPackOff[t][tp] = in.longLength();
                     throw e;
                 }
 
-                pos = in.getPos();
+                pos = in.getLongPos();
 
                 // In truncation mode, if target decoding rate is reached in
                 // tile-part header, skips the tile-part and stop reading
                 // unless the ncb and lbody quit condition is in use
                 if(isTruncMode && ncbQuit == -1) {
                     if((pos-cdstreamStart)>tnbytes) {
-                        firstPackOff[t][tp] = in.length();
+                        firstPackOff[t][tp] = in.longLength();
                         rateReached = true;
                         break;
                     }
@@ -558,7 +873,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
 
                 // Set tile part position and header length
                 firstPackOff[t][tp] = pos;
-                tilePartHeadLen[t][tp] = (pos-tilePartStart);
+                tilePartHeadLen[t][tp] = (int)(pos-tilePartStart);
 
                 if(printInfo)
                     strInfo += "Tile-part "+tp+" of tile "+t+" : "+tilePartStart
@@ -596,7 +911,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
 
                 // Go to the beginning of next tile part
                 tilePartsRead[t]++;
-                int nextMarkerPos = tilePartStart+tilePartLen[t][tp];
+                long nextMarkerPos = tilePartStart+tilePartLen[t][tp];
                 if(tilePartPositions == null) {
                     in.seek(nextMarkerPos);
                 }
@@ -628,9 +943,9 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                 printmsg(MsgLogger.WARNING,"Codestream truncated in tile "+t);
 
             // Set specified rate to end of file if valid
-            int fileLen = in.length();
+            long fileLen = in.longLength();
             if(fileLen<tnbytes) {
-                tnbytes = fileLen;
+                tnbytes = (int)fileLen;
                 trate = tnbytes*8f/hd.getMaxCompImgWidth()/
                     hd.getMaxCompImgHeight();
             }
@@ -681,7 +996,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                 // if this marker has not been found yet
                 if(!isEOCFound && !isPsotEqualsZero && !rateReached) {
                     try {
-                        int savePos = in.getPos();
+                        long savePos = in.getLongPos();
                         in.seek(maxPos);
                         if(in.readShort()!=EOC) {
                             FacilityManager.getMsgLogger().
@@ -702,11 +1017,11 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
             allocateRate();
         } else if(remainingTileParts == 0 && !isEOFEncountered) {
             // Take EOC into account if rate is not reached
-            if(in.getPos()>=tnbytes)
+            if(in.getLongPos()>=tnbytes)
                 anbytes += 2;
         }
 
-        if(tilePartPositions == null) lastPos = in.getPos();
+        if(tilePartPositions == null) lastPos = in.getLongPos();
 
         // Backup nBytes
         for (int tIdx=0; tIdx<nt; tIdx++) {
@@ -737,6 +1052,16 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
             throw new IOException("Requested bitrate is too small for parsing");
         }
 
+        // Without a decoding rate every tile is read entirely. Sharing
+        // tnbytes between the tiles would truncate codestreams of more
+        // than 2 GB.
+        if(stopOff == Integer.MAX_VALUE) {
+            for(int t=0; t<nt; t++) {
+                nBytes[t] = Integer.MAX_VALUE;
+            }
+            return;
+        }
+
         // Calculate bitrate for each tile
         int rem = stopOff-anbytes;
         int totnByte = rem;
@@ -754,7 +1079,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
      * @return The tile number of the tile part that was read
      * */
     private int readTilePartHeader() throws IOException{
-        if (in.getPos() == in.length()) {
+        if (in.getLongPos() == in.longLength()) {
             // This block is needed when we add one to the number of
             // tile parts - see line 811.
             isEOCFound = true;  // Not strictly true.
@@ -848,10 +1173,10 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
             }
 
             // Increase and re-copy firsPackOff array
-            tmpA = firstPackOff[tile];
-            firstPackOff[tile] = new int[nrOfTileParts];
+            long[] tmpOff = firstPackOff[tile];
+            firstPackOff[tile] = new long[nrOfTileParts];
             for(int i=0; i<nrOfTileParts-nExtraTp; i++) {
-                firstPackOff[tile][i] = tmpA[i];
+                firstPackOff[tile][i] = tmpOff[i];
             }
 
             // Increase and re-copy tilePartHeadLen array
@@ -877,7 +1202,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                 tileParts[tile] = nrOfTileParts;
                 tilePartLen[tile] = new int[nrOfTileParts];
                 tilePartNum[tile] = new int[nrOfTileParts];
-                firstPackOff[tile] = new int[nrOfTileParts];
+                firstPackOff[tile] = new long[nrOfTileParts];
                 tilePartHeadLen[tile] = new int[nrOfTileParts];
             } else if(tileParts[tile] > nrOfTileParts ) {
                 // Already found more tile-parts than signaled here
@@ -906,10 +1231,10 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                     }
 
                     // Increase and re-copy firstPackOff array
-                    tmpA = firstPackOff[tile];
-                    firstPackOff[tile] = new int[nrOfTileParts];
+                    long[] tmpOff = firstPackOff[tile];
+                    firstPackOff[tile] = new long[nrOfTileParts];
                     for(int i=0; i<tileParts[tile]-1; i++) {
-                        firstPackOff[tile][i] = tmpA[i];
+                        firstPackOff[tile][i] = tmpOff[i];
                     }
 
                     // Increase and re-copy tilePartHeadLen array
@@ -982,9 +1307,9 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
         }
 
         int t = getTileIdx();
-        int start;
+        long start;
         boolean status = false;
-        int lastByte = firstPackOff[t][curTilePart]+
+        long lastByte = firstPackOff[t][curTilePart]+
             tilePartLen[t][curTilePart]-1-
             tilePartHeadLen[t][curTilePart];
         int numLayers = ((Integer)decSpec.nls.getTileDef(t)).intValue();
@@ -1010,7 +1335,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
 
                     nPrec = pktDec.getNumPrecinct(c,r);
                     for(int p=0; p<nPrec; p++) { // loop on precincts
-                        start = in.getPos();
+                        start = in.getLongPos();
 
                         // If packed packet headers are used, there is no need
                         // to check that there are bytes enough to read header
@@ -1024,11 +1349,16 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                            curTilePart<firstPackOff[t].length-1) {
                             curTilePart++;
                             in.seek(firstPackOff[t][curTilePart]);
-                            lastByte = in.getPos()+
+                            lastByte = in.getLongPos()+
                                 tilePartLen[t][curTilePart]-1-
                                 tilePartHeadLen[t][curTilePart];
                         }
 
+                        // Skip the packet if it is not needed
+                        if(skipPkt(l,r,c,p)) {
+                            continue;
+                        }
+
                         // Read SOP marker segment if necessary
                         status = pktDec.readSOPMarker(nBytes,p,c,r);
 
@@ -1054,12 +1384,12 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                         }
 
                         // Store packet's head length
-                        hlen = in.getPos()-start;
+                        hlen = (int)(in.getLongPos()-start);
                         pktHL.addElement(new Integer(hlen));
 
                         // Reads packet's body
                         status = pktDec.readPktBody(l,r,c,p,cbI[c][r],nBytes);
-                        plen = in.getPos()-start;
+                        plen = (int)(in.getLongPos()-start);
                         if(printInfo)
                             strInfo+= " Pkt l="+l+",r="+r+",c="+c+",p="+p+": "+
                                 start+", "+plen+", "+hlen+"\n";
@@ -1107,7 +1437,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
 
         int t = getTileIdx(); // Current tile index
         boolean status=false; // True if decoding rate is reached when
-        int lastByte = firstPackOff[t][curTilePart]+
+        long lastByte = firstPackOff[t][curTilePart]+
             tilePartLen[t][curTilePart]-1-
             tilePartHeadLen[t][curTilePart];
         int minlys = 10000;
@@ -1132,7 +1462,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
             pph = true;
         }
         int nPrec = 1;
-        int start;
+        long start;
         int hlen,plen;
         for(int r=ress; r<rese; r++) { // loop on resolution levels
             for(int l=minlys; l<lye; l++) { // loop on layers
@@ -1148,7 +1478,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                     nPrec = pktDec.getNumPrecinct(c,r);
 
                     for(int p=0; p<nPrec; p++) { // loop on precincts
-                        start = in.getPos();
+                        start = in.getLongPos();
 
                         // If packed packet headers are used, there is no need
                         // to check that there are bytes enough to read header
@@ -1162,11 +1492,16 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                            curTilePart<firstPackOff[t].length-1) {
                             curTilePart++;
                             in.seek(firstPackOff[t][curTilePart]);
-                            lastByte = in.getPos()+
+                            lastByte = in.getLongPos()+
                                 tilePartLen[t][curTilePart]-1-
                                 tilePartHeadLen[t][curTilePart];
                         }
 
+                        // Skip the packet if it is not needed
+                        if(skipPkt(l,r,c,p)) {
+                            continue;
+                        }
+
                         // Read SOP marker segment if necessary
                         status = pktDec.readSOPMarker(nBytes,p,c,r);
 
@@ -1193,12 +1528,12 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                         }
 
                         // Store packet's head length
-                        hlen = in.getPos()-start;
+                        hlen = (int)(in.getLongPos()-start);
                         pktHL.addElement(new Integer(hlen));
 
                         // Reads packet's body
                         status = pktDec.readPktBody(l,r,c,p,cbI[c][r],nBytes);
-                        plen = in.getPos()-start;
+                        plen = (int)(in.getLongPos()-start);
                         if(printInfo)
                             strInfo+= " Pkt l="+l+",r="+r+",c="+c+",p="+p+": "+
                                 start+", "+plen+", "+hlen+"\n";
@@ -1321,9 +1656,9 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
         int pxend = (maxx-minx)/gcd_x+1;
         int x,y;
         int hlen,plen;
-        int start;
+        long start;
         boolean status = false;
-        int lastByte = firstPackOff[t][curTilePart]+
+        long lastByte = firstPackOff[t][curTilePart]+
             tilePartLen[t][curTilePart]-1-
             tilePartHeadLen[t][curTilePart];
         int numLayers = ((Integer)decSpec.nls.getTileDef(t)).intValue();
@@ -1353,7 +1688,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                             if(r>=lys[c].length) continue;
                             if(l<lys[c][r] || l>=numLayers) continue;
 
-                            start = in.getPos();
+                            start = in.getLongPos();
 
                             // If packed packet headers are used, there is no
                             // need to check that there are bytes enough to
@@ -1368,11 +1703,16 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                                curTilePart<firstPackOff[t].length-1) {
                                 curTilePart++;
                                 in.seek(firstPackOff[t][curTilePart]);
-                                lastByte = in.getPos()+
+                                lastByte = in.getLongPos()+
                                     tilePartLen[t][curTilePart]-1-
                                     tilePartHeadLen[t][curTilePart];
                             }
 
+                            // Skip the packet if it is not needed
+                            if(skipPkt(l,r,c,nextPrec[c][r])) {
+                                continue;
+                            }
+
                             // Read SOP marker segment if necessary
                             status = pktDec.readSOPMarker(nBytes,
                                                           nextPrec[c][r],c,r);
@@ -1401,14 +1741,14 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                             }
 
                             // Store packet's head length
-                            hlen = in.getPos()-start;
+                            hlen = (int)(in.getLongPos()-start);
                             pktHL.addElement(new Integer(hlen));
 
 
                             // Reads packet's body
                             status = pktDec.readPktBody(l,r,c,nextPrec[c][r],
                                                         cbI[c][r],nBytes);
-                            plen = in.getPos()-start;
+                            plen = (int)(in.getLongPos()-start);
                             if(printInfo)
                                 strInfo+= " Pkt l="+l+",r="+r+",c="+c+",p="+
                                     nextPrec[c][r]+": "+
@@ -1538,9 +1878,9 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
         int pyend = (maxy-miny)/gcd_y+1;
         int pxend = (maxx-minx)/gcd_x+1;
         int hlen,plen;
-        int start;
+        long start;
         boolean status = false;
-        int lastByte = firstPackOff[t][curTilePart]+
+        long lastByte = firstPackOff[t][curTilePart]+
             tilePartLen[t][curTilePart]-1-
             tilePartHeadLen[t][curTilePart];
         int numLayers = ((Integer)decSpec.nls.getTileDef(t)).intValue();
@@ -1571,7 +1911,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                             if(r>=lys[c].length) continue;
                             if(l<lys[c][r] || l>=numLayers) continue;
 
-                            start = in.getPos();
+                            start = in.getLongPos();
 
                             // If packed packet headers are used, there is no
                             // need to check that there are bytes enough to
@@ -1580,6 +1920,11 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                                 pktDec.readPktHead(l,r,c,nextPrec[c][r],
                                                    cbI[c][r],nBytes);
                             }
+                            // Skip the packet if it is not needed
+                            if(skipPkt(l,r,c,nextPrec[c][r])) {
+                                continue;
+                            }
+
                             // Read SOP marker segment if necessary
                             status = pktDec.readSOPMarker(nBytes,
                                                           nextPrec[c][r],c,r);
@@ -1608,13 +1953,13 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                             }
 
                             // Store packet's head length
-                            hlen = in.getPos()-start;
+                            hlen = (int)(in.getLongPos()-start);
                             pktHL.addElement(new Integer(hlen));
 
                             // Reads packet's body
                             status = pktDec.readPktBody(l,r,c,nextPrec[c][r],
                                                         cbI[c][r],nBytes);
-                            plen = in.getPos()-start;
+                            plen = (int)(in.getLongPos()-start);
                             if(printInfo)
                                 strInfo+= " Pkt l="+l+",r="+r+",c="+c+",p="+
                                     nextPrec[c][r]+": "+
@@ -1745,9 +2090,9 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
         int pyend = (maxy-miny)/gcd_y+1;
         int pxend = (maxx-minx)/gcd_x+1;
         int hlen,plen;
-        int start;
+        long start;
         boolean status = false;
-        int lastByte = firstPackOff[t][curTilePart]+
+        long lastByte = firstPackOff[t][curTilePart]+
             tilePartLen[t][curTilePart]-1-
             tilePartHeadLen[t][curTilePart];
         int numLayers = ((Integer)decSpec.nls.getTileDef(t)).intValue();
@@ -1780,7 +2125,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                             if(r>=lys[c].length) continue;
                             if(l<lys[c][r]) continue;
 
-                            start = in.getPos();
+                            start = in.getLongPos();
 
                             // If packed packet headers are used, there is no
                             // need to check that there are bytes enough to
@@ -1795,11 +2140,16 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                                curTilePart<firstPackOff[t].length-1) {
                                 curTilePart++;
                                 in.seek(firstPackOff[t][curTilePart]);
-                                lastByte = in.getPos()+
+                                lastByte = in.getLongPos()+
                                     tilePartLen[t][curTilePart]-1-
                                     tilePartHeadLen[t][curTilePart];
                             }
 
+                            // Skip the packet if it is not needed
+                            if(skipPkt(l,r,c,nextPrec[c][r])) {
+                                continue;
+                            }
+
                             // Read SOP marker segment if necessary
                             status = pktDec.readSOPMarker(nBytes,
                                                           nextPrec[c][r],c,r);
@@ -1828,13 +2178,13 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                             }
 
                             // Store packet's head length
-                            hlen = in.getPos()-start;
+                            hlen = (int)(in.getLongPos()-start);
                             pktHL.addElement(new Integer(hlen));
 
                             // Reads packet's body
                             status = pktDec.readPktBody(l,r,c,nextPrec[c][r],
                                                         cbI[c][r],nBytes);
-                            plen = in.getPos()-start;
+                            plen = (int)(in.getLongPos()-start);
                             if(printInfo)
                                 strInfo+= " Pkt l="+l+",r="+r+",c="+c+",p="+
                                     nextPrec[c][r]+": "+
@@ -1871,6 +2221,188 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
         return false; // Decoding rate was not reached
     }
 
+    /**
+     * Returns the length of each packet of a tile, in codestream order, as
+     * given by the PLT marker segments of its tile-part headers or by the PLM
+     * marker segments of the main header. The lengths of each tile-part must
+     * add up to the length of its packets.
+     *
+     * @param t Tile index
+     *
+     * @return The packet lengths, or null if they are not all known.
+     * */
+    private int[] getPacketLengths(int t) {
+        int ntp = tilePartsRead[t];
+        if(ntp==0) {
+            return null;
+        }
+        int[][] plm = hd.getPLMPacketLengths();
+        int[][] lens = new int[ntp][];
+        int n = 0;
+        for(int tp=0; tp<ntp; tp++) {
+            lens[tp] = hd.getPacketLengths(t,tp);
+            if(lens[tp]==null && plm!=null) {
+                // Index of the tile-part in the codestream
+                int idx = 0;
+                if(tilePartPositions!=null) {
+                    long pos = tilePartPositions[t][tp];
+                    for(int i=0; i<tilePartPositions.length; i++) {
+                        for(int j=0; j<tilePartPositions[i].length; j++) {
+                            if(tilePartPositions[i][j]<pos) {
+                                idx++;
+                            }
+                        }
+                    }
+                } else {
+                    long pos = firstPackOff[t][tp];
+                    for(int i=0; i<nt; i++) {
+                        for(int j=0; j<tilePartsRead[i]; j++) {
+                            if(firstPackOff[i][j]<pos) {
+                                idx++;
+                            }
+                        }
+                    }
+                }
+                if(idx<plm.length) {
+                    lens[tp] = plm[idx];
+                }
+            }
+            if(lens[tp]==null) {
+                return null;
+            }
+            long sum = 0;
+            for(int i=0; i<lens[tp].length; i++) {
+                sum += lens[tp][i];
+            }
+            if(sum!=tilePartLen[t][tp]-tilePartHeadLen[t][tp]) {
+                return null;
+            }
+            n += lens[tp].length;
+        }
+        int[] all = new int[n];
+        n = 0;
+        for(int tp=0; tp<ntp; tp++) {
+            System.arraycopy(lens[tp],0,all,n,lens[tp].length);
+            n += lens[tp].length;
+        }
+        return all;
+    }
+
+    /**
+     * Decides which precincts of a tile need not be read, because they are
+     * above the resolution level to decode or none of their code-blocks
+     * contribute to the decoding window. Their packets, and those of the
+     * layers above the maximum number of layers, are skipped without
+     * being read if the length of every packet of the tile is known. This is
+     * not done when a decoding rate is set or when packed packet headers are
+     * used. A tile whose packets have been skipped is not kept in the index
+     * shared with other agents, as they may need those packets.
+     *
+     * @param t Tile index
+     * */
+    private void initPktSkip(int t) {
+        pktLens = null;
+        skipPrec = null;
+        nextPkt = 0;
+        pktSkipped = false;
+        int nl = ((Integer)decSpec.nls.getTileDef(t)).intValue();
+        boolean layers = lQuit!=-1 && lQuit<nl;
+        if(isTruncMode || tnbytes!=Integer.MAX_VALUE ||
+           ((Boolean)decSpec.pphs.getTileDef(t)).booleanValue() ||
+           (decRes<0 && decWindow==null && !layers)) {
+            return;
+        }
+        boolean[][][] skip = new boolean[nc][][];
+        boolean found = layers;
+        int minl = decSpec.dls.getMin();
+        for(int c=0; c<nc; c++) {
+            SubbandSyn root = getSynSubbandTree(t,c);
+            skip[c] = new boolean[mdl[c]+1][];
+            for(int r=0; r<=mdl[c]; r++) {
+                int np = pktDec.getNumPrecinct(c,r);
+                skip[c][r] = new boolean[np];
+                boolean above = decRes>=0 && r>decRes-minl+mdl[c];
+                int mins = (r==0) ? 0 : 1;
+                int maxs = (r==0) ? 1 : 4;
+                for(int p=0; p<np; p++) {
+                    boolean needed = false;
+                    if(!above) {
+                        PrecInfo prec = pktDec.getPrecInfo(c,r,p);
+                        for(int s=mins; s<maxs && !needed; s++) {
+                            if(prec.nblk[s]==0 || prec.cblk[s]==null) {
+                                continue;
+                            }
+                            SubbandSyn sb =
+                                (SubbandSyn)root.getSubbandByIdx(r,s);
+                            for(int m=0; m<prec.cblk[s].length && !needed;
+                                m++) {
+                                if(prec.cblk[s][m]==null) {
+                                    continue;
+                                }
+                                for(int n=0; n<prec.cblk[s][m].length; n++) {
+                                    if(isInDecodingWindow(c,sb,
+                                                          prec.cblk[s][m][n].ulx,
+                                                          prec.cblk[s][m][n].uly,
+                                                          prec.cblk[s][m][n].w,
+                                                          prec.cblk[s][m][n].h)) {
+                                        needed = true;
+                                        break;
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    if(!needed) {
+                        skip[c][r][p] = true;
+                        found = true;
+                    }
+                }
+            }
+        }
+        if(found) {
+            pktLens = getPacketLengths(t);
+            if(pktLens!=null) {
+                skipPrec = skip;
+            }
+        }
+    }
+
+    /**
+     * Skips the next packet of the tile, without reading it, if its precinct
+     * or layer is not needed and its length is known.
+     *
+     * @param l layer index
+     *
+     * @param r Resolution level index
+     *
+     * @param c Component index
+     *
+     * @param p Precinct index
+     *
+     * @return True if the packet has been skipped.
+     *
+     * @see #initPktSkip
+     * */
+    private boolean skipPkt(int l,int r,int c,int p) throws IOException {
+        if(skipPrec==null) {
+            return false;
+        }
+        if(nextPkt>=pktLens.length) {
+            // More packets than lengths: stop skipping
+            skipPrec = null;
+            return false;
+        }
+        int len = pktLens[nextPkt++];
+        if(!skipPrec[c][r][p] && (lQuit==-1 || l<lQuit)) {
+            return false;
+        }
+        in.seek(in.getLongPos()+len);
+        pktDec.skipPkt(l,r,c,p,cbI[c][r]);
+        pktSkipped = true;
+        pktHL.addElement(new Integer(0));
+        return true;
+    }
+
     /**
      * Finish initialization of members for specified tile, reads packets head
      * of each tile and keeps location of each code-block's codewords. The
@@ -1886,7 +2418,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
      * @see PktDecoder
      * */
     private void readTilePkts(int t) throws IOException {
-        pktHL = new Vector();
+        pktHL = new Vector<Integer>();
 
         int oldNBytes = nBytes[t];
 
@@ -1954,6 +2486,7 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
         }
 
         curTilePart = 0;
+        initPktSkip(t);
 
         // Start and end indexes for layers, resolution levels and components.
         int lye,ress,rese,comps,compe;
@@ -1970,6 +2503,13 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
             for(int chg=0; chg<nChg; chg++) {
 
                 lye = change[chg][1];
+                // The packets of the layers that are not decoded come last
+                // in a layer-resolution progression, so stop before them
+                if(lQuit!=-1 && lye>lQuit && chg==nChg-1 &&
+                   change[chg][0]==LY_RES_COMP_POS_PROG) {
+                    lye = lQuit;
+                    pktSkipped = true;
+                }
                 ress = change[chg][2];
                 rese = change[chg][3];
                 comps = change[chg][4];
@@ -2038,13 +2578,15 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
             // Length of each packet's head (in an array)
             int[] pktHeadLen = new int[pktHL.size()];
             for(int i=pktHL.size()-1;i>=0;i--) {
-                pktHeadLen[i] = ((Integer)pktHL.elementAt(i)).intValue();
+                pktHeadLen[i] = pktHL.elementAt(i).intValue();
             }
 
             // Parse each code-block, layer per layer until nBytes[t] is
-            // reached
+            // reached. Layers past the maximum are not read or decoded, so
+            // take no share of the rate.
             reject = false;
-            for(int l=0; l<nl; l++) { // layers
+            int mnl = lQuit!=-1 && lQuit<nl ? lQuit : nl;
+            for(int l=0; l<mnl; l++) { // layers
                 if(cbI==null) continue;
                 int nc = cbI.length;
 
@@ -2145,7 +2687,8 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
                                     } else {
                                         // Refuses code-block
                                         // Forgets code-block's data
-                                        cb.len[l]=cb.off[l]=cb.ntp[l]= 0;
+                                        cb.len[l]=cb.ntp[l]= 0;
+                                        cb.off[l]= 0;
                                         // Refuses all other code-block in
                                         // current and next component
                                         reject=true;
@@ -2161,9 +2704,6 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
             // No parsing for this tile, adds tile's body to the total
             // number of read bytes.
             anbytes += totTileLen[t]-totTileHeadLen[t];
-            if(t<getNumTiles()-1) {
-                nBytes[t+1] += nBytes[t]-(totTileLen[t]-totTileHeadLen[t]);
-            }
         }
 
         // In this method nBytes[t] might be changed.  This change will affect
@@ -2243,9 +2783,20 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
             initSubbandsFields(c,subbTrees[c]);
         }
 
-        // Read tile's packets
+        // Read tile's packets, unless already read by an agent sharing the
+        // same index. With a decoding rate the code-block information is
+        // truncated to the rate, so it is neither shared nor taken from the
+        // index.
+        boolean shared = pktIndex != null && tnbytes == Integer.MAX_VALUE;
         try {
-            readTilePkts(t);
+            if(shared && pktIndex.get(t) != null) {
+                cbI = pktIndex.get(t);
+            } else {
+                readTilePkts(t);
+                if(shared && !pktSkipped) {
+                    pktIndex.set(t,cbI);
+                }
+            }
         } catch(IOException e) {
             e.printStackTrace();
             throw new IllegalArgumentException("IO Error when reading tile "+x+" x "+y);
@@ -2338,8 +2889,8 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
 
         // If the l quit condition is used, Make sure that no layer
         // after lquit is returned
-        if(lQuit != -1 && fl+nl>lQuit){
-          nl = lQuit - fl;
+        if(lQuit != -1 && fl+nl-1>lQuit){
+          nl = lQuit - fl + 1;
         }
 
         // Check validity of resquested resolution level (according to the
@@ -2395,6 +2946,13 @@ public class FileBitstreamReaderAgent extends BitstreamReaderAgent
         ccb.h = rcb.h;
         ccb.ftpIdx = 0;
 
+        if(!isInDecodingWindow(c,sb,rcb.ulx,rcb.uly,rcb.w,rcb.h)) {
+            // This code-block is not needed for the decoding window.
+            // Returns no data
+            ccb.prog = false;
+            return ccb;
+        }
+
         // Search for index of first truncation point (first layer where
         // length of data is not zero)
         int l=0;
@@ -168,6 +168,12 @@ public class HeaderDecoder implements ProgressionType, Markers,
     /** Counts number of PPT markers found in the header */
     private int[][] nPPTMarkSeg = null;
 
+    /** Counts number of PLM markers found in the header */
+    private int nPLMMarkSeg = 0;
+
+    /** Counts number of PLT markers found in the header */
+    private int nPLTMarkSeg = 0;
+
     /** Flag bit for SIZ marker segment found */
     private static final int SIZ_FOUND = 1;
 
@@ -238,7 +244,7 @@ public class HeaderDecoder implements ProgressionType, Markers,
     boolean precinctPartitionIsUsed;
 
     /** The offset of the main header in the input stream */
-    public int mainHeadOff;
+    public long mainHeadOff;
 
     /** Vector containing info as to which tile each tilepart belong */
     public Vector tileOfTileParts;
@@ -252,6 +258,18 @@ public class HeaderDecoder implements ProgressionType, Markers,
     /** The packed packet headers if the PPM or PPT markers are used */
     private ByteArrayOutputStream[] pkdPktHeaders;
 
+    /** Array containing the Nplm and Iplm fields of the PLM marker segments,
+     * by Zplm */
+    private byte[][] pLMMarkerData;
+
+    /** The packet lengths of each tile-part, in codestream order, from the
+     * PLM marker segments */
+    private int[][] pLMPktLengths;
+
+    /** The packet lengths of each tile-part of each tile, from the PLT
+     * marker segments */
+    private int[][][] pLTPktLengths;
+
     /** 
      * Return the maximum height among all components 
      *
@@ -1658,45 +1676,162 @@ public class HeaderDecoder implements ProgressionType, Markers,
     }
 
     /**
-     * Reads PLM marker segment and realigns the codestream where the next
-     * marker should be found. Informations stored in these fields are
-     * currently not taken into account.
+     * Reads a PLM marker segment of the main header. The Nplm and Iplm fields
+     * are kept until the packet lengths are requested.
      *
      * @param ehs The encoder header stream.
      *
      * @exception IOException If an I/O error occurs while reading from the
      * encoder header stream
+     *
+     * @see #getPLMPacketLengths
      * */
     private void readPLM(DataInputStream ehs) throws IOException{
-	int length;
+        int curMarkSegLen;
+        int indx;
 
-	length = ehs.readUnsignedShort();
-	//Ignore all informations contained
-	ehs.skipBytes(length-2);
+        if(pLMMarkerData==null) {
+            pLMMarkerData = new byte[256][];
+        }
 
-        FacilityManager.getMsgLogger().
-            printmsg(MsgLogger.INFO,"Skipping unsupported PLM marker");
+        // Lplm (marker length)
+        curMarkSegLen = ehs.readUnsignedShort();
+
+        // Zplm (index of PLM marker)
+        indx = ehs.readUnsignedByte();
+
+        // Nplm and Iplm fields
+        pLMMarkerData[indx] = new byte[curMarkSegLen-3];
+        ehs.readFully(pLMMarkerData[indx]);
+
+        // Check marker length
+        checkMarkerLength(ehs,"PLM marker");
     }
 
     /**
-     * Reads the PLT fields and realigns the codestream where the next marker
-     * should be found. Informations stored in these fields are currently NOT
-     * taken into account.
+     * Reads a PLT marker segment of a tile-part header and keeps its Iplt
+     * fields.
      *
      * @param ehs The encoder header stream.
      *
+     * @param iplt Where the Iplt fields are kept, by Zplt.
+     *
      * @exception IOException If an I/O error occurs while reading from the
      * encoder header stream
      * */
-    private void readPLTFields(DataInputStream ehs) throws IOException{
-	int length;
+    private void readPLT(DataInputStream ehs,byte[][] iplt)
+        throws IOException{
+        int curMarkSegLen;
+        int indx;
 
-	length = ehs.readUnsignedShort();
-	//Ignore all informations contained
-	ehs.skipBytes(length-2);
+        // Lplt (marker length)
+        curMarkSegLen = ehs.readUnsignedShort();
 
-        FacilityManager.getMsgLogger().
-            printmsg(MsgLogger.INFO,"Skipping unsupported PLT marker");
+        // Zplt (index of PLT marker)
+        indx = ehs.readUnsignedByte();
+
+        // Iplt fields
+        iplt[indx] = new byte[curMarkSegLen-3];
+        ehs.readFully(iplt[indx]);
+
+        // Check marker length
+        checkMarkerLength(ehs,"PLT marker");
+    }
+
+    /**
+     * Decodes packet lengths, each coded in 7 bit groups with the most
+     * significant first and the top bit set in all bytes but the last, as in
+     * the Iplt and Iplm fields.
+     *
+     * @param buf The coded packet lengths.
+     *
+     * @param len The number of bytes in 'buf'.
+     *
+     * @return The packet lengths.
+     * */
+    private static int[] decodePacketLengths(byte[] buf,int len) {
+        int n = 0;
+        for(int i=0; i<len; i++) {
+            if((buf[i]&0x80)==0) {
+                n++;
+            }
+        }
+        int[] lens = new int[n];
+        int v = 0;
+        n = 0;
+        for(int i=0; i<len; i++) {
+            v = (v<<7)|(buf[i]&0x7f);
+            if((buf[i]&0x80)==0) {
+                lens[n++] = v;
+                v = 0;
+            }
+        }
+        return lens;
+    }
+
+    /**
+     * Returns the length of each packet of a tile-part, as given by the PLT
+     * marker segments of its header.
+     *
+     * @param tile The index of the tile.
+     *
+     * @param tpIdx The index of the tile-part in the tile.
+     *
+     * @return The packet lengths, in codestream order, or null if the
+     * tile-part has not been read or has no PLT marker segment.
+     * */
+    public synchronized int[] getPacketLengths(int tile,int tpIdx) {
+        if(pLTPktLengths==null || pLTPktLengths[tile]==null ||
+           tpIdx>=pLTPktLengths[tile].length) {
+            return null;
+        }
+        return pLTPktLengths[tile][tpIdx];
+    }
+
+    /**
+     * Returns the length of each packet of each tile-part, as given by the
+     * PLM marker segments of the main header. The lengths of a tile-part
+     * continue from one Nplm and Iplm pair to the next only when the last
+     * length of the first pair is incomplete.
+     *
+     * @return The packet lengths of each tile-part, in codestream order, or
+     * null if there is no PLM marker segment.
+     * */
+    public synchronized int[][] getPLMPacketLengths() {
+        if(pLMPktLengths==null && pLMMarkerData!=null) {
+            ByteArrayOutputStream all = new ByteArrayOutputStream();
+            for(int i=0; i<pLMMarkerData.length; i++) {
+                if(pLMMarkerData[i]!=null) {
+                    all.write(pLMMarkerData[i],0,pLMMarkerData[i].length);
+                }
+            }
+            byte[] buf = all.toByteArray();
+            Vector<int[]> tileParts = new Vector<int[]>();
+            byte[] iplm = new byte[256];
+            int len = 0;
+            int off = 0;
+            while(off<buf.length) {
+                // Nplm
+                int nplm = buf[off++]&0xff;
+                nplm = Math.min(nplm,buf.length-off);
+                if(len+nplm>iplm.length) {
+                    byte[] tmp = new byte[2*(len+nplm)];
+                    System.arraycopy(iplm,0,tmp,0,len);
+                    iplm = tmp;
+                }
+                // Iplm
+                System.arraycopy(buf,off,iplm,len,nplm);
+                off += nplm;
+                len += nplm;
+                if(len>0 && (iplm[len-1]&0x80)==0) {
+                    tileParts.addElement(decodePacketLengths(iplm,len));
+                    len = 0;
+                }
+            }
+            pLMPktLengths = new int[tileParts.size()][];
+            tileParts.copyInto(pLMPktLengths);
+        }
+        return pLMPktLengths;
     }
 
     /**
@@ -1973,16 +2108,8 @@ public class HeaderDecoder implements ProgressionType, Markers,
             nfMarkSeg |= TLM_FOUND;
             break;
         case PLM:
-            if((nfMarkSeg & PLM_FOUND) != 0) {
-                throw new CorruptedCodestreamException("More than one PLM "+
-                                                      "marker "+
-                                                      "found in main header");
-            }
-            FacilityManager.getMsgLogger().
-                printmsg(MsgLogger.WARNING,"PLM marker segment found but "+
-                         "not used by by JJ2000 decoder.");
             nfMarkSeg |= PLM_FOUND;
-            htKey = "PLM";
+            htKey = "PLM"+(nPLMMarkSeg++);
             break;
         case POC:
             if( (nfMarkSeg&POC_FOUND)!=0) {
@@ -2131,10 +2258,8 @@ public class HeaderDecoder implements ProgressionType, Markers,
                                                        "though PLM marker "+
                                                        "found in main header");
             }
-            FacilityManager.getMsgLogger().
-                printmsg(MsgLogger.WARNING,"PLT marker segment found but "+
-                         "not used by JJ2000 decoder.");
-            htKey = "UNKNOWN";
+            nfMarkSeg |= PLT_FOUND;
+            htKey = "PLT"+(nPLTMarkSeg++);
             break;
         default:
             htKey = "UNKNOWN";
@@ -2240,6 +2365,14 @@ public class HeaderDecoder implements ProgressionType, Markers,
             }
         }
 
+        // PLM marker segments
+        if((nfMarkSeg&PLM_FOUND) != 0) {
+            for(int i=0;i<nPLMMarkSeg; i++) {
+                bais = new ByteArrayInputStream( (byte[])(ht.get("PLM"+i)));
+                readPLM(new DataInputStream(bais));
+            }
+        }
+
         // Reset the hashtable
         ht = null;
     }
@@ -2318,6 +2451,38 @@ public class HeaderDecoder implements ProgressionType, Markers,
             }
         }
 
+        // PLT marker segments
+        if((nfMarkSeg&PLT_FOUND) != 0) {
+            byte[][] iplt = new byte[256][];
+            for(int i=0;i<nPLTMarkSeg; i++) {
+                bais = new ByteArrayInputStream( (byte[])(ht.get("PLT"+i)) );
+                readPLT(new DataInputStream(bais),iplt);
+            }
+            ByteArrayOutputStream all = new ByteArrayOutputStream();
+            for(int i=0; i<iplt.length; i++) {
+                if(iplt[i]!=null) {
+                    all.write(iplt[i],0,iplt[i].length);
+                }
+            }
+            synchronized(this) {
+                if(pLTPktLengths==null) {
+                    pLTPktLengths = new int[nTiles][][];
+                }
+                if(pLTPktLengths[tileIdx]==null ||
+                   pLTPktLengths[tileIdx].length<=tpIdx) {
+                    int[][] tmp = new int[Math.max(tpIdx+1,
+                                                   nTileParts[tileIdx])][];
+                    if(pLTPktLengths[tileIdx]!=null) {
+                        System.arraycopy(pLTPktLengths[tileIdx],0,tmp,0,
+                                         pLTPktLengths[tileIdx].length);
+                    }
+                    pLTPktLengths[tileIdx] = tmp;
+                }
+                pLTPktLengths[tileIdx][tpIdx] =
+                    decodePacketLengths(all.toByteArray(),all.size());
+            }
+        }
+
         // Reset ht
         ht = null;
     }
@@ -2360,7 +2525,7 @@ public class HeaderDecoder implements ProgressionType, Markers,
 
 	this.hi = hi;
         this.j2krparam = j2krparam;
-        mainHeadOff = ehs.getPos();
+        mainHeadOff = ehs.getLongPos();
         if( ((short)ehs.readShort()) != Markers.SOC ) {
             throw new CorruptedCodestreamException("SOC marker segment not "+
                                                    " found at the "+
@@ -2374,7 +2539,7 @@ public class HeaderDecoder implements ProgressionType, Markers,
         do {
             extractMainMarkSeg(ehs.readShort(),ehs);
         } while ((nfMarkSeg & SOT_FOUND)==0); //Stop when SOT is found
-        ehs.seek(ehs.getPos()-2); // Realign codestream on SOT marker
+        ehs.seek(ehs.getLongPos()-2); // Realign codestream on SOT marker
 
         // Second pass: Read each marker segment previously found
         readFoundMainMarkSeg();
@@ -2519,6 +2684,7 @@ public class HeaderDecoder implements ProgressionType, Markers,
         nQCCMarkSeg = 0;
         nCOMMarkSeg = 0;
         nRGNMarkSeg = 0;
+        nPLTMarkSeg = 0;
     }
 
 
@@ -2564,7 +2730,7 @@ public class HeaderDecoder implements ProgressionType, Markers,
      * @exception IOException If an I/O error occurs while reading from the
      * encoder header stream
      * */
-     public ByteArrayInputStream getPackedPktHead(int tile)
+     public synchronized ByteArrayInputStream getPackedPktHead(int tile)
          throws IOException {
 
         if(pkdPktHeaders==null) {
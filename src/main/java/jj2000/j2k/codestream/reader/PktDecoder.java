@@ -786,8 +786,8 @@ public class PktDecoder implements StdEntropyCoderOptions{
         int tmp,tmp2,totnewtp,lblockCur,tpidx;
         int sumtotnewtp = 0;
         Point cbc;
-        int startPktHead = ehs.getPos();
-        if(startPktHead>=ehs.length()) {
+        long startPktHead = ehs.getLongPos();
+        if(startPktHead>=ehs.longLength()) {
             // EOF reached at the beginning of this packet head
             return true;
         }
@@ -837,7 +837,7 @@ public class PktDecoder implements StdEntropyCoderOptions{
             // unless ncb quit condition is used in which case headers
             // are not counted
             if(isTruncMode && maxCB == -1) {
-                tmp = ehs.getPos()-startPktHead;
+                tmp = (int)(ehs.getLongPos()-startPktHead);
                 if(tmp>nb[tIdx]) {
                     nb[tIdx] = 0;
                     return true;
@@ -1085,7 +1085,7 @@ public class PktDecoder implements StdEntropyCoderOptions{
                         // If truncation mode, checks if output rate is reached
                         // unless ncb and lbody quit contitions used.
                         if(isTruncMode && maxCB==-1) {
-                            tmp = ehs.getPos()-startPktHead;
+                            tmp = (int)(ehs.getLongPos()-startPktHead);
                             if(tmp>nb[tIdx]) {
                                 nb[tIdx] = 0;
                                 // Remove found information in this code-block
@@ -1127,7 +1127,7 @@ public class PktDecoder implements StdEntropyCoderOptions{
 
         // If truncation mode, checks if output rate is reached
         if(isTruncMode && maxCB == -1) {
-            tmp = ehs.getPos()-startPktHead;
+            tmp = (int)(ehs.getLongPos()-startPktHead);
             if(tmp>nb[tIdx]) {
                 nb[tIdx] = 0;
                 return true;
@@ -1138,6 +1138,54 @@ public class PktDecoder implements StdEntropyCoderOptions{
         return false;
     }
 
+    /**
+     * Accounts for a packet that the caller has skipped over without reading
+     * it, because its length is known from a PLT or PLM marker segment and
+     * none of its code-blocks are needed. The code-blocks of the precinct are
+     * given their geometry but no data, and the packet index used to check
+     * SOP marker segments is advanced.
+     *
+     * <P>All the packets of a precinct must be skipped if any of them is,
+     * since the tag-trees of the precinct are not updated.
+     *
+     * @param l layer index
+     *
+     * @param r Resolution level index
+     *
+     * @param c Component index
+     *
+     * @param p Precinct index
+     *
+     * @param cbI CBlkInfo array of relevant component and resolution
+     * level.
+     * */
+    public void skipPkt(int l,int r,int c,int p,CBlkInfo[][][] cbI) {
+        pktIdx++;
+        if(l!=0 || p>=ppinfo[c][r].length) {
+            return;
+        }
+        PrecInfo prec = ppinfo[c][r][p];
+        int mins = (r==0) ? 0 : 1;
+        int maxs = (r==0) ? 1 : 4;
+        for(int s=mins; s<maxs; s++) {
+            if(prec.nblk[s]==0 || prec.cblk[s]==null) {
+                continue;
+            }
+            for(int m=0; m<prec.cblk[s].length; m++) {
+                if(prec.cblk[s][m]==null) {
+                    continue;
+                }
+                for(int n=0; n<prec.cblk[s][m].length; n++) {
+                    CBlkCoordInfo cbc = prec.cblk[s][m][n];
+                    if(cbI[s][cbc.idx.y][cbc.idx.x]==null) {
+                        cbI[s][cbc.idx.y][cbc.idx.x] =
+                            new CBlkInfo(cbc.ulx,cbc.uly,cbc.w,cbc.h,nl);
+                    }
+                }
+            }
+        }
+    }
+
     /** 
      * Reads specificied packet body in order to find offset of each
      * code-block's piece of codeword. This use the list of found code-blocks
@@ -1161,7 +1209,7 @@ public class PktDecoder implements StdEntropyCoderOptions{
      * */
     public boolean readPktBody(int l,int r,int c,int p,CBlkInfo[][][] cbI,
                                int[] nb) throws IOException {
-        int curOff = ehs.getPos();
+        long curOff = ehs.getLongPos();
         Point curCB;
         CBlkInfo ccb;
         boolean stopRead = false;
@@ -1306,7 +1354,7 @@ public class PktDecoder implements StdEntropyCoderOptions{
         }
 
         // Check if SOP is used for this packet
-        int pos = ehs.getPos();
+        long pos = ehs.getLongPos();
         if( (short)((ehs.read()<<8) | ehs.read()) != Markers.SOP ) {
             ehs.seek(pos);
             return false;
@@ -59,7 +59,7 @@ public class PktInfo{
     public int layerIdx;
 
     /** The code-block offset in the codestream (for this packet) */
-    public int cbOff = 0;
+    public long cbOff = 0;
 
     /** The length of the code-block in this packet (in bytes) */
     public int cbLength;
@@ -0,0 +1,159 @@
+package jj2000.j2k.codestream.reader;
+
+import jj2000.j2k.entropy.decoder.DecLyrdCBlk;
+import jj2000.j2k.wavelet.synthesis.SubbandSyn;
+
+/**
+ * A bit stream reader agent which holds the compressed code-blocks of a
+ * single tile, copied from another agent. Once loaded it no longer touches
+ * the codestream, so the tile can be decoded by a separate decoding chain,
+ * for example on another thread, while the original agent moves on to the
+ * next tile.
+ *
+ * <P>All layers of every code-block needed for the requested resolution
+ * level are read when the tile is loaded, so only requests for all layers
+ * (<tt>fl</tt> of 1 and <tt>nl</tt> negative, as made by the entropy
+ * decoder) are supported.
+ *
+ * @author http://bfo.com
+ */
+public class TileBitstreamReaderAgent extends BitstreamReaderAgent {
+
+    /** The compressed code-blocks, indexed by [c][r][s][m][n] */
+    private DecLyrdCBlk[][][][][] cblks;
+
+    /**
+     * Create a new TileBitstreamReaderAgent sharing the headers of the
+     * specified agent. No tile is loaded until {@link #load} is called.
+     *
+     * @param src the agent that will be used to load tiles
+     */
+    public TileBitstreamReaderAgent(BitstreamReaderAgent src) {
+        super(src.hd, src.decSpec);
+        cblks = new DecLyrdCBlk[nc][][][][];
+    }
+
+    /**
+     * Load the current tile of the specified agent. The tile geometry and
+     * subband trees are copied, and the compressed data of every code-block
+     * required to reconstruct the tile at the specified resolution level is
+     * read from the agent. This must be called on the thread that owns the
+     * specified agent.
+     *
+     * @param src the agent to load the tile from; its current tile is used
+     * @param reslvl the image resolution level that will be decoded, as
+     * passed to <tt>InverseWT.setImgResLevel</tt>
+     */
+    public void load(BitstreamReaderAgent src, int reslvl) {
+        if (src.hd != hd) {
+            throw new IllegalArgumentException("Agent reads a different codestream");
+        }
+        ctX = src.ctX;
+        ctY = src.ctY;
+        targetRes = src.targetRes;
+        tnbytes = src.tnbytes;
+        anbytes = src.anbytes;
+        trate = src.trate;
+        arate = src.arate;
+        decWindow = src.decWindow;
+        decRes = src.decRes;
+        mdl = src.mdl.clone();
+        derived = src.derived.clone();
+        gb = src.gb.clone();
+        params = src.params.clone();
+        subbTrees = src.subbTrees.clone();
+        System.arraycopy(src.offX, 0, offX, 0, nc);
+        System.arraycopy(src.offY, 0, offY, 0, nc);
+        System.arraycopy(src.culx, 0, culx, 0, nc);
+        System.arraycopy(src.culy, 0, culy, 0, nc);
+
+        int maxImgRes = decSpec.dls.getMin();
+        for (int c=0;c<nc;c++) {
+            SubbandSyn root = subbTrees[c];
+            int maxr = reslvl - maxImgRes + root.resLvl;
+            if (cblks[c] == null || cblks[c].length != root.resLvl + 1) {
+                cblks[c] = new DecLyrdCBlk[root.resLvl + 1][4][][];
+            }
+            for (int r=0;r<=root.resLvl;r++) {
+                for (int s=0;s<4;s++) {
+                    if (r > maxr || (r == 0) != (s == 0)) {
+                        cblks[c][r][s] = null;
+                        continue;
+                    }
+                    SubbandSyn sb = (SubbandSyn)root.getSubbandByIdx(r, s);
+                    if (sb == null || sb.w == 0 || sb.h == 0) {
+                        cblks[c][r][s] = null;
+                        continue;
+                    }
+                    DecLyrdCBlk[][] blocks = cblks[c][r][s];
+                    if (blocks == null || blocks.length != sb.numCb.y || (blocks.length > 0 && blocks[0].length != sb.numCb.x)) {
+                        blocks = cblks[c][r][s] = new DecLyrdCBlk[sb.numCb.y][sb.numCb.x];
+                    }
+                    for (int m=0;m<sb.numCb.y;m++) {
+                        for (int n=0;n<sb.numCb.x;n++) {
+                            blocks[m][n] = src.getCodeBlock(c, m, n, sb, 1, -1, blocks[m][n]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes the current tile. As this agent only holds one tile, the
+     * indexes must be those of the loaded tile, otherwise an
+     * IllegalArgumentException is thrown.
+     *
+     * @param x The horizontal index of the tile.
+     *
+     * @param y The vertical index of the tile.
+     * */
+    public void setTile(int x, int y) {
+        if (mdl == null || x != ctX || y != ctY) {
+            throw new IllegalArgumentException("Tile "+x+"x"+y+" is not loaded");
+        }
+    }
+
+    /**
+     * Not supported, as this agent only holds one tile.
+     * */
+    public void nextTile() {
+        throw new IllegalStateException("Only one tile is loaded");
+    }
+
+    /**
+     * Returns the specified code-block of the loaded tile, with all the
+     * layers that were available when the tile was loaded. The returned
+     * object is owned by this agent and must not be modified; the
+     * <tt>ccb</tt> argument is ignored.
+     *
+     * @param c The index of the component, from 0 to N-1.
+     *
+     * @param m The vertical index of the code-block to return, in the
+     * specified subband.
+     *
+     * @param n The horizontal index of the code-block to return, in the
+     * specified subband.
+     *
+     * @param sb The subband in which the requested code-block is.
+     *
+     * @param fl The first layer to return, which must be 1.
+     *
+     * @param nl The number of layers to return, which must be negative.
+     *
+     * @param ccb Ignored.
+     *
+     * @return The compressed code-block.
+     * */
+    public DecLyrdCBlk getCodeBlock(int c, int m, int n, SubbandSyn sb, int fl, int nl, DecLyrdCBlk ccb) {
+        if (fl != 1 || nl >= 0) {
+            throw new IllegalArgumentException("Only all layers can be requested");
+        }
+        DecLyrdCBlk[][] blocks = cblks[c][sb.resLvl][sb.sbandIdx];
+        if (blocks == null) {
+            throw new IllegalArgumentException("Code-block (t:"+getTileIdx()+", c:"+c+", r:"+sb.resLvl+", s:"+sb.sbandIdx+", "+m+"x"+n+") not loaded");
+        }
+        return blocks[m][n];
+    }
+
+}
@@ -208,6 +208,51 @@ public abstract class CodestreamWriter {
     public abstract void commitBitstreamHeader(HeaderEncoder he)
         throws IOException;
 
+    /**
+     * Starts a tile-part whose packets are kept, rather than written to the
+     * bit stream, until commitTilePart() is called. The length of each packet
+     * written in the mean time is recorded, so that the tile-part header can
+     * contain them in PLT marker segments.
+     *
+     * @see #commitTilePart
+     * */
+    public abstract void startTilePart();
+
+    /**
+     * Returns the number of packets written since the tile-part was started.
+     *
+     * @return The number of packets in the current tile-part.
+     *
+     * @see #startTilePart
+     * */
+    public abstract int getNumTilePartPackets();
+
+    /**
+     * Returns the length of each packet written since the tile-part was
+     * started, head and body together. The array may be longer than the
+     * number of packets, and is only valid until the next tile-part is
+     * started.
+     *
+     * @return The lengths of the packets in the current tile-part.
+     *
+     * @see #getNumTilePartPackets
+     * */
+    public abstract int[] getTilePartPacketLengths();
+
+    /**
+     * Writes the tile-part header to the bit stream, followed by the packets
+     * that have been kept since the tile-part was started.
+     *
+     * @param he The encoder of the tile-part header.
+     *
+     * @exception IOException If an I/O error occurs while writing the data.
+     *
+     * @exception IllegalStateException If no tile-part was started.
+     *
+     * @see #startTilePart
+     * */
+    public abstract void commitTilePart(HeaderEncoder he) throws IOException;
+
     /**
      * Gives the offset of the end of last packet containing ROI information
      *
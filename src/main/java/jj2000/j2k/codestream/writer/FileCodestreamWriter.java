@@ -44,10 +44,12 @@
 package jj2000.j2k.codestream.writer;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 
 import jj2000.j2k.codestream.Markers;
 
@@ -102,6 +104,19 @@ public class FileCodestreamWriter extends CodestreamWriter
     /** Length of last packets containing no ROI information */
     private int lenLastNoROI = 0;
 
+    /** The stream where the bit stream is written while the packets of a
+     * tile-part are kept in 'tilePart', null otherwise */
+    private OutputStream destOut;
+
+    /** The packets of the current tile-part, if they are being kept */
+    private ByteArrayOutputStream tilePart;
+
+    /** The length of each packet of the current tile-part */
+    private int[] tilePartPktLens = new int[64];
+
+    /** The number of packets in the current tile-part */
+    private int tilePartPkts;
+
     /**
      * Opens the file 'file' for writing the bit stream, using the 'he' header
      * encoder. The magic number is written to the bit stream. Normally, the
@@ -254,6 +269,15 @@ public class FileCodestreamWriter extends CodestreamWriter
 	    }
 
             if(len > 0){
+                // Record the packet length, the body is added to it
+                if(destOut != null) {
+                    if(tilePartPkts == tilePartPktLens.length) {
+                        tilePartPktLens = Arrays.copyOf(tilePartPktLens,
+                                                        2*tilePartPkts);
+                    }
+                    tilePartPktLens[tilePartPkts++] = len;
+                }
+
                 // Write Start Of Packet header markers if necessary
                 if(sop){
                     // The first 4 bytes of the array have been filled in the
@@ -333,6 +357,9 @@ public class FileCodestreamWriter extends CodestreamWriter
             }
             // Update data length
             ndata += len;
+            if(destOut != null && tilePartPkts > 0) {
+                tilePartPktLens[tilePartPkts-1] += len;
+            }
 
             // Deal with ROI information
             if(roiInPkt) {
@@ -391,6 +418,68 @@ public class FileCodestreamWriter extends CodestreamWriter
         lenLastNoROI += he.getLength();
     }
 
+    /**
+     * Starts a tile-part whose packets are kept in memory until
+     * commitTilePart() is called, recording the length of each one. The SOP
+     * marker index restarts at 0, as the tile-part header is not committed
+     * before the packets.
+     * */
+    public void startTilePart() {
+        if(destOut == null) {
+            destOut = out;
+            if(tilePart == null) {
+                tilePart = new ByteArrayOutputStream();
+            }
+            out = tilePart;
+        }
+        tilePart.reset();
+        tilePartPkts = 0;
+        packetIdx = 0;
+    }
+
+    /**
+     * Returns the number of packets written since the tile-part was started.
+     *
+     * @return The number of packets in the current tile-part.
+     * */
+    public int getNumTilePartPackets() {
+        return tilePartPkts;
+    }
+
+    /**
+     * Returns the length of each packet written since the tile-part was
+     * started, head and body together. Only the first
+     * getNumTilePartPackets() elements are valid.
+     *
+     * @return The lengths of the packets in the current tile-part.
+     * */
+    public int[] getTilePartPacketLengths() {
+        return tilePartPktLens;
+    }
+
+    /**
+     * Writes the tile-part header, followed by the packets kept since the
+     * tile-part was started. Packets are then written directly again.
+     *
+     * @param he The encoder of the tile-part header.
+     *
+     * @exception IOException If an I/O error occurs while writing the data.
+     * */
+    public void commitTilePart(HeaderEncoder he) throws IOException {
+        if(destOut == null) {
+            throw new IllegalStateException("No tile-part started");
+        }
+        out = destOut;
+        destOut = null;
+        ndata += he.getLength();
+        he.writeTo(out);
+        tilePart.writeTo(out);
+        tilePart.reset();
+
+        // Deal with ROI information
+        lenLastNoROI += he.getLength();
+    }
+
     /**
      * Performs the initialisation of the arrays that are used to store the
      * values used to write SOP and EPH markers
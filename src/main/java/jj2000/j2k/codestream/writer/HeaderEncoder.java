@@ -148,6 +148,25 @@ public class HeaderEncoder implements Markers, StdEntropyCoderOptions {
     /** The encoder specifications */
     protected J2KWriteParam wp;
 
+    /** The maximum number of tiles in a TLM marker segment, which uses 6
+     * bytes for each */
+    private static final int TLM_MAX_TILES = (65535-4)/6;
+
+    /** The maximum number of packets in a PLT marker segment, which uses at
+     * most 5 bytes for each */
+    private static final int PLT_MAX_PKTS = (65535-3)/5;
+
+    /** The length of each tile, written in TLM marker segments in the main
+     * header, or null if they are not written */
+    private int[] tileLengths;
+
+    /** The length of each packet of the next tile-part, written in PLT marker
+     * segments in its header, or null if they are not written */
+    private int[] pktLengths;
+
+    /** The number of packets in 'pktLengths' */
+    private int numPkts;
+
     /**
      * Initializes the header writer with the references to the coding chain.
      *
@@ -198,6 +217,81 @@ public class HeaderEncoder implements Markers, StdEntropyCoderOptions {
         hbuf = new DataOutputStream(baos);
     }
 
+    /**
+     * Sets the length of each tile, which encodeMainHeader() writes in TLM
+     * marker segments. Each tile must be written as a single tile-part of
+     * that length, in order. The length of the main header increases by
+     * getTLMLength().
+     *
+     * @param tileLengths The length of each tile, or null not to write TLM
+     * marker segments, which is the default.
+     *
+     * @see #getTLMLength
+     * */
+    public void setTileLengths(int[] tileLengths) {
+        this.tileLengths = tileLengths;
+    }
+
+    /**
+     * Sets the length of each packet of the next tile-part, which
+     * encodeTilePartHeader() writes in PLT marker segments. The length of the
+     * tile-part header increases by getPLTLength().
+     *
+     * @param pktLengths The length of each packet, head and body together,
+     * or null not to write PLT marker segments, which is the default.
+     *
+     * @param numPkts The number of packets in the tile-part.
+     *
+     * @see #getPLTLength
+     * */
+    public void setPacketLengths(int[] pktLengths, int numPkts) {
+        this.pktLengths = pktLengths;
+        this.numPkts = numPkts;
+    }
+
+    /**
+     * Returns the length of the TLM marker segments for a number of tiles.
+     *
+     * @param nt The number of tiles.
+     *
+     * @return The length in bytes of the TLM marker segments.
+     * */
+    public static int getTLMLength(int nt) {
+        // Marker (2) + Ltlm (2) + Ztlm (1) + Stlm (1) for each segment,
+        // Ttlm (2) + Ptlm (4) for each tile
+        return 6*((nt+TLM_MAX_TILES-1)/TLM_MAX_TILES)+6*nt;
+    }
+
+    /**
+     * Returns the number of bytes used by the length of a packet in a PLT
+     * marker segment.
+     *
+     * @param pktLength The length of the packet.
+     *
+     * @return The length in bytes of the Iplt field.
+     * */
+    public static int getPLTEntryLength(int pktLength) {
+        int n = 1;
+        while((pktLength >>>= 7) != 0) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Returns the length of the PLT marker segments of a tile-part.
+     *
+     * @param numPkts The number of packets in the tile-part.
+     *
+     * @param entryLength The sum of the getPLTEntryLength() of each packet.
+     *
+     * @return The length in bytes of the PLT marker segments.
+     * */
+    public static int getPLTLength(int numPkts, int entryLength) {
+        // Marker (2) + Lplt (2) + Zplt (1) for each segment
+        return 5*((numPkts+PLT_MAX_PKTS-1)/PLT_MAX_PKTS)+entryLength;
+    }
+
     /**
      * Returns the byte-buffer used to store the codestream header.
      *
@@ -1516,7 +1610,9 @@ public class HeaderEncoder implements Markers, StdEntropyCoderOptions {
      * sequence of marker
      * segments:<ol><li>SOC</li><li>SIZ</li><li>COD</li><li>COC (if
      * needed)</li><li>QCD</li><li>QCC (if needed)</li><li>POC (if
-     * needed)</li></ol>
+     * needed)</li><li>TLM (if needed)</li><li>COM</li></ol>
+     *
+     * @see #setTileLengths
      * */
     public void encodeMainHeader() throws IOException {
         int i;
@@ -1585,12 +1681,89 @@ public class HeaderEncoder implements Markers, StdEntropyCoderOptions {
         if(prog.length>1)
             writePOC(true, 0);
 
+        // +--------------------------+
+        // |  Tile-part lengths (TLM) |
+        // +--------------------------+
+        if(tileLengths!=null)
+            writeTLM();
+
         // +--------------------------+
         // |      Comment (COM)       |
         // +--------------------------+
         writeCOM();
     }
 
+    /**
+     * Writes the TLM marker segments, giving the index and length of each
+     * tile-part, in the main header. Each tile is written as a single
+     * tile-part.
+     * */
+    private void writeTLM() throws IOException {
+        int nt = tileLengths.length;
+        int t = 0;
+
+        for(int z=0; t<nt; z++) {
+            int n = Math.min(nt-t,TLM_MAX_TILES);
+
+            // TLM marker
+            hbuf.writeShort(TLM);
+
+            // Ltlm: Ltlm (2) + Ztlm (1) + Stlm (1) + 6 bytes per tile
+            hbuf.writeShort(4+6*n);
+
+            // Ztlm
+            hbuf.write(z);
+
+            // Stlm: 16 bit Ttlm and 32 bit Ptlm
+            hbuf.write(0x60);
+
+            for(; n>0; n--, t++) {
+                hbuf.writeShort(t);
+                hbuf.writeInt(tileLengths[t]);
+            }
+        }
+    }
+
+    /**
+     * Writes the PLT marker segments, giving the length of each packet, in
+     * the tile-part header.
+     * */
+    private void writePLT() throws IOException {
+        int p = 0;
+
+        for(int z=0; p<numPkts; z++) {
+            if(z>255) {
+                throw new IllegalArgumentException("Too many packets in "+
+                                                   "tile-part for PLT marker "+
+                                                   "segments");
+            }
+            int n = Math.min(numPkts-p,PLT_MAX_PKTS);
+            int len = 0;
+            for(int i=p; i<p+n; i++) {
+                len += getPLTEntryLength(pktLengths[i]);
+            }
+
+            // PLT marker
+            hbuf.writeShort(PLT);
+
+            // Lplt: Lplt (2) + Zplt (1) + packet lengths
+            hbuf.writeShort(3+len);
+
+            // Zplt
+            hbuf.write(z);
+
+            // Iplt: 7 bits at a time, most significant first, with the top
+            // bit set in all but the last byte
+            for(; n>0; n--, p++) {
+                int v = pktLengths[p];
+                for(int s=7*(getPLTEntryLength(v)-1); s>0; s-=7) {
+                    hbuf.write(0x80|((v>>>s)&0x7f));
+                }
+                hbuf.write(v&0x7f);
+            }
+        }
+    }
+
     /**
      * Write a COM marker segment adding some comments to the codestream.
      *
@@ -1691,11 +1864,13 @@ public class HeaderEncoder implements Markers, StdEntropyCoderOptions {
      * following sequence of marker segments:<ol> <li>SOT</li> <li>COD (if
      * needed)</li> <li>COC (if needed)</li> <li>QCD (if needed)</li> <li>QCC
      * (if needed)</li> <li>RGN (if needed)</li> <li>POC (if needed)</li>
-     * <li>SOD</li> </ol>
+     * <li>PLT (if needed)</li> <li>SOD</li> </ol>
      *
      * @param length The length of the current tile-part.
      *
      * @param tileIdx Index of the tile to write
+     *
+     * @see #setPacketLengths
      * */
     public void encodeTilePartHeader(int tileLength,int tileIdx)
         throws IOException {
@@ -1851,6 +2026,12 @@ public class HeaderEncoder implements Markers, StdEntropyCoderOptions {
                 writePOC(false,tileIdx);
         }
 
+	// +--------------------------+
+        // |    PLT maker segment     |
+	// +--------------------------+
+        if(pktLengths!=null)
+            writePLT();
+
 	// +--------------------------+
         // |         SOD maker        |
 	// +--------------------------+
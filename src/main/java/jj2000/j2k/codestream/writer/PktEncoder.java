@@ -1070,6 +1070,22 @@ public class PktEncoder {
      * @see #restore
      * */
     public void save() {
+        save(0,ttIncl.length);
+    }
+
+    /**
+     * Saves the current state of this object for a range of tiles only. The
+     * last saved state of those tiles can be restored with the restore(int,
+     * int) method. The state of the other tiles must not change in the
+     * meantime.
+     *
+     * @param ts The index of the first tile to save
+     *
+     * @param te The index of the first tile not to save
+     *
+     * @see #restore(int,int)
+     * */
+    public void save(int ts,int te) {
         int maxsbi,minsbi;
 
         // Have we done any save yet?
@@ -1116,7 +1132,7 @@ public class PktEncoder {
             bak_prevtIdxs_t_c_r[][];
 
         // Loop on tiles
-        for (int t=ttIncl.length-1; t>=0; t--) {
+        for (int t=te-1; t>=ts; t--) {
             // Loop on components
             for (int c=ttIncl[t].length-1; c>=0; c--) {
                 // Initialize reference caches
@@ -1172,6 +1188,21 @@ public class PktEncoder {
      * @see #save
      * */
     public void restore() {
+        restore(0,ttIncl.length);
+    }
+
+    /**
+     * Restores the last saved state of this object for a range of tiles,
+     * which must have been saved by save(int,int) or save(). An
+     * IllegalArgumentException is thrown if no state has been saved.
+     *
+     * @param ts The index of the first tile to restore
+     *
+     * @param te The index of the first tile not to restore
+     *
+     * @see #save(int,int)
+     * */
+    public void restore(int ts,int te) {
         int maxsbi,minsbi;
 
         if (!saved) {
@@ -1190,7 +1221,7 @@ public class PktEncoder {
             bak_prevtIdxs_t_c_r[][];
 
         // Loop on tiles
-        for (int t=ttIncl.length-1; t>=0; t--) {
+        for (int t=te-1; t>=ts; t--) {
             // Loop on components
             for (int c=ttIncl[t].length-1; c>=0; c--) {
                 // Initialize reference caches
@@ -1240,6 +1271,18 @@ public class PktEncoder {
      * was just created.
      * */
     public void reset() {
+        reset(0,ttIncl.length);
+    }
+
+    /**
+     * Resets the state of a range of tiles to the initial state, as if the
+     * object was just created. Any saved state is invalidated.
+     *
+     * @param ts The index of the first tile to reset
+     *
+     * @param te The index of the first tile not to reset
+     * */
+    public void reset(int ts,int te) {
         int maxsbi,minsbi;
 
         // Invalidate save
@@ -1255,7 +1298,7 @@ public class PktEncoder {
         int lblock_t_c[][][],prevtIdxs_t_c_r[][];
 
         // Loop on tiles
-        for (int t=ttIncl.length-1; t>=0; t--) {
+        for (int t=te-1; t>=ts; t--) {
             // Loop on components
             for (int c=ttIncl[t].length-1; c>=0; c--) {
                 // Initialize reference caches
@@ -0,0 +1,181 @@
+package jj2000.j2k.entropy.decoder;
+
+import java.util.*;
+
+import jj2000.j2k.image.DataBlk;
+
+/**
+ * A cache of entropy decoded code-blocks, used by {@link StdEntropyDecoder}
+ * so that code-blocks which have already been decoded are not decoded
+ * again, for example when the same tiles are decoded at a higher
+ * resolution level after a lower one. The cache may be shared by several
+ * decoders, on the same or different codestreams, and is thread-safe.
+ *
+ * <P>Each entry is keyed on the codestream, tile, component, subband,
+ * code-block and number of quality layers. When the total size of the
+ * cached data exceeds the byte budget, the least recently used entries are
+ * discarded.
+ *
+ * @author http://bfo.com
+ */
+public class CodeBlockCache {
+
+    private final long maxSize;
+    private final LinkedHashMap<Key,DataBlk> map;
+    private long size, hits, misses, evictions;
+
+    /**
+     * Create a new CodeBlockCache
+     *
+     * @param maxSize the maximum number of bytes of decoded data to hold
+     */
+    public CodeBlockCache(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Negative size");
+        }
+        this.maxSize = maxSize;
+        this.map = new LinkedHashMap<Key,DataBlk>(16, 0.75f, true);
+    }
+
+    /**
+     * Return the cached code-block, or null if it is not in the cache. The
+     * returned block must not be modified.
+     *
+     * @param codestream the codestream, compared by identity
+     * @param t the index of the tile
+     * @param c the index of the component
+     * @param r the resolution level of the subband
+     * @param s the index of the subband in its resolution level
+     * @param m the vertical index of the code-block in the subband
+     * @param n the horizontal index of the code-block in the subband
+     * @param nl the number of quality layers the code-block was decoded from
+     */
+    public synchronized DataBlk get(Object codestream, int t, int c, int r, int s, int m, int n, int nl) {
+        DataBlk blk = map.get(new Key(codestream, t, c, r, s, m, n, nl));
+        if (blk == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return blk;
+    }
+
+    /**
+     * Add a decoded code-block to the cache, discarding the least recently
+     * used entries if the cache is then over budget. The block must not be
+     * modified once added. Blocks larger than the budget are not added.
+     *
+     * @param codestream the codestream, compared by identity
+     * @param t the index of the tile
+     * @param c the index of the component
+     * @param r the resolution level of the subband
+     * @param s the index of the subband in its resolution level
+     * @param m the vertical index of the code-block in the subband
+     * @param n the horizontal index of the code-block in the subband
+     * @param nl the number of quality layers the code-block was decoded from
+     * @param blk the decoded code-block, with an offset of 0 and a scan
+     * width equal to its width
+     */
+    public synchronized void put(Object codestream, int t, int c, int r, int s, int m, int n, int nl, DataBlk blk) {
+        long blksize = sizeOf(blk);
+        if (blksize > maxSize) {
+            return;
+        }
+        DataBlk old = map.put(new Key(codestream, t, c, r, s, m, n, nl), blk);
+        if (old != null) {
+            size -= sizeOf(old);
+        }
+        size += blksize;
+        for (Iterator<DataBlk> i = map.values().iterator(); size > maxSize && i.hasNext(); ) {
+            size -= sizeOf(i.next());
+            i.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Remove every entry from the cache. The counters are not reset.
+     */
+    public synchronized void clear() {
+        map.clear();
+        size = 0;
+    }
+
+    /**
+     * Return the maximum number of bytes of decoded data held by the cache
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Return the number of bytes of decoded data currently held by the cache
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Return the number of calls to {@link #get} that found an entry
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Return the number of calls to {@link #get} that found no entry
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Return the number of entries discarded to keep the cache within budget
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    private static long sizeOf(DataBlk blk) {
+        return (long)blk.w * blk.h * (DataBlk.getSize(blk.getDataType()) >> 3);
+    }
+
+    public String toString() {
+        return "{CodeBlockCache: size="+getSize()+"/"+maxSize+" hits="+getHitCount()+" misses="+getMissCount()+" evictions="+getEvictionCount()+"}";
+    }
+
+    private static final class Key {
+        final Object codestream;
+        final int t, c, r, s, m, n, nl;
+
+        Key(Object codestream, int t, int c, int r, int s, int m, int n, int nl) {
+            this.codestream = codestream;
+            this.t = t;
+            this.c = c;
+            this.r = r;
+            this.s = s;
+            this.m = m;
+            this.n = n;
+            this.nl = nl;
+        }
+
+        public int hashCode() {
+            int h = System.identityHashCode(codestream);
+            h = h * 31 + t;
+            h = h * 31 + c;
+            h = h * 31 + (r << 2 | s);
+            h = h * 31 + m;
+            h = h * 31 + n;
+            return h * 31 + nl;
+        }
+
+        public boolean equals(Object o) {
+            if (o instanceof Key) {
+                Key k = (Key)o;
+                return k.codestream == codestream && k.t == t && k.c == c && k.r == r && k.s == s && k.m == m && k.n == n && k.nl == nl;
+            }
+            return false;
+        }
+    }
+
+}
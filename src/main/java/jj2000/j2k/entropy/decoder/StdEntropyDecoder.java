@@ -47,8 +47,11 @@ import jj2000.j2k.entropy.StdEntropyCoderOptions;
 import jj2000.j2k.image.DataBlk;
 import jj2000.j2k.image.DataBlkInt;
 import jj2000.j2k.util.ArrayUtil;
+import jj2000.j2k.util.BufferPool;
+import jj2000.j2k.util.BufferPoolUser;
 import jj2000.j2k.util.FacilityManager;
 import jj2000.j2k.util.MsgLogger;
+import jj2000.j2k.util.ThreadPool;
 import jj2000.j2k.wavelet.Subband;
 import jj2000.j2k.wavelet.synthesis.SubbandSyn;
 
@@ -66,6 +69,18 @@ import jj2000.j2k.wavelet.synthesis.SubbandSyn;
  * are used for zero-coding (ZC), contexts 11-15 are used for sign-coding (SC)
  * and contexts 16-18 are used for magnitude-refinement (MR).
  *
+ * <P>If the Java system property named by THREADS_PROP_NAME is set to a
+ * positive number a multithreaded implementation is used. When a code-block
+ * of a row of code-blocks of a subband is first requested all the code-blocks
+ * of that row are read from the source and decoded in the thread pool, each
+ * thread with its own MQ decoder and state, while the calling thread decodes
+ * them too. The code-blocks of the row are then returned in whatever order
+ * they are requested. As only one row is held at a time, the memory used is
+ * bounded as it is for the single threaded implementation when the inverse
+ * wavelet transform takes the code-blocks a row at a time, but no more
+ * code-blocks than are in a row are decoded at once. The decoded data is the
+ * same in both implementations.
+ *
  * <P>This implementation also provides some timing features. They can be
  * enabled by setting the 'DO_TIMING' constant of this class to true and
  * recompiling. The timing uses the 'System.currentTimeMillis()' Java API
@@ -78,7 +93,7 @@ import jj2000.j2k.wavelet.synthesis.SubbandSyn;
  * should be negligeable.
  * */
 public class StdEntropyDecoder extends EntropyDecoder
-    implements StdEntropyCoderOptions {
+    implements StdEntropyCoderOptions, BufferPoolUser {
 
     /** Whether to collect timing information or not: false. Used as a compile
      * time directive. */
@@ -88,24 +103,74 @@ public class StdEntropyDecoder extends EntropyDecoder
      * component. */
     private long time[];
 
-    /** The bit based input for arithmetic coding bypass (i.e. raw) coding */
-    private ByteToBitInput bin;
+    /** The Java system property name for the number of threads to use:
+     jj2000.j2k.entropy.decoder.StdEntropyDecoder.nthreads */
+    public static final String THREADS_PROP_NAME =
+        "jj2000.j2k.entropy.decoder.StdEntropyDecoder.nthreads";
+
+    /** The default value for the property in THREADS_PROP_NAME: 0 */
+    public static final String DEF_THREADS_NUM = "0";
+
+    /** The increase in priority for the decompressor threads, currently
+     * 0. Used only in the multi-threaded implementation. */
+    public static final int THREADS_PRIORITY_INC = 0;
+
+    /** The pool of threads for the threaded implementation, shared by all
+     * decoders so that threads are not leaked as decoders are discarded. It
+     * is created on first use. */
+    private static ThreadPool tPool;
+
+    /** The decompressor used by the calling thread */
+    private final Decompressor local;
+
+    /** The decompressors run in the thread pool. It is null if the non
+     * threaded implementation is used. */
+    private final Decompressor threadComps[];
+
+    /** The lock for all the batch variables below, which is notified when
+     * a code-block of the batch has been decoded or a decompressor becomes
+     * idle. */
+    private final Object batchLock = new Object();
+
+    /** The component of the current batch of code-blocks, or -1 if none */
+    private int batchC = -1;
+
+    /** The tile of the current batch of code-blocks */
+    private int batchT;
+
+    /** The subband of the current batch of code-blocks */
+    private SubbandSyn batchSb;
+
+    /** The row of code-blocks, in the subband, of the current batch */
+    private int batchM;
+
+    /** The entropy coding options of the current batch */
+    private int batchOptions;
 
-    /** The MQ decoder to use. It has in as the underlying source of coded
-     * data. */
-    private MQDecoder mq;
+    /** The coded code-blocks of the current batch, from left to right */
+    private DecLyrdCBlk batchSrc[];
+
+    /** The decoded code-blocks of the current batch, from left to right */
+    private DataBlkInt batchOut[];
+
+    /** Whether each code-block of the current batch has been decoded */
+    private boolean batchDone[];
+
+    /** The number of code-blocks in the current batch */
+    private int batchLen;
+
+    /** The index of the next code-block in the batch to decode */
+    private int batchNext;
+
+    /** The first error thrown while decoding the current batch, or null */
+    private Throwable batchError;
+
+    /** The number of decompressors running in the thread pool */
+    private int nBusyComps;
 
     /** The decoder spec */
     private DecoderSpecs decSpec;
 
-    /** The options that are turned on, as flag bits. The options are
-     * 'OPT_TERM_PASS', 'OPT_RESET_MQ', 'OPT_VERT_STR_CAUSAL', 'OPT_BYPASS' and
-     * 'OPT_SEG_SYMBOLS' as defined in the StdEntropyCoderOptions interface
-     *
-     * @see StdEntropyCoderOptions
-     **/
-    private int options;
-
     /** Flag to indicate if we should try to detect errors or just ignore any
      * error resilient information */
     private final boolean doer;
@@ -174,41 +239,6 @@ public class StdEntropyDecoder extends EntropyDecoder
         1010) */
     private static final int SEG_SYMBOL = 10;
 
-    /**
-     * The state array for entropy coding. Each element of the state array
-     * stores the state of two coefficients. The lower 16 bits store the state
-     * of a coefficient in row 'i' and column 'j', while the upper 16 bits
-     * store the state of a coefficient in row 'i+1' and column 'j'. The 'i'
-     * row is either the first or the third row of a stripe. This packing of
-     * the states into 32 bit words allows a faster scan of all coefficients
-     * on each coding pass and diminished the amount of data transferred. The
-     * size of the state array is increased by 1 on each side (top, bottom,
-     * left, right) to handle boundary conditions without any special logic.
-     *
-     * <P>The state of a coefficient is stored in the following way in the
-     * lower 16 bits, where bit 0 is the least significant bit. Bit 15 is the
-     * significance of a coefficient (0 if non-significant, 1 otherwise). Bit
-     * 14 is the visited state (i.e. if a coefficient has been coded in the
-     * significance propagation pass of the current bit-plane). Bit 13 is the
-     * "non zero-context" state (i.e. if one of the eight immediate neighbors
-     * is significant it is 1, otherwise is 0). Bits 12 to 9 store the sign of
-     * the already significant left, right, up and down neighbors (1 for
-     * negative, 0 for positive or not yet significant). Bit 8 indicates if
-     * the magnitude refinement has already been applied to the
-     * coefficient. Bits 7 to 4 store the significance of the left, right, up
-     * and down neighbors (1 for significant, 0 for non significant). Bits 3
-     * to 0 store the significance of the diagonal coefficients (up-left,
-     * up-right, down-left and down-right; 1 for significant, 0 for non
-     * significant).
-     *
-     * <P>The upper 16 bits the state is stored as in the lower 16 bits,
-     * but with the bits shifted up by 16.
-     *
-     * <P>The lower 16 bits are referred to as "row 1" ("R1") while the upper
-     * 16 bits are referred to as "row 2" ("R2").
-     * */
-    private final int state[];
-
     /** The separation between the upper and lower bits in the state array: 16
      * */
     private static final int STATE_SEP = 16;
@@ -384,6 +414,16 @@ public class StdEntropyDecoder extends EntropyDecoder
     /** The maximum number of bit planes to decode for any code-block */
     private int mQuit;
 
+    /** The cache of decoded code-blocks, or null if none is used */
+    private CodeBlockCache cache;
+
+    /** The pool the state arrays and the data array of 'srcblk' are taken
+     * from, or null */
+    private BufferPool pool;
+
+    /** The codestream this decoder reads, identifying it in the cache */
+    private Object cacheKey;
+
     /** Static initializer: initializes all the lookup tables. */
     static {
         int i,j;
@@ -625,9 +665,143 @@ public class StdEntropyDecoder extends EntropyDecoder
 //            System.runFinalizersOnExit(true);
         }
 
+        // Get the number of threads to use, or default to none
+        int nt;
+        try {
+            try {
+                nt = Integer.parseInt(System.getProperty(THREADS_PROP_NAME,
+                                                         DEF_THREADS_NUM));
+            } catch(SecurityException se) {
+                // Use the default value.
+                nt = Integer.parseInt(DEF_THREADS_NUM);
+            }
+            if (nt < 0) throw new NumberFormatException();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number of threads "+
+                                               "for "+
+                                               "entropy decoding in property "+
+                                               THREADS_PROP_NAME);
+        }
+
         // Initialize internal variables
-        state = new int[(decSpec.cblks.getMaxCBlkWidth()+2) *
-                       ((decSpec.cblks.getMaxCBlkHeight()+1)/2+2)];
+        local = new Decompressor();
+        if (nt > 0) {
+            synchronized (StdEntropyDecoder.class) {
+                if (tPool == null) {
+                    tPool = new ThreadPool(nt,Thread.currentThread().
+                                           getPriority()+THREADS_PRIORITY_INC,
+                                           "StdEntropyDecoder");
+                }
+            }
+            threadComps = new Decompressor[nt];
+            for (int i=0; i<nt; i++) {
+                threadComps[i] = new Decompressor();
+            }
+        }
+        else {
+            threadComps = null;
+        }
+    }
+
+    /**
+     * Class that holds the state needed to decode a code-block, so that
+     * several code-blocks can be decoded at once. In the multithreaded
+     * implementation it also decodes the code-blocks of the current batch
+     * when run in the thread pool.
+     * */
+    private class Decompressor implements Runnable {
+
+        /** The MQ decoder to use. It is reset for each code-block. */
+        final MQDecoder mq;
+
+        /** The bit based input for arithmetic coding bypass (i.e. raw)
+         * coding. It reads from the same buffer as 'mq'. */
+        final ByteToBitInput bin;
+
+        /**
+         * The state array for entropy coding. Each element of the state array
+         * stores the state of two coefficients. The lower 16 bits store the state
+         * of a coefficient in row 'i' and column 'j', while the upper 16 bits
+         * store the state of a coefficient in row 'i+1' and column 'j'. The 'i'
+         * row is either the first or the third row of a stripe. This packing of
+         * the states into 32 bit words allows a faster scan of all coefficients
+         * on each coding pass and diminished the amount of data transferred. The
+         * size of the state array is increased by 1 on each side (top, bottom,
+         * left, right) to handle boundary conditions without any special logic.
+         *
+         * <P>The state of a coefficient is stored in the following way in the
+         * lower 16 bits, where bit 0 is the least significant bit. Bit 15 is the
+         * significance of a coefficient (0 if non-significant, 1 otherwise). Bit
+         * 14 is the visited state (i.e. if a coefficient has been coded in the
+         * significance propagation pass of the current bit-plane). Bit 13 is the
+         * "non zero-context" state (i.e. if one of the eight immediate neighbors
+         * is significant it is 1, otherwise is 0). Bits 12 to 9 store the sign of
+         * the already significant left, right, up and down neighbors (1 for
+         * negative, 0 for positive or not yet significant). Bit 8 indicates if
+         * the magnitude refinement has already been applied to the
+         * coefficient. Bits 7 to 4 store the significance of the left, right, up
+         * and down neighbors (1 for significant, 0 for non significant). Bits 3
+         * to 0 store the significance of the diagonal coefficients (up-left,
+         * up-right, down-left and down-right; 1 for significant, 0 for non
+         * significant).
+         *
+         * <P>The upper 16 bits the state is stored as in the lower 16 bits,
+         * but with the bits shifted up by 16.
+         *
+         * <P>The lower 16 bits are referred to as "row 1" ("R1") while the upper
+         * 16 bits are referred to as "row 2" ("R2").
+         * */
+        private int state[];
+
+        /**
+         * Creates a new decompressor.
+         * */
+        Decompressor() {
+            mq = new MQDecoder(new ByteInputBuffer(new byte[0],0,0),
+                               NUM_CTXTS,MQ_INIT);
+            bin = new ByteToBitInput(mq.getByteInputBuffer());
+        }
+
+        /**
+         * Returns the state buffer, large enough for the biggest code-block,
+         * which is allocated or taken from the pool when first needed.
+         * */
+        int[] getState() {
+            if (state == null) {
+                int len = (decSpec.cblks.getMaxCBlkWidth()+2) *
+                    ((decSpec.cblks.getMaxCBlkHeight()+1)/2+2);
+                state = pool!=null ? pool.getInt(len) : new int[len];
+            }
+            return state;
+        }
+
+        /**
+         * Returns the state buffer to the pool, if any.
+         * */
+        void releaseState() {
+            if (pool!=null) {
+                pool.release(state);
+            }
+            state = null;
+        }
+
+        /**
+         * Decodes code-blocks of the current batch until none is left to
+         * start, then marks this decompressor as idle, even if exceptions
+         * occurred.
+         * */
+        public void run() {
+            try {
+                while (decodeNextInBatch(this)) {
+                }
+            }
+            finally {
+                synchronized (batchLock) {
+                    nBusyComps--;
+                    batchLock.notifyAll();
+                }
+            }
+        }
     }
 
     /**
@@ -700,6 +874,378 @@ public class StdEntropyDecoder extends EntropyDecoder
     public DataBlk getCodeBlock(int c, int m, int n, SubbandSyn sb,
                                 DataBlk cblk) {
         long stime = 0L;  // Start time for timed sections
+
+        if (threadComps == null) { // Use single threaded implementation
+            DataBlkInt cached = getCached(c,m,n,sb);
+            if (cached != null) {
+                return copyCodeBlock(cached,cblk);
+            }
+
+            // Get the code-block to decode
+            if (srcblk == null && pool != null) {
+                // Otherwise the source allocates the data array
+                srcblk = new DecLyrdCBlk();
+                srcblk.data = pool.getByte(decSpec.cblks.getMaxCBlkWidth()*
+                                           decSpec.cblks.getMaxCBlkHeight());
+            }
+            srcblk = src.getCodeBlock(c,m,n,sb,1,-1,srcblk);
+            if (DO_TIMING) stime = System.currentTimeMillis();
+
+            // Retrieve options from decSpec
+            int options = ((Integer)decSpec.ecopts.
+                           getTileCompVal(tIdx,c)).intValue();
+
+            cblk = decodeCodeBlock(m,n,sb,cblk,srcblk,options,local);
+            if (DO_TIMING) time[c] += System.currentTimeMillis()-stime;
+            putCached(c,m,n,sb,srcblk,(DataBlkInt)cblk);
+            return cblk;
+        }
+
+        // Use multithreaded implementation: all the code-blocks of the row
+        // are read and decoded as a batch, and returned as requested
+        if (c != batchC || tIdx != batchT || sb != batchSb || m != batchM) {
+            startBatch(c,sb,m);
+        }
+        int idx = n;
+        boolean interrupted = false;
+        while (true) {
+            synchronized (batchLock) {
+                if (batchDone[idx]) {
+                    break;
+                }
+                if (batchNext >= batchLen) {
+                    // All started, wait for the one we need
+                    try {
+                        batchLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                    continue;
+                }
+            }
+            // Help decode the batch, in order, until we get ours
+            decodeNextInBatch(local);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (batchError instanceof RuntimeException) {
+            throw (RuntimeException)batchError;
+        } else if (batchError instanceof Error) {
+            throw (Error)batchError;
+        }
+
+        // Return a copy of the decoded code-block
+        return copyCodeBlock(batchOut[idx],cblk);
+    }
+
+    /**
+     * Copies a decoded code-block, as returned by 'getCodeBlock()'.
+     *
+     * @param dec The decoded code-block, with an offset of 0 and a scan
+     * width equal to its width.
+     *
+     * @param cblk If non-null this object will be used to return the copy,
+     * reusing its data array if possible. If null a new one is allocated.
+     *
+     * @return The copy.
+     * */
+    private static DataBlk copyCodeBlock(DataBlkInt dec, DataBlk cblk) {
+        if (cblk==null) {
+            cblk = new DataBlkInt();
+        }
+        cblk.progressive = dec.progressive;
+        cblk.ulx = dec.ulx;
+        cblk.uly = dec.uly;
+        cblk.w = dec.w;
+        cblk.h = dec.h;
+        cblk.offset = 0;
+        cblk.scanw = cblk.w;
+        int out_data[] = (int[])cblk.getData();
+        if (out_data == null || out_data.length < dec.w*dec.h) {
+            out_data = new int[dec.w*dec.h];
+            cblk.setData(out_data);
+        }
+        System.arraycopy(dec.data,0,out_data,0,dec.w*dec.h);
+        return cblk;
+    }
+
+    /**
+     * Sets the cache of decoded code-blocks to use. Code-blocks found in the
+     * cache are neither read from the source nor decoded, and code-blocks
+     * that are decoded from all their data are added to it. As the cache is
+     * keyed on the number of quality layers in the tile, it must only be
+     * used when the source returns every layer of each code-block, with no
+     * limit on the decoding rate, and no limit on the number of bit-planes
+     * may be set for this decoder.
+     *
+     * @param cache The cache to use, or null to use none.
+     *
+     * @param codestream An object identifying the codestream read by the
+     * source, which is compared by identity. Decoders reading the same
+     * codestream share the cache entries if they use the same object.
+     *
+     * @exception IllegalStateException If a limit on the number of
+     * bit-planes is set for this decoder.
+     * */
+    public void setCodeBlockCache(CodeBlockCache cache, Object codestream) {
+        if (cache != null && codestream == null) {
+            throw new IllegalArgumentException("No codestream");
+        }
+        if (cache != null && mQuit != -1) {
+            throw new IllegalStateException("Number of bit-planes is limited");
+        }
+        if (threadComps != null) endBatch();
+        this.cache = cache;
+        this.cacheKey = codestream;
+    }
+
+    /**
+     * Sets the pool the state arrays of the decompressors, and the array the
+     * coded data of each code-block is read into, are taken from. They are
+     * returned to it by {@link #releaseBuffers}.
+     *
+     * @param pool The pool to use, or null to allocate the arrays as needed
+     * (the default).
+     * */
+    public void setBufferPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the state arrays of the decompressors, and the array the coded
+     * data of each code-block is read into, to the pool set by {@link
+     * #setBufferPool}, if any. The batches of the multithreaded
+     * implementation are not pooled.
+     * */
+    public void releaseBuffers() {
+        if (threadComps != null) {
+            endBatch();
+            for (int i=0; i<threadComps.length; i++) {
+                threadComps[i].releaseState();
+            }
+        }
+        local.releaseState();
+        if (pool != null && srcblk != null) {
+            pool.release(srcblk.data);
+        }
+        srcblk = null;
+    }
+
+    /**
+     * Returns the specified code-block of the current tile from the cache,
+     * if any.
+     *
+     * @return The cached code-block, which must not be modified, or null if
+     * not found or no cache is used.
+     * */
+    private DataBlkInt getCached(int c, int m, int n, SubbandSyn sb) {
+        if (cache == null) {
+            return null;
+        }
+        int nl = ((Integer)decSpec.nls.getTileDef(tIdx)).intValue();
+        return (DataBlkInt)cache.get(cacheKey,tIdx,c,sb.resLvl,sb.sbandIdx,
+                                     m,n,nl);
+    }
+
+    /**
+     * Adds a copy of a decoded code-block of the current tile to the cache,
+     * if one is used and the code-block was decoded from all its data. Code
+     * blocks which the source returned no layers for, because they are
+     * outside the decoding window or were not read, are not added.
+     * */
+    private void putCached(int c, int m, int n, SubbandSyn sb,
+                           DecLyrdCBlk srcblk, DataBlkInt dec) {
+        if (cache == null || srcblk.nl == 0 || dec.progressive) {
+            return;
+        }
+        int nl = ((Integer)decSpec.nls.getTileDef(tIdx)).intValue();
+        cache.put(cacheKey,tIdx,c,sb.resLvl,sb.sbandIdx,m,n,nl,
+                  copyCodeBlock(dec,null));
+    }
+
+    /**
+     * Starts a new batch with all the code-blocks of the specified row of
+     * code-blocks of a subband, once any decompressors still running on the
+     * previous batch have
+     * finished. The coded code-blocks are read from the source by the
+     * calling thread, and as many idle threads of the pool as are useful are
+     * started on the batch.
+     *
+     * @param c The component of the subband.
+     *
+     * @param sb The subband.
+     *
+     * @param m The vertical index of the row of code-blocks in the subband.
+     * */
+    private void startBatch(int c, SubbandSyn sb, int m) {
+        endBatch();
+
+        int len = sb.numCb.x;
+        if (batchSrc == null || batchSrc.length < len) {
+            DecLyrdCBlk nsrc[] = new DecLyrdCBlk[len];
+            DataBlkInt nout[] = new DataBlkInt[len];
+            if (batchSrc != null) {
+                System.arraycopy(batchSrc,0,nsrc,0,batchSrc.length);
+                System.arraycopy(batchOut,0,nout,0,batchOut.length);
+            }
+            batchSrc = nsrc;
+            batchOut = nout;
+            batchDone = new boolean[len];
+        }
+        for (int i=0; i<len; i++) {
+            if (batchOut[i] == null) {
+                batchOut[i] = new DataBlkInt();
+            }
+            DataBlkInt cached = getCached(c,m,i,sb);
+            if (cached != null) {
+                // Not read nor decoded, the cached copy is returned
+                copyCodeBlock(cached,batchOut[i]);
+                batchDone[i] = true;
+                continue;
+            }
+            batchSrc[i] = src.getCodeBlock(c,m,i,sb,1,-1,batchSrc[i]);
+            batchDone[i] = false;
+        }
+
+        synchronized (batchLock) {
+            batchC = c;
+            batchT = tIdx;
+            batchSb = sb;
+            batchM = m;
+            batchOptions = ((Integer)decSpec.ecopts.
+                            getTileCompVal(tIdx,c)).intValue();
+            batchLen = len;
+            batchNext = 0;
+            batchError = null;
+        }
+        // The calling thread decodes too, so one less is needed. The
+        // decompressors notify the batch lock themselves when done.
+        for (int i=0; i<threadComps.length && i<len-1; i++) {
+            synchronized (batchLock) {
+                nBusyComps++;
+            }
+            if (!tPool.runTarget(threadComps[i],null,true)) {
+                // No idle thread in the pool
+                synchronized (batchLock) {
+                    nBusyComps--;
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Ends the current batch, if any, by preventing any more code-blocks of
+     * it from being started and waiting for the running decompressors to
+     * finish.
+     * */
+    private void endBatch() {
+        boolean interrupted = false;
+        synchronized (batchLock) {
+            batchNext = batchLen;
+            while (nBusyComps > 0) {
+                try {
+                    batchLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            batchC = -1;
+            batchSb = null;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Decodes the next code-block of the current batch which has not been
+     * started, if any, with the specified decompressor.
+     *
+     * @param d The decompressor to use.
+     *
+     * @return False if all the code-blocks of the batch have been started.
+     * */
+    private boolean decodeNextInBatch(Decompressor d) {
+        int idx;
+        synchronized (batchLock) {
+            // Skip the code-blocks taken from the cache
+            while (batchNext < batchLen && batchDone[batchNext]) {
+                batchNext++;
+            }
+            if (batchNext >= batchLen) {
+                return false;
+            }
+            idx = batchNext++;
+        }
+        Throwable err = null;
+        try {
+            decodeCodeBlock(batchM,idx,batchSb,batchOut[idx],
+                            batchSrc[idx],batchOptions,d);
+            putCached(batchC,batchM,idx,batchSb,batchSrc[idx],
+                      batchOut[idx]);
+        } catch (RuntimeException e) {
+            err = e;
+        } catch (Error e) {
+            err = e;
+        }
+        synchronized (batchLock) {
+            if (err != null && batchError == null) {
+                batchError = err;
+            }
+            batchDone[idx] = true;
+            batchLock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Changes the current tile, given the new indexes, ending any batch of
+     * code-blocks being decoded in the multithreaded implementation.
+     *
+     * @param x The horizontal index of the tile.
+     *
+     * @param y The vertical index of the new tile.
+     * */
+    public void setTile(int x, int y) {
+        if (threadComps != null) endBatch();
+        super.setTile(x,y);
+    }
+
+    /**
+     * Advances to the next tile, in standard scan-line order, ending any
+     * batch of code-blocks being decoded in the multithreaded
+     * implementation.
+     * */
+    public void nextTile() {
+        if (threadComps != null) endBatch();
+        super.nextTile();
+    }
+
+    /**
+     * Decodes the specified code-block.
+     *
+     * @param m The vertical index of the code-block, in the subband.
+     *
+     * @param n The horizontal index of the code-block, in the subband.
+     *
+     * @param sb The subband in which the code-block is.
+     *
+     * @param cblk If non-null this object will be used to return the new
+     * code-block. If null a new one will be allocated and returned.
+     *
+     * @param srcblk The coded code-block.
+     *
+     * @param options The entropy coding options for the code-block.
+     *
+     * @param d The decompressor holding the decoding state to use.
+     *
+     * @return The decoded code-block.
+     * */
+    private DataBlk decodeCodeBlock(int m, int n, SubbandSyn sb,
+                                    DataBlk cblk, DecLyrdCBlk srcblk,
+                                    int options, Decompressor d) {
         int zc_lut[];     // The ZC lookup table to use
         int out_data[];   // The outupt data buffer
         int npasses;      // The number of coding passes to perform
@@ -707,18 +1253,12 @@ public class StdEntropyDecoder extends EntropyDecoder
         boolean error;    // Error indicator
         int tslen;        // Length of first terminated segment
         int tsidx;        // Index of current terminated segment
-        ByteInputBuffer in = null;
+        MQDecoder mq = d.mq;
+        ByteToBitInput bin = d.bin;
+        int state[] = d.getState();
 
         boolean isterm;
 
-        // Get the code-block to decode
-        srcblk = src.getCodeBlock(c,m,n,sb,1,-1,srcblk);
-        if (DO_TIMING) stime = System.currentTimeMillis();
-
-        // Retrieve options from decSpec
-        options = ((Integer)decSpec.ecopts.
-                   getTileCompVal(tIdx,c)).intValue();
-
         // Reset state
         ArrayUtil.intArraySet(state,0);
 
@@ -753,24 +1293,11 @@ public class StdEntropyDecoder extends EntropyDecoder
         tsidx = 0;
         // Initialize for decoding
         npasses = srcblk.nTrunc;
-        if (mq == null) {
-            in = new ByteInputBuffer(srcblk.data,0,tslen);
-            mq = new MQDecoder(in ,NUM_CTXTS,MQ_INIT);
-        }
-        else {
-            // We always start by an MQ segment
-            mq.nextSegment(srcblk.data,0,tslen);
-            mq.resetCtxts();
-        }
+        // We always start by an MQ segment
+        mq.nextSegment(srcblk.data,0,tslen);
+        mq.resetCtxts();
         error = false;
 
-        if ((options & OPT_BYPASS) != 0) {
-            if(bin==null){
-                if (in == null) in = mq.getByteInputBuffer();
-                bin = new ByteToBitInput(in);
-            }
-        }
-
         // Choose correct ZC lookup table for global orientation
         switch (sb.orientation) {
         case Subband.WT_ORIENT_HL:
@@ -810,7 +1337,8 @@ public class StdEntropyDecoder extends EntropyDecoder
             isterm = (options & OPT_TERM_PASS) != 0 ||
                 ((options & OPT_BYPASS) != 0 &&
                  (31-NUM_NON_BYPASS_MS_BP-srcblk.skipMSBP)>=curbp);
-            error = cleanuppass(cblk,mq,curbp,state,zc_lut,isterm);
+            error = cleanuppass(cblk,mq,curbp,state,zc_lut,isterm,
+                                options);
             npasses--;
             if (!error || !doer) curbp--;
         }
@@ -827,7 +1355,8 @@ public class StdEntropyDecoder extends EntropyDecoder
                     // Here starts a new raw segment
                     bin.setByteArray(null,-1,srcblk.tsLengths[++tsidx]);
                     isterm = (options & OPT_TERM_PASS) != 0;
-                    error = rawSigProgPass(cblk,bin,curbp,state,isterm);
+                    error = rawSigProgPass(cblk,bin,curbp,state,isterm,
+                                           options);
                     npasses--;
                     if (npasses <= 0 || (error && doer)) break;
 
@@ -838,7 +1367,8 @@ public class StdEntropyDecoder extends EntropyDecoder
                     isterm = (options & OPT_TERM_PASS) != 0 ||
                         ((options & OPT_BYPASS) != 0 &&
                          (31-NUM_NON_BYPASS_MS_BP-srcblk.skipMSBP>curbp));
-                    error = rawMagRefPass(cblk,bin,curbp,state,isterm);
+                    error = rawMagRefPass(cblk,bin,curbp,state,isterm,
+                                          options);
                 }
                 else {// Do not use bypass decoding mode
                     if ((options & OPT_TERM_PASS) != 0) {
@@ -846,7 +1376,8 @@ public class StdEntropyDecoder extends EntropyDecoder
                         mq.nextSegment(null,-1,srcblk.tsLengths[++tsidx]);
                     }
                     isterm = (options & OPT_TERM_PASS) != 0;
-                    error = sigProgPass(cblk,mq,curbp,state,zc_lut,isterm);
+                    error = sigProgPass(cblk,mq,curbp,state,zc_lut,isterm,
+                                        options);
                     npasses--;
                     if (npasses <= 0 || (error && doer)) break;
 
@@ -857,7 +1388,8 @@ public class StdEntropyDecoder extends EntropyDecoder
                     isterm = (options & OPT_TERM_PASS) != 0 ||
                         ((options & OPT_BYPASS) != 0 &&
                          (31-NUM_NON_BYPASS_MS_BP-srcblk.skipMSBP>curbp));
-                    error = magRefPass(cblk,mq,curbp,state,isterm);
+                    error = magRefPass(cblk,mq,curbp,state,isterm,
+                                       options);
                 }
 
                 npasses--;
@@ -872,7 +1404,8 @@ public class StdEntropyDecoder extends EntropyDecoder
                 isterm = (options & OPT_TERM_PASS) != 0 ||
                     ((options & OPT_BYPASS) != 0 &&
                      (31-NUM_NON_BYPASS_MS_BP-srcblk.skipMSBP)>=curbp);
-                error = cleanuppass(cblk,mq,curbp,state,zc_lut,isterm);
+                error = cleanuppass(cblk,mq,curbp,state,zc_lut,isterm,
+                                    options);
                 npasses--;
                 if (error) break;
                 // Goto next bit-plane
@@ -894,8 +1427,6 @@ public class StdEntropyDecoder extends EntropyDecoder
             conceal(cblk,curbp);
         }
 
-        if (DO_TIMING) time[c] += System.currentTimeMillis()-stime;
-
         // Return decoded block
         return cblk;
     }
@@ -975,10 +1506,13 @@ public class StdEntropyDecoder extends EntropyDecoder
      * @param isterm If this pass has been terminated. If the pass has been
      * terminated it can be used to check error resilience.
      *
+     * @param options The entropy coding options for the code-block
+     *
      * @return True if an error was detected in the bit stream, false otherwise.
      * */
     private boolean sigProgPass(DataBlk cblk, MQDecoder mq, int bp,
-                                int state[], int zc_lut[], boolean isterm) {
+                                int state[], int zc_lut[], boolean isterm,
+                                int options) {
         int j,sj;        // The state index for line and stripe
         int k,sk;        // The data index for line and stripe
         int dscanw;      // The data scan-width
@@ -1328,10 +1862,13 @@ public class StdEntropyDecoder extends EntropyDecoder
      * @param isterm If this pass has been terminated. If the pass has been
      * terminated it can be used to check error resilience.
      *
+     * @param options The entropy coding options for the code-block
+     *
      * @return True if an error was detected in the bit stream, false otherwise.
      * */
     private boolean rawSigProgPass(DataBlk cblk, ByteToBitInput bin, int bp,
-                                   int state[], boolean isterm) {
+                                   int state[], boolean isterm,
+                                   int options) {
         int j,sj;        // The state index for line and stripe
         int k,sk;        // The data index for line and stripe
         int dscanw;      // The data scan-width
@@ -1660,10 +2197,13 @@ public class StdEntropyDecoder extends EntropyDecoder
      * @param isterm If this pass has been terminated. If the pass has been
      * terminated it can be used to check error resilience.
      *
+     * @param options The entropy coding options for the code-block
+     *
      * @return True if an error was detected in the bit stream, false otherwise.
      * */
     private boolean magRefPass(DataBlk cblk, MQDecoder mq, int bp,
-                               int state[], boolean isterm) {
+                               int state[], boolean isterm,
+                               int options) {
         int j,sj;        // The state index for line and stripe
         int k,sk;        // The data index for line and stripe
         int dscanw;      // The data scan-width
@@ -1822,10 +2362,13 @@ public class StdEntropyDecoder extends EntropyDecoder
      * @param isterm If this pass has been terminated. If the pass has been
      * terminated it can be used to check error resilience.
      *
+     * @param options The entropy coding options for the code-block
+     *
      * @return True if an error was detected in the bit stream, false otherwise.
      * */
     private boolean rawMagRefPass(DataBlk cblk, ByteToBitInput bin, int bp,
-                                  int state[], boolean isterm) {
+                                  int state[], boolean isterm,
+                                  int options) {
         int j,sj;        // The state index for line and stripe
         int k,sk;        // The data index for line and stripe
         int dscanw;      // The data scan-width
@@ -1969,11 +2512,14 @@ public class StdEntropyDecoder extends EntropyDecoder
      * @param isterm If this pass has been terminated. If the pass has been
      * terminated it can be used to check error resilience.
      *
+     * @param options The entropy coding options for the code-block
+     *
      * @return True if an error was detected in the bit stream, false
      * otherwise.
      * */
     private boolean cleanuppass(DataBlk cblk, MQDecoder mq, int bp,
-                                int state[], int zc_lut[], boolean isterm) {
+                                int state[], int zc_lut[], boolean isterm,
+                                int options) {
         int j,sj;        // The state index for line and stripe
         int k,sk;        // The data index for line and stripe
         int dscanw;      // The data scan-width
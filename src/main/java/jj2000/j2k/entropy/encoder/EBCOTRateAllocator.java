@@ -51,6 +51,7 @@ import jj2000.j2k.codestream.PrecInfo;
 import jj2000.j2k.codestream.ProgressionType;
 import jj2000.j2k.codestream.writer.BitOutputBuffer;
 import jj2000.j2k.codestream.writer.CodestreamWriter;
+import jj2000.j2k.codestream.writer.HeaderEncoder;
 import jj2000.j2k.codestream.writer.PktEncoder;
 import jj2000.j2k.entropy.Progression;
 import jj2000.j2k.util.FacilityManager;
@@ -68,6 +69,14 @@ import com.github.jpeg2000.J2KWriteParam;
  * components, and then running the rate-allocation on the whole image at
  * once, for each layer.
  *
+ * <P>In streaming mode, see {@link #setStreaming}, the rate allocation is
+ * instead run on one tile at a time, with the target bitrate of every layer
+ * shared out between tiles in proportion to their area. Each tile is written
+ * as soon as its code-blocks have been collected, and the code-blocks are
+ * then released, so that the memory used is bounded by the compressed size
+ * of a tile (or of a few tiles, if they are encoded in parallel) rather than
+ * of the whole image.
+ *
  * <P>This implementation also provides some timing features. They can be
  * enabled by setting the 'DO_TIMING' constant of this class to true and
  * recompiling. The timing uses the 'System.currentTimeMillis()' Java API
@@ -196,6 +205,15 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
     /** The minimum slope accross all code-blocks and truncation points. */
     private float minSlope;
 
+    /** Whether layers are allocated and written one tile at a time */
+    private boolean streaming;
+
+    /** Whether TLM and PLT marker segments are written */
+    private boolean pointerMarkers;
+
+    /** The length of each tile, once the layers of all tiles are built */
+    private int[] tileLengths;
+
     /**
      * Initializes the EBCOT rate allocator of entropy coded data. The layout
      * of layers, and their bitrate constraints, is specified by the 'lyrs'
@@ -405,13 +423,68 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
         super.finalize();
     }
 
+    /**
+     * Sets whether the rate allocation is run on the whole image at once,
+     * which is the default, or on one tile at a time. In streaming mode each
+     * tile gets a share of the target length of every layer, in proportion
+     * to its area, and is written as soon as it has been coded. This bounds
+     * the memory used by the rate allocator to that of a tile, at the cost
+     * of a less even distribution of quality across tiles. This must be
+     * called before initialize().
+     *
+     * @param streaming true to allocate and write one tile at a time
+     * */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Returns whether the rate allocation is run on one tile at a time.
+     *
+     * @see #setStreaming
+     * */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Sets whether pointer marker segments are written, so that a decoder
+     * can locate the tiles and packets of the codestream without reading
+     * their headers. A TLM marker segment in the main header gives the
+     * length of every tile and PLT marker segments in each tile-part header
+     * give the length of every packet of the tile. In streaming mode the
+     * main header is written before the length of any tile is known, so
+     * only PLT marker segments are written. The marker segments are
+     * accounted for in the target length of the layers, so the codestream
+     * still meets the target bitrate. This must be called before
+     * initialize().
+     *
+     * @param pointerMarkers true to write TLM and PLT marker segments
+     * */
+    public void setPointerMarkers(boolean pointerMarkers) {
+        this.pointerMarkers = pointerMarkers;
+    }
+
+    /**
+     * Returns whether TLM and PLT marker segments are written.
+     *
+     * @see #setPointerMarkers
+     * */
+    public boolean isPointerMarkers() {
+        return pointerMarkers;
+    }
+
     /**
      * Runs the rate allocation algorithm and writes the data to the bit
      * stream writer object provided to the constructor.
      * */
     public void runAndWrite() throws IOException {
         //Now, run the rate allocation
-        buildAndWriteLayers();
+        if (streaming) {
+            buildAndWriteTiles();
+        } else {
+            writeLayers();
+        }
     }
 
     /**
@@ -419,6 +492,11 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
      * has been entirely written or simulated, so as to take its overhead into
      * account. This method will get all the code-blocks and then initialize
      * the target bitrates for each layer, according to the specifications.
+     * The layers are then built, so that the length of each tile is known
+     * before the main header is written again, and given to the header
+     * encoder if TLM marker segments are written. In streaming mode the
+     * code-blocks are only read, and the layers built, when they are
+     * written.
      * */
     public void initialize() throws IOException{
         int n,i,l;
@@ -434,50 +512,31 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
         int numTiles  = src.getNumTiles();
         int numComps  = src.getNumComps();
         int numLvls;
-        int avgPktLen;
 
         long stime = 0L;
 
         // Start by getting all the code-blocks, we need this in order to have
-        // an idea of the total encoded bitrate.
-        getAllCodeBlocks();
+        // an idea of the total encoded bitrate. When streaming that is not
+        // known until the last tile has been coded.
+        if (!streaming) {
+            getAllCodeBlocks();
+        }
 
         if (DO_TIMING) stime = System.currentTimeMillis();
 
-        // Now get the total encoded length
-        totenclength = RDSlopesRates[0]; // all the encoded data
-        // Make a rough estimation of the packet head overhead, as 2 bytes per
-        // packet in average (plus EPH / SOP) , and add that to the total
-        // encoded length
-	for( int t=0 ; t<numTiles ; t++ ){
-            avgPktLen = 2;
-            // Add SOP length if set
-            if (((String)wp.getSOP().getTileDef(t)).equalsIgnoreCase("true")) {
-                avgPktLen += Markers.SOP_LENGTH;
-            }
-            // Add EPH length if set
-            if (((String)wp.getEPH().getTileDef(t)).equalsIgnoreCase("true")) {
-                avgPktLen += Markers.EPH_LENGTH;
+        // Now get the total encoded length. When streaming that is not known
+        // yet, so use the size of the uncompressed image, which it should
+        // not exceed by much, instead.
+        if (streaming) {
+            double rawbytes = 0;
+            for (int c=0; c<numComps; c++) {
+                rawbytes += src.getImgWidth()*(double)src.getImgHeight()*
+                    src.getNomRangeBits(c)/8;
             }
-
-	    for( int c=0 ; c<numComps ; c++ ){
-		numLvls   = src.getAnSubbandTree(t,c).resLvl+1;
-		if( !src.precinctPartitionUsed(c,t) ) {
-		    // Precinct partition is not used so there is only
-		    // one packet per resolution level/layer
-		    totenclength += numLayers*avgPktLen*numLvls;
-		}
-		else {
-		    // Precinct partition is used so for each
-		    // component/tile/resolution level, we get the maximum
-		    // number of packets
-                    for ( int rl=0 ; rl<numLvls ; rl++ ) {
-                        maxpkt = numPrec[t][c][rl].x * numPrec[t][c][rl].y;
-                        totenclength += numLayers*avgPktLen*maxpkt;
-                    }
-		}
-	    } // End loop on components
-        } // End loop on tiles
+            totenclength = (int)Math.min(rawbytes,Integer.MAX_VALUE);
+        } else {
+            totenclength = getTotEncLength(0,numTiles);
+        }
 
         // If any layer specifies more than 'totenclength' as its target
         // length then 'totenclength' is used. This is to prevent that
@@ -490,11 +549,21 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
         ho = headEnc.getLength();
         np = src.getImgWidth()*src.getImgHeight()/8f;
 
+        // The TLM marker segments are added to the main header
+        if (pointerMarkers && !streaming) {
+            ho += HeaderEncoder.getTLMLength(numTiles);
+        }
+
         // SOT marker must be taken into account
         for(int t=0; t<numTiles; t++){
             headEnc.reset();
             headEnc.encodeTilePartHeader(0,t);
             ho += headEnc.getLength();
+            // The PLT marker segment of the tile. The packet lengths it
+            // holds are counted with the packets, as the layers are built.
+            if (pointerMarkers) {
+                ho += HeaderEncoder.getPLTLength(1,0);
+            }
         }
 
         layers = new EBCOTLayer[numLayers];
@@ -502,24 +571,7 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
             layers[n] = new EBCOTLayer();
         }
 
-        minlsz = 0; // To keep compiler happy
-	for( int t=0 ; t<numTiles ; t++ ){
-            for( int c=0 ; c<numComps ; c++ ){
-		numLvls   = src.getAnSubbandTree(t,c).resLvl+1;
-
-		if ( !src.precinctPartitionUsed(c,t) ) {
-		    // Precinct partition is not used
-		    minlsz += MIN_AVG_PACKET_SZ*numLvls;
-		}
-		else {
-		    // Precinct partition is used
-                    for ( int rl=0 ; rl<numLvls ; rl++ ) {
-                        maxpkt = numPrec[t][c][rl].x * numPrec[t][c][rl].y;
-                        minlsz += MIN_AVG_PACKET_SZ*maxpkt;
-                    }
-		}
-	    } // End loop on components
-        } // End loop on tiles
+        minlsz = getMinLayerLength(0,numTiles);
 
         // Initialize layers
         n = 0;
@@ -611,6 +663,107 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
 	} // End loop on tiles
 
         if (DO_TIMING) initTime += System.currentTimeMillis()-stime;
+
+        if (!streaming) {
+            if (DO_TIMING) stime = System.currentTimeMillis();
+
+            tileLengths = new int[numTiles];
+            buildLayers(0,numTiles,1d,Integer.MAX_VALUE,0,tileLengths);
+            if (pointerMarkers) {
+                headEnc.setTileLengths(tileLengths);
+            }
+
+            if (DO_TIMING) buildTime += System.currentTimeMillis()-stime;
+        }
+    }
+
+    /**
+     * Returns the minimum allowable number of bytes in a layer of a range of
+     * tiles, which is a minimum average size for each of their packets.
+     *
+     * @param ts The index of the first tile
+     *
+     * @param te The index of the first tile not included
+     *
+     * @return The minimum number of bytes in a layer of the tiles
+     * */
+    private int getMinLayerLength(int ts, int te) {
+        int numComps = src.getNumComps();
+        int numLvls;
+        int maxpkt;
+
+        int minlsz = 0;
+	for( int t=ts ; t<te ; t++ ){
+            for( int c=0 ; c<numComps ; c++ ){
+		numLvls   = src.getAnSubbandTree(t,c).resLvl+1;
+
+		if ( !src.precinctPartitionUsed(c,t) ) {
+		    // Precinct partition is not used
+		    minlsz += MIN_AVG_PACKET_SZ*numLvls;
+		}
+		else {
+		    // Precinct partition is used
+                    for ( int rl=0 ; rl<numLvls ; rl++ ) {
+                        maxpkt = numPrec[t][c][rl].x * numPrec[t][c][rl].y;
+                        minlsz += MIN_AVG_PACKET_SZ*maxpkt;
+                    }
+		}
+	    } // End loop on components
+        } // End loop on tiles
+        return minlsz;
+    }
+
+    /**
+     * Returns the total encoded length of a range of tiles, from the R-D
+     * summary table, to which a rough estimation of the packet head overhead
+     * is added.
+     *
+     * @param ts The index of the first tile
+     *
+     * @param te The index of the first tile not included
+     *
+     * @return The estimated total encoded length of the tiles
+     * */
+    private int getTotEncLength(int ts, int te) {
+        int numComps = src.getNumComps();
+        int numLvls;
+        int avgPktLen;
+        int maxpkt;
+
+        int totenclength = RDSlopesRates[0]; // all the encoded data
+        // Make a rough estimation of the packet head overhead, as 2 bytes per
+        // packet in average (plus EPH / SOP) , and add that to the total
+        // encoded length
+	for( int t=ts ; t<te ; t++ ){
+            avgPktLen = 2;
+            // Add SOP length if set
+            if (((String)wp.getSOP().getTileDef(t)).equalsIgnoreCase("true")) {
+                avgPktLen += Markers.SOP_LENGTH;
+            }
+            // Add EPH length if set
+            if (((String)wp.getEPH().getTileDef(t)).equalsIgnoreCase("true")) {
+                avgPktLen += Markers.EPH_LENGTH;
+            }
+
+	    for( int c=0 ; c<numComps ; c++ ){
+		numLvls   = src.getAnSubbandTree(t,c).resLvl+1;
+		if( !src.precinctPartitionUsed(c,t) ) {
+		    // Precinct partition is not used so there is only
+		    // one packet per resolution level/layer
+		    totenclength += numLayers*avgPktLen*numLvls;
+		}
+		else {
+		    // Precinct partition is used so for each
+		    // component/tile/resolution level, we get the maximum
+		    // number of packets
+                    for ( int rl=0 ; rl<numLvls ; rl++ ) {
+                        maxpkt = numPrec[t][c][rl].x * numPrec[t][c][rl].y;
+                        totenclength += numLayers*avgPktLen*maxpkt;
+                    }
+		}
+	    } // End loop on components
+        } // End loop on tiles
+        return totenclength;
     }
 
     /**
@@ -623,10 +776,29 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
      * into the mantissa-exponent representation.
      * */
     private void getAllCodeBlocks() {
+        maxSlope = 0f;
+        minSlope = Float.MAX_VALUE;
 
-        int numComps, numTiles, numBytes;
+        //Get all coded code-blocks Goto first tile
+        src.setTile(0,0);
+        getCodeBlocks(0,src.getNumTiles());
+    }
+
+    /**
+     * This method gets the coded code-blocks from the EBCOT entropy coder for
+     * every component of a range of tiles, starting with the current tile,
+     * and stores them as getAllCodeBlocks() does. Their rates are added to
+     * the R-D summary table and the maximum and minimum slopes are updated.
+     * The last tile of the range is left as the current tile.
+     *
+     * @param ts The index of the first tile, which must be the current tile
+     *
+     * @param te The index of the first tile not included
+     * */
+    private void getCodeBlocks(int ts, int te) {
+
+        int numComps;
         int c, r, t, s, sidx, k;
-        int slope;
         SubbandAn subb;
         CBlkRateDistStats ccb = null;
         Point ncblks = null;
@@ -635,21 +807,15 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
 
         long stime = 0L;
 
-        maxSlope = 0f;
-        minSlope = Float.MAX_VALUE;
-
-        //Get the number of components and tiles
+        //Get the number of components
         numComps = src.getNumComps();
-        numTiles = src.getNumTiles();
 
         SubbandAn root,sb;
         int cblkToEncode = 0;
         int nEncCblk = 0;
         ProgressWatch pw = FacilityManager.getProgressWatch();
 
-        //Get all coded code-blocks Goto first tile
-        src.setTile(0,0);
-        for (t=0; t<numTiles; t++) { //loop on tiles
+        for (t=ts; t<te; t++) { //loop on tiles
             nEncCblk = 0;
             cblkToEncode = 0;
             for(c=0; c<numComps; c++) {
@@ -722,53 +888,175 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
             }
 
             //Goto next tile
-            if(t<numTiles-1) //not at last tile
+            if(t<te-1) //not at last tile
+                src.nextTile();
+        }
+    }
+
+    /**
+     * This method writes all the bit stream layers to the output bit
+     * stream, according to the Progression type. The layers have already
+     * been built by initialize(), by computing the threshold according to
+     * the layer target bit-rate.
+     * */
+    private void writeLayers() throws IOException {
+        int nt = src.getNumTiles();
+
+        long stime = 0L;
+
+        // The bit-stream was not yet generated (only simulated).
+
+        if (DO_TIMING) stime = System.currentTimeMillis();
+
+        // Reset the packet encoder before writing all packets
+        pktEnc.reset();
+        writeTiles(0,nt,tileLengths);
+
+        if (DO_TIMING) writeTime += System.currentTimeMillis()-stime;
+    }
+
+    /**
+     * This method gets the code-blocks of each tile in turn, builds the bit
+     * stream layers of the tile and writes the tile to the output bit
+     * stream, as initialize() and writeLayers() do for the whole image. The target
+     * length of each layer in a tile is the share of the layer target length
+     * corresponding to the area of the tile, with the target length of all
+     * but the last layer limited to the total encoded length of the tile as
+     * done by initialize() for the whole image. Layers of a tile that would
+     * be too small are left empty rather than skipped, as the number of
+     * layers has already been written. The code-blocks of a tile are
+     * released once it has been written.
+     * */
+    private void buildAndWriteTiles() throws IOException {
+        int nt = src.getNumTiles();
+        int[] tileLengths = new int[nt]; // Length of each tile
+        double area = (double)src.getImgWidth()*src.getImgHeight();
+
+        long stime = 0L;
+
+        src.setTile(0,0);
+        for(int t=0; t<nt; t++) { //loop on tiles
+            if (DO_TIMING) stime = System.currentTimeMillis();
+
+            // The R-D summary only covers the current tile
+            maxSlope = 0f;
+            minSlope = Float.MAX_VALUE;
+            for(int i=0; i<RD_SUMMARY_SIZE; i++) {
+                RDSlopesRates[i] = 0;
+            }
+            getCodeBlocks(t,t+1);
+
+            if (DO_TIMING) initTime += System.currentTimeMillis()-stime;
+            if (DO_TIMING) stime = System.currentTimeMillis();
+
+            buildLayers(t,t+1,src.getTileWidth()*(double)src.getTileHeight()/area,
+                        getTotEncLength(t,t+1),getMinLayerLength(t,t+1),
+                        tileLengths);
+
+            if (DO_TIMING) buildTime += System.currentTimeMillis()-stime;
+            if (DO_TIMING) stime = System.currentTimeMillis();
+
+            pktEnc.reset(t,t+1);
+            writeTiles(t,t+1,tileLengths);
+
+            // Release the code-blocks of the tile
+            cblks[t] = null;
+            truncIdxs[t] = null;
+
+            if (DO_TIMING) writeTime += System.currentTimeMillis()-stime;
+
+            if(t<nt-1) //not at last tile
                 src.nextTile();
         }
     }
 
     /**
-     * This method builds all the bit stream layers and then writes them to
-     * the output bit stream. Firstly it builds all the layers by computing
-     * the threshold according to the layer target bit-rate, and then it
-     * writes the layer bit streams according to the Progression type.
+     * This method builds the bit stream layers of a range of tiles, by
+     * computing the threshold of each layer according to the layer target
+     * bit-rate and simulating the bit stream, which leaves the packet
+     * encoder state of the tiles changed.
+     *
+     * @param ts The index of the first tile
+     *
+     * @param te The index of the first tile not included
+     *
+     * @param share The proportion of the layer target lengths that is
+     * allocated to the tiles.
+     *
+     * @param limit The maximum target length of all layers but the last.
+     *
+     * @param minlsz The minimum length of all layers but the first and the
+     * last. A layer which would be smaller is left empty.
+     *
+     * @param tileLengths Where the length of each tile is accumulated.
      * */
-    private void buildAndWriteLayers() throws IOException {
+    private void buildLayers(int ts, int te, double share, int limit,
+                             int minlsz, int[] tileLengths)
+        throws IOException {
         int nPrec = 0;
         int maxBytes, actualBytes;
         float rdThreshold;
         SubbandAn sb;
-        float threshold;
         BitOutputBuffer hBuff = null;
         byte[] bBuff = null;
-        int[] tileLengths; // Length of each tile
         int tmp;
         boolean sopUsed; // Should SOP markers be used ?
         boolean ephUsed; // Should EPH markers be used ?
         int nc = src.getNumComps();
-        int nt = src.getNumTiles();
         int mrl;
+        int[] numPkts = null; // Number of packets in each tile
+        int[] pltLengths = null; // Length of the packet lengths in PLT
 
-        long stime = 0L;
+        if(pointerMarkers) {
+            numPkts = new int[te-ts];
+            pltLengths = new int[te-ts];
+        }
 
-        if (DO_TIMING) stime = System.currentTimeMillis();
+        // The least number of bytes a layer adds, when it adds no data: an
+        // empty packet for every precinct, with its SOP and EPH markers and
+        // its length in the PLT marker segment
+        int minLayerBytes = 0;
+        for(int t=ts; t<te; t++) {
+            int pktBytes = 1;
+            if(((String)wp.getSOP().getTileDef(t)).equalsIgnoreCase("true")) {
+                pktBytes += Markers.SOP_LENGTH;
+            }
+            if(((String)wp.getEPH().getTileDef(t)).equalsIgnoreCase("true")) {
+                pktBytes += Markers.EPH_LENGTH;
+            }
+            if(pointerMarkers) {
+                pktBytes++;
+            }
+            for(int c=0; c<nc; c++) {
+                mrl = src.getAnSubbandTree(t,c).resLvl+1;
+                for(int r=0; r<mrl; r++) {
+                    minLayerBytes +=
+                        pktBytes*numPrec[t][c][r].x*numPrec[t][c][r].y;
+                }
+            }
+        }
+
+        // The target length of the last layer, which is the overall target
+        int lastMaxBytes = (int)(layers[numLayers-1].maxBytes*share);
 
         // Start with the maximum slope
         rdThreshold = maxSlope;
 
-        tileLengths = new int[nt];
         actualBytes = 0;
 
-        // +------------------------------+
-        // |  First we build the layers   |
-        // +------------------------------+
         // Bitstream is simulated to know tile length
         for(int l=0; l<numLayers; l++){ //loop on layers
 
-            maxBytes = layers[l].maxBytes;
-            if(layers[l].optimize) {
+            maxBytes = (int)(layers[l].maxBytes*share);
+            if (maxBytes > limit && l < numLayers-1) {
+                maxBytes = limit;
+            }
+            if(l>0 && l<numLayers-1 && maxBytes-actualBytes<minlsz) {
+                // Too small, keep the threshold of the previous layer
+            } else if(layers[l].optimize) {
                 rdThreshold =
-                    optimizeBitstreamLayer(l,rdThreshold,maxBytes,actualBytes);
+                    optimizeBitstreamLayer(l,rdThreshold,maxBytes,actualBytes,
+                                           ts,te);
             } else {
                 if( l<=0 || l>=numLayers-1 ) {
                     throw new IllegalArgumentException("The first and the"+
@@ -776,10 +1064,24 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
                                                        "thresholds"+
                                                        " must be optimized");
                 }
+                float prevThreshold = rdThreshold;
                 rdThreshold = estimateLayerThreshold(maxBytes,layers[l-1]);
+                // An estimated layer may be longer than its target. If it
+                // leaves less than the following layers add, even with no
+                // data, the overall target would be exceeded, so optimize it
+                // instead.
+                pktEnc.save(ts,te);
+                int estBytes =
+                    simulateLayer(l,rdThreshold,actualBytes,ts,te);
+                pktEnc.restore(ts,te);
+                if(estBytes+(numLayers-1-l)*minLayerBytes>lastMaxBytes) {
+                    rdThreshold =
+                        optimizeBitstreamLayer(l,prevThreshold,maxBytes,
+                                               actualBytes,ts,te);
+                }
             }
 
-            for(int t=0; t<nt; t++) { //loop on tiles
+            for(int t=ts; t<te; t++) { //loop on tiles
                 if(l==0) {
                     // Tile header
                     headEnc.reset();
@@ -828,6 +1130,13 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
                                                     pktEnc.getROILen());
                                 actualBytes += tmp;
                                 tileLengths[t] += tmp;
+                                if(pointerMarkers) {
+                                    numPkts[t-ts]++;
+                                    pltLengths[t-ts] +=
+                                        HeaderEncoder.getPLTEntryLength(tmp);
+                                    actualBytes +=
+                                        HeaderEncoder.getPLTEntryLength(tmp);
+                                }
                             }
                         } // End loop on precincts
                         sb = sb.parent;
@@ -838,34 +1147,50 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
             layers[l].actualBytes = actualBytes;
         } // end loop on layers
 
-        if (DO_TIMING) buildTime += System.currentTimeMillis()-stime;
-
-        // The bit-stream was not yet generated (only simulated).
-
-        if (DO_TIMING) stime = System.currentTimeMillis();
+        // The PLT marker segments are added to the tile headers
+        if(pointerMarkers) {
+            for(int t=ts; t<te; t++) {
+                tileLengths[t] +=
+                    HeaderEncoder.getPLTLength(numPkts[t-ts],pltLengths[t-ts]);
+            }
+        }
+    }
 
-        // +--------------------------------------------------+
-        // | Write tiles according to their Progression order |
-        // +--------------------------------------------------+
-        // Reset the packet encoder before writing all packets
-        pktEnc.reset();
+    /**
+     * This method writes a range of tiles to the output bit stream according
+     * to their Progression order, once their layers have been built and the
+     * packet encoder state of the tiles has been reset.
+     *
+     * @param ts The index of the first tile
+     *
+     * @param te The index of the first tile not included
+     *
+     * @param tileLengths The length of each tile.
+     * */
+    private void writeTiles(int ts, int te, int[] tileLengths)
+        throws IOException {
+        int nc = src.getNumComps();
         Progression[] prog; // Progression(s) in each tile
         int cs,ce,rs,re,lye;
 
         int[] mrlc = new int[nc];
-        for(int t=0; t<nt; t++) { //loop on tiles
-            int[][] lysA; // layer index start for each component and
-            // resolution level
-            int[][] lys = new int[nc][];
+        for(int t=ts; t<te; t++) { //loop on tiles
+            int[][] lys = new int[nc][]; // layer index start for each
+            // component and resolution level
             for(int c=0; c<nc; c++){
                 mrlc[c] = src.getAnSubbandTree(t,c).resLvl;
                 lys[c] = new int[mrlc[c]+1];
             }
 
-            // Tile header
-            headEnc.reset();
-            headEnc.encodeTilePartHeader(tileLengths[t],t);
-            bsWriter.commitBitstreamHeader(headEnc);
+            // Tile header, which follows the packets when it includes their
+            // lengths
+            if(pointerMarkers) {
+                bsWriter.startTilePart();
+            } else {
+                headEnc.reset();
+                headEnc.encodeTilePartHeader(tileLengths[t],t);
+                bsWriter.commitBitstreamHeader(headEnc);
+            }
             prog = (Progression[])wp.getProgressionType().getTileDef(t);
 
             for(int prg=0; prg<prog.length;prg++){ // Loop on progression
@@ -902,9 +1227,16 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
                         lys[c][r] = lye;
                     }
             } // End loop on progression
-        } // End loop on tiles
 
-        if (DO_TIMING) writeTime += System.currentTimeMillis()-stime;
+            if(pointerMarkers) {
+                headEnc.reset();
+                headEnc.setPacketLengths(bsWriter.getTilePartPacketLengths(),
+                                         bsWriter.getNumTilePartPackets());
+                headEnc.encodeTilePartHeader(tileLengths[t],t);
+                headEnc.setPacketLengths(null,0);
+                bsWriter.commitTilePart(headEnc);
+            }
+        } // End loop on tiles
     }
 
     /** 
@@ -1663,34 +1995,24 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
      *
      * @param prevBytes The number of bytes of all the previous layers.
      *
+     * @param ts The index of the first tile in the layer
+     *
+     * @param te The index of the first tile not in the layer
+     *
      * @return The value of the slope threshold.
      * */
     private float optimizeBitstreamLayer (int layerIdx, float fmaxt,
-                                          int maxBytes, int prevBytes)
+                                          int maxBytes, int prevBytes,
+                                          int ts, int te)
         throws IOException {
 
-        int nt;         // The total number of tiles
-        int nc;          // The total number of components
-        int numLvls;          // The total number of resolution levels
         int actualBytes;      // Actual number of bytes for a layer
         float fmint;          // Minimum of the current threshold interval
         float ft;             // Current threshold
-        SubbandAn sb;         // Current subband
-        BitOutputBuffer hBuff;// The packet head buffer
-        byte[] bBuff;         // The packet body buffer
         int sidx;             // The index in the summary table
-        boolean sopUsed;      // Should SOP markers be used ?
-        boolean ephUsed;      // Should EPH markers be used ?
-        int precinctIdx;      // Precinct index for current packet
-        int nPrec; // Number of precincts in the current resolution level
 
         // Save the packet encoder state
-        pktEnc.save();
-
-        nt = src.getNumTiles();
-        nc = src.getNumComps();
-        hBuff = null;
-        bBuff = null;
+        pktEnc.save(ts,te);
 
         // Estimate the minimum slope to start with from the summary
         // information in 'RDSlopesRates'. This is a real minimum since it
@@ -1738,49 +2060,7 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
         do {
             // Get the number of bytes used by this layer, if 'ft' is the
             // threshold, by simulation.
-            actualBytes = prevBytes;
-            src.setTile(0,0);
-
-            for (int t=0; t<nt; t++){
-                for (int c=0; c<nc; c++) {
-                    // set boolean sopUsed here (SOP markers)
-                    sopUsed = ((String)wp.getSOP().getTileDef(t)).equalsIgnoreCase("true");
-                    // set boolean ephUsed here (EPH markers)
-                    ephUsed = ((String)wp.getEPH().getTileDef(t)).equalsIgnoreCase("true");
-
-                    // Get LL subband
-                    sb = (SubbandAn) src.getAnSubbandTree(t,c);
-                    numLvls = sb.resLvl + 1;
-                    sb = (SubbandAn) sb.getSubbandByIdx(0,0);
-                    //loop on resolution levels
-                    for(int r=0; r<numLvls; r++) {
-
-                        nPrec = numPrec[t][c][r].x*numPrec[t][c][r].y;
-                        for(int p=0; p<nPrec; p++) {
-
-                            findTruncIndices(layerIdx,c,r,t,sb,ft,p);
-                            hBuff = pktEnc.encodePacket(layerIdx+1,c,r,t,
-                                                        cblks[t][c][r],
-                                                        truncIdxs[t][layerIdx]
-                                                        [c][r],hBuff,bBuff,p);
-
-                            if(pktEnc.isPacketWritable()) {
-                                bBuff = pktEnc.getLastBodyBuf();
-                                actualBytes += bsWriter.
-                                    writePacketHead(hBuff.getBuffer(),
-                                                    hBuff.getLength(),
-                                                    true, sopUsed,ephUsed);
-                                actualBytes += bsWriter.
-                                    writePacketBody(bBuff,
-                                                    pktEnc.getLastBodyLen(),
-                                                    true,pktEnc.isROIinPkt(),
-                                                    pktEnc.getROILen());
-                            }
-                        } // end loop on precincts
-                        sb = sb.parent;
-                    } // End loop on resolution levels
-                } // End loop on components
-            } // End loop on tiles
+            actualBytes = simulateLayer(layerIdx,ft,prevBytes,ts,te);
 
             // Move the interval bounds according to simulation result
             if (actualBytes>maxBytes) {
@@ -1803,7 +2083,7 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
             if (ft <= fmint) ft = fmaxt;
 
             // Restore previous packet encoder state
-            pktEnc.restore();
+            pktEnc.restore(ts,te);
 
             // We continue to iterate, until the threshold reaches the upper
             // limit of the interval, within a FLOAT_REL_PRECISION relative
@@ -1826,6 +2106,93 @@ public class EBCOTRateAllocator extends PostCompRateAllocator {
        return ft;
     }
 
+    /**
+     * Simulates a layer of a range of tiles, with the specified threshold,
+     * and returns the number of bytes of the bit stream up to and including
+     * the layer. The packet encoder state is changed, so it must be saved
+     * before and restored after by the caller.
+     *
+     * @param layerIdx The index of the current layer
+     *
+     * @param ft The threshold
+     *
+     * @param prevBytes The number of bytes of all the previous layers.
+     *
+     * @param ts The index of the first tile in the layer
+     *
+     * @param te The index of the first tile not in the layer
+     *
+     * @return The number of bytes of the previous layers and this one.
+     * */
+    private int simulateLayer(int layerIdx, float ft, int prevBytes,
+                              int ts, int te)
+        throws IOException {
+        int nc = src.getNumComps(); // The total number of components
+        int numLvls;          // The total number of resolution levels
+        int actualBytes;      // Actual number of bytes for a layer
+        SubbandAn sb;         // Current subband
+        BitOutputBuffer hBuff = null; // The packet head buffer
+        byte[] bBuff = null;  // The packet body buffer
+        boolean sopUsed;      // Should SOP markers be used ?
+        boolean ephUsed;      // Should EPH markers be used ?
+        int nPrec; // Number of precincts in the current resolution level
+
+        actualBytes = prevBytes;
+        if (!streaming) {
+            src.setTile(0,0);
+        }
+
+        for (int t=ts; t<te; t++){
+            for (int c=0; c<nc; c++) {
+                // set boolean sopUsed here (SOP markers)
+                sopUsed = ((String)wp.getSOP().getTileDef(t)).equalsIgnoreCase("true");
+                // set boolean ephUsed here (EPH markers)
+                ephUsed = ((String)wp.getEPH().getTileDef(t)).equalsIgnoreCase("true");
+
+                // Get LL subband
+                sb = (SubbandAn) src.getAnSubbandTree(t,c);
+                numLvls = sb.resLvl + 1;
+                sb = (SubbandAn) sb.getSubbandByIdx(0,0);
+                //loop on resolution levels
+                for(int r=0; r<numLvls; r++) {
+
+                    nPrec = numPrec[t][c][r].x*numPrec[t][c][r].y;
+                    for(int p=0; p<nPrec; p++) {
+
+                        findTruncIndices(layerIdx,c,r,t,sb,ft,p);
+                        hBuff = pktEnc.encodePacket(layerIdx+1,c,r,t,
+                                                    cblks[t][c][r],
+                                                    truncIdxs[t][layerIdx]
+                                                    [c][r],hBuff,bBuff,p);
+
+                        if(pktEnc.isPacketWritable()) {
+                            bBuff = pktEnc.getLastBodyBuf();
+                            int len = bsWriter.
+                                writePacketHead(hBuff.getBuffer(),
+                                                hBuff.getLength(),
+                                                true, sopUsed,ephUsed);
+                            len += bsWriter.
+                                writePacketBody(bBuff,
+                                                pktEnc.getLastBodyLen(),
+                                                true,pktEnc.isROIinPkt(),
+                                                pktEnc.getROILen());
+                            actualBytes += len;
+                            // The length of the packet in the PLT
+                            // marker segment
+                            if(pointerMarkers) {
+                                actualBytes +=
+                                    HeaderEncoder.getPLTEntryLength(len);
+                            }
+                        }
+                    } // end loop on precincts
+                    sb = sb.parent;
+                } // End loop on resolution levels
+            } // End loop on components
+        } // End loop on tiles
+
+        return actualBytes;
+    }
+
     /**
      * This function attempts to estimate a rate-distortion slope threshold
      * which will achieve a target number of code bytes close the
@@ -0,0 +1,253 @@
+package jj2000.j2k.entropy.encoder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+
+import jj2000.j2k.image.ImgDataAdapter;
+import jj2000.j2k.util.FacilityManager;
+import jj2000.j2k.util.MsgLogger;
+import jj2000.j2k.wavelet.analysis.SubbandAn;
+
+/**
+ * A source of coded code-blocks which encodes several tiles at once. Each
+ * tile is run through the whole of one of a number of identical encoding
+ * chains (component transform, wavelet transform, quantization, ROI scaling
+ * and entropy coding) on an Executor, and the coded code-blocks are then
+ * returned to the rate allocator in tile order. Only the rate allocator and
+ * the codestream writer run on the calling thread.
+ *
+ * <P>Each chain must read the image through its own view of the source,
+ * such as a {@link jj2000.j2k.image.SharedBlkImgDataSrc}, as the chains
+ * are on different tiles at the same time. A separate primary chain, which
+ * is never used to encode, supplies the properties of the image and tiles.
+ *
+ * @author http://bfo.com
+ */
+public class ParallelTileEncoder extends ImgDataAdapter
+    implements CodedCBlkDataSrcEnc {
+
+    private final CodedCBlkDataSrcEnc primary;
+    private final Executor executor;
+    private final BlockingQueue<CodedCBlkDataSrcEnc> idle;
+    private final int nchains;
+    private final TileResult[] results;
+    private final Thread owner;
+    private final MsgLogger logger;
+    private int nextSubmit;
+    private int[] nextCblk;
+
+    /**
+     * Create a new ParallelTileEncoder
+     *
+     * @param primary the chain used for the properties of the image, which
+     * follows the current tile of this object.
+     *
+     * @param chains the chains used to encode tiles, which must be
+     * configured identically to the primary chain but read the image
+     * independently of it and of each other.
+     *
+     * @param executor the Executor to encode tiles with.
+     */
+    public ParallelTileEncoder(CodedCBlkDataSrcEnc primary, CodedCBlkDataSrcEnc[] chains, Executor executor) {
+        super(primary);
+        if (chains.length == 0) {
+            throw new IllegalArgumentException("No chains");
+        }
+        this.primary = primary;
+        this.executor = executor;
+        this.nchains = chains.length;
+        this.idle = new ArrayBlockingQueue<CodedCBlkDataSrcEnc>(chains.length);
+        for (CodedCBlkDataSrcEnc chain : chains) {
+            idle.add(chain);
+        }
+        this.results = new TileResult[primary.getNumTiles()];
+        this.nextCblk = new int[primary.getNumComps()];
+        this.owner = Thread.currentThread();
+        this.logger = FacilityManager.getMsgLogger();
+    }
+
+    /**
+     * The coded code-blocks of one tile, for each component, once encoded.
+     */
+    private static final class TileResult {
+        List<List<CBlkRateDistStats>> cblks;
+        Throwable failure;
+        boolean done;
+    }
+
+    /**
+     * Submit the specified tile for encoding on the next idle chain.
+     */
+    private void submit(int t) {
+        CodedCBlkDataSrcEnc taken = null;
+        boolean interrupted = false;
+        while (taken == null) {
+            try {
+                taken = idle.take();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        final CodedCBlkDataSrcEnc chain = taken;
+        final TileResult result = new TileResult();
+        final int nx = primary.getNumTiles(null).x;
+        final int tx = t % nx;
+        final int ty = t / nx;
+        final int nc = primary.getNumComps();
+        results[t] = result;
+        Runnable r = new Runnable() {
+            public void run() {
+                Thread thread = Thread.currentThread();
+                if (thread != owner) {
+                    FacilityManager.registerMsgLogger(thread, logger);
+                }
+                List<List<CBlkRateDistStats>> cblks = new ArrayList<List<CBlkRateDistStats>>(nc);
+                Throwable failure = null;
+                try {
+                    chain.setTile(tx, ty);
+                    for (int c=0;c<nc;c++) {
+                        // As done by the rate allocator for a single chain,
+                        // this sets the quantizer dependent subband values
+                        chain.getAnSubbandTree(tx + ty * nx, c);
+                    }
+                    for (int c=0;c<nc;c++) {
+                        List<CBlkRateDistStats> list = new ArrayList<CBlkRateDistStats>();
+                        CBlkRateDistStats ccb;
+                        while ((ccb = chain.getNextCodeBlock(c, null)) != null) {
+                            list.add(ccb);
+                        }
+                        cblks.add(list);
+                    }
+                } catch (Throwable e) {
+                    failure = e;
+                } finally {
+                    if (thread != owner) {
+                        FacilityManager.unregisterMsgLogger(thread);
+                    }
+                    idle.add(chain);
+                    synchronized (result) {
+                        result.cblks = cblks;
+                        result.failure = failure;
+                        result.done = true;
+                        result.notifyAll();
+                    }
+                }
+            }
+        };
+        try {
+            executor.execute(r);
+        } catch (RuntimeException e) {
+            results[t] = null;
+            idle.add(chain);
+            throw e;
+        }
+    }
+
+    /**
+     * Return the coded code-blocks of the specified tile, submitting it and
+     * the tiles following it for encoding if not already done, and waiting
+     * for it to be encoded.
+     */
+    private TileResult getResult(int t) {
+        if (results[t] == null) {
+            submit(t);
+        }
+        int last = Math.min(t + nchains, results.length);
+        for (nextSubmit = Math.max(nextSubmit, t + 1); nextSubmit < last; nextSubmit++) {
+            if (results[nextSubmit] == null) {
+                submit(nextSubmit);
+            }
+        }
+        TileResult result = results[t];
+        boolean interrupted = false;
+        synchronized (result) {
+            while (!result.done) {
+                try {
+                    result.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (result.failure instanceof RuntimeException) {
+            throw (RuntimeException)result.failure;
+        } else if (result.failure instanceof Error) {
+            throw (Error)result.failure;
+        } else if (result.failure != null) {
+            throw new RuntimeException(result.failure);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the next coded code-block in the current tile for the
+     * specified component. The first request for a tile waits for it to be
+     * encoded, and submits the following tiles. Each code-block is returned
+     * only once, and is not retained after that, so that the memory used by a
+     * tile is released as soon as the rate allocator is done with it. The
+     * <tt>ccb</tt> argument is ignored.
+     *
+     * @param c The component for which to return the next code-block.
+     *
+     * @param ccb Ignored.
+     *
+     * @return The next coded code-block in the current tile for component
+     * 'c', or null if all code-blocks for the current tile have been
+     * returned.
+     * */
+    public CBlkRateDistStats getNextCodeBlock(int c, CBlkRateDistStats ccb) {
+        List<CBlkRateDistStats> list = getResult(getTileIdx()).cblks.get(c);
+        if (nextCblk[c] < list.size()) {
+            return list.set(nextCblk[c]++, null);
+        }
+        return null;
+    }
+
+    public void setTile(int x, int y) {
+        super.setTile(x, y);
+        nextCblk = new int[nextCblk.length];
+    }
+
+    public void nextTile() {
+        super.nextTile();
+        nextCblk = new int[nextCblk.length];
+    }
+
+    public int getPPX(int t, int c, int r) {
+        return primary.getPPX(t, c, r);
+    }
+
+    public int getPPY(int t, int c, int r) {
+        return primary.getPPY(t, c, r);
+    }
+
+    public boolean precinctPartitionUsed(int c, int t) {
+        return primary.precinctPartitionUsed(c, t);
+    }
+
+    public boolean isReversible(int t, int c) {
+        return primary.isReversible(t, c);
+    }
+
+    public SubbandAn getAnSubbandTree(int t, int c) {
+        return primary.getAnSubbandTree(t, c);
+    }
+
+    public int getCbULX() {
+        return primary.getCbULX();
+    }
+
+    public int getCbULY() {
+        return primary.getCbULY();
+    }
+
+}
@@ -44,6 +44,8 @@
  * */
 package jj2000.j2k.image;
 
+import jj2000.j2k.util.BufferPool;
+import jj2000.j2k.util.BufferPoolUser;
 
 /**
  * This class is responsible of all data type conversions. It should be used,
@@ -55,7 +57,8 @@ package jj2000.j2k.image;
  * 'ImgDataAdapter' class that is the superclass of this one, so they don't
  * need to be reimplemented by subclasses.
  * */
-public class ImgDataConverter extends ImgDataAdapter implements BlkImgDataSrc {
+public class ImgDataConverter extends ImgDataAdapter
+    implements BlkImgDataSrc, BufferPoolUser {
 
     /** The block used to request data from the source in the case that a
      * conversion seems necessary. It can be either int or float at
@@ -69,6 +72,13 @@ public class ImgDataConverter extends ImgDataAdapter implements BlkImgDataSrc {
     /** The number of fraction bits in the casted ints */
     private int fp;
 
+    /** The pool 'convData' is taken from, or null */
+    private BufferPool pool;
+
+    /** The array 'getInternCompData()' returns converted data in when a pool
+     * is set, which is kept from one block to the next */
+    private Object convData;
+
     /**
      * Constructs a new ImgDataConverter object that operates on the specified
      * source of image data.
@@ -117,6 +127,55 @@ public class ImgDataConverter extends ImgDataAdapter implements BlkImgDataSrc {
         return fp;
      }
 
+    /**
+     * Sets the pool the array converted data is returned in by
+     * 'getInternCompData()' is taken from, and returned to by {@link
+     * #releaseBuffers}. When a pool is set that array belongs to this object,
+     * rather than being the array of the block given as argument.
+     *
+     * @param pool The pool to use, or null to use the array of the block
+     * given as argument, if large enough, or allocate one (the default).
+     * */
+    public void setBufferPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the array converted data is returned in to the pool set by
+     * {@link #setBufferPool}, if any.
+     * */
+    public void releaseBuffers() {
+        if (pool != null) {
+            pool.release(convData);
+        }
+        convData = null;
+    }
+
+    /**
+     * Returns the array of this object to return converted data in, taken
+     * from the pool if the one used for the previous block is not large
+     * enough.
+     *
+     * @param type The data type, TYPE_INT or TYPE_FLOAT.
+     *
+     * @param len The minimum length.
+     *
+     * @return The array.
+     * */
+    private Object getConvData(int type, int len) {
+        if (type == DataBlk.TYPE_FLOAT ?
+            !(convData instanceof float[]) || ((float[])convData).length < len :
+            !(convData instanceof int[]) || ((int[])convData).length < len) {
+            pool.release(convData);
+            if (type == DataBlk.TYPE_FLOAT) {
+                convData = pool.getFloat(len);
+            } else {
+                convData = pool.getInt(len);
+            }
+        }
+        return convData;
+    }
+
     /**
      * Returns, in the blk argument, a block of image data containing the
      * specifed rectangular area, in the specified component, using the
@@ -273,7 +332,11 @@ public class ImgDataConverter extends ImgDataAdapter implements BlkImgDataSrc {
 
 	    // Get data array from resulting blk
 	    farr = (float[]) blk.getData();
-	    if (farr == null || farr.length < w*h) {
+	    if (intern && pool != null) {
+		farr = (float[]) getConvData(otype,w*h);
+		blk.setData(farr);
+	    }
+	    else if (farr == null || farr.length < w*h) {
 		farr = new float[w*h];
 		blk.setData(farr);
 	    }
@@ -314,7 +377,11 @@ public class ImgDataConverter extends ImgDataAdapter implements BlkImgDataSrc {
 
 		// Get data array from resulting blk
 		iarr = (int[]) blk.getData();
-		if (iarr == null || iarr.length < w*h) {
+		if (intern && pool != null) {
+		    iarr = (int[]) getConvData(otype,w*h);
+		    blk.setData(iarr);
+		}
+		else if (iarr == null || iarr.length < w*h) {
 		    iarr = new int[w*h];
 		    blk.setData(iarr);
 		}
@@ -0,0 +1,249 @@
+package jj2000.j2k.image;
+
+import java.awt.Point;
+
+import jj2000.j2k.NoNextElementException;
+
+/**
+ * A view on an existing BlkImgDataSrc which can be shared between threads.
+ * Each view has its own current tile; the underlying source is locked and
+ * moved to that tile whenever data or tile dependent properties are
+ * requested, so several encoding chains can read different tiles of the
+ * same source at once. Data is always returned in a block owned by the
+ * caller, never in a buffer internal to the source.
+ *
+ * <P>The underlying source must not be used directly while any view is in
+ * use.
+ *
+ * @author http://bfo.com
+ */
+public class SharedBlkImgDataSrc implements BlkImgDataSrc {
+
+    private final BlkImgDataSrc src;
+    private final int numx, numy;
+    private int tx, ty;
+
+    /**
+     * Create a new view on the specified source, with the first tile as
+     * the current tile.
+     */
+    public SharedBlkImgDataSrc(BlkImgDataSrc src) {
+        this.src = src;
+        Point p = src.getNumTiles(null);
+        this.numx = p.x;
+        this.numy = p.y;
+    }
+
+    /**
+     * Move the underlying source to the current tile of this view. Must be
+     * called while synchronized on the source.
+     */
+    private void select() {
+        src.setTile(tx, ty);
+    }
+
+    public int getFixedPoint(int c) {
+        synchronized(src) {
+            select();
+            return src.getFixedPoint(c);
+        }
+    }
+
+    /**
+     * Returns the requested block of data for the specified component of
+     * the current tile. Unlike most sources, the data is always returned in
+     * the supplied block if it is of the same type as the source, or
+     * otherwise in a new block, and never in a buffer internal to the source.
+     * */
+    public DataBlk getInternCompData(DataBlk blk, int c) {
+        synchronized(src) {
+            select();
+            DataBlk out = src.getInternCompData(blk, c);
+            return out == blk ? out : copy(out, blk);
+        }
+    }
+
+    public DataBlk getCompData(DataBlk blk, int c) {
+        synchronized(src) {
+            select();
+            return src.getCompData(blk, c);
+        }
+    }
+
+    /**
+     * Copy a block returned by the source into the requested block, or into
+     * a new block if the types differ.
+     */
+    private static DataBlk copy(DataBlk from, DataBlk to) {
+        if (to.getDataType() != from.getDataType()) {
+            to = from.getDataType() == DataBlk.TYPE_FLOAT ? (DataBlk)new DataBlkFloat() : new DataBlkInt();
+        }
+        int len = from.w * from.h;
+        Object data = to.getData();
+        if (from.getDataType() == DataBlk.TYPE_FLOAT) {
+            if (data == null || ((float[])data).length < len) {
+                data = new float[len];
+            }
+        } else if (data == null || ((int[])data).length < len) {
+            data = new int[len];
+        }
+        for (int i=0;i<from.h;i++) {
+            System.arraycopy(from.getData(), from.offset + i * from.scanw, data, i * from.w, from.w);
+        }
+        to.setData(data);
+        to.ulx = from.ulx;
+        to.uly = from.uly;
+        to.w = from.w;
+        to.h = from.h;
+        to.offset = 0;
+        to.scanw = from.w;
+        to.progressive = from.progressive;
+        return to;
+    }
+
+    public int getTileWidth() {
+        synchronized(src) {
+            select();
+            return src.getTileWidth();
+        }
+    }
+
+    public int getTileHeight() {
+        synchronized(src) {
+            select();
+            return src.getTileHeight();
+        }
+    }
+
+    public int getTileCompWidth(int t, int c) {
+        synchronized(src) {
+            select();
+            return src.getTileCompWidth(t, c);
+        }
+    }
+
+    public int getTileCompHeight(int t, int c) {
+        synchronized(src) {
+            select();
+            return src.getTileCompHeight(t, c);
+        }
+    }
+
+    public int getCompULX(int c) {
+        synchronized(src) {
+            select();
+            return src.getCompULX(c);
+        }
+    }
+
+    public int getCompULY(int c) {
+        synchronized(src) {
+            select();
+            return src.getCompULY(c);
+        }
+    }
+
+    public void setTile(int x, int y) {
+        if (x < 0 || y < 0 || x >= numx || y >= numy) {
+            throw new IllegalArgumentException("Tile "+x+"x"+y+" out of bounds");
+        }
+        tx = x;
+        ty = y;
+    }
+
+    public void nextTile() {
+        int x = tx, y = ty;
+        if (++x == numx) {
+            x = 0;
+            if (++y == numy) {
+                throw new NoNextElementException();
+            }
+        }
+        setTile(x, y);
+    }
+
+    public Point getTile(Point co) {
+        if (co == null) {
+            return new Point(tx, ty);
+        } else {
+            co.x = tx;
+            co.y = ty;
+            return co;
+        }
+    }
+
+    public int getTileIdx() {
+        return ty * numx + tx;
+    }
+
+    public Point getNumTiles(Point co) {
+        if (co == null) {
+            return new Point(numx, numy);
+        } else {
+            co.x = numx;
+            co.y = numy;
+            return co;
+        }
+    }
+
+    public int getNumTiles() {
+        return numx * numy;
+    }
+
+    public int getNomTileWidth() {
+        return src.getNomTileWidth();
+    }
+
+    public int getNomTileHeight() {
+        return src.getNomTileHeight();
+    }
+
+    public int getImgWidth() {
+        return src.getImgWidth();
+    }
+
+    public int getImgHeight() {
+        return src.getImgHeight();
+    }
+
+    public int getNumComps() {
+        return src.getNumComps();
+    }
+
+    public int getCompSubsX(int c) {
+        return src.getCompSubsX(c);
+    }
+
+    public int getCompSubsY(int c) {
+        return src.getCompSubsY(c);
+    }
+
+    public int getCompImgWidth(int c) {
+        return src.getCompImgWidth(c);
+    }
+
+    public int getCompImgHeight(int c) {
+        return src.getCompImgHeight(c);
+    }
+
+    public int getNomRangeBits(int c) {
+        return src.getNomRangeBits(c);
+    }
+
+    public int getTilePartULX() {
+        return src.getTilePartULX();
+    }
+
+    public int getTilePartULY() {
+        return src.getTilePartULY();
+    }
+
+    public int getImgULX() {
+        return src.getImgULX();
+    }
+
+    public int getImgULY() {
+        return src.getImgULY();
+    }
+
+}
@@ -51,6 +51,8 @@ import jj2000.j2k.image.DataBlk;
 import jj2000.j2k.image.DataBlkFloat;
 import jj2000.j2k.image.DataBlkInt;
 import jj2000.j2k.image.ImgDataAdapter;
+import jj2000.j2k.util.BufferPool;
+import jj2000.j2k.util.BufferPoolUser;
 import jj2000.j2k.util.MathUtil;
 import jj2000.j2k.wavelet.synthesis.SynWTFilterSpec;
 
@@ -64,7 +66,8 @@ import jj2000.j2k.wavelet.synthesis.SynWTFilterSpec;
  *
  * @see ModuleSpec
  * */
-public class InvCompTransf extends ImgDataAdapter implements BlkImgDataSrc{
+public class InvCompTransf extends ImgDataAdapter
+    implements BlkImgDataSrc, BufferPoolUser {
 
     /** Identifier for no component transformation. Value is 0. */
     public static final int NONE = 0;
@@ -100,6 +103,16 @@ public class InvCompTransf extends ImgDataAdapter implements BlkImgDataSrc{
     /** Buffer for each component of output data */
     private int[][] outdata = new int[3][];
 
+    /** The arrays holding the transformed components, which are kept from
+     * one block to the next */
+    private int[][] tdata = new int[3][];
+
+    /** The pool the arrays in 'tdata' are taken from, or null */
+    private BufferPool pool;
+
+    /** The blocks returned by getUntransformedData() */
+    private DataBlk[] utblk = new DataBlk[3];
+
     /** Block used to request component 0 */
     private DataBlk block0;
 
@@ -332,8 +345,188 @@ public class InvCompTransf extends ImgDataAdapter implements BlkImgDataSrc{
         if (c>=3 || transfType == NONE) {
             return src.getCompData(blk,c);
         }
-        else { // We can use getInternCompData (since data is a copy anyways)
-            return getInternCompData(blk,c);
+        else { // The transformed data is kept in internal arrays, copy it
+            int[] data = (int[]) blk.getData();
+            blk = getInternCompData(blk,c);
+            int[] tdata = (int[]) blk.getData();
+            if(data==null || data.length<blk.w*blk.h ||
+               data==this.tdata[0] || data==this.tdata[1] ||
+               data==this.tdata[2]) {
+                data = new int[blk.w*blk.h];
+            }
+            for(int i=0; i<blk.h; i++) {
+                System.arraycopy(tdata,blk.offset+i*blk.scanw,
+                                 data,i*blk.w,blk.w);
+            }
+            blk.setData(data);
+            blk.offset = 0;
+            blk.scanw = blk.w;
+            return blk;
+        }
+    }
+
+    /**
+     * Sets the pool the arrays holding the transformed components are taken
+     * from, and returned to by {@link #releaseBuffers}.
+     *
+     * @param pool The pool to use, or null to allocate the arrays as needed
+     * (the default).
+     * */
+    public void setBufferPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the arrays holding the transformed components to the pool set
+     * by {@link #setBufferPool}, if any. The transformation is done again if
+     * more data is requested.
+     * */
+    public void releaseBuffers() {
+        for(int i=0; i<3; i++) {
+            if(pool!=null) {
+                pool.release(tdata[i]);
+            }
+            tdata[i] = null;
+            outdata[i] = null;
+        }
+    }
+
+    /**
+     * Makes the arrays holding the transformed components at least the
+     * specified length, reusing those of the previous block if they are
+     * large enough.
+     *
+     * @param len The minimum length.
+     * */
+    private void allocTData(int len) {
+        for(int i=0; i<3; i++) {
+            if(tdata[i] == null || tdata[i].length<len) {
+                if(pool!=null) {
+                    pool.release(tdata[i]);
+                    tdata[i] = pool.getInt(len);
+                } else {
+                    tdata[i] = new int[len];
+                }
+            }
+            outdata[i] = tdata[i];
+        }
+    }
+
+    /**
+     * Returns the inverse component transformation of the current tile:
+     * NONE, INV_RCT or INV_ICT. If it is not NONE, it is applied to the
+     * first three components.
+     *
+     * @return The inverse component transformation of the current tile.
+     * */
+    public int getTransfType() {
+        return noCompTransf ? NONE : transfType;
+    }
+
+    /**
+     * Returns the first three components of the specified area as they are
+     * before the inverse component transformation of the current tile, so
+     * that the caller can apply the transformation with invRCT() or invICT()
+     * as part of its own pass over the samples. The returned blocks are
+     * DataBlkInt for INV_RCT and DataBlkFloat for INV_ICT. They belong to
+     * this object and are only valid until the next call, and they may be
+     * larger than the requested area, as for getInternCompData().
+     *
+     * @param blk Determines the rectangular area to return.
+     *
+     * @return The three components, which are progressive if the block is.
+     *
+     * @see #getTransfType
+     * */
+    public DataBlk[] getUntransformedData(DataBlk blk) {
+        int type = transfType==INV_ICT ? DataBlk.TYPE_FLOAT : DataBlk.TYPE_INT;
+        for(int c=0; c<3; c++) {
+            if(utblk[c]==null || utblk[c].getDataType()!=type) {
+                utblk[c] = type==DataBlk.TYPE_INT ?
+                    (DataBlk)new DataBlkInt() : new DataBlkFloat();
+            }
+            utblk[c].ulx = blk.ulx;
+            utblk[c].uly = blk.uly;
+            utblk[c].w = blk.w;
+            utblk[c].h = blk.h;
+            utblk[c] = src.getInternCompData(utblk[c],c);
+        }
+        blk.progressive = utblk[0].progressive || utblk[1].progressive ||
+            utblk[2].progressive;
+        return utblk;
+    }
+
+    /**
+     * Applies the inverse reversible component transformation to a run of
+     * samples.
+     *
+     * @param y The first component.
+     *
+     * @param yoff The index of the first sample in 'y'.
+     *
+     * @param u The second component.
+     *
+     * @param uoff The index of the first sample in 'u'.
+     *
+     * @param v The third component.
+     *
+     * @param voff The index of the first sample in 'v'.
+     *
+     * @param r Where to write the first transformed component.
+     *
+     * @param g Where to write the second transformed component.
+     *
+     * @param b Where to write the third transformed component.
+     *
+     * @param off The index of the first sample in 'r', 'g' and 'b'.
+     *
+     * @param n The number of samples.
+     * */
+    public static void invRCT(int[] y,int yoff,int[] u,int uoff,
+                              int[] v,int voff,int[] r,int[] g,int[] b,
+                              int off,int n) {
+        for(int end=off+n; off<end; off++, yoff++, uoff++, voff++) {
+            int gv = y[yoff] - ((u[uoff]+v[voff])>>2);
+            g[off] = gv;
+            r[off] = v[voff] + gv;
+            b[off] = u[uoff] + gv;
+        }
+    }
+
+    /**
+     * Applies the inverse irreversible component transformation to a run of
+     * samples, rounding the results to integers.
+     *
+     * @param y The first component.
+     *
+     * @param yoff The index of the first sample in 'y'.
+     *
+     * @param cb The second component.
+     *
+     * @param cboff The index of the first sample in 'cb'.
+     *
+     * @param cr The third component.
+     *
+     * @param croff The index of the first sample in 'cr'.
+     *
+     * @param r Where to write the first transformed component.
+     *
+     * @param g Where to write the second transformed component.
+     *
+     * @param b Where to write the third transformed component.
+     *
+     * @param off The index of the first sample in 'r', 'g' and 'b'.
+     *
+     * @param n The number of samples.
+     * */
+    public static void invICT(float[] y,int yoff,float[] cb,int cboff,
+                              float[] cr,int croff,int[] r,int[] g,int[] b,
+                              int off,int n) {
+        for(int end=off+n; off<end; off++, yoff++, cboff++, croff++) {
+            r[off] = (int)(y[yoff]+1.402f*cr[croff]+0.5f);
+            g[off] = (int)(y[yoff]-0.34413f*cb[cboff]-0.71414f*cr[croff]
+                           + 0.5f);
+            b[off] = (int)(y[yoff]+1.772f*cb[cboff]+0.5f);
         }
     }
 
@@ -396,21 +589,13 @@ public class InvCompTransf extends ImgDataAdapter implements BlkImgDataSrc{
 	    (dbi.ulx > blk.ulx) || (dbi.uly > blk.uly) ||
             (dbi.ulx+dbi.w < blk.ulx+blk.w) ||
             (dbi.uly+dbi.h < blk.uly+blk.h)) {
-	    int k,k0,k1,k2,mink,i;
+	    int k,k0,k1,k2,i;
 	    int w = blk.w; //width of output block
 	    int h = blk.h; //height of ouput block
 
-            //Reference to output block data array
-            outdata[c] = (int[]) blk.getData();
-
-            //Create data array of blk if necessary
-            if(outdata[c] == null || outdata[c].length!=h*w){
-                outdata[c] = new int[h * w];
-                blk.setData(outdata[c]);
-            }
-
-	    outdata[(c+1)%3] = new int[outdata[c].length];
-	    outdata[(c+2)%3] = new int[outdata[c].length];
+            // Output data arrays, reused from the previous block
+            allocTData(h*w);
+            blk.setData(outdata[c]);
 
 	    if(block0==null || block0.getDataType()!=DataBlk.TYPE_INT)
 		block0 = new DataBlkInt();
@@ -450,21 +635,19 @@ public class InvCompTransf extends ImgDataAdapter implements BlkImgDataSrc{
             // Perform conversion
 
             // Initialize general indexes
-            k = w*h-1;
-            k0 = block0.offset+(h-1)*block0.scanw+w-1;
-            k1 = block1.offset+(h-1)*block1.scanw+w-1;
-            k2 = block2.offset+(h-1)*block2.scanw+w-1;
-
-	    for( i = h-1; i >=0; i--){
-		for(mink = k-w; k > mink; k--, k0--, k1--, k2--){
-		    outdata[1][k] = (data0[k0] - ((data1[k1]+data2[k2])>>2) );
-		    outdata[0][k] = data2[k2] + outdata[1][k];
-		    outdata[2][k] = data1[k1] + outdata[1][k];
-		}
-		// Jump to beggining of previous line in input
-		k0 -= block0.scanw - w;
-		k1 -= block1.scanw - w;
-		k2 -= block2.scanw - w;
+            k = 0;
+            k0 = block0.offset;
+            k1 = block1.offset;
+            k2 = block2.offset;
+
+	    for( i = 0; i < h; i++){
+                invRCT(data0,k0,data1,k1,data2,k2,
+                       outdata[0],outdata[1],outdata[2],k,w);
+		// Jump to beggining of next line
+                k += w;
+		k0 += block0.scanw;
+		k1 += block1.scanw;
+		k2 += block2.scanw;
 	    }
 	    outdata[c] = null;
         }
@@ -511,13 +694,18 @@ public class InvCompTransf extends ImgDataAdapter implements BlkImgDataSrc{
                 blk.setData(outdata);
             }
 
-            // Variables
-            DataBlkFloat indb = new DataBlkFloat(blk.ulx,blk.uly,w,h);
+            // Variables. No data array is allocated for indb, as the
+            // source returns its internal one
+            DataBlk indb = new DataBlkFloat();
+            indb.ulx = blk.ulx;
+            indb.uly = blk.uly;
+            indb.w = w;
+            indb.h = h;
             float indata[]; // input data array
 
             // Get the input data
             // (returned block may be larger than requested one)
-            src.getInternCompData(indb,c);
+            indb = src.getInternCompData(indb,c);
             indata = (float[]) indb.getData();
 
             // Copy the data converting from int to int
@@ -543,21 +731,13 @@ public class InvCompTransf extends ImgDataAdapter implements BlkImgDataSrc{
 	    (dbi.ulx > blk.ulx) || (dbi.uly > blk.uly) ||
             (dbi.ulx+dbi.w < blk.ulx+blk.w) ||
             (dbi.uly+dbi.h < blk.uly+blk.h)) {
-	    int k,k0,k1,k2,mink,i;
+	    int k,k0,k1,k2,i;
 	    int w = blk.w; //width of output block
 	    int h = blk.h; //height of ouput block
 
-	    //Reference to output block data array
-	    outdata[c] = (int[]) blk.getData();
-
-	    //Create data array of blk if necessary
-	    if(outdata[c] == null || outdata[c].length!=w*h){
-		outdata[c] = new int[h * w];
-		blk.setData(outdata[c]);
-	    }
-
-	    outdata[(c+1)%3] = new int[outdata[c].length];
-	    outdata[(c+2)%3] = new int[outdata[c].length];
+            // Output data arrays, reused from the previous block
+            allocTData(h*w);
+            blk.setData(outdata[c]);
 
 	    if(block0==null || block0.getDataType()!=DataBlk.TYPE_FLOAT)
 		block0 = new DataBlkFloat();
@@ -597,23 +777,19 @@ public class InvCompTransf extends ImgDataAdapter implements BlkImgDataSrc{
             //Perform conversion
 
             // Initialize general indexes
-            k = w*h-1;
-            k0 = block0.offset+(h-1)*block0.scanw+w-1;
-            k2 = block2.offset+(h-1)*block2.scanw+w-1;
-            k1 = block1.offset+(h-1)*block1.scanw+w-1;
-
-	    for( i = h-1; i >=0; i--){
-		for(mink = k-w; k > mink; k--, k0--, k2--, k1--){
-  		    outdata[0][k] = (int)(data0[k0]+1.402f*data1[k1]+0.5f);
-  		    outdata[1][k] =
-  			(int) (data0[k0]-0.34413f*data2[k2]-0.71414f*data1[k1]
-                               + 0.5f);
-  		    outdata[2][k] = (int)(data0[k0]+1.772f*data2[k2]+0.5f);
-		}
-		// Jump to beggining of previous line in input
-		k0 -= block0.scanw - w;
-		k2 -= block2.scanw - w;
-		k1 -= block1.scanw - w;
+            k = 0;
+            k0 = block0.offset;
+            k2 = block2.offset;
+            k1 = block1.offset;
+
+	    for( i = 0; i < h; i++){
+                invICT(data0,k0,data2,k2,data1,k1,
+                       outdata[0],outdata[1],outdata[2],k,w);
+		// Jump to beggining of next line
+                k += w;
+		k0 += block0.scanw;
+		k2 += block2.scanw;
+		k1 += block1.scanw;
   	    }
 	    outdata[c] = null;
         }
@@ -8,7 +8,8 @@ import java.awt.Point;
 /**
  * An abstract instance of BlkImgDataSrc. Implementations need only
  * implement the "loadTile" method, which sets the "buf", "offset" and "scanline"
- * variables.
+ * variables. Images of more than 8 bits per component set "sbuf" (up to 16 bits)
+ * or "ibuf" instead of "buf".
  *
  * @author http://bfo.com
  */
@@ -17,66 +18,117 @@ public abstract class AbstractDataSource implements BlkImgDataSrc {
     protected /*final*/ int w, h, numc, bpc, nomtw, nomth, numx, numy;
     protected int tx, ty, tw, th;
     protected byte[] buf;
+    protected short[] sbuf;
+    protected int[] ibuf;
     protected int scanline, offset;
+    protected boolean signed;
 
     /**
-     * Create a new AbstractDataSource from the specified BufferedImage
+     * Create a new AbstractDataSource from the specified BufferedImage.
+     * The samples are read from the image as they are needed, so the image
+     * must not be modified until it has been encoded.
      * @param img the image source
      * @param tilesize the tile size (suggest 256)
      */
     public static AbstractDataSource newInstance(BufferedImage img, int tilesize) {
-        int w = img.getWidth();
-        int h = img.getHeight();
-        int numc = img.getColorModel().getNumColorComponents();
-        int bpc = img.getColorModel().getComponentSize()[0];
+        return new BufferedImageDataSource(img, tilesize, tilesize);
+    }
+
+    /**
+     * Create a new AbstractDataSource from the specified BufferedImage, with
+     * tiles that need not be square.
+     * The samples are read from the image as they are needed, so the image
+     * must not be modified until it has been encoded.
+     * @param img the image source
+     * @param tilewidth the tile width
+     * @param tileheight the tile height
+     */
+    public static AbstractDataSource newInstance(BufferedImage img, int tilewidth, int tileheight) {
+        return new BufferedImageDataSource(img, tilewidth, tileheight);
+    }
+
+    /**
+     * Create a new AbstractDataSource from the specified byte array and parameters
+     * @param w the image width
+     * @param h the image height
+     * @param numc the number of components in the image
+     * @param bpc the number of bits per component in the image
+     * @param tilesize the tile size (suggest 256)
+     * @param buf the byte buffer containing the image data in normal component-interleaved order
+     * @param bufoffset the index into the buffer of component (0,0)
+     */
+    public static AbstractDataSource newInstance(int w, int h, int numc, int bpc, int tilesize, byte[] buf, final int bufoffset) {
         AbstractDataSource s = new AbstractDataSource() {
             protected void loadTile(int x, int y, int w, int h) {
-                offset = y * scanline + x * this.numc;
+                offset = bufoffset + y * scanline + x * numc;
             }
         };
         s.initialize(w, h, numc, bpc, tilesize);
         s.scanline = (w * numc * bpc + 7) >> 3;
-        s.buf = new byte[s.scanline * h];
-        Raster raster = img.getData();
-        for (int y=0;y<h;y++) {
-            for (int x=0;x<w;x++) {
-                for (int z=0;z<numc;z++) {
-                    s.buf[y*s.scanline + x*numc + z] = (byte)raster.getSample(x, y, z);
-                }
+        s.buf = buf;
+        return s;
+    }
+
+    /**
+     * Create a new AbstractDataSource from the specified short array and parameters,
+     * for images of up to 16 bits per component
+     * @param w the image width
+     * @param h the image height
+     * @param numc the number of components in the image
+     * @param bpc the number of bits per component in the image
+     * @param signed whether the samples are signed
+     * @param tilesize the tile size (suggest 256)
+     * @param buf the short buffer containing the image data in normal component-interleaved order
+     * @param bufoffset the index into the buffer of component (0,0)
+     */
+    public static AbstractDataSource newInstance(int w, int h, int numc, int bpc, boolean signed, int tilesize, short[] buf, final int bufoffset) {
+        AbstractDataSource s = new AbstractDataSource() {
+            protected void loadTile(int x, int y, int w, int h) {
+                offset = bufoffset + y * scanline + x * numc;
             }
-        }
+        };
+        s.initialize(w, h, numc, bpc, tilesize);
+        s.scanline = w * numc;
+        s.signed = signed;
+        s.sbuf = buf;
         return s;
     }
 
     /**
-     * Create a new AbstractDataSource from the specified byte array and parameters
+     * Create a new AbstractDataSource from the specified int array and parameters
      * @param w the image width
      * @param h the image height
      * @param numc the number of components in the image
      * @param bpc the number of bits per component in the image
+     * @param signed whether the samples are signed
      * @param tilesize the tile size (suggest 256)
-     * @param buf the byte buffer containing the image data in normal component-interleaved order
+     * @param buf the int buffer containing the image data in normal component-interleaved order
      * @param bufoffset the index into the buffer of component (0,0)
      */
-    public static AbstractDataSource newInstance(int w, int h, int numc, int bpc, int tilesize, byte[] buf, final int bufoffset) {
+    public static AbstractDataSource newInstance(int w, int h, int numc, int bpc, boolean signed, int tilesize, int[] buf, final int bufoffset) {
         AbstractDataSource s = new AbstractDataSource() {
             protected void loadTile(int x, int y, int w, int h) {
                 offset = bufoffset + y * scanline + x * numc;
             }
         };
         s.initialize(w, h, numc, bpc, tilesize);
-        s.scanline = (w * numc * bpc + 7) >> 3;
-        s.buf = buf;
+        s.scanline = w * numc;
+        s.signed = signed;
+        s.ibuf = buf;
         return s;
     }
 
     protected void initialize(int w, int h, int numc, int bpc, int tilesize) {
+        initialize(w, h, numc, bpc, tilesize, tilesize);
+    }
+
+    protected void initialize(int w, int h, int numc, int bpc, int tilewidth, int tileheight) {
         this.w = w;
         this.h = h;
         this.numc = numc;
         this.bpc = bpc;
-        this.nomtw = Math.min(tilesize, w);
-        this.nomth = Math.min(tilesize, h);
+        this.nomtw = Math.min(tilewidth, w);
+        this.nomth = Math.min(tileheight, h);
         this.numx = (w + nomtw - 1)  / nomtw;
         this.numy = (h + nomth - 1)  / nomth;
         tw = nomtw;
@@ -87,35 +139,59 @@ public abstract class AbstractDataSource implements BlkImgDataSrc {
     /**
      * This method should be implemented by subclasses.
      * It should set:
-     * 1. the "buf" variable to a byte array containing the image data
+     * 1. the "buf" variable to a byte array containing the image data, or
+     *    the "sbuf" or "ibuf" variable to a short or int array
      * 2. the "offset" variable to the offset into that array of point (x,y)
      * 3. the "scanline" variable to the number of bytes per horizontal scanline
      */
     protected abstract void loadTile(int x, int y, int w, int h);
 
     public DataBlk getInternCompData(DataBlk blk, int c) {
-        if (blk.getDataType() != DataBlk.TYPE_INT) {
-            blk = new DataBlkInt(blk.ulx, blk.uly, blk.w, blk.h);
-        }
-        DataBlkInt blki = (DataBlkInt)blk;
-        if (blki.data == null || blki.data.length != blk.w * blk.h) {
-            blki.data = new int[blk.w * blk.h];
-        }
+        DataBlkInt blki = intBlock(blk);
+        int[] out = blki.data;
+        int level = signed ? 0 : 1 << (bpc - 1);
         int tx0 = tx * nomtw;
         int ty0 = ty * nomth;
-//        System.out.println("Here: tx="+tx+"x"+ty+" tw="+tw+"x"+th+" c="+c+" blkxy="+blk.ulx+"x"+blk.uly+" blkwh="+blk.w+"x"+blk.h+" sl="+scanline+" tt="+tx0+"x"+ty0);
-//        System.out.println("T: offset="+offset+" txy="+tx0+"x"+ty0+" bxy="+blk.ulx+"x"+blk.uly);
         for (int y=0;y<blk.h;y++) {
-            int i = offset + (blk.uly - ty0)*scanline + (blk.ulx - tx0)*numc + c;
-            int o = blki.offset + y*tw;
-            for (int x=0;x<blk.w;x++) {
-                blki.data[o] = (buf[i] & 0xFF) - 128;
-                i += numc;
-                o++;
+            int i = offset + (blk.uly + y - ty0)*scanline + (blk.ulx - tx0)*numc + c;
+            int o = blki.offset + y*blki.scanw;
+            int end = o + blk.w;
+            if (ibuf != null) {
+                for (;o<end;o++,i+=numc) {
+                    out[o] = ibuf[i] - level;
+                }
+            } else if (sbuf != null) {
+                int mask = signed ? -1 : 0xFFFF;
+                for (;o<end;o++,i+=numc) {
+                    out[o] = (sbuf[i] & mask) - level;
+                }
+            } else {
+                int mask = signed ? -1 : 0xFF;
+                for (;o<end;o++,i+=numc) {
+                    out[o] = (buf[i] & mask) - level;
+                }
             }
         }
         blk.progressive = false;
-        return blk;
+        return blki;
+    }
+
+    /**
+     * Return the block to store the data for a call to getInternCompData in,
+     * which is the supplied block if it is a DataBlkInt, with an array
+     * large enough for the requested data
+     */
+    protected static DataBlkInt intBlock(DataBlk blk) {
+        if (blk.getDataType() != DataBlk.TYPE_INT) {
+            blk = new DataBlkInt(blk.ulx, blk.uly, blk.w, blk.h);
+        }
+        DataBlkInt blki = (DataBlkInt)blk;
+        if (blki.data == null || blki.data.length < blk.w * blk.h) {
+            blki.data = new int[blk.w * blk.h];
+        }
+        blki.offset = 0;
+        blki.scanw = blk.w;
+        return blki;
     }
 
     public DataBlk getCompData(DataBlk blk, int c) {
@@ -250,6 +326,15 @@ public abstract class AbstractDataSource implements BlkImgDataSrc {
         return bpc;
     }
 
+    /**
+     * Return true if the samples of the specified component are signed. Signed
+     * samples are encoded as they are, unsigned ones are level shifted by
+     * half their nominal range.
+     */
+    public boolean isOrigSigned(int c) {
+        return signed;
+    }
+
     public int getImgULX() {
         return 0;
     }
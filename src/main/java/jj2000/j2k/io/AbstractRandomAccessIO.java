@@ -11,6 +11,20 @@ import java.io.IOException;
  */
 public abstract class AbstractRandomAccessIO implements RandomAccessIO {
 
+    /**
+     * Return the specified offset as an int, for the <tt>int</tt> methods
+     * of a stream that may be longer than 2 GB.
+     *
+     * @param off the offset
+     * @throws IOException if the offset does not fit in an int
+     */
+    protected static int toIntOffset(long off) throws IOException {
+        if (off > Integer.MAX_VALUE) {
+            throw new IOException("Offset "+off+" is too large, use the long methods");
+        }
+        return (int)off;
+    }
+
     public byte readByte() throws IOException {
         return (byte)read();
     }
@@ -42,7 +56,7 @@ public abstract class AbstractRandomAccessIO implements RandomAccessIO {
         return EndianType.BIG_ENDIAN;
     }
     public int skipBytes(int n) throws IOException {
-        seek(getPos() + n);
+        seek(getLongPos() + n);
         return n;
     }
     public void writeByte(int v) throws IOException {
@@ -310,12 +310,12 @@ public class BEBufferedRandomAccessFile extends BufferedRandomAccessFile
      * @exception java.io.IOException If an I/O error ocurred.
      * */
     public final long readUnsignedInt() throws IOException, EOFException{
-	return (long)(
+	return ((long)(
 		      (read()<<24)|
 		      (read()<<16)|
 		      (read()<<8)|
 		      read()
-		      );
+		      )) & 0xFFFFFFFFL;
     }
 
     /**
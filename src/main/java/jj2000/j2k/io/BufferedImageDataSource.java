@@ -0,0 +1,161 @@
+package jj2000.j2k.io;
+
+import jj2000.j2k.image.*;
+import java.awt.image.*;
+
+/**
+ * An AbstractDataSource which reads the samples straight from the
+ * DataBuffer of a BufferedImage, so the image is never copied. Images
+ * with a ComponentSampleModel (byte, ushort and int interleaved or banded
+ * images) or a SinglePixelPackedSampleModel (packed RGB and ARGB) are read
+ * directly from the arrays of the DataBuffer, any other image is read from
+ * its Raster one line at a time. Images with a DataBuffer of TYPE_SHORT
+ * are encoded as signed. Any alpha channel is ignored.
+ *
+ * @author http://bfo.com
+ */
+class BufferedImageDataSource extends AbstractDataSource {
+
+    private static final int OTHER = 0, COMPONENT = 1, PACKED = 2;
+
+    private final Raster raster;
+    private final DataBuffer db;
+    private final int layout, datatype;
+    private final int smx, smy, pixelstride, rowstride;
+    private final int[] bank, bankoffset, mask, shift;
+    private int[] row;
+
+    /**
+     * Create a new BufferedImageDataSource
+     * @param img the image source
+     * @param tilewidth the tile width (suggest 256)
+     * @param tileheight the tile height (suggest 256)
+     */
+    BufferedImageDataSource(BufferedImage img, int tilewidth, int tileheight) {
+        ColorModel cm = img.getColorModel();
+        int numc = cm.getNumColorComponents();
+        int bpc = 0;
+        for (int i=0;i<numc;i++) {
+            bpc = Math.max(bpc, cm.getComponentSize(i));
+        }
+        initialize(img.getWidth(), img.getHeight(), numc, bpc, tilewidth, tileheight);
+
+        raster = img.getRaster();
+        db = raster.getDataBuffer();
+        datatype = db.getDataType();
+        signed = datatype == DataBuffer.TYPE_SHORT;
+        smx = raster.getSampleModelTranslateX();
+        smy = raster.getSampleModelTranslateY();
+        SampleModel sm = raster.getSampleModel();
+        bank = new int[numc];
+        bankoffset = new int[numc];
+        mask = new int[numc];
+        shift = new int[numc];
+        boolean direct = datatype == DataBuffer.TYPE_BYTE || datatype == DataBuffer.TYPE_USHORT || datatype == DataBuffer.TYPE_INT;
+        if ((direct || signed) && sm instanceof ComponentSampleModel) {
+            ComponentSampleModel csm = (ComponentSampleModel)sm;
+            layout = COMPONENT;
+            pixelstride = csm.getPixelStride();
+            rowstride = csm.getScanlineStride();
+            for (int c=0;c<numc;c++) {
+                bank[c] = csm.getBankIndices()[c];
+                bankoffset[c] = db.getOffsets()[bank[c]] + csm.getBandOffsets()[c];
+            }
+        } else if (direct && sm instanceof SinglePixelPackedSampleModel) {
+            SinglePixelPackedSampleModel psm = (SinglePixelPackedSampleModel)sm;
+            layout = PACKED;
+            pixelstride = 1;
+            rowstride = psm.getScanlineStride();
+            for (int c=0;c<numc;c++) {
+                bankoffset[c] = db.getOffset();
+                mask[c] = psm.getBitMasks()[c];
+                shift[c] = psm.getBitOffsets()[c];
+            }
+        } else {
+            layout = OTHER;
+            pixelstride = rowstride = 0;
+        }
+    }
+
+    protected void loadTile(int x, int y, int w, int h) {
+    }
+
+    public DataBlk getInternCompData(DataBlk blk, int c) {
+        DataBlkInt blki = intBlock(blk);
+        int[] out = blki.data;
+        int level = signed ? 0 : 1 << (bpc - 1);
+        for (int y=0;y<blk.h;y++) {
+            int o = blki.offset + y * blki.scanw;
+            int x0 = blk.ulx;
+            int y0 = blk.uly + y;
+            if (layout == OTHER) {
+                row = raster.getSamples(x0, y0, blk.w, 1, c, row);
+                for (int x=0;x<blk.w;x++) {
+                    out[o++] = row[x] - level;
+                }
+                continue;
+            }
+            int i = bankoffset[c] + (y0 - smy) * rowstride + (x0 - smx) * pixelstride;
+            int end = i + blk.w * pixelstride;
+            if (layout == COMPONENT) {
+                switch (datatype) {
+                    case DataBuffer.TYPE_BYTE: {
+                        byte[] in = ((DataBufferByte)db).getData(bank[c]);
+                        for (;i<end;i+=pixelstride) {
+                            out[o++] = (in[i] & 0xFF) - level;
+                        }
+                        break;
+                    }
+                    case DataBuffer.TYPE_USHORT: {
+                        short[] in = ((DataBufferUShort)db).getData(bank[c]);
+                        for (;i<end;i+=pixelstride) {
+                            out[o++] = (in[i] & 0xFFFF) - level;
+                        }
+                        break;
+                    }
+                    case DataBuffer.TYPE_SHORT: {
+                        short[] in = ((DataBufferShort)db).getData(bank[c]);
+                        for (;i<end;i+=pixelstride) {
+                            out[o++] = in[i];
+                        }
+                        break;
+                    }
+                    default: {
+                        int[] in = ((DataBufferInt)db).getData(bank[c]);
+                        for (;i<end;i+=pixelstride) {
+                            out[o++] = in[i] - level;
+                        }
+                    }
+                }
+            } else {
+                int m = mask[c];
+                int s = shift[c];
+                switch (datatype) {
+                    case DataBuffer.TYPE_BYTE: {
+                        byte[] in = ((DataBufferByte)db).getData();
+                        for (;i<end;i++) {
+                            out[o++] = ((in[i] & m) >>> s) - level;
+                        }
+                        break;
+                    }
+                    case DataBuffer.TYPE_USHORT: {
+                        short[] in = ((DataBufferUShort)db).getData();
+                        for (;i<end;i++) {
+                            out[o++] = ((in[i] & m) >>> s) - level;
+                        }
+                        break;
+                    }
+                    default: {
+                        int[] in = ((DataBufferInt)db).getData();
+                        for (;i<end;i++) {
+                            out[o++] = ((in[i] & m) >>> s) - level;
+                        }
+                    }
+                }
+            }
+        }
+        blk.progressive = false;
+        return blki;
+    }
+
+}
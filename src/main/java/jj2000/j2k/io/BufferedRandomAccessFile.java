@@ -103,7 +103,7 @@ public abstract class BufferedRandomAccessFile extends AbstractRandomAccessIO im
      * The current offset of the buffer (which will differ from the offset of
      * the file)
      * */
-    protected int offset;
+    protected long offset;
 
     /**
      * The current position in the byte-buffer
@@ -222,7 +222,7 @@ public abstract class BufferedRandomAccessFile extends AbstractRandomAccessIO im
      *
      * @exception java.io.IOException If an I/O error ocurred.
      * */
-    protected final void readNewBuffer(int off) throws IOException{
+    protected final void readNewBuffer(long off) throws IOException{
 
 	/* If the buffer have changed. We need to write it to
 	 * the file before reading a new buffer.
@@ -269,7 +269,14 @@ public abstract class BufferedRandomAccessFile extends AbstractRandomAccessIO im
     /**
      * Returns the current offset in the file
      * */
-    public int getPos(){
+    public int getPos() throws IOException{
+	return toIntOffset(offset+pos);
+    }
+
+    /**
+     * Returns the current offset in the file, as a long
+     * */
+    public long getLongPos(){
 	return (offset+pos);
     }
 
@@ -282,9 +289,21 @@ public abstract class BufferedRandomAccessFile extends AbstractRandomAccessIO im
      * @exception java.io.IOException If an I/O error ocurred.
      * */
     public int length() throws IOException{
-	int len;
+	return toIntOffset(longLength());
+    }
+
+    /**
+     * Returns the current length of the stream, in bytes, taking into
+     * account any buffering, as a long.
+     *
+     * @return The length of the stream, in bytes.
+     *
+     * @exception java.io.IOException If an I/O error ocurred.
+     * */
+    public long longLength() throws IOException{
+	long len;
 
-	len = (int)theFile.length();
+	len = theFile.length();
 
 	// If the position in the buffer is not past the end of the file,
 	// the length of theFile is the length of the stream
@@ -308,6 +327,21 @@ public abstract class BufferedRandomAccessFile extends AbstractRandomAccessIO im
      * @exception java.io.IOException If an I/O error ocurred.
      * */
     public void seek(int off) throws IOException{
+        seek((long)off);
+    }
+
+    /**
+     * Moves the current position to the given long offset at which the
+     * next read or write occurs. The offset is measured from the
+     * beginning of the stream.
+     *
+     * @param off The offset where to move to.
+     *
+     * @exception EOFException If in read-only and seeking beyond EOF.
+     *
+     * @exception java.io.IOException If an I/O error ocurred.
+     * */
+    public void seek(long off) throws IOException{
 	/* If the new offset is within the buffer, only the pos value needs
 	 * to be modified. Else, the buffer must be moved. */
 	if( (off>=offset)&&(off<(offset+byteBuffer.length)) ){
@@ -315,7 +349,7 @@ public abstract class BufferedRandomAccessFile extends AbstractRandomAccessIO im
                 // We are seeking beyond EOF in read-only mode!
                 throw new EOFException();
             }
-	    pos = off-offset;
+	    pos = (int)(off-offset);
 	}
 	else{
 	    readNewBuffer(off);
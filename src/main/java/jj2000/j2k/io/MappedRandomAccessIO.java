@@ -0,0 +1,280 @@
+package jj2000.j2k.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only RandomAccessIO on a file which is memory mapped with
+ * <code>FileChannel.map</code>, so reads are served straight from the
+ * page cache without copying through an intermediate buffer or making
+ * a system call. Files larger than 2GB are mapped as several segments.
+ *
+ * <P>Views on part of the file, such as the contents of a box, are
+ * created with {@link #slice}, and on all of it with {@link #duplicate};
+ * they share the mapping and have their own position.
+ *
+ * @author http://bfo.com
+ */
+public class MappedRandomAccessIO extends AbstractRandomAccessIO {
+
+    /** The log2 of the size of each mapped segment */
+    private static final int SEGMENT_SHIFT = 30;
+
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final ByteBuffer[] segments;
+    private final long start, length;
+    private long pos;
+    private boolean closed;
+
+    /**
+     * Create a new MappedRandomAccessIO which maps the whole of the
+     * specified file. The file is closed once mapped.
+     *
+     * @param file the file to read
+     */
+    public MappedRandomAccessIO(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            this.segments = map(raf.getChannel(), 0, raf.length());
+            this.start = 0;
+            this.length = raf.length();
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Create a new MappedRandomAccessIO which maps "length" bytes of
+     * the specified channel, starting at "start". The channel is not
+     * closed, but may be closed once this method returns.
+     *
+     * @param channel the channel to read
+     * @param start the offset of the first byte to map
+     * @param length the number of bytes to map
+     */
+    public MappedRandomAccessIO(FileChannel channel, long start, long length) throws IOException {
+        this.segments = map(channel, start, length);
+        this.start = 0;
+        this.length = length;
+    }
+
+    private MappedRandomAccessIO(ByteBuffer[] segments, long start, long length) {
+        this.segments = new ByteBuffer[segments.length];
+        for (int i=0;i<segments.length;i++) {
+            this.segments[i] = segments[i].duplicate();
+        }
+        this.start = start;
+        this.length = length;
+    }
+
+    private static ByteBuffer[] map(FileChannel channel, long start, long length) throws IOException {
+        ByteBuffer[] segments = new ByteBuffer[(int)((length + SEGMENT_MASK) >> SEGMENT_SHIFT)];
+        for (int i=0;i<segments.length;i++) {
+            long off = (long)i << SEGMENT_SHIFT;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + off, Math.min(SEGMENT_MASK + 1, length - off));
+        }
+        return segments;
+    }
+
+    /**
+     * Return a new MappedRandomAccessIO which is a view of "length" bytes
+     * on this object, starting from the current point. The view shares the
+     * mapped data, so no bytes are copied, but has its own position, which
+     * is initially zero.
+     *
+     * @param length the number of bytes in the view
+     */
+    public MappedRandomAccessIO slice(long length) throws IOException {
+        checkOpen();
+        if (length < 0 || length > this.length - pos) {
+            throw new IllegalArgumentException("Length "+length+" is greater than "+(this.length - pos));
+        }
+        return new MappedRandomAccessIO(segments, start + pos, length);
+    }
+
+    /**
+     * Return a new MappedRandomAccessIO which is a view of the whole of
+     * this object, with its own position. As positions are not shared,
+     * each thread reading the mapping concurrently should use its own view.
+     */
+    public MappedRandomAccessIO duplicate() throws IOException {
+        checkOpen();
+        return new MappedRandomAccessIO(segments, start, length);
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Closed");
+        }
+    }
+
+    /**
+     * Return the segment holding the byte at the current position, which
+     * will be positioned on that byte. The caller must have checked that
+     * the position is before the end of the stream.
+     */
+    private ByteBuffer segment() {
+        long off = start + pos;
+        ByteBuffer buf = segments[(int)(off >> SEGMENT_SHIFT)];
+        buf.position((int)(off & SEGMENT_MASK));
+        return buf;
+    }
+
+    /**
+     * Closes the I/O stream. The mapping is released when it is no longer
+     * referenced by this object or any of its slices.
+     * */
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Returns the current position in the stream, which is the position from
+     * where the next byte of data would be read. The first byte in the stream
+     * is in position <tt>0</tt>.
+     *
+     * @return The offset of the current position, in bytes.
+     *
+     * @exception IOException If an I/O error ocurred.
+     * */
+    public int getPos() throws IOException {
+        return toIntOffset(getLongPos());
+    }
+
+    public long getLongPos() throws IOException {
+        checkOpen();
+        return pos;
+    }
+
+    /**
+     * Returns the current length of the stream, in bytes, taking into account
+     * any buffering.
+     *
+     * @return The length of the stream, in bytes.
+     *
+     * @exception IOException If an I/O error ocurred.
+     * */
+    public int length() throws IOException {
+        return toIntOffset(longLength());
+    }
+
+    public long longLength() throws IOException {
+        checkOpen();
+        return length;
+    }
+
+    /**
+     * Moves the current position for the next read operation to offset. The
+     * offset is measured from the beginning of the stream.
+     *
+     * @param off The offset where to move to.
+     *
+     * @exception EOFException If seeking beyond EOF.
+     *
+     * @exception IOException If an I/O error ocurred.
+     * */
+    public void seek(int off) throws IOException {
+        seek((long)off);
+    }
+
+    public void seek(long off) throws IOException {
+        checkOpen();
+        if (off < 0 || off > length) {
+            throw new EOFException();
+        }
+        pos = off;
+    }
+
+    /**
+     * Reads a byte of data from the stream.
+     *
+     * @return The byte read, as an int.
+     *
+     * @exception EOFException If the end-of file was reached.
+     *
+     * @exception IOException If an I/O error ocurred.
+     * */
+    public int read() throws IOException {
+        checkOpen();
+        if (pos >= length) {
+            throw new EOFException();
+        }
+        long off = start + pos++;
+        return segments[(int)(off >> SEGMENT_SHIFT)].get((int)(off & SEGMENT_MASK)) & 0xFF;
+    }
+
+    public short readShort() throws IOException {
+        checkOpen();
+        long off = start + pos;
+        if (pos + 2 <= length && (off & SEGMENT_MASK) <= SEGMENT_MASK - 1) {
+            pos += 2;
+            return segments[(int)(off >> SEGMENT_SHIFT)].getShort((int)(off & SEGMENT_MASK));
+        }
+        return super.readShort();
+    }
+
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+    public int readInt() throws IOException {
+        checkOpen();
+        long off = start + pos;
+        if (pos + 4 <= length && (off & SEGMENT_MASK) <= SEGMENT_MASK - 3) {
+            pos += 4;
+            return segments[(int)(off >> SEGMENT_SHIFT)].getInt((int)(off & SEGMENT_MASK));
+        }
+        return super.readInt();
+    }
+
+    /**
+     * Reads up to len bytes of data from this file into an array of
+     * bytes. This method reads repeatedly from the stream until all the bytes
+     * are read. This method blocks until all the bytes are read, the end of
+     * the stream is detected, or an exception is thrown.
+     *
+     * @param b The buffer into which the data is to be read. It must be long
+     * enough.
+     *
+     * @param off The index in 'b' where to place the first byte read.
+     *
+     * @param len The number of bytes to read.
+     *
+     * @exception EOFException If the end-of file was reached before
+     * getting all the necessary data.
+     *
+     * @exception IOException If an I/O error ocurred.
+     * */
+    public void readFully(byte b[], int off, int len) throws IOException {
+        checkOpen();
+        if (len > length - pos) {
+            throw new EOFException();
+        }
+        while (len > 0) {
+            ByteBuffer buf = segment();
+            int c = Math.min(len, buf.remaining());
+            buf.get(b, off, c);
+            pos += c;
+            off += c;
+            len -= c;
+        }
+    }
+
+    /**
+     * Not supported, as the stream is read-only.
+     *
+     * @exception IOException always
+     * */
+    public void write(int b) throws IOException {
+        throw new IOException("Stream is read only");
+    }
+
+    public void flush() {
+    }
+
+}
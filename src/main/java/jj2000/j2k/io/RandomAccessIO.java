@@ -52,7 +52,12 @@ import java.io.IOException;
  * implements the <tt>BinaryDataInput</tt> and <tt>BinaryDataOutput</tt>
  * interfaces so that binary data input/output can be performed.
  *
- * <P>This interface supports streams of up to 2 GB in length.
+ * <P>The <tt>int</tt> offset methods support streams of up to 2 GB in
+ * length. Longer streams are addressed with {@link #getLongPos},
+ * {@link #longLength} and {@link #seek(long)}; implementations which can
+ * hold such streams override these and throw an <tt>IOException</tt> from
+ * the <tt>int</tt> methods when the value does not fit. The default
+ * implementations simply delegate to the <tt>int</tt> methods.
  *
  * @see BinaryDataInput
  * @see BinaryDataOutput
@@ -104,6 +109,48 @@ public interface RandomAccessIO {
      * */
     public void seek(int off) throws IOException;
 
+    /**
+     * Returns the current position in the stream, as for {@link #getPos},
+     * but as a long so that streams longer than 2 GB can be addressed.
+     *
+     * @return The offset of the current position, in bytes.
+     *
+     * @exception IOException If an I/O error ocurred.
+     * */
+    public default long getLongPos() throws IOException {
+        return getPos();
+    }
+
+    /**
+     * Returns the current length of the stream, as for {@link #length}, but
+     * as a long so that streams longer than 2 GB can be addressed.
+     *
+     * @return The length of the stream, in bytes.
+     *
+     * @exception IOException If an I/O error ocurred.
+     * */
+    public default long longLength() throws IOException {
+        return length();
+    }
+
+    /**
+     * Moves the current position for the next read or write operation to
+     * offset, as for {@link #seek(int)}, but taking a long offset so that
+     * streams longer than 2 GB can be addressed.
+     *
+     * @param off The offset where to move to.
+     *
+     * @exception EOFException If in read-only and seeking beyond EOF.
+     *
+     * @exception IOException If an I/O error ocurred.
+     * */
+    public default void seek(long off) throws IOException {
+        if (off > Integer.MAX_VALUE) {
+            throw new EOFException("Offset "+off+" is beyond the end of a 2 GB stream");
+        }
+        seek((int)off);
+    }
+
     /**
      * Reads a byte of data from the stream. Prior to reading, the stream is
      * realigned at the byte level.
@@ -0,0 +1,210 @@
+package jj2000.j2k.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * A read-only view on an existing RandomAccessIO which can be shared
+ * between threads. Each view has its own position and buffer, and fills
+ * the buffer with a positional read: the underlying RandomAccessIO is
+ * locked, moved to the required position and read. Further views on the
+ * same RandomAccessIO are created with {@link #duplicate}.
+ *
+ * <P>The underlying RandomAccessIO must not be read or moved directly
+ * while any view is in use, and is not closed when a view is closed.
+ *
+ * @author http://bfo.com
+ */
+public class SharedRandomAccessIO extends AbstractRandomAccessIO {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final RandomAccessIO src;
+    private final long length;
+    private byte[] buf;
+    private long bufstart, pos;
+    private int buflen;
+
+    /**
+     * Create a new SharedRandomAccessIO which is a view of the whole of the
+     * supplied src object. The length of src must not change.
+     */
+    public SharedRandomAccessIO(RandomAccessIO src) throws IOException {
+        this(src, src.longLength());
+    }
+
+    private SharedRandomAccessIO(RandomAccessIO src, long length) {
+        this.src = src;
+        this.length = length;
+        this.buf = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Return a new view on the same RandomAccessIO, with its own position
+     */
+    public SharedRandomAccessIO duplicate() throws IOException {
+        checkOpen();
+        return new SharedRandomAccessIO(src, length);
+    }
+
+    private void checkOpen() throws IOException {
+        if (buf == null) {
+            throw new IOException("Closed");
+        }
+    }
+
+    /**
+     * Fill the buffer with the data at the current position, which must
+     * be before the end of the stream.
+     */
+    private void fill() throws IOException {
+        int len = (int)Math.min(buf.length, length - pos);
+        synchronized(src) {
+            src.seek(pos);
+            src.readFully(buf, 0, len);
+        }
+        bufstart = pos;
+        buflen = len;
+    }
+
+    /**
+     * Closes this view. The underlying RandomAccessIO is not closed.
+     * */
+    public void close() {
+        buf = null;
+    }
+
+    /**
+     * Returns the current position in the stream, which is the position from
+     * where the next byte of data would be read. The first byte in the stream
+     * is in position <tt>0</tt>.
+     *
+     * @return The offset of the current position, in bytes.
+     *
+     * @exception IOException If an I/O error ocurred.
+     * */
+    public int getPos() throws IOException {
+        return toIntOffset(getLongPos());
+    }
+
+    public long getLongPos() throws IOException {
+        checkOpen();
+        return pos;
+    }
+
+    /**
+     * Returns the current length of the stream, in bytes, taking into account
+     * any buffering.
+     *
+     * @return The length of the stream, in bytes.
+     *
+     * @exception IOException If an I/O error ocurred.
+     * */
+    public int length() throws IOException {
+        return toIntOffset(longLength());
+    }
+
+    public long longLength() throws IOException {
+        checkOpen();
+        return length;
+    }
+
+    /**
+     * Moves the current position for the next read operation to offset. The
+     * offset is measured from the beginning of the stream.
+     *
+     * @param off The offset where to move to.
+     *
+     * @exception EOFException If seeking beyond EOF.
+     *
+     * @exception IOException If an I/O error ocurred.
+     * */
+    public void seek(int off) throws IOException {
+        seek((long)off);
+    }
+
+    public void seek(long off) throws IOException {
+        checkOpen();
+        if (off < 0 || off > length) {
+            throw new EOFException();
+        }
+        pos = off;
+    }
+
+    /**
+     * Reads a byte of data from the stream.
+     *
+     * @return The byte read, as an int.
+     *
+     * @exception EOFException If the end-of file was reached.
+     *
+     * @exception IOException If an I/O error ocurred.
+     * */
+    public int read() throws IOException {
+        checkOpen();
+        if (pos >= length) {
+            throw new EOFException();
+        }
+        if (pos < bufstart || pos >= bufstart + buflen) {
+            fill();
+        }
+        return buf[(int)(pos++ - bufstart)] & 0xFF;
+    }
+
+    /**
+     * Reads up to len bytes of data from this file into an array of
+     * bytes. This method reads repeatedly from the stream until all the bytes
+     * are read. This method blocks until all the bytes are read, the end of
+     * the stream is detected, or an exception is thrown.
+     *
+     * @param b The buffer into which the data is to be read. It must be long
+     * enough.
+     *
+     * @param off The index in 'b' where to place the first byte read.
+     *
+     * @param len The number of bytes to read.
+     *
+     * @exception EOFException If the end-of file was reached before
+     * getting all the necessary data.
+     *
+     * @exception IOException If an I/O error ocurred.
+     * */
+    public void readFully(byte b[], int off, int len) throws IOException {
+        checkOpen();
+        if (len > length - pos) {
+            throw new EOFException();
+        }
+        while (len > 0) {
+            if (pos < bufstart || pos >= bufstart + buflen) {
+                if (len >= buf.length) {
+                    // Large reads go straight to the destination
+                    synchronized(src) {
+                        src.seek(pos);
+                        src.readFully(b, off, len);
+                    }
+                    pos += len;
+                    return;
+                }
+                fill();
+            }
+            int c = Math.min(len, (int)(bufstart + buflen - pos));
+            System.arraycopy(buf, (int)(pos - bufstart), b, off, c);
+            pos += c;
+            off += c;
+            len -= c;
+        }
+    }
+
+    /**
+     * Not supported, as the stream is read-only.
+     *
+     * @exception IOException always
+     * */
+    public void write(int b) throws IOException {
+        throw new IOException("Stream is read only");
+    }
+
+    public void flush() {
+    }
+
+}
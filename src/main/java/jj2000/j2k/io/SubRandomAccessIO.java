@@ -12,18 +12,18 @@ import java.io.IOException;
 public class SubRandomAccessIO extends AbstractRandomAccessIO {
 
     private final RandomAccessIO src;
-    private final int start, length;
+    private final long start, length;
 
     /**
      * Create a new RandomAccessIO which is a view of "length" bytes
      * on the supplied src object, starting from the current point
      */
-    public SubRandomAccessIO(RandomAccessIO src, int length) throws IOException {
+    public SubRandomAccessIO(RandomAccessIO src, long length) throws IOException {
         this.src = src;
-        this.start = src.getPos();
+        this.start = src.getLongPos();
         this.length = length;
-        if (length > src.length() - src.getPos()) {
-            throw new IllegalArgumentException("Length "+length+" is greater than "+(src.length() - src.getPos()));
+        if (length > src.longLength() - start) {
+            throw new IllegalArgumentException("Length "+length+" is greater than "+(src.longLength() - start));
         }
     }
 
@@ -47,7 +47,11 @@ public class SubRandomAccessIO extends AbstractRandomAccessIO {
      * @exception IOException If an I/O error ocurred.
      * */
     public int getPos() throws IOException {
-        return src.getPos() - start;
+        return toIntOffset(getLongPos());
+    }
+
+    public long getLongPos() throws IOException {
+        return src.getLongPos() - start;
     }
 
     /**
@@ -59,6 +63,10 @@ public class SubRandomAccessIO extends AbstractRandomAccessIO {
      * @exception IOException If an I/O error ocurred.
      * */
     public int length() throws IOException {
+        return toIntOffset(length);
+    }
+
+    public long longLength() {
         return length;
     }
 
@@ -77,6 +85,10 @@ public class SubRandomAccessIO extends AbstractRandomAccessIO {
      * @exception IOException If an I/O error ocurred.
      * */
     public void seek(int off) throws IOException {
+        seek((long)off);
+    }
+
+    public void seek(long off) throws IOException {
         if (off < 0 || off > length) {
             throw new EOFException();
         }
@@ -94,7 +106,7 @@ public class SubRandomAccessIO extends AbstractRandomAccessIO {
      * @exception IOException If an I/O error ocurred.
      * */
     public int read() throws EOFException, IOException {
-        if (getPos() >= length) {
+        if (getLongPos() >= length) {
             throw new EOFException();
         }
         return src.read();
@@ -119,7 +131,7 @@ public class SubRandomAccessIO extends AbstractRandomAccessIO {
      * @exception IOException If an I/O error ocurred.
      * */
     public void readFully(byte b[], int off, int len) throws IOException {
-        if (getPos() + len > length) {
+        if (getLongPos() + len > length) {
             throw new EOFException();
         }
         src.readFully(b, off, len);
@@ -54,6 +54,8 @@ import jj2000.j2k.image.DataBlkInt;
 import jj2000.j2k.quantization.GuardBitsSpec;
 import jj2000.j2k.quantization.QuantStepSizeSpec;
 import jj2000.j2k.quantization.QuantTypeSpec;
+import jj2000.j2k.util.BufferPool;
+import jj2000.j2k.util.BufferPoolUser;
 import jj2000.j2k.wavelet.synthesis.SubbandSyn;
 
 /**
@@ -83,7 +85,7 @@ import jj2000.j2k.wavelet.synthesis.SubbandSyn;
  * way the dequantized values will always lie midways in the quantization
  * intervals.
  * */
-public class StdDequantizer extends Dequantizer {
+public class StdDequantizer extends Dequantizer implements BufferPoolUser {
 
     /** The quantizer type spec */
     private QuantTypeSpec qts;
@@ -104,6 +106,12 @@ public class StdDequantizer extends Dequantizer {
     /** Type of the current output data */
     private int outdtype;
 
+    /** The number of samples in the largest code-block */
+    private int maxCBlkSize;
+
+    /** The pool the data array of 'inblk' is taken from, or null */
+    private BufferPool pool;
+
     /**
      * Initializes the source of compressed data. And sets the number of range
      * bits and fraction bits and receives the parameters for the dequantizer.
@@ -135,6 +143,31 @@ public class StdDequantizer extends Dequantizer {
         this.qsss = decSpec.qsss;
 	this.qts = decSpec.qts;
         this.gbs = decSpec.gbs;
+        maxCBlkSize = decSpec.cblks.getMaxCBlkWidth()*
+            decSpec.cblks.getMaxCBlkHeight();
+    }
+
+    /**
+     * Sets the pool the data array used to request code-blocks from the
+     * source, when the output data is not int, is taken from, and returned to
+     * by {@link #releaseBuffers}.
+     *
+     * @param pool The pool to use, or null to allocate the array as needed
+     * (the default).
+     * */
+    public void setBufferPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the data array used to request code-blocks from the source to
+     * the pool set by {@link #setBufferPool}, if any.
+     * */
+    public void releaseBuffers() {
+        if (pool!=null && inblk!=null) {
+            pool.release(inblk.getData());
+        }
+        inblk = null;
     }
 
     /**
@@ -285,6 +318,11 @@ public class StdDequantizer extends Dequantizer {
         case DataBlk.TYPE_FLOAT:
             // With float data we must use a different DataBlk objects to get
             // the data from the source and to return the dequantized data.
+            if (inblk == null && pool != null) {
+                // Otherwise the source allocates the data array
+                inblk = new DataBlkInt();
+                inblk.setData(pool.getInt(maxCBlkSize));
+            }
             inblk = (DataBlkInt) src.getInternCodeBlock(c,m,n,sb,inblk);
             inarr = inblk.getDataInt();
             if (cblk == null) {
@@ -0,0 +1,177 @@
+package jj2000.j2k.util;
+
+import java.util.*;
+
+/**
+ * A pool of the arrays used while decoding: the tile-components of the
+ * inverse wavelet transform, the inverse component transform and the data
+ * type conversion, and the buffers of the entropy decoder, the dequantizer
+ * and the wavelet transform that hold one code-block. Arrays that are no
+ * longer needed are returned to the pool and handed out again, so that
+ * decoding chains which are created and discarded for each read, for
+ * example when single tiles are read one after another, don't allocate new
+ * buffers each time. The stages of a chain that use the pool implement
+ * {@link BufferPoolUser}. The pool may be shared by several decoders and is
+ * thread-safe.
+ *
+ * <P>An array is only handed out for a request of at least half its length,
+ * so the large arrays aren't taken for small requests. When the total size
+ * of the arrays held exceeds the byte budget, the least recently returned
+ * arrays are discarded. Arrays in use are not counted.
+ *
+ * @author http://bfo.com
+ */
+public class BufferPool {
+
+    private final long maxSize;
+    private final LinkedList<Object> free;
+    private long size, hits, misses;
+
+    /**
+     * Create a new BufferPool
+     *
+     * @param maxSize the maximum number of bytes of unused arrays to hold
+     */
+    public BufferPool(long maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Negative size");
+        }
+        this.maxSize = maxSize;
+        this.free = new LinkedList<Object>();
+    }
+
+    /**
+     * Return an int array of at least the specified length, taken from the
+     * pool if it holds one. The contents of the array are undefined.
+     *
+     * @param len the minimum length of the array
+     */
+    public int[] getInt(int len) {
+        int[] a = (int[])take(int[].class, len);
+        return a != null ? a : new int[len];
+    }
+
+    /**
+     * Return a float array of at least the specified length, taken from the
+     * pool if it holds one. The contents of the array are undefined.
+     *
+     * @param len the minimum length of the array
+     */
+    public float[] getFloat(int len) {
+        float[] a = (float[])take(float[].class, len);
+        return a != null ? a : new float[len];
+    }
+
+    /**
+     * Return a byte array of at least the specified length, taken from the
+     * pool if it holds one. The contents of the array are undefined.
+     *
+     * @param len the minimum length of the array
+     */
+    public byte[] getByte(int len) {
+        byte[] a = (byte[])take(byte[].class, len);
+        return a != null ? a : new byte[len];
+    }
+
+    /**
+     * Return an array to the pool, discarding the least recently returned
+     * arrays if the pool is then over budget. The array must not be used by
+     * the caller once returned. Arrays of other types than int[], float[]
+     * and byte[], and arrays larger than the budget, are ignored.
+     *
+     * @param array the array to return, which may be null
+     */
+    public synchronized void release(Object array) {
+        if (!(array instanceof int[] || array instanceof float[] || array instanceof byte[])) {
+            return;
+        }
+        long len = sizeOf(array);
+        if (len > maxSize) {
+            return;
+        }
+        free.addLast(array);
+        size += len;
+        while (size > maxSize) {
+            size -= sizeOf(free.removeFirst());
+        }
+    }
+
+    /**
+     * Remove the smallest array of the specified type and at least the
+     * specified length, but no more than twice it, from the pool, or return
+     * null if there is none.
+     */
+    private synchronized Object take(Class<?> type, int len) {
+        Object best = null;
+        int bestlen = Integer.MAX_VALUE;
+        long maxlen = Math.max(len, 1) * 2L;
+        for (Object a : free) {
+            if (a.getClass() == type) {
+                int alen = java.lang.reflect.Array.getLength(a);
+                if (alen >= len && alen <= maxlen && alen < bestlen) {
+                    best = a;
+                    bestlen = alen;
+                }
+            }
+        }
+        if (best == null) {
+            misses++;
+            return null;
+        }
+        for (Iterator<Object> i = free.iterator(); i.hasNext(); ) {
+            if (i.next() == best) {
+                i.remove();
+                break;
+            }
+        }
+        size -= sizeOf(best);
+        hits++;
+        return best;
+    }
+
+    /**
+     * Remove every array from the pool. The counters are not reset.
+     */
+    public synchronized void clear() {
+        free.clear();
+        size = 0;
+    }
+
+    /**
+     * Return the maximum number of bytes of unused arrays held by the pool
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Return the number of bytes of unused arrays currently held by the pool
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Return the number of arrays that were taken from the pool
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Return the number of arrays that had to be allocated because the pool
+     * held none that was suitable
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    private static long sizeOf(Object array) {
+        return (long)java.lang.reflect.Array.getLength(array) * (array instanceof byte[] ? 1 : 4);
+    }
+
+    public String toString() {
+        return "{BufferPool: size="+getSize()+"/"+maxSize+" hits="+getHitCount()+" misses="+getMissCount()+"}";
+    }
+
+}
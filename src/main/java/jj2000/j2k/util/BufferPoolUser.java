@@ -0,0 +1,30 @@
+package jj2000.j2k.util;
+
+/**
+ * A stage of a decoding chain that can take the arrays it keeps from one
+ * block or tile to the next from a {@link BufferPool}, and return them when
+ * the chain is discarded.
+ *
+ * @author http://bfo.com
+ */
+public interface BufferPoolUser {
+
+    /**
+     * Set the pool the arrays of this stage are taken from, and returned to
+     * by {@link #releaseBuffers}. This should be called before any data is
+     * requested.
+     *
+     * @param pool the pool to use, or null to allocate arrays as needed (the
+     * default)
+     */
+    public void setBufferPool(BufferPool pool);
+
+    /**
+     * Return the arrays of this stage to the pool set by {@link
+     * #setBufferPool}, if any. Data previously returned by this stage may no
+     * longer be used, but the stage may still be used, taking new arrays as
+     * needed.
+     */
+    public void releaseBuffers();
+
+}
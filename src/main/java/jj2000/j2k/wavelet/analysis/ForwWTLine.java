@@ -0,0 +1,529 @@
+package jj2000.j2k.wavelet.analysis;
+
+import java.util.ArrayDeque;
+
+import jj2000.j2k.image.BlkImgDataSrc;
+import jj2000.j2k.image.DataBlk;
+import jj2000.j2k.image.DataBlkFloat;
+import jj2000.j2k.image.DataBlkInt;
+import jj2000.j2k.wavelet.Subband;
+import jj2000.j2k.wavelet.WaveletTransform;
+
+import com.github.jpeg2000.J2KWriteParam;
+
+/**
+ * This class implements the ForwardWT one line at a time, rather than on the
+ * whole tile-component as ForwWTFull does. The lines of the tile-component
+ * are read from the source in order and pushed through the subband tree:
+ * each node gathers a batch of lines, runs the vertical and then the
+ * horizontal analysis on them and pushes the resulting lines to its four
+ * children, and each leaf gathers lines until it has a complete row of
+ * code-blocks, which is then returned.
+ *
+ * <P>The vertical analysis of a batch is run over a margin of the previous
+ * and following lines, wider than the reach of the 5x3 and 9x7 lifting
+ * steps, so the coefficients are exactly those of ForwWTFull. The memory used
+ * is proportional to the width of the tile times the number of
+ * decomposition levels and the height of the code-blocks.
+ *
+ * <P>Code-blocks are returned in the order their rows are completed, rather
+ * than one subband at a time, so the caller must not rely on the order.
+ *
+ * @see ForwWTFull
+ * */
+public class ForwWTLine extends ForwWTFull {
+
+    /**
+     * The number of lines analyzed on either side of a batch, which must be
+     * even and at least as wide as the reach of the filters.
+     * */
+    private static final int MARGIN = 8;
+
+    /** The number of lines gathered by a node before they are analyzed */
+    private static final int BATCH = 32;
+
+    /** The source of image data */
+    private BlkImgDataSrc src;
+
+    /** The state of the transform for each component of the current tile */
+    private Comp[] comps;
+
+    /**
+     * Initializes this object with the given source of image data and with
+     * all the decompositon parameters
+     *
+     * @param src From where the image data should be obtained.
+     *
+     * @param wp The encoder parameters
+     *
+     * @param pox The horizontal coordinate of the cell and code-block
+     * partition origin with respect to the canvas origin, on the reference
+     * grid.
+     *
+     * @param poy The vertical coordinate of the cell and code-block partition
+     * origin with respect to the canvas origin, on the reference grid.
+     *
+     * @see ForwardWT
+     * */
+    public ForwWTLine(BlkImgDataSrc src,J2KWriteParam wp,int pox,int poy) {
+        super(src,wp,pox,poy);
+        this.src = src;
+        comps = new Comp[src.getNumComps()];
+    }
+
+    /**
+     * Returns the implementation type of this wavelet transform, WT_IMPL_LINE
+     * (line based transform). All components return the same.
+     *
+     * @param c The index of the component.
+     *
+     * @return WT_IMPL_LINE
+     * */
+    public int getImplementationType(int c) {
+        return WaveletTransform.WT_IMPL_LINE;
+    }
+
+    /**
+     * Returns the next code-block in the current tile for the specified
+     * component, as a reference to the internal buffer (see below). The
+     * code-blocks are returned as soon as the lines they are made of have
+     * been analyzed, so the order is not the same as for ForwWTFull. Once all
+     * the code-blocks have been returned for the current tile calls to this
+     * method will return 'null'.
+     *
+     * <P>The data returned by this method is a reference to the lines of one
+     * row of code-blocks, which are not used again by this object, and the
+     * 'offset' and 'scanw' of the returned data can be arbitrary.
+     *
+     * @param c The component for which to return the next code-block.
+     *
+     * @param cblk If non-null this object will be used to return the new
+     * code-block. If null a new one will be allocated and returned.
+     *
+     * @return The next code-block in the current tile for component 'c', or
+     * null if all code-blocks for the current tile have been returned.
+     *
+     * @see CBlkWTData
+     * */
+    public CBlkWTData getNextInternCodeBlock(int c, CBlkWTData cblk) {
+        if (comps[c] == null) {
+            comps[c] = new Comp(c);
+        }
+        Stripe stripe = comps[c].next();
+        if (stripe == null) {
+            // All code-blocks from all subbands in the current tile have
+            // been returned
+            comps[c] = null;
+            return null;
+        }
+
+        // Initialize output code-block
+        if (cblk==null) {
+            if (comps[c].intData) {
+                cblk = new CBlkWTDataInt();
+            } else {
+                cblk = new CBlkWTDataFloat();
+            }
+        }
+        SubbandAn sb = stripe.sb;
+        int cbn = stripe.n++;
+        cblk.n = cbn;
+        cblk.m = stripe.m;
+        cblk.sb = sb;
+
+        // Project code-block partition origin to subband, as ForwWTFull
+        int acb0x = getCbULX();
+        if (sb.sbandIdx==Subband.WT_ORIENT_HL ||
+            sb.sbandIdx==Subband.WT_ORIENT_HH) {
+            acb0x = 0;
+        }
+        int cn = (sb.ulcx-acb0x+sb.nomCBlkW)/sb.nomCBlkW-1;
+        if (cbn == 0) { // Left-most code-block, starts where subband starts
+            cblk.ulx = sb.ulx;
+        } else {
+            cblk.ulx = (cn+cbn)*sb.nomCBlkW - (sb.ulcx-acb0x) + sb.ulx;
+        }
+        if (cbn < sb.numCb.x-1) {
+            cblk.w = (cn+cbn+1)*sb.nomCBlkW - (sb.ulcx-acb0x) + sb.ulx -
+                cblk.ulx;
+        } else { // Right-most code-block, ends where subband ends
+            cblk.w = sb.ulx+sb.w-cblk.ulx;
+        }
+        cblk.uly = sb.uly+stripe.y0;
+        cblk.h = stripe.y1-stripe.y0;
+        cblk.wmseScaling = 1f;
+
+        // Return a reference to the lines of the stripe
+        cblk.offset = cblk.ulx-sb.ulx;
+        cblk.scanw = sb.w;
+        cblk.setData(stripe.data);
+        return cblk;
+    }
+
+    /**
+     * Changes the current tile, given the new coordinates.
+     *
+     * @param x The horizontal coordinate of the tile.
+     *
+     * @param y The vertical coordinate of the new tile.
+     * */
+    public void setTile(int x, int y) {
+        super.setTile(x,y);
+        for (int i=comps.length-1; i>=0; i--) {
+            comps[i] = null;
+        }
+    }
+
+    /**
+     * Advances to the next tile, in standard scan-line order (by rows then
+     * columns). An NoNextElementException is thrown if the current tile is
+     * the last one (i.e. there is no next tile).
+     * */
+    public void nextTile() {
+        super.nextTile();
+        for (int i=comps.length-1; i>=0; i--) {
+            comps[i] = null;
+        }
+    }
+
+    /**
+     * Allocates an int or float array.
+     * */
+    private static Object newData(boolean intData,int len) {
+        return intData ? (Object)new int[len] : (Object)new float[len];
+    }
+
+    /**
+     * Returns the length of an int or float array.
+     * */
+    private static int length(Object data) {
+        if (data instanceof int[]) {
+            return ((int[])data).length;
+        } else {
+            return ((float[])data).length;
+        }
+    }
+
+    /**
+     * The lines of one row of code-blocks in a leaf subband.
+     * */
+    private static final class Stripe {
+
+        /** The subband */
+        final SubbandAn sb;
+
+        /** The index of the row of code-blocks */
+        final int m;
+
+        /** The first line, and the line after the last, in the subband */
+        final int y0,y1;
+
+        /** The lines, with a scan-width of the subband's width */
+        final Object data;
+
+        /** The index of the next code-block in the row to return */
+        int n;
+
+        Stripe(SubbandAn sb,int m,int y0,int y1,Object data) {
+            this.sb = sb;
+            this.m = m;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The state of the transform of one tile-component.
+     * */
+    private final class Comp {
+
+        /** The index of the component */
+        final int c;
+
+        /** Whether the data is int, rather than float */
+        final boolean intData;
+
+        /** The subband tree */
+        final Band root;
+
+        /** The rows of code-blocks completed but not yet returned */
+        final ArrayDeque<Stripe> ready = new ArrayDeque<Stripe>();
+
+        /** The block for reading lines from the source */
+        DataBlk bufblk;
+
+        /** The index of the next line to read from the source */
+        int y;
+
+        /** The row of code-blocks being returned */
+        Stripe current;
+
+        Comp(int c) {
+            this.c = c;
+            intData = (getDataType(tIdx,c)==DataBlk.TYPE_INT);
+            root = createBand(getAnSubbandTree(tIdx,c));
+            if(intData) {
+                bufblk = new DataBlkInt();
+            } else {
+                bufblk = new DataBlkFloat();
+            }
+            bufblk.w = getTileCompWidth(tIdx,c);
+            bufblk.h = 1;
+        }
+
+        /**
+         * Returns the row of code-blocks with the next code-block to return,
+         * reading lines from the source until one is complete, or null if
+         * all have been returned.
+         * */
+        Stripe next() {
+            while (current==null || current.n==current.sb.numCb.x) {
+                current = ready.poll();
+                if (current==null) {
+                    if (y==getTileCompHeight(tIdx,c)) {
+                        return null;
+                    }
+                    bufblk.ulx = getCompULX(c);
+                    bufblk.uly = getCompULY(c)+y;
+                    bufblk = src.getInternCompData(bufblk,c);
+                    root.push(bufblk.getData(),bufblk.offset);
+                    y++;
+                }
+            }
+            return current;
+        }
+
+        /**
+         * Creates the object that receives the lines of the specified
+         * subband, and the objects for its children if it is a node.
+         * */
+        Band createBand(SubbandAn sb) {
+            if (sb.isNode) {
+                return new NodeBand(this,sb);
+            } else {
+                return new LeafBand(this,sb);
+            }
+        }
+    }
+
+    /**
+     * The object receiving the lines of one subband, in order from the top.
+     * */
+    private abstract class Band {
+
+        /** The tile-component */
+        final Comp comp;
+
+        /** The subband */
+        final SubbandAn sb;
+
+        Band(Comp comp,SubbandAn sb) {
+            this.comp = comp;
+            this.sb = sb;
+        }
+
+        /**
+         * Receives the next line of the subband.
+         *
+         * @param line The array holding the line
+         *
+         * @param off The index of the first sample of the line
+         * */
+        abstract void push(Object line,int off);
+    }
+
+    /**
+     * A leaf subband, which gathers lines into rows of code-blocks.
+     * */
+    private final class LeafBand extends Band {
+
+        /**
+         * The index of the first row of code-blocks with respect to the
+         * code-block partition, and the origin of the partition in the
+         * subband
+         * */
+        private final int cm,cb0;
+
+        /** The index of the next line to receive */
+        private int y;
+
+        /** The index of the next row of code-blocks */
+        private int m;
+
+        /** The row of code-blocks being gathered */
+        private Stripe stripe;
+
+        LeafBand(Comp comp,SubbandAn sb) {
+            super(comp,sb);
+            // Project code-block partition origin to subband, as ForwWTFull
+            int acb0y = getCbULY();
+            if (sb.sbandIdx==Subband.WT_ORIENT_LH ||
+                sb.sbandIdx==Subband.WT_ORIENT_HH) {
+                acb0y = 0;
+            }
+            cm = (sb.ulcy-acb0y+sb.nomCBlkH)/sb.nomCBlkH-1;
+            cb0 = sb.ulcy-acb0y;
+        }
+
+        void push(Object line,int off) {
+            if (sb.numCb.x==0 || sb.numCb.y==0) {
+                return; // If empty subband do nothing
+            }
+            if (stripe==null) {
+                // Start the next row of code-blocks, which ends where the
+                // next one starts or where the subband ends
+                int y1 = m<sb.numCb.y-1 ?
+                    (cm+m+1)*sb.nomCBlkH-cb0 : sb.h;
+                stripe = new Stripe(sb,m++,y,y1,
+                                    newData(comp.intData,(y1-y)*sb.w));
+            }
+            System.arraycopy(line,off,stripe.data,(y-stripe.y0)*sb.w,sb.w);
+            y++;
+            if (y==stripe.y1) {
+                comp.ready.add(stripe);
+                stripe = null;
+            }
+        }
+    }
+
+    /**
+     * A node subband, which analyzes batches of its lines into the lines of
+     * its children.
+     * */
+    private final class NodeBand extends Band {
+
+        /** The children */
+        private final Band ll,hl,lh,hh;
+
+        /** The parity of the first line and column on the canvas */
+        private final int py,px;
+
+        /** The lines received and not yet discarded */
+        private Object lines;
+
+        /** The index of the first line held and of the next to receive */
+        private int first,last;
+
+        /** The index of the next low and high pass line to produce */
+        private int lnext,hnext;
+
+        /** The results of the vertical analysis, and a line of the
+         * horizontal analysis */
+        private Object low,high,buf;
+
+        NodeBand(Comp comp,SubbandAn sb) {
+            super(comp,sb);
+            ll = comp.createBand((SubbandAn)sb.getLL());
+            hl = comp.createBand((SubbandAn)sb.getHL());
+            lh = comp.createBand((SubbandAn)sb.getLH());
+            hh = comp.createBand((SubbandAn)sb.getHH());
+            py = sb.ulcy%2;
+            px = sb.ulcx%2;
+            lines = newData(comp.intData,0);
+            low = newData(comp.intData,0);
+            high = newData(comp.intData,0);
+            buf = newData(comp.intData,sb.w);
+        }
+
+        void push(Object line,int off) {
+            // If subband is empty (i.e. zero size) nothing to do
+            if (sb.w==0 || sb.h==0) {
+                return;
+            }
+            lines = ensure(lines,(last-first+1)*sb.w);
+            System.arraycopy(line,off,lines,(last-first)*sb.w,sb.w);
+            last++;
+            if (last==sb.h || last-produced()>=BATCH+MARGIN) {
+                analyze();
+            }
+        }
+
+        /**
+         * Returns the index of the first line of this subband whose low or
+         * high pass line has not been produced.
+         * */
+        private int produced() {
+            return Math.min(2*lnext+py,2*hnext+1-py);
+        }
+
+        /**
+         * Returns 'data' with room for 'len' samples, keeping the contents.
+         * */
+        private Object ensure(Object data,int len) {
+            if (length(data)<len) {
+                Object d = newData(comp.intData,Math.max(len,length(data)*3/2));
+                System.arraycopy(data,0,d,0,length(data));
+                data = d;
+            }
+            return data;
+        }
+
+        /**
+         * Analyzes the lines received, and a margin before them, and pushes
+         * the low and high pass lines that are not affected by the ends of
+         * the window to the children.
+         * */
+        private void analyze() {
+            int w = sb.w;
+            int h = sb.h;
+
+            // The window starts on an even line so the same filter is used
+            // as for the whole subband
+            int wa = Math.max(0,produced()-MARGIN) & ~1;
+            int wb = last;
+            int end = wb==h ? h : wb-MARGIN;
+            int la = wa/2;
+            int nl = (wb-py+1)/2-la;
+            int nh = (wb+py)/2-la;
+            low = ensure(low,nl*w);
+            high = ensure(high,nh*w);
+
+            //Perform the vertical decomposition
+            int offset = (wa-first)*w;
+            if (py==0) { // Even start index => use LPF
+                for (int j=0; j<w; j++) {
+                    sb.vFilter.analyze_lpf(lines,offset+j,wb-wa,w,
+                                           low,j,w,high,j,w);
+                }
+            } else { // Odd start index => use HPF
+                for (int j=0; j<w; j++) {
+                    sb.vFilter.analyze_hpf(lines,offset+j,wb-wa,w,
+                                           low,j,w,high,j,w);
+                }
+            }
+
+            //Perform the horizontal decomposition of the lines produced
+            for (; 2*lnext+py<end; lnext++) {
+                analyzeLine(low,(lnext-la)*w,ll,hl);
+            }
+            for (; 2*hnext+1-py<end; hnext++) {
+                analyzeLine(high,(hnext-la)*w,lh,hh);
+            }
+
+            // Discard the lines not needed for the next window
+            int n = (Math.max(0,produced()-MARGIN) & ~1)-first;
+            if (n>0) {
+                System.arraycopy(lines,n*w,lines,0,(last-first-n)*w);
+                first += n;
+            }
+        }
+
+        /**
+         * Performs the horizontal decomposition of one line, and pushes the
+         * low and high pass halves to the children.
+         * */
+        private void analyzeLine(Object data,int offset,Band l,Band r) {
+            int w = sb.w;
+            if (px==0) { // Even start index => use LPF
+                sb.hFilter.analyze_lpf(data,offset,w,1,buf,0,1,buf,(w+1)/2,1);
+                l.push(buf,0);
+                r.push(buf,(w+1)/2);
+            } else { // Odd start index => use HPF
+                sb.hFilter.analyze_hpf(data,offset,w,1,buf,0,1,buf,w/2,1);
+                l.push(buf,0);
+                r.push(buf,w/2);
+            }
+        }
+    }
+}
@@ -151,7 +151,9 @@ public abstract class ForwardWT extends ImgDataAdapter
         prefx = 0;
         prefy = 0;
 
-        return new ForwWTFull(src, wp, prefx,prefy);
+        // The line based transform gives the same coefficients as the full
+        // page one, without holding the whole tile-component in memory
+        return new ForwWTLine(src, wp, prefx,prefy);
     }
 
 }
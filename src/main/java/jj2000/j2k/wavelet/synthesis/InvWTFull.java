@@ -46,11 +46,14 @@
  * */
 package jj2000.j2k.wavelet.synthesis;
 import java.awt.Point;
+import java.util.Arrays;
 
 import jj2000.j2k.decoder.DecoderSpecs;
 import jj2000.j2k.image.DataBlk;
 import jj2000.j2k.image.DataBlkFloat;
 import jj2000.j2k.image.DataBlkInt;
+import jj2000.j2k.util.BufferPool;
+import jj2000.j2k.util.BufferPoolUser;
 import jj2000.j2k.util.FacilityManager;
 import jj2000.j2k.util.ProgressWatch;
 import jj2000.j2k.wavelet.Subband;
@@ -81,7 +84,7 @@ import jj2000.j2k.wavelet.WaveletTransform;
  *
  * @see DataBlk
  * */
-public class InvWTFull extends InverseWT {
+public class InvWTFull extends InverseWT implements BufferPoolUser {
 
     /** Reference to the ProgressWatch instance if any */
     private ProgressWatch pw = null;
@@ -103,6 +106,21 @@ public class InvWTFull extends InverseWT {
      */
     private DataBlk reconstructedComps[];
 
+    /**
+     * The data array of each reconstructed component, which is kept and
+     * reused for the following tiles
+     */
+    private Object compData[];
+
+    /** The block the code-blocks of each subband are returned in */
+    private DataBlk subbData;
+
+    /** The line buffer used by the 2D wavelet reconstruction */
+    private Object lineBuf;
+
+    /** The pool the data arrays are taken from, or null */
+    private BufferPool pool;
+
     /** Number of decomposition levels in each component */
     private int[] ndl;
 
@@ -130,6 +148,7 @@ public class InvWTFull extends InverseWT {
 
         int nc = src.getNumComps();
         reconstructedComps = new DataBlk[nc];
+        compData = new Object[nc];
         ndl = new int[nc];
         pw = FacilityManager.getProgressWatch();
     }
@@ -271,18 +290,8 @@ public class InvWTFull extends InverseWT {
         //If the source image has not been decomposed 
         if(reconstructedComps[c]==null) {
             //Allocate component data buffer
-            switch (dtype) {
-            case DataBlk.TYPE_FLOAT:
-                reconstructedComps[c] =
-                    new DataBlkFloat(0,0,getTileCompWidth(tIdx,c),
-                                     getTileCompHeight(tIdx,c));
-                break;
-            case DataBlk.TYPE_INT:
-                reconstructedComps[c] =
-                    new DataBlkInt(0,0,getTileCompWidth(tIdx,c),
-                                   getTileCompHeight(tIdx,c));
-                break;
-            }
+            reconstructedComps[c] = allocCompData(c,getTileCompWidth(tIdx,c),
+                                                  getTileCompHeight(tIdx,c));
             //Reconstruct source image
             waveletTreeReconstruction(reconstructedComps[c],
                                       src.getSynSubbandTree(tIdx,c),c);
@@ -292,11 +301,18 @@ public class InvWTFull extends InverseWT {
         }
 
         if(blk.getDataType()!=dtype) {
+            // No data array is allocated, as the internal one is returned
+            DataBlk nblk;
             if(dtype==DataBlk.TYPE_INT) {
-                blk = new DataBlkInt(blk.ulx,blk.uly,blk.w,blk.h);
+                nblk = new DataBlkInt();
             } else {
-                blk = new DataBlkFloat(blk.ulx,blk.uly,blk.w,blk.h);
+                nblk = new DataBlkFloat();
             }
+            nblk.ulx = blk.ulx;
+            nblk.uly = blk.uly;
+            nblk.w = blk.w;
+            nblk.h = blk.h;
+            blk = nblk;
         }
         // Set the reference to the internal buffer
         blk.setData(reconstructedComps[c].getData());
@@ -306,6 +322,117 @@ public class InvWTFull extends InverseWT {
         return blk;
     }
 
+    /**
+     * Returns a zeroed block of the current data type and the specified
+     * size, for the reconstructed data of a component. The data array used
+     * for the component in the previous tile is reused if it is large
+     * enough, otherwise it is returned to the pool, if any, and a new one
+     * taken from the pool.
+     *
+     * @param c The index of the component.
+     *
+     * @param w The width of the tile-component.
+     *
+     * @param h The height of the tile-component.
+     *
+     * @return The block for the component.
+     * */
+    private DataBlk allocCompData(int c,int w,int h) {
+        DataBlk db;
+        int len = w*h;
+        Object data = compData[c];
+        if (dtype==DataBlk.TYPE_FLOAT) {
+            db = new DataBlkFloat();
+            if (data instanceof float[] && ((float[])data).length>=len) {
+                Arrays.fill((float[])data,0,len,0f);
+            } else {
+                if (pool!=null) {
+                    pool.release(data);
+                    data = pool.getFloat(len);
+                    Arrays.fill((float[])data,0,len,0f);
+                } else {
+                    data = new float[len];
+                }
+            }
+        } else {
+            db = new DataBlkInt();
+            if (data instanceof int[] && ((int[])data).length>=len) {
+                Arrays.fill((int[])data,0,len,0);
+            } else {
+                if (pool!=null) {
+                    pool.release(data);
+                    data = pool.getInt(len);
+                    Arrays.fill((int[])data,0,len,0);
+                } else {
+                    data = new int[len];
+                }
+            }
+        }
+        compData[c] = data;
+        db.w = db.scanw = w;
+        db.h = h;
+        db.setData(data);
+        return db;
+    }
+
+    /**
+     * Returns a new array of the specified data type and at least the
+     * specified length, taken from the pool if one is set. The contents of
+     * the array are undefined.
+     *
+     * @param type The data type, TYPE_INT or TYPE_FLOAT.
+     *
+     * @param len The minimum length.
+     *
+     * @return The array.
+     * */
+    private Object newArray(int type,int len) {
+        if (type==DataBlk.TYPE_FLOAT) {
+            return pool!=null ? pool.getFloat(len) : new float[len];
+        } else {
+            return pool!=null ? pool.getInt(len) : new int[len];
+        }
+    }
+
+    /**
+     * Sets the pool the data arrays of the reconstructed components, the
+     * code-block buffer and the line buffer are taken from, and returned to
+     * by {@link #releaseBuffers}. If this object is to be discarded after
+     * decoding only a few tiles, as when a new decoding chain is created for
+     * each read, the pool avoids allocating new arrays for each chain.
+     *
+     * @param pool The pool to use, or null to allocate arrays as needed (the
+     * default).
+     * */
+    public void setBufferPool(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the data arrays of the reconstructed components, the code-block
+     * buffer and the line buffer to the pool set by {@link #setBufferPool},
+     * if any. The data returned by 'getInternCompData()' may no longer be
+     * used, and the current tile is reconstructed again if more data is
+     * requested.
+     * */
+    public void releaseBuffers() {
+        for (int c=compData.length-1; c>=0; c--) {
+            if (pool!=null) {
+                pool.release(compData[c]);
+            }
+            compData[c] = null;
+            reconstructedComps[c] = null;
+        }
+        if (pool!=null) {
+            if (subbData!=null) {
+                pool.release(subbData.getData());
+            }
+            pool.release(lineBuf);
+        }
+        subbData = null;
+        lineBuf = null;
+    }
+
     /**
      * Returns a block of image data containing the specifed rectangular area,
      * in the specified component, as a copy (see below). The rectangular area
@@ -407,15 +534,19 @@ public class InvWTFull extends InverseWT {
         w = sb.w;
         h = sb.h;
 
-        buf = null;  // To keep compiler happy
-
-        switch (sb.getHorWFilter().getDataType()) {
-        case DataBlk.TYPE_INT:
-            buf = new int[(w>=h) ? w : h];
-            break;
-        case DataBlk.TYPE_FLOAT:
-            buf = new float[(w>=h) ? w : h];
-            break;
+        buf = lineBuf;
+
+        // The line buffer is allocated for the whole tile-component, so it
+        // doesn't grow as each resolution level is reconstructed
+        int type = sb.getHorWFilter().getDataType();
+        int len = (w>=h) ? w : h;
+        if (type==DataBlk.TYPE_INT ?
+            !(buf instanceof int[]) || ((int[])buf).length<len :
+            !(buf instanceof float[]) || ((float[])buf).length<len) {
+            if (pool!=null) {
+                pool.release(buf);
+            }
+            buf = lineBuf = newArray(type,(db.w>=db.h) ? db.w : db.h);
         }
 
         //Perform the horizontal reconstruction
@@ -495,8 +626,6 @@ public class InvWTFull extends InverseWT {
      * */
     private void waveletTreeReconstruction(DataBlk img,SubbandSyn sb,int c) {
 
-        DataBlk subbData;
-
         // If the current subband is a leaf then get the data from the source
         if(!sb.isNode) {
             int i,m,n;
@@ -508,10 +637,21 @@ public class InvWTFull extends InverseWT {
             }
 
             // Get all code-blocks in subband
-            if(dtype==DataBlk.TYPE_INT) {
-                subbData = new DataBlkInt();
-            } else {
-                subbData = new DataBlkFloat();
+            if(subbData==null || subbData.getDataType()!=dtype) {
+                if (pool!=null && subbData!=null) {
+                    pool.release(subbData.getData());
+                }
+                if(dtype==DataBlk.TYPE_INT) {
+                    subbData = new DataBlkInt();
+                } else {
+                    subbData = new DataBlkFloat();
+                }
+                if (pool!=null) {
+                    // Otherwise the source allocates it
+                    subbData.setData(newArray(dtype,
+                                              decSpec.cblks.getMaxCBlkWidth()*
+                                              decSpec.cblks.getMaxCBlkHeight()));
+                }
             }
             ncblks = sb.numCb;
             dst_data = img.getData();
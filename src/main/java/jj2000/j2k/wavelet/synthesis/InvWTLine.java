@@ -0,0 +1,566 @@
+package jj2000.j2k.wavelet.synthesis;
+
+import jj2000.j2k.decoder.DecoderSpecs;
+import jj2000.j2k.image.DataBlk;
+import jj2000.j2k.image.DataBlkFloat;
+import jj2000.j2k.image.DataBlkInt;
+import jj2000.j2k.wavelet.Subband;
+import jj2000.j2k.wavelet.WaveletTransform;
+
+/**
+ * This class implements the inverse wavelet transform one strip of lines at
+ * a time, rather than on the whole tile-component as InvWTFull does. Each
+ * subband of the tree keeps only the lines needed for the last strip
+ * requested from it: leaves hold the rows of code-blocks, as they are pulled
+ * from the source one row of code-blocks at a time, and nodes hold the lines
+ * synthesized from their children.
+ *
+ * <P>To synthesize a strip of a node the vertical filter is run over the
+ * strip and a margin of lines on either side, which is discarded. The margin
+ * is wider than the reach of the 5x3 and 9x7 lifting steps, so the lines of
+ * the strip are exactly those of a full transform. The memory used is then
+ * proportional to the width of the tile and the height of the strips and
+ * code-blocks, rather than to the area of the tile.
+ *
+ * <P>Strips should be requested in order from the top of the tile. Requesting
+ * a strip above the previous one is supported but the code-blocks are then
+ * pulled from the source again.
+ *
+ * @see InvWTFull
+ * */
+public class InvWTLine extends InverseWT {
+
+    /**
+     * The number of lines synthesized on either side of a strip, which must
+     * be even and at least as wide as the reach of the filters.
+     * */
+    private static final int MARGIN = 8;
+
+    /** the code-block buffer's source i.e. the quantizer */
+    private CBlkWTDataSrcDec src;
+
+    /** The data type of each component in the current tile */
+    private int[] dtype;
+
+    /** The subband that is reconstructed for each component, if started */
+    private Band[] bands;
+
+    /** Number of decomposition levels in each component */
+    private int[] ndl;
+
+    /**
+     * The reversible flag for each component in each tile. The first index is
+     * the tile index, the second one is the component index. The
+     * reversibility of the components for each tile are calculated on a as
+     * needed basis.
+     * */
+    private boolean reversible[][];
+
+    /**
+     * Initializes this object with the given source of wavelet
+     * coefficients. It initializes the resolution level for full resolutioin
+     * reconstruction.
+     *
+     * @param src from where the wavelet coefficinets should be
+     * obtained.
+     *
+     * @param decSpec The decoder specifications
+     * */
+    public InvWTLine(CBlkWTDataSrcDec src, DecoderSpecs decSpec) {
+        super(src,decSpec);
+        this.src = src;
+
+        int nc = src.getNumComps();
+        dtype = new int[nc];
+        bands = new Band[nc];
+        ndl = new int[nc];
+        reversible = new boolean[src.getNumTiles()][];
+    }
+
+    /**
+     * Returns the reversibility of the current subband. It computes
+     * iteratively the reversibility of the child subbands. For each subband
+     * it tests the reversibility of the horizontal and vertical synthesis
+     * filters used to reconstruct this subband.
+     *
+     * @param subband The current subband.
+     *
+     * @return true if all the  filters used to reconstruct the current
+     * subband are reversible
+     * */
+    private boolean isSubbandReversible(Subband subband) {
+        if(subband.isNode) {
+            return
+                isSubbandReversible(subband.getLL()) &&
+                isSubbandReversible(subband.getHL()) &&
+                isSubbandReversible(subband.getLH()) &&
+                isSubbandReversible(subband.getHH()) &&
+                ((SubbandSyn)subband).hFilter.isReversible() &&
+                ((SubbandSyn)subband).vFilter.isReversible();
+        } else {
+            return true;
+        }
+    }
+
+    /**
+     * Returns the reversibility of the wavelet transform for the specified
+     * component, in the current tile. A wavelet transform is reversible when
+     * it is suitable for lossless and lossy-to-lossless compression.
+     *
+     * @param t The index of the tile.
+     *
+     * @param c The index of the component.
+     *
+     * @return true is the wavelet transform is reversible, false if not.
+     * */
+    public boolean isReversible(int t,int c) {
+        if (reversible[t] == null) {
+            reversible[t] = new boolean[getNumComps()];
+            for (int i=reversible[t].length-1; i>=0 ; i--) {
+                reversible[t][i] =
+                    isSubbandReversible(src.getSynSubbandTree(t,i));
+            }
+        }
+        return reversible[t][c];
+    }
+
+    /**
+     * Returns the number of bits, referred to as the "range bits",
+     * corresponding to the nominal range of the data in the specified
+     * component.
+     *
+     * @param c The index of the component.
+     *
+     * @return The number of bits corresponding to the nominal range of the
+     * data.
+     * */
+    public int getNomRangeBits(int c) {
+        return src.getNomRangeBits(c);
+    }
+
+    /**
+     * Returns the position of the fixed point in the specified
+     * component. This is the same as the position in the source, since the
+     * wavelet transform does not modify the fixed point.
+     *
+     * @param c The index of the component.
+     *
+     * @return The position of the fixed-point, which is the same as the
+     * number of fractional bits. For floating-point data 0 is returned.
+     * */
+    public int getFixedPoint(int c) {
+        return src.getFixedPoint(c);
+    }
+
+    /**
+     * Returns a block of image data containing the specifed rectangular area,
+     * in the specified component, as a reference to the internal buffer (see
+     * below). The rectangular area is specified by the coordinates and
+     * dimensions of the 'blk' object.
+     *
+     * <p>Only the lines of the requested area, and a margin around them, are
+     * reconstructed. The data returned is only valid until the next call to
+     * this method for the same component.</p>
+     *
+     * <p>The returned data has its 'progressive' attribute unset
+     * (i.e. false).</p>
+     *
+     * @param blk Its coordinates and dimensions specify the area to return.
+     *
+     * @param c The index of the component from which to get the data.
+     *
+     * @return The requested DataBlk
+     *
+     * @see #getInternCompData
+     * */
+    public final DataBlk getInternCompData(DataBlk blk, int c) {
+        if (bands[c] == null) {
+            SubbandSyn sb = src.getSynSubbandTree(getTileIdx(),c);
+            if(sb.getHorWFilter()==null) {
+                dtype[c] = DataBlk.TYPE_INT;
+            } else {
+                dtype[c] = sb.getHorWFilter().getDataType();
+            }
+            // Only the subbands up to the current resolution are synthesized
+            while (sb.isNode && sb.resLvl>reslvl-maxImgRes+ndl[c]) {
+                sb = (SubbandSyn)sb.getLL();
+            }
+            bands[c] = createBand(sb,c);
+        }
+        Band band = bands[c];
+        band.getLines(blk.uly,blk.uly+blk.h);
+
+        if(blk.getDataType()!=dtype[c]) {
+            // No data array is allocated, as the internal one is returned
+            DataBlk nblk;
+            if(dtype[c]==DataBlk.TYPE_INT) {
+                nblk = new DataBlkInt();
+            } else {
+                nblk = new DataBlkFloat();
+            }
+            nblk.ulx = blk.ulx;
+            nblk.uly = blk.uly;
+            nblk.w = blk.w;
+            nblk.h = blk.h;
+            blk = nblk;
+        }
+        // Set the reference to the internal buffer
+        blk.setData(band.data);
+        blk.offset = (blk.uly-band.first)*band.sb.w+blk.ulx;
+        blk.scanw = band.sb.w;
+        blk.progressive = false;
+        return blk;
+    }
+
+    /**
+     * Returns a block of image data containing the specifed rectangular area,
+     * in the specified component, as a copy (see below). The rectangular area
+     * is specified by the coordinates and dimensions of the 'blk' object.
+     *
+     * <P>The data returned by this method is always a copy of the internal
+     * data of this object, and it can be modified "in place" without
+     * any problems after being returned. The 'offset' of the returned data is
+     * 0, and the 'scanw' is the same as the block's width.
+     *
+     * @param blk Its coordinates and dimensions specify the area to
+     * return. If it contains a non-null data array, then it must be large
+     * enough. If it contains a null data array a new one is created. The
+     * fields in this object are modified to return the data.
+     *
+     * @param c The index of the component from which to get the data.
+     *
+     * @return The requested DataBlk
+     *
+     * @see #getCompData
+     * */
+    public DataBlk getCompData(DataBlk blk, int c) {
+        Object dst_data = blk.getData();
+        int otype = blk.getDataType();
+        int w = blk.w;
+        int h = blk.h;
+        DataBlk intern = getInternCompData(blk,c);
+        if (otype != intern.getDataType() || dst_data == null ||
+            (otype==DataBlk.TYPE_INT ? ((int[])dst_data).length :
+             ((float[])dst_data).length) < w*h) {
+            dst_data = newData(intern.getDataType(),w*h);
+        }
+        for (int i=0; i<h; i++) {
+            System.arraycopy(intern.getData(),intern.offset+i*intern.scanw,
+                             dst_data,i*w,w);
+        }
+        intern.setData(dst_data);
+        intern.offset = 0;
+        intern.scanw = w;
+        return intern;
+    }
+
+    /**
+     * Returns the implementation type of this wavelet transform, WT_IMPL_LINE
+     * (line, or strip, based transform). All components return the same.
+     *
+     * @param c The index of the component.
+     *
+     * @return WT_IMPL_LINE
+     *
+     * @see WaveletTransform#WT_IMPL_LINE
+     * */
+    public int getImplementationType(int c) {
+        return WaveletTransform.WT_IMPL_LINE;
+    }
+
+    /**
+     * Changes the current tile, given the new indexes. An
+     * IllegalArgumentException is thrown if the indexes do not correspond to
+     * a valid tile.
+     *
+     * @param x The horizontal index of the tile.
+     *
+     * @param y The vertical index of the new tile.
+     * */
+    public void setTile(int x,int y) {
+        super.setTile(x,y);
+        reset();
+    }
+
+    /**
+     * Advances to the next tile, in standard scan-line order (by rows then
+     * columns). An 'NoNextElementException' is thrown if the current tile is
+     * the last one (i.e. there is no next tile).
+     * */
+    public void nextTile() {
+        super.nextTile();
+        reset();
+    }
+
+    /**
+     * Discards the lines of the previous tile and reads the number of
+     * decomposition levels of the components of the current one.
+     * */
+    private void reset() {
+        int tIdx = src.getTileIdx();
+        for(int c=0; c<ndl.length; c++) {
+            ndl[c] = src.getSynSubbandTree(tIdx,c).resLvl;
+            bands[c] = null;
+        }
+    }
+
+    /**
+     * Creates the object that reconstructs the lines of the specified
+     * subband, and of its children if it is a node.
+     *
+     * @param sb The subband to reconstruct.
+     *
+     * @param c The index of the component to reconstruct
+     * */
+    private Band createBand(SubbandSyn sb,int c) {
+        if (sb.isNode) {
+            return new NodeBand(sb,c);
+        } else {
+            return new LeafBand(sb,c);
+        }
+    }
+
+    /**
+     * Allocates an array for the specified data type.
+     *
+     * @param type The data type, DataBlk.TYPE_INT or DataBlk.TYPE_FLOAT
+     *
+     * @param len The length of the array
+     * */
+    private static Object newData(int type,int len) {
+        if (type==DataBlk.TYPE_INT) {
+            return new int[len];
+        } else {
+            return new float[len];
+        }
+    }
+
+    /**
+     * Returns the length of an int or float array.
+     * */
+    private static int length(Object data) {
+        if (data instanceof int[]) {
+            return ((int[])data).length;
+        } else {
+            return ((float[])data).length;
+        }
+    }
+
+    /**
+     * The lines of one subband. The lines currently held start at line
+     * 'first' of the subband and are stored in 'data' with a scan-width of
+     * the subband's width.
+     * */
+    private abstract class Band {
+
+        /** The subband */
+        final SubbandSyn sb;
+
+        /** The index of the component */
+        final int c;
+
+        /** The lines held, starting at line 'first' */
+        Object data;
+
+        /** The index, in the subband, of the first line held */
+        int first;
+
+        Band(SubbandSyn sb,int c) {
+            this.sb = sb;
+            this.c = c;
+            data = newData(dtype[c],0);
+        }
+
+        /**
+         * Makes lines 'y0' (inclusive) to 'y1' (exclusive) of the subband
+         * available in 'data'.
+         * */
+        abstract void getLines(int y0,int y1);
+
+        /**
+         * Returns 'data' with enough room for the specified number of lines,
+         * keeping the contents if it is not reallocated.
+         * */
+        Object ensure(Object data,int lines) {
+            int len = lines*sb.w;
+            if (length(data) < len) {
+                Object d = newData(dtype[c],Math.max(len,length(data)*3/2));
+                System.arraycopy(data,0,d,0,length(data));
+                data = d;
+            }
+            return data;
+        }
+    }
+
+    /**
+     * The lines of a leaf subband, which are taken from the code-blocks of
+     * the source one row of code-blocks at a time.
+     * */
+    private final class LeafBand extends Band {
+
+        /** The block for retrieving code-blocks from the source */
+        private DataBlk subbData;
+
+        /** The index of the next row of code-blocks to read */
+        private int m;
+
+        /** The index, in the subband, of the line after the last held */
+        private int last;
+
+        LeafBand(SubbandSyn sb,int c) {
+            super(sb,c);
+            if(dtype[c]==DataBlk.TYPE_INT) {
+                subbData = new DataBlkInt();
+            } else {
+                subbData = new DataBlkFloat();
+            }
+        }
+
+        void getLines(int y0,int y1) {
+            if (sb.w==0 || sb.h==0) {
+                return; // If empty subband do nothing
+            }
+            if (y0<first) {
+                // Start again from the first row of code-blocks
+                first = last = m = 0;
+            }
+            discard(y0);
+            while (last<y1 && m<sb.numCb.y) {
+                for (int n=0; n<sb.numCb.x; n++) {
+                    subbData = src.getInternCodeBlock(c,m,n,sb,subbData);
+                    int uly = subbData.uly-sb.uly;
+                    if (n==0) {
+                        data = ensure(data,uly+subbData.h-first);
+                    }
+                    // Copy the data line by line
+                    for (int i=subbData.h-1; i>=0; i--) {
+                        System.arraycopy(subbData.getData(),
+                                         subbData.offset+i*subbData.scanw,
+                                         data,
+                                         (uly+i-first)*sb.w+
+                                         subbData.ulx-sb.ulx,
+                                         subbData.w);
+                    }
+                    if (n==0) {
+                        last = uly+subbData.h;
+                    }
+                }
+                m++;
+                discard(y0);
+            }
+        }
+
+        /**
+         * Discards the lines held above line 'y'.
+         * */
+        private void discard(int y) {
+            int n = Math.min(y,last)-first;
+            if (n>0) {
+                System.arraycopy(data,n*sb.w,data,0,(last-first-n)*sb.w);
+                first += n;
+            }
+        }
+    }
+
+    /**
+     * The lines of a node subband, which are synthesized from the lines of
+     * its four children.
+     * */
+    private final class NodeBand extends Band {
+
+        /** The children */
+        private final Band ll,hl,lh,hh;
+
+        /** The lines of the low and high pass vertical subbands */
+        private Object low,high;
+
+        /** The buffer for the horizontal synthesis of a line */
+        private Object buf;
+
+        /** The lines held that are the same as those of a full transform */
+        private int valid0,valid1;
+
+        NodeBand(SubbandSyn sb,int c) {
+            super(sb,c);
+            ll = createBand((SubbandSyn)sb.getLL(),c);
+            hl = createBand((SubbandSyn)sb.getHL(),c);
+            lh = createBand((SubbandSyn)sb.getLH(),c);
+            hh = createBand((SubbandSyn)sb.getHH(),c);
+            low = newData(dtype[c],0);
+            high = newData(dtype[c],0);
+            buf = newData(dtype[c],sb.w);
+        }
+
+        void getLines(int y0,int y1) {
+            // If subband is empty (i.e. zero size) nothing to do
+            if (sb.w==0 || sb.h==0 || (y0>=valid0 && y1<=valid1)) {
+                return;
+            }
+            int w = sb.w;
+            int h = sb.h;
+            int p = sb.ulcy%2;
+
+            // The window of lines to synthesize. It starts on an even line
+            // so the same filter is used as for the whole subband.
+            int wa = Math.max(0,y0-MARGIN) & ~1;
+            int wb = Math.min(h,y1+MARGIN);
+            int la = wa/2;
+            int nl = (wb-p+1)/2-la;
+            int nh = (wb+p)/2-la;
+
+            low = ensure(low,nl);
+            high = ensure(high,nh);
+            data = ensure(data,wb-wa);
+            synthetizeLines(ll,hl,la,nl,low);
+            synthetizeLines(lh,hh,la,nh,high);
+
+            //Perform the vertical reconstruction
+            if (p==0) { // start index is even => use LPF
+                for (int j=0; j<w; j++) {
+                    sb.vFilter.synthetize_lpf(low,j,nl,w,high,j,nh,w,
+                                              data,j,w);
+                }
+            } else { // start index is odd => use HPF
+                for (int j=0; j<w; j++) {
+                    sb.vFilter.synthetize_hpf(low,j,nl,w,high,j,nh,w,
+                                              data,j,w);
+                }
+            }
+            first = wa;
+            valid0 = wa==0 ? 0 : wa+MARGIN;
+            valid1 = wb==h ? h : wb-MARGIN;
+        }
+
+        /**
+         * Performs the horizontal reconstruction of lines of this subband
+         * from the lines of the low and high pass horizontal subbands.
+         *
+         * @param l The low pass subband
+         *
+         * @param r The high pass subband
+         *
+         * @param y The index of the first line
+         *
+         * @param n The number of lines
+         *
+         * @param out The buffer for the lines
+         * */
+        private void synthetizeLines(Band l,Band r,int y,int n,Object out) {
+            int w = sb.w;
+            l.getLines(y,y+n);
+            r.getLines(y,y+n);
+            for (int i=0; i<n; i++) {
+                System.arraycopy(l.data,(y+i-l.first)*l.sb.w,buf,0,l.sb.w);
+                System.arraycopy(r.data,(y+i-r.first)*r.sb.w,
+                                 buf,l.sb.w,r.sb.w);
+                if (sb.ulcx%2==0) { // start index is even => use LPF
+                    sb.hFilter.synthetize_lpf(buf,0,(w+1)/2,1,buf,(w+1)/2,
+                                              w/2,1,out,i*w,1);
+                } else { // start index is odd => use HPF
+                    sb.hFilter.synthetize_hpf(buf,0,w/2,1,buf,w/2,(w+1)/2,1,
+                                              out,i*w,1);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import jj2000.j2k.util.BufferPool;
+import com.github.jpeg2000.*;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * Checks decoding with a BufferPool: that single tiles read one after another,
+ * each by a new reader sharing the pool, are the same as those tiles of the image
+ * decoded without a pool, and that once every tile has been read the readers take
+ * all their arrays from the pool rather than allocating new ones. Images decoded
+ * with a pool on several threads, at a reduced resolution and with a tile cache
+ * are also compared to those decoded without one.
+ */
+public class TestBufferPool {
+
+    public static void main(String[] args) throws Exception {
+        int width = 700, height = 500, tilesize = 128;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY }) {
+                BufferedImage img = TestImages.create(width, height, type);
+                int numc = img.getColorModel().getNumComponents();
+                for (float ratio : new float[] { 1, 8 }) {
+                    String name = (numc == 3 ? "rgb" : "gray") + " ratio=" + ratio;
+                    J2KWriter writer = new J2KWriter();
+                    writer.setCompressionRatio(ratio, ratio == 1);
+                    writer.setSource(img, tilesize);
+                    File file = TestImages.save(TestImages.writeCodeStream(writer), ".j2k");
+                    int[] full = TestImages.read(new J2KReader(TestImages.readCodeStream(file)));
+
+                    BufferPool pool = new BufferPool(64 << 20);
+                    SharedCodeStream codestream = new SharedCodeStream(TestImages.readCodeStream(file));
+                    boolean same = true;
+                    long misses = 0, hits = 0;
+                    for (int pass=0;pass<2;pass++) {
+                        for (int y=0;y<height;y+=tilesize) {
+                            for (int x=0;x<width;x+=tilesize) {
+                                Rectangle tile = new Rectangle(x, y, Math.min(tilesize, width - x), Math.min(tilesize, height - y));
+                                J2KReader reader = new J2KReader(codestream);
+                                reader.setBufferPool(pool);
+                                reader.setSourceRegion(tile);
+                                same &= Arrays.equals(TestImages.crop(full, width, numc, tile), TestImages.read(reader));
+                            }
+                        }
+                        if (pass == 0) {
+                            misses = pool.getMissCount();
+                            hits = pool.getHitCount();
+                        }
+                    }
+                    TestImages.check(same, name + " tiles");
+                    TestImages.check(pool.getMissCount() == misses && pool.getHitCount() > hits, name + " arrays reused, " + misses + " allocated then " + (pool.getHitCount() - hits) + " taken from the pool");
+
+                    J2KReader reader = new J2KReader(codestream);
+                    reader.setBufferPool(pool);
+                    reader.setExecutor(executor, 4);
+                    TestImages.check(Arrays.equals(full, TestImages.read(reader)), name + " parallel");
+
+                    reader = new J2KReader(TestImages.readCodeStream(file));
+                    reader.setTargetSize(width / 2, height / 2);
+                    int[] reduced = TestImages.read(reader);
+                    reader = new J2KReader(codestream);
+                    reader.setBufferPool(pool);
+                    reader.setTargetSize(width / 2, height / 2);
+                    TestImages.check(Arrays.equals(reduced, TestImages.read(reader)), name + " reduced");
+
+                    TileCache cache = new TileCache(64 << 20);
+                    for (int i=0;i<2;i++) {
+                        reader = new J2KReader(codestream);
+                        reader.setBufferPool(pool);
+                        reader.setTileCache(cache);
+                        TestImages.check(Arrays.equals(full, TestImages.read(reader)), name + " tile cache " + (i == 0 ? "filled" : "used"));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        TestImages.exit();
+    }
+
+}
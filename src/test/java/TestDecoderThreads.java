@@ -0,0 +1,69 @@
+import jj2000.j2k.entropy.decoder.StdEntropyDecoder;
+import com.github.jpeg2000.*;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * Checks that images whose code-blocks are decoded by the multithreaded
+ * StdEntropyDecoder, set by its "nthreads" system property, are the same as
+ * those decoded by the single threaded one. Tiled images, whose tiles are
+ * transformed whole, and images one tile wide, which are transformed a strip
+ * at a time, are decoded whole, for a region, at a reduced resolution and with
+ * an Executor.
+ */
+public class TestDecoderThreads {
+
+    public static void main(String[] args) throws Exception {
+        int width = 700, height = 500;
+        Rectangle region = new Rectangle(200, 150, 300, 200);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY }) {
+                BufferedImage img = TestImages.create(width, height, type);
+                for (int tilesize : new int[] { 128, 4096 }) {
+                    for (float ratio : new float[] { 1, 8 }) {
+                        String name = (type == BufferedImage.TYPE_INT_RGB ? "rgb" : "gray") + " tilesize=" + tilesize + " ratio=" + ratio;
+                        J2KWriter writer = new J2KWriter();
+                        writer.setCompressionRatio(ratio, ratio == 1);
+                        writer.setSource(img, tilesize);
+                        File file = TestImages.save(TestImages.writeCodeStream(writer), ".j2k");
+                        int[][] expected = decode(file, region, executor, "0");
+                        int[][] threaded = decode(file, region, executor, "3");
+                        String[] what = { "full", "region", "reduced", "parallel" };
+                        for (int i=0;i<what.length;i++) {
+                            TestImages.check(Arrays.equals(expected[i], threaded[i]), name + " " + what[i]);
+                        }
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+            System.clearProperty(StdEntropyDecoder.THREADS_PROP_NAME);
+        }
+        TestImages.exit();
+    }
+
+    /**
+     * Decode the image whole, for the region, at half size and with the executor,
+     * with the specified number of entropy decoder threads
+     */
+    private static int[][] decode(File file, Rectangle region, Executor executor, String nthreads) throws IOException {
+        System.setProperty(StdEntropyDecoder.THREADS_PROP_NAME, nthreads);
+        int[][] out = new int[4][];
+        out[0] = TestImages.read(new J2KReader(TestImages.readCodeStream(file)));
+        J2KReader reader = new J2KReader(TestImages.readCodeStream(file));
+        reader.setSourceRegion(region);
+        out[1] = TestImages.read(reader);
+        reader = new J2KReader(TestImages.readCodeStream(file));
+        reader.setTargetSize(reader.getWidth() / 2, reader.getHeight() / 2);
+        out[2] = TestImages.read(reader);
+        reader = new J2KReader(TestImages.readCodeStream(file));
+        reader.setExecutor(executor, 2);
+        out[3] = TestImages.read(reader);
+        return out;
+    }
+
+}
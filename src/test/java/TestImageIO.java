@@ -0,0 +1,147 @@
+import com.github.jpeg2000.*;
+import com.github.jpeg2000.imageio.*;
+import java.awt.Rectangle;
+import java.awt.image.*;
+import java.io.*;
+import java.util.Arrays;
+import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Checks the ImageIO writer: that images written losslessly read back the same,
+ * and that images with an alpha channel are refused rather than written without
+ * it, unless the source bands select only the color bands. Then checks the
+ * ImageIO reader: that source regions, down to single pixels at odd offsets,
+ * subsampled reads and tiles of a tiled lossless image are read exactly, and
+ * that an image read from forward only input is the same but can't be read again.
+ */
+public class TestImageIO {
+
+    public static void main(String[] args) throws Exception {
+        BufferedImage rgb = TestImages.create(300, 200, BufferedImage.TYPE_INT_RGB);
+        BufferedImage gray = TestImages.create(300, 200, BufferedImage.TYPE_BYTE_GRAY);
+        BufferedImage argb = TestImages.create(300, 200, BufferedImage.TYPE_INT_ARGB);
+        TestImages.check(same(rgb, read(write(rgb, null))), "rgb lossless");
+        TestImages.check(same(gray, read(write(gray, null))), "gray lossless");
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg2000").next();
+        TestImages.check(writer.getOriginatingProvider().canEncodeImage(rgb), "rgb can be encoded");
+        TestImages.check(!writer.getOriginatingProvider().canEncodeImage(argb), "argb can't be encoded");
+        TestImages.check(!ImageIO.write(argb, "jpeg2000", new ByteArrayOutputStream()), "argb not written by ImageIO.write");
+        boolean refused = false;
+        try {
+            write(argb, null);
+        } catch (IIOException e) {
+            refused = true;
+        }
+        TestImages.check(refused, "argb refused by writer");
+        refused = false;
+        try {
+            writer.setOutput(ImageIO.createImageOutputStream(new ByteArrayOutputStream()));
+            writer.prepareWriteEmpty(null, new ImageTypeSpecifier(argb), 300, 200, null, null, null);
+        } catch (IIOException e) {
+            refused = true;
+        }
+        TestImages.check(refused, "argb refused by prepareWriteEmpty");
+
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setSourceBands(new int[] { 0, 1, 2 });
+        BufferedImage color = read(write(argb, param));
+        TestImages.check(color.getRaster().getNumBands() == 3 && same(argb, color), "argb color bands");
+
+        param = writer.getDefaultWriteParam();
+        param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setTiling(128, 128, 0, 0);
+        byte[] tiled = write(rgb, param);
+        TestImages.check(same(rgb, read(tiled)), "tiled lossless");
+        Rectangle[] regions = { new Rectangle(0, 0, 1, 1), new Rectangle(150, 100, 1, 1), new Rectangle(299, 199, 1, 1), new Rectangle(1, 1, 2, 2), new Rectangle(127, 127, 2, 2), new Rectangle(13, 7, 37, 23), new Rectangle(64, 64, 128, 128) };
+        for (Rectangle region : regions) {
+            ImageReadParam rparam = new ImageReadParam();
+            rparam.setSourceRegion(region);
+            TestImages.check(same(rgb.getSubimage(region.x, region.y, region.width, region.height), read(tiled, rparam)), "region " + region.x + "," + region.y + " " + region.width + "x" + region.height);
+        }
+
+        ImageReadParam rparam = new ImageReadParam();
+        rparam.setSourceRegion(new Rectangle(10, 10, 100, 50));
+        rparam.setSourceSubsampling(3, 1, 1, 0);
+        BufferedImage sub = read(tiled, rparam);
+        boolean exact = sub.getWidth() == 33 && sub.getHeight() == 50;
+        for (int y=0;exact && y<sub.getHeight();y++) {
+            for (int x=0;x<sub.getWidth();x++) {
+                exact &= sub.getRGB(x, y) == rgb.getRGB(11 + x * 3, 10 + y);
+            }
+        }
+        TestImages.check(exact, "subsampling 3,1 offset 1,0");
+
+        rparam = new ImageReadParam();
+        rparam.setSourceSubsampling(2, 2, 0, 0);
+        sub = read(tiled, rparam);
+        J2KReader half = new J2KReader(TestImages.readFile(tiled));
+        half.setTargetSize(150, 100);
+        int[] samples = TestImages.read(half);
+        TestImages.check(sub.getWidth() == 150 && sub.getHeight() == 100 && Arrays.equals(samples, sub.getRaster().getPixels(0, 0, 150, 100, (int[])null)), "subsampling 2,2 is half resolution");
+
+        ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg2000").next();
+        reader.setInput(ImageIO.createImageInputStream(new ByteArrayInputStream(tiled)));
+        TestImages.check(reader.isImageTiled(0) && reader.getTileWidth(0) == 128 && reader.getTileHeight(0) == 128, "tiled 128x128");
+        TestImages.check(same(rgb.getSubimage(128, 128, 128, 72), reader.readTile(0, 1, 1)), "tile 1,1");
+        TestImages.check(same(rgb.getSubimage(256, 0, 44, 128), reader.readTile(0, 2, 0)), "tile 2,0");
+        reader.dispose();
+
+        reader = ImageIO.getImageReadersByFormatName("jpeg2000").next();
+        ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(tiled));
+        reader.setInput(in, true);
+        TestImages.check(same(rgb, reader.read(0)), "forward only");
+        refused = false;
+        try {
+            reader.read(0);
+        } catch (IIOException e) {
+            refused = true;
+        }
+        TestImages.check(refused, "forward only read again refused");
+        reader.dispose();
+        TestImages.exit();
+    }
+
+    private static byte[] write(BufferedImage img, ImageWriteParam param) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg2000").next();
+        ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+        writer.setOutput(stream);
+        writer.write(null, new IIOImage(img, null, null), param);
+        stream.close();
+        return out.toByteArray();
+    }
+
+    private static BufferedImage read(byte[] data) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(data));
+    }
+
+    private static BufferedImage read(byte[] data, ImageReadParam param) throws IOException {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg2000").next();
+        reader.setInput(ImageIO.createImageInputStream(new ByteArrayInputStream(data)));
+        BufferedImage img = reader.read(0, param);
+        reader.dispose();
+        return img;
+    }
+
+    /**
+     * Return true if the color bands of two images are the same
+     */
+    private static boolean same(BufferedImage a, BufferedImage b) {
+        int numc = b.getColorModel().getNumColorComponents();
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight() || a.getColorModel().getNumColorComponents() != numc) {
+            return false;
+        }
+        for (int c=0;c<numc;c++) {
+            int[] sa = a.getRaster().getSamples(0, 0, a.getWidth(), a.getHeight(), c, (int[])null);
+            int[] sb = b.getRaster().getSamples(0, 0, b.getWidth(), b.getHeight(), c, (int[])null);
+            if (!Arrays.equals(sa, sb)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,124 @@
+import jj2000.j2k.io.*;
+import com.github.jpeg2000.*;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.*;
+import java.util.Random;
+
+/**
+ * Methods shared by the checks in this directory, which create and encode test
+ * images, decode them again and report any differences. Each check prints a line
+ * for every comparison and exits with status 1 if any of them failed.
+ */
+class TestImages {
+
+    private static int checks, failures;
+
+    /**
+     * Create an image of the specified BufferedImage type with smooth gradients
+     * and some noise, the same every time.
+     */
+    static BufferedImage create(int width, int height, int type) {
+        BufferedImage img = new BufferedImage(width, height, type);
+        WritableRaster raster = img.getRaster();
+        int max = (1 << img.getColorModel().getComponentSize(0)) - 1;
+        Random random = new Random(1);
+        for (int y=0;y<height;y++) {
+            for (int x=0;x<width;x++) {
+                for (int b=0;b<raster.getNumBands();b++) {
+                    int v = (int)((x * 3 + y * 5 + b * 40) % (max + 1) * 0.8) + random.nextInt(max / 8 + 1);
+                    raster.setSample(x, y, b, Math.min(max, v));
+                }
+            }
+        }
+        return img;
+    }
+
+    /**
+     * Write a J2KWriter to a JP2 file, returning its bytes
+     */
+    static byte[] write(J2KWriter writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.write(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Write the codestream of a J2KWriter, without the JP2 boxes, returning its bytes
+     */
+    static byte[] writeCodeStream(J2KWriter writer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.create().getCodeStreamBox().write(new DataOutputStream(out));
+        return out.toByteArray();
+    }
+
+    /**
+     * Save bytes to a temporary file, which is deleted on exit
+     */
+    static File save(byte[] data, String suffix) throws IOException {
+        File file = File.createTempFile("test", suffix);
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+        return file;
+    }
+
+    /**
+     * Read a JP2 file from bytes
+     */
+    static J2KFile readFile(byte[] data) throws IOException {
+        return new J2KFile().read(new BEBufferedRandomAccessFile(save(data, ".jp2"), "r", 8192));
+    }
+
+    /**
+     * Read a codestream from a file
+     */
+    static CodeStreamBox readCodeStream(File file) throws IOException {
+        CodeStreamBox box = new CodeStreamBox();
+        box.read(new BEBufferedRandomAccessFile(file, "r", 8192));
+        return box;
+    }
+
+    /**
+     * Read the samples of every pixel from a J2KReader, which is then closed
+     */
+    static int[] read(J2KReader reader) throws IOException {
+        int[] out = new int[reader.getWidth() * reader.getHeight() * reader.getNumComponents()];
+        reader.readRaster(out, 0, reader.getWidth() * reader.getNumComponents(), null);
+        reader.close();
+        return out;
+    }
+
+    /**
+     * Return the samples of a region of an image read by {@link #read}
+     */
+    static int[] crop(int[] samples, int width, int numc, Rectangle region) {
+        int[] out = new int[region.width * region.height * numc];
+        for (int y=0;y<region.height;y++) {
+            System.arraycopy(samples, ((region.y + y) * width + region.x) * numc, out, y * region.width * numc, region.width * numc);
+        }
+        return out;
+    }
+
+    /**
+     * Report the result of a check
+     */
+    static void check(boolean ok, String message) {
+        checks++;
+        if (!ok) {
+            failures++;
+        }
+        System.out.println((ok ? "ok   " : "FAIL ") + message);
+    }
+
+    /**
+     * Print the number of checks that failed and exit, with status 1 if any did
+     */
+    static void exit() {
+        System.out.println(failures == 0 ? "# All " + checks + " checks passed" : "# " + failures + " of " + checks + " checks failed");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+}
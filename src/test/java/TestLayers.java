@@ -0,0 +1,160 @@
+import jj2000.j2k.codestream.Markers;
+import com.github.jpeg2000.*;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * Checks decoding limited by J2KReader.setMaxLayers and setDecodingRate: that
+ * the quality rises with the number of layers and with the rate, that the image
+ * is the same in layer and resolution progression order, with or without PLT
+ * segments, on several threads and through a SharedCodeStream, and that a
+ * limited read doesn't change what other readers of the codestream decode.
+ * Lossless and lossy codestreams are checked to decode exactly the number of
+ * layers asked for: one layer gives more than a flat image, and all but the
+ * last layer differs from every layer.
+ */
+public class TestLayers {
+
+    public static void main(String[] args) throws Exception {
+        int width = 700, height = 500;
+        BufferedImage img = TestImages.create(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] source = img.getRaster().getPixels(0, 0, width, height, (int[])null);
+        Rectangle region = new Rectangle(300, 200, 150, 120);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int tilesize : new int[] { 256, 4096 }) {
+                String name = "tilesize=" + tilesize;
+                File layer = TestImages.save(encode(img, tilesize, "layer", 1, false), ".j2k");
+                File res = TestImages.save(encode(img, tilesize, "res", 1, false), ".j2k");
+                File layerplt = TestImages.save(encode(img, tilesize, "layer", 1, true), ".j2k");
+                File resplt = TestImages.save(encode(img, tilesize, "res", 1, true), ".j2k");
+                int[] full = read(layer, 0, Double.MAX_VALUE, null, null);
+                TestImages.check(Arrays.equals(source, full), name + " lossless");
+                TestImages.check(Arrays.equals(full, read(layer, 1000, Double.MAX_VALUE, null, null)), name + " layers=1000 is full");
+
+                File lossy = TestImages.save(encode(img, tilesize, "layer", 8, false), ".j2k");
+                for (File file : new File[] { layer, lossy }) {
+                    String fname = name + (file == layer ? " lossless" : " ratio=8");
+                    int numlayers = numLayers(file);
+                    int[] all = read(file, 0, Double.MAX_VALUE, null, null);
+                    TestImages.check(Arrays.equals(all, read(file, numlayers, Double.MAX_VALUE, null, null)), fname + " layers=" + numlayers + " is full");
+                    TestImages.check(!Arrays.equals(all, read(file, numlayers - 1, Double.MAX_VALUE, null, null)), fname + " layers=" + (numlayers - 1) + " differs from full");
+                    int[] first = read(file, 1, Double.MAX_VALUE, null, null);
+                    int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+                    for (int v : first) {
+                        min = Math.min(min, v);
+                        max = Math.max(max, v);
+                    }
+                    TestImages.check(max - min > 16, fname + " layers=1 not flat, samples " + min + " to " + max);
+                }
+
+                double last = 0;
+                for (int layers : new int[] { 1, 2, 5, 10 }) {
+                    int[] limited = read(layer, layers, Double.MAX_VALUE, null, null);
+                    double psnr = psnr(source, limited);
+                    TestImages.check(psnr > last && !Arrays.equals(full, limited), name + " layers=" + layers + " psnr=" + (float)psnr);
+                    last = psnr;
+                    TestImages.check(Arrays.equals(limited, read(res, layers, Double.MAX_VALUE, null, null)), name + " layers=" + layers + " layer and res equal");
+                    int[] limitedplt = read(layerplt, layers, Double.MAX_VALUE, null, null);
+                    TestImages.check(Arrays.equals(limitedplt, read(resplt, layers, Double.MAX_VALUE, null, null)), name + " layers=" + layers + " layer and res with PLT equal");
+                    TestImages.check(Arrays.equals(TestImages.crop(limitedplt, width, 3, region), read(resplt, layers, Double.MAX_VALUE, region, null)), name + " layers=" + layers + " region");
+                }
+
+                last = 0;
+                for (double rate : new double[] { 0.1, 0.5, 2 }) {
+                    int[] limited = read(layer, 0, rate, null, null);
+                    double psnr = psnr(source, limited);
+                    TestImages.check(psnr > last, name + " rate=" + rate + " psnr=" + (float)psnr);
+                    last = psnr;
+                    TestImages.check(Arrays.equals(limited, read(res, 0, rate, null, null)), name + " rate=" + rate + " layer and res equal");
+                    TestImages.check(Arrays.equals(limited, read(layer, 0, rate, null, executor)), name + " rate=" + rate + " parallel");
+                    J2KReader reader = new J2KReader(new SharedCodeStream(TestImages.readCodeStream(layer)));
+                    reader.setDecodingRate(rate);
+                    TestImages.check(Arrays.equals(limited, TestImages.read(reader)), name + " rate=" + rate + " shared codestream");
+                }
+
+                // Full, limited and full again, then limited again, on one codestream
+                SharedCodeStream codestream = new SharedCodeStream(TestImages.readCodeStream(resplt));
+                int[] resfull = read(resplt, 0, Double.MAX_VALUE, null, null);
+                int[] reslimited = read(resplt, 2, Double.MAX_VALUE, null, null);
+                int[][] expected = { resfull, reslimited, resfull, reslimited };
+                boolean same = true;
+                for (int i=0;i<expected.length;i++) {
+                    J2KReader reader = new J2KReader(codestream);
+                    reader.setMaxLayers(i % 2 == 0 ? 0 : 2);
+                    if (i >= 2) {
+                        reader.setExecutor(executor, 4);
+                    }
+                    same &= Arrays.equals(expected[i], TestImages.read(reader));
+                }
+                TestImages.check(same, name + " full and limited reads of a shared codestream");
+            }
+        } finally {
+            executor.shutdown();
+        }
+        TestImages.exit();
+    }
+
+    private static byte[] encode(BufferedImage img, int tilesize, String prog, float ratio, boolean plt) throws IOException {
+        int numtiles = ((img.getWidth() + tilesize - 1) / tilesize) * ((img.getHeight() + tilesize - 1) / tilesize);
+        J2KWriter writer = new J2KWriter();
+        writer.setSource(img, tilesize);
+        SimpleJ2KWriteParam param = new SimpleJ2KWriteParam(3, numtiles);
+        param.setProgressionName(prog);
+        param.setCompression(ratio, false);
+        writer.setParams(param);
+        writer.setPointerMarkers(plt);
+        return TestImages.writeCodeStream(writer);
+    }
+
+    private static int[] read(File file, int layers, double rate, Rectangle region, Executor executor) throws IOException {
+        J2KReader reader = new J2KReader(TestImages.readCodeStream(file));
+        reader.setMaxLayers(layers);
+        reader.setDecodingRate(rate);
+        if (region != null) {
+            reader.setSourceRegion(region);
+        }
+        if (executor != null) {
+            reader.setExecutor(executor, 4);
+        }
+        return TestImages.read(reader);
+    }
+
+    /**
+     * Return the number of layers, from the COD marker segment of the main header
+     */
+    private static int numLayers(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readUnsignedShort();     // SOC
+            while (true) {
+                int marker = in.readUnsignedShort();
+                int len = in.readUnsignedShort();
+                if (marker == (Markers.COD & 0xffff)) {
+                    in.readUnsignedByte();      // Scod
+                    in.readUnsignedByte();      // Progression order
+                    return in.readUnsignedShort();
+                }
+                in.readFully(new byte[len - 2]);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Return the peak signal to noise ratio of 8 bit samples, in dB
+     */
+    private static double psnr(int[] source, int[] samples) {
+        double error = 0;
+        for (int i=0;i<source.length;i++) {
+            double d = source[i] - samples[i];
+            error += d * d;
+        }
+        return error == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255 * 255 / (error / source.length));
+    }
+
+}
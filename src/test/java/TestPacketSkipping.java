@@ -0,0 +1,86 @@
+import jj2000.j2k.*;
+import jj2000.j2k.entropy.*;
+import com.github.jpeg2000.*;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Checks decoding of codestreams with PLT marker segments, whose packets are
+ * skipped rather than parsed when they are outside the region being decoded,
+ * above the resolution being decoded, or in layers past the last one decoded.
+ * Each is compared to the same lossless codestream without PLT segments, which
+ * has the same packets, or to that part of the full image. The first layers, which
+ * are shortened to make room for the PLT segments, are compared to those decoded
+ * in the other progression order. A region of a lossy codestream is compared to
+ * that part of its full image.
+ */
+public class TestPacketSkipping {
+
+    public static void main(String[] args) throws Exception {
+        int width = 700, height = 500, tilesize = 256;
+        int numtiles = ((width + tilesize - 1) / tilesize) * ((height + tilesize - 1) / tilesize);
+        BufferedImage img = TestImages.create(width, height, BufferedImage.TYPE_INT_RGB);
+        Rectangle region = new Rectangle(200, 150, 300, 200);
+        int[] layers = null;
+        for (String prog : new String[] { "layer", "res" }) {
+            File plain = TestImages.save(encode(img, tilesize, numtiles, prog, 1, false), ".j2k");
+            File plt = TestImages.save(encode(img, tilesize, numtiles, prog, 1, true), ".j2k");
+            int[] full = TestImages.read(new J2KReader(TestImages.readCodeStream(plain)));
+            TestImages.check(Arrays.equals(full, TestImages.read(new J2KReader(TestImages.readCodeStream(plt)))), prog + " full");
+
+            J2KReader reader = new J2KReader(TestImages.readCodeStream(plt));
+            reader.setSourceRegion(region);
+            TestImages.check(Arrays.equals(TestImages.crop(full, width, 3, region), TestImages.read(reader)), prog + " region");
+
+            for (int scale : new int[] { 2, 8 }) {
+                reader = new J2KReader(TestImages.readCodeStream(plain));
+                reader.setTargetSize(width / scale, height / scale);
+                int[] reduced = TestImages.read(reader);
+                reader = new J2KReader(TestImages.readCodeStream(plt));
+                reader.setTargetSize(width / scale, height / scale);
+                TestImages.check(Arrays.equals(reduced, TestImages.read(reader)), prog + " reduced 1/" + scale);
+            }
+
+            reader = new J2KReader(TestImages.readCodeStream(plt));
+            reader.setMaxLayers(3);
+            int[] limited = TestImages.read(reader);
+            TestImages.check(!Arrays.equals(full, limited), prog + " layers=3 differs from full");
+            reader = new J2KReader(TestImages.readCodeStream(plt));
+            reader.setMaxLayers(3);
+            reader.setSourceRegion(region);
+            TestImages.check(Arrays.equals(TestImages.crop(limited, width, 3, region), TestImages.read(reader)), prog + " layers=3 region");
+
+            File lossy = TestImages.save(encode(img, tilesize, numtiles, prog, 8, true), ".j2k");
+            int[] lossyfull = TestImages.read(new J2KReader(TestImages.readCodeStream(lossy)));
+            reader = new J2KReader(TestImages.readCodeStream(lossy));
+            reader.setSourceRegion(region);
+            TestImages.check(Arrays.equals(TestImages.crop(lossyfull, width, 3, region), TestImages.read(reader)), prog + " ratio=8 region");
+
+            if (layers == null) {
+                layers = limited;
+            } else {
+                TestImages.check(Arrays.equals(layers, limited), "layer and res layers=3 equal");
+            }
+        }
+        TestImages.exit();
+    }
+
+    private static byte[] encode(BufferedImage img, int tilesize, int numtiles, String prog, float ratio, boolean plt) throws IOException {
+        J2KWriter writer = new J2KWriter();
+        writer.setSource(img, tilesize);
+        // Small precincts, so a region needs only some of the packets of a tile
+        SimpleJ2KWriteParam param = new SimpleJ2KWriteParam(3, numtiles) {
+            public PrecinctSizeSpec getPrecinctPartition() {
+                return new PrecinctSizeSpec(getNumTiles(), getNumComponents(), ModuleSpec.SPEC_TYPE_TILE_COMP, null, getDecompositionLevel(), this, "32 32");
+            }
+        };
+        param.setProgressionName(prog);
+        param.setCompression(ratio, false);
+        writer.setParams(param);
+        writer.setPointerMarkers(plt);
+        return TestImages.writeCodeStream(writer);
+    }
+
+}
@@ -0,0 +1,83 @@
+import com.github.jpeg2000.*;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+/**
+ * Checks that images decoded with an Executor, from a J2KFile or a
+ * SharedCodeStream, are the same as those decoded on the calling thread,
+ * whole, for a region and at a reduced resolution, and that the codestreams
+ * of images encoded with an Executor are identical to those encoded on the
+ * calling thread.
+ */
+public class TestParallel {
+
+    public static void main(String[] args) throws Exception {
+        int width = 700, height = 500, tilesize = 128;
+        Rectangle region = new Rectangle(200, 150, 300, 200);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int type : new int[] { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_GRAY }) {
+                BufferedImage img = TestImages.create(width, height, type);
+                int numc = img.getColorModel().getNumComponents();
+                for (float ratio : new float[] { 1, 8 }) {
+                    String name = (numc == 3 ? "rgb" : "gray") + " ratio=" + ratio;
+                    J2KWriter writer = new J2KWriter();
+                    writer.setCompressionRatio(ratio, ratio == 1);
+                    writer.setSource(img, tilesize);
+                    byte[] data = TestImages.write(writer);
+                    int[] full = TestImages.read(new J2KReader(TestImages.readFile(data)));
+                    int[] crop = TestImages.crop(full, width, numc, region);
+                    J2KReader reader = new J2KReader(TestImages.readFile(data));
+                    reader.setTargetSize(width / 2, height / 2);
+                    int[] half = TestImages.read(reader);
+
+                    for (int parallelism : new int[] { 1, 2, 4 }) {
+                        reader = new J2KReader(TestImages.readFile(data));
+                        reader.setExecutor(executor, parallelism);
+                        TestImages.check(Arrays.equals(full, TestImages.read(reader)), name + " parallelism=" + parallelism + " file");
+                    }
+
+                    SharedCodeStream codestream = new SharedCodeStream(TestImages.readFile(data));
+                    reader = new J2KReader(codestream);
+                    reader.setExecutor(executor, 4);
+                    TestImages.check(Arrays.equals(full, TestImages.read(reader)), name + " shared codestream");
+
+                    reader = new J2KReader(codestream);
+                    reader.setExecutor(executor, 4);
+                    reader.setSourceRegion(region);
+                    TestImages.check(Arrays.equals(crop, TestImages.read(reader)), name + " region");
+
+                    reader = new J2KReader(codestream);
+                    reader.setExecutor(executor, 4);
+                    reader.setTargetSize(width / 2, height / 2);
+                    TestImages.check(Arrays.equals(half, TestImages.read(reader)), name + " reduced");
+
+                    for (boolean streaming : new boolean[] { false, true }) {
+                        byte[] sequential = encode(img, tilesize, ratio, streaming, null, 0);
+                        for (int parallelism : new int[] { 1, 3 }) {
+                            byte[] parallel = encode(img, tilesize, ratio, streaming, executor, parallelism);
+                            TestImages.check(Arrays.equals(sequential, parallel), name + (streaming ? " streaming" : "") + " parallelism=" + parallelism + " encoded");
+                        }
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        TestImages.exit();
+    }
+
+    private static byte[] encode(BufferedImage img, int tilesize, float ratio, boolean streaming, Executor executor, int parallelism) throws IOException {
+        J2KWriter writer = new J2KWriter();
+        writer.setCompressionRatio(ratio, ratio == 1);
+        writer.setSource(img, tilesize);
+        writer.setStreaming(streaming);
+        writer.setPointerMarkers(true);
+        writer.setExecutor(executor, parallelism);
+        return TestImages.writeCodeStream(writer);
+    }
+
+}
@@ -0,0 +1,75 @@
+import jj2000.j2k.codestream.Markers;
+import com.github.jpeg2000.*;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks the TLM and PLT marker segments written by J2KWriter.setPointerMarkers:
+ * that they are written, that lossless images still decode exactly, that a region
+ * of a lossy image, which is decoded by skipping the packets the PLT segments give
+ * the length of, is the same as that part of the full image, and that the codestream
+ * is no longer than the compression ratio allows.
+ */
+public class TestPointerMarkers {
+
+    public static void main(String[] args) throws Exception {
+        int width = 700, height = 500;
+        BufferedImage img = TestImages.create(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] source = img.getRaster().getPixels(0, 0, width, height, (int[])null);
+        Rectangle region = new Rectangle(200, 150, 300, 200);
+        for (int tilesize : new int[] { 128, 4096 }) {
+            for (boolean streaming : new boolean[] { false, true }) {
+                String name = "tilesize=" + tilesize + (streaming ? " streaming" : "");
+                byte[] data = encode(img, tilesize, 1, streaming);
+                Set<Integer> markers = markers(data);
+                TestImages.check(markers.contains(Markers.TLM & 0xffff) == !streaming, name + " TLM " + (streaming ? "not " : "") + "written");
+                TestImages.check(markers.contains(Markers.PLT & 0xffff), name + " PLT written");
+                TestImages.check(Arrays.equals(source, TestImages.read(new J2KReader(readCodeStream(data)))), name + " lossless");
+
+                for (int ratio : new int[] { 4, 10, 40 }) {
+                    data = encode(img, tilesize, ratio, streaming);
+                    int target = width * height * 24 / 8 / ratio;
+                    TestImages.check(data.length <= target, name + " ratio=" + ratio + " length " + data.length + " <= " + target);
+                    int[] full = TestImages.read(new J2KReader(readCodeStream(data)));
+                    J2KReader reader = new J2KReader(readCodeStream(data));
+                    reader.setSourceRegion(region);
+                    TestImages.check(Arrays.equals(TestImages.crop(full, width, 3, region), TestImages.read(reader)), name + " ratio=" + ratio + " region");
+                }
+            }
+        }
+        TestImages.exit();
+    }
+
+    private static byte[] encode(BufferedImage img, int tilesize, float ratio, boolean streaming) throws IOException {
+        J2KWriter writer = new J2KWriter();
+        writer.setCompressionRatio(ratio, false);
+        writer.setSource(img, tilesize);
+        writer.setStreaming(streaming);
+        writer.setPointerMarkers(true);
+        return TestImages.writeCodeStream(writer);
+    }
+
+    private static CodeStreamBox readCodeStream(byte[] data) throws IOException {
+        return TestImages.readCodeStream(TestImages.save(data, ".j2k"));
+    }
+
+    /**
+     * Return the markers of the main header and of the first tile-part header
+     */
+    private static Set<Integer> markers(byte[] data) {
+        Set<Integer> markers = new HashSet<Integer>();
+        int pos = 2;    // SOC
+        while (pos + 4 <= data.length) {
+            int marker = ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+            if (marker == (Markers.SOD & 0xffff)) {
+                break;
+            }
+            markers.add(marker);
+            pos += 2 + (((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff));
+        }
+        return markers;
+    }
+
+}
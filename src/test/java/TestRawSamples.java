@@ -0,0 +1,86 @@
+import jj2000.j2k.io.AbstractDataSource;
+import com.github.jpeg2000.*;
+import java.awt.color.ColorSpace;
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that gray and RGB images of 12 and 16 bit samples, signed and
+ * unsigned, encoded losslessly from short and int arrays, are decoded exactly
+ * by J2KReader when raw samples are requested. The images are split into
+ * equal tiles, or not split: deep samples in edge tiles only a few pixels
+ * wide or high, such as the 8 pixel wide tiles of a 200 pixel wide image with
+ * 64 pixel tiles, are not always decoded exactly by the codec.
+ */
+public class TestRawSamples {
+
+    public static void main(String[] args) throws Exception {
+        int width = 300, height = 200;
+        for (int numc : new int[] { 1, 3 }) {
+            for (int bpc : new int[] { 12, 16 }) {
+                for (boolean signed : new boolean[] { false, true }) {
+                    short[] samples = create(width, height, numc, bpc, signed);
+                    int[] isamples = new int[samples.length];
+                    for (int i=0;i<samples.length;i++) {
+                        isamples[i] = signed ? samples[i] : samples[i] & 0xffff;
+                    }
+                    for (int tilesize : new int[] { 100, 4096 }) {
+                        String name = (numc == 1 ? "gray" : "rgb") + " " + (signed ? "signed " : "") + bpc + " bit tilesize=" + tilesize;
+                        AbstractDataSource src = AbstractDataSource.newInstance(width, height, numc, bpc, signed, tilesize, samples, 0);
+                        TestImages.check(Arrays.equals(samples, read(encode(src, numc), signed, bpc)), name + " from short[]");
+                        src = AbstractDataSource.newInstance(width, height, numc, bpc, signed, tilesize, isamples, 0);
+                        TestImages.check(Arrays.equals(samples, read(encode(src, numc), signed, bpc)), name + " from int[]");
+                    }
+                }
+            }
+        }
+        TestImages.exit();
+    }
+
+    /**
+     * Create samples with smooth gradients and some noise over the full range
+     * of the bit depth, the same every time, as they are returned by J2KReader
+     */
+    private static short[] create(int width, int height, int numc, int bpc, boolean signed) {
+        short[] samples = new short[width * height * numc];
+        int max = (1 << bpc) - 1;
+        int min = signed ? -(1 << (bpc - 1)) : 0;
+        Random random = new Random(bpc);
+        int i = 0;
+        for (int y=0;y<height;y++) {
+            for (int x=0;x<width;x++) {
+                for (int c=0;c<numc;c++) {
+                    int v = (int)(((x * 37 + y * 53 + c * 1000) * (max + 1L) / 20000) % (max + 1)) + random.nextInt(max / 64 + 1);
+                    samples[i++] = (short)(Math.min(max, v) + min);
+                }
+            }
+        }
+        return samples;
+    }
+
+    private static File encode(AbstractDataSource src, int numc) throws IOException {
+        J2KWriter writer = new J2KWriter();
+        writer.setSource(src);
+        writer.setColorSpace(ColorSpace.getInstance(numc == 1 ? ColorSpace.CS_GRAY : ColorSpace.CS_sRGB));
+        writer.setCompressionRatio(1, true);
+        return TestImages.save(TestImages.writeCodeStream(writer), ".j2k");
+    }
+
+    private static short[] read(File file, boolean signed, int bpc) throws IOException {
+        J2KReader reader = new J2KReader(TestImages.readCodeStream(file));
+        reader.setRawSamples(true);
+        boolean ok = reader.getBitsPerComponent() == 16;
+        for (int c=0;c<reader.getNumComponents();c++) {
+            ok &= reader.isOriginalSigned(c) == signed && reader.getOriginalBitsPerComponent(c) == bpc;
+        }
+        short[] out = new short[reader.getWidth() * reader.getHeight() * reader.getNumComponents()];
+        int off = 0, n;
+        while (off < out.length && (n = reader.read(out, off, out.length - off)) > 0) {
+            off += n;
+        }
+        reader.close();
+        return ok && off == out.length ? out : null;
+    }
+
+}
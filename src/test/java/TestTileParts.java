@@ -0,0 +1,79 @@
+import jj2000.j2k.*;
+import jj2000.j2k.util.*;
+import com.github.jpeg2000.*;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks that tiled codestreams whose tiles are split into several tile-parts,
+ * or whose packet headers are packed in the main header (PPM) or the tile-part
+ * headers (PPT), decode the same as the codestream they were made from. The
+ * tile-parts of these are indexed from their SOT marker segments, or read in
+ * sequence when the packed packet headers need it.
+ */
+public class TestTileParts {
+
+    public static void main(String[] args) throws Exception {
+        BufferedImage img = TestImages.create(700, 500, BufferedImage.TYPE_INT_RGB);
+        int tilesize = 128;
+        int numtiles = ((700 + tilesize - 1) / tilesize) * ((500 + tilesize - 1) / tilesize);
+        Rectangle region = new Rectangle(200, 150, 300, 200);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        // Packets per tile-part, PPM, PPT
+        Object[][] variants = { { 2, false, false }, { 0, true, false }, { 2, true, false }, { 0, false, true }, { 4, false, true } };
+        try {
+            for (String prog : new String[] { "layer", "res-pos" }) {
+                File file = TestImages.save(encode(img, tilesize, numtiles, prog), ".j2k");
+                int[] full = TestImages.read(new J2KReader(TestImages.readCodeStream(file)));
+                int[] crop = TestImages.crop(full, 700, 3, region);
+                for (Object[] v : variants) {
+                    String name = prog + " tileparts=" + v[0] + " ppm=" + v[1] + " ppt=" + v[2];
+                    File vfile = TestImages.save(readBytes(file), ".j2k");
+                    new CodestreamManipulator(vfile, numtiles, (Integer)v[0], (Boolean)v[1], (Boolean)v[2], false, false).doCodestreamManipulation();
+
+                    TestImages.check(java.util.Arrays.equals(full, TestImages.read(new J2KReader(TestImages.readCodeStream(vfile)))), name + " full");
+
+                    J2KReader reader = new J2KReader(TestImages.readCodeStream(vfile));
+                    reader.setExecutor(executor, 4);
+                    TestImages.check(java.util.Arrays.equals(full, TestImages.read(reader)), name + " parallel");
+
+                    reader = new J2KReader(TestImages.readCodeStream(vfile));
+                    reader.setSourceRegion(region);
+                    TestImages.check(java.util.Arrays.equals(crop, TestImages.read(reader)), name + " region");
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        TestImages.exit();
+    }
+
+    private static byte[] encode(BufferedImage img, int tilesize, int numtiles, String prog) throws IOException {
+        J2KWriter writer = new J2KWriter();
+        writer.setSource(img, tilesize);
+        // CodestreamManipulator finds the packets from their SOP and EPH markers
+        SimpleJ2KWriteParam param = new SimpleJ2KWriteParam(3, numtiles) {
+            public StringSpec getSOP() {
+                return new StringSpec(getNumTiles(), getNumComponents(), ModuleSpec.SPEC_TYPE_TILE_COMP, "false", new String[] { "true", "false" }, null, "true");
+            }
+            public StringSpec getEPH() {
+                return new StringSpec(getNumTiles(), getNumComponents(), ModuleSpec.SPEC_TYPE_TILE_COMP, "false", new String[] { "true", "false" }, null, "true");
+            }
+        };
+        param.setProgressionName(prog);
+        param.setCompression(8, false);
+        writer.setParams(param);
+        return TestImages.writeCodeStream(writer);
+    }
+
+    private static byte[] readBytes(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        in.readFully(data);
+        in.close();
+        return data;
+    }
+
+}